@@ -0,0 +1,88 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * A small benchmark harness. For each operation it:
+ * 1) runs the operation for a while without measuring anything, so the JIT compiler can warm it up
+ * 2) runs it again for a set amount of time, counting how many times it ran
+ *    and how many bytes were allocated while it ran
+ * 3) prints the throughput (operations per second), the time per operation, 
+ *    and the allocation rate (bytes per operation)
+ * 
+ * Everything runs on the calling thread, one operation at a time.
+ */
+public class BenchmarkRunner {
+  
+  /**
+   * Something to benchmark. Return something computed by the operation 
+   * (anything is fine), so the JIT compiler can't decide the work is unused and skip it.
+   */
+  public interface Operation {
+    public double run();
+  }
+  
+  private long warmupNanos;
+  private long measureNanos;
+  // how many times the operation is run between checks of the clock
+  private final int BATCH_SIZE = 16;
+  
+  private com.sun.management.ThreadMXBean threadInfo = null;
+  
+  // results of every operation get added up here, so none of them are "unused".
+  private volatile double sink;
+  
+  /**
+   * @param warmupSeconds how long to run each operation before measuring it.
+   * @param measureSeconds how long to measure each operation for.
+   */
+  public BenchmarkRunner(double warmupSeconds, double measureSeconds) {
+    warmupNanos = (long) (warmupSeconds * 1e9);
+    measureNanos = (long) (measureSeconds * 1e9);
+    
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+      threadInfo = (com.sun.management.ThreadMXBean) bean;
+      threadInfo.setThreadAllocatedMemoryEnabled(true);
+    }
+  }
+  
+  public void printHeader(String title) {
+    System.out.println();
+    System.out.println(title);
+    System.out.printf("  %-44s %14s %12s %12s%n", "benchmark", "ops/s", "us/op", "bytes/op");
+  }
+  
+  public void run(String name, Operation operation) {
+    // Warmup
+    double result = 0;
+    long start = System.nanoTime();
+    while (System.nanoTime() - start < warmupNanos) {
+      for (int i = 0; i < BATCH_SIZE; i++) {
+        result += operation.run();
+      }
+    }
+    
+    // Measurement
+    long threadId = Thread.currentThread().getId();
+    long bytesAtStart = (threadInfo != null) ? threadInfo.getThreadAllocatedBytes(threadId) : 0;
+    long operations = 0;
+    long elapsed = 0;
+    start = System.nanoTime();
+    while (elapsed < measureNanos) {
+      for (int i = 0; i < BATCH_SIZE; i++) {
+        result += operation.run();
+      }
+      operations += BATCH_SIZE;
+      elapsed = System.nanoTime() - start;
+    }
+    long bytesAllocated = (threadInfo != null) ? (threadInfo.getThreadAllocatedBytes(threadId) - bytesAtStart) : -1;
+    sink += result;
+    
+    double opsPerSecond = operations / (elapsed / 1e9);
+    double microsPerOp = elapsed / 1000.0 / operations;
+    String bytesPerOp = (bytesAllocated >= 0) ? String.format("%.1f", (double) bytesAllocated / operations) : "n/a";
+    System.out.printf("  %-44s %14.0f %12.2f %12s%n", name, opsPerSecond, microsPerOp, bytesPerOp);
+  }
+}
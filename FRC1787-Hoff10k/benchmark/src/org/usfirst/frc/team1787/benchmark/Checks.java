@@ -0,0 +1,379 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.usfirst.frc.team1787.benchmark.Scenes.Scene;
+import org.usfirst.frc.team1787.robot.utils.FeedScheduler;
+import org.usfirst.frc.team1787.robot.utils.FlywheelFeedforward;
+import org.usfirst.frc.team1787.robot.utils.ShotTable;
+import org.usfirst.frc.team1787.robot.utils.TripleBuffer;
+import org.usfirst.frc.team1787.robot.vision.CameraCalibration;
+import org.usfirst.frc.team1787.robot.vision.CameraController;
+import org.usfirst.frc.team1787.robot.vision.ImageProcessor;
+import org.usfirst.frc.team1787.robot.vision.Target;
+
+/**
+ * Checks that the robot code off the robot does what it's supposed to, for things that have gone wrong before.
+ * There's no test framework in this project, so each check prints whether it passed, and if any failed,
+ * this exits with an error (so "ant checks" fails).
+ *
+ * Most of these only need java. The ones that need OpenCV are skipped if it isn't installed.
+ * See build.xml in the benchmark folder for how to run it.
+ */
+public class Checks {
+
+  private static int passed = 0;
+  private static int failed = 0;
+
+  public static void main(String[] args) throws Exception {
+    feedSchedulerWaitsForToleranceWithoutAModel();
+    shotTableRoundTrip();
+    tripleBufferNeverChangesWhatTheReaderHas();
+    tripleBufferDoesntAllocate();
+    calibrationMustMatchTheResolution();
+    if (loadOpenCV()) {
+      currentTargetDoesntChangeWhileHeld();
+      trackingWindowFindsTheSameTarget();
+      framesDontAllocate();
+    }
+
+    System.out.printf("%d passed, %d failed%n", passed, failed);
+    if (failed > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return Whether OpenCV could be loaded (if not, the checks that need it are skipped).
+   */
+  private static boolean loadOpenCV() {
+    try {
+      System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      System.out.println("(OpenCV isn't installed, so the vision checks are skipped: " + e.getMessage() + ")");
+      return false;
+    }
+  }
+
+  /**
+   * @return How many bytes this thread has allocated so far, or -1 if this JVM can't tell.
+   */
+  private static long getAllocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)
+        || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+      return -1;
+    }
+    return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void check(boolean condition, String description) {
+    if (condition) {
+      passed++;
+      System.out.println("  ok    " + description);
+    } else {
+      failed++;
+      System.out.println("  FAIL  " + description);
+    }
+  }
+
+  // FeedScheduler
+
+  /**
+   * With the default model (no kA, since the flywheel hasn't been characterized), or before the easing-in time
+   * has been learned, the recovery can't be predicted, so the feeder has to wait until the flywheel is in tolerance.
+   */
+  private static void feedSchedulerWaitsForToleranceWithoutAModel() {
+    System.out.println("FeedScheduler");
+    double setpoint = 60;
+    double tolerance = 1;
+    double window = 5;
+
+    FeedScheduler uncharacterized = new FeedScheduler(() -> new FlywheelFeedforward(0, 12.0 / 80, 0), window);
+    check(!uncharacterized.update(0, 10, setpoint, tolerance, 12, true), "kA = 0: doesn't feed far below the setpoint");
+    check(Double.isInfinite(uncharacterized.getSecondsToReady()), "kA = 0: recovery isn't predicted");
+    check(!uncharacterized.update(0.005, 58, setpoint, tolerance, 12, true), "kA = 0: doesn't feed just outside tolerance");
+    check(uncharacterized.update(0.01, 59.5, setpoint, tolerance, 12, true), "kA = 0: feeds in tolerance");
+    check(!uncharacterized.isPredicting(), "kA = 0: never predicts");
+
+    FlywheelFeedforward characterized = new FlywheelFeedforward(0.6, 0.14, 0.12);
+    FeedScheduler unlearned = new FeedScheduler(() -> characterized, window);
+    check(!unlearned.update(0, 58, setpoint, tolerance, 12, true), "kA > 0, nothing learned: doesn't feed outside tolerance");
+
+    // spin up through the bang-bang window into tolerance, so it learns how long easing in takes
+    FeedScheduler learned = new FeedScheduler(() -> characterized, window);
+    double time = 0;
+    for (double speed = 50; speed < 59.5; speed += 0.1) {
+      learned.update(time, speed, setpoint, tolerance, 12, false);
+      time += 0.005;
+    }
+    learned.update(time, 59.5, setpoint, tolerance, 12, false);
+    check(learned.isPredicting(), "kA > 0, after a spin up: predicts");
+    check(!Double.isInfinite(learned.getSecondsToReady()), "kA > 0, after a spin up: recovery is predicted");
+    check(!learned.update(time + 0.005, 10, setpoint, tolerance, 12, true), "kA > 0, after a spin up: doesn't feed far below the setpoint");
+  }
+
+  // ShotTable
+
+  /**
+   * Whatever save() writes, load() has to read back the same, with or without feeder speeds
+   * (a table without them used to be saved with an empty column, which load() couldn't read).
+   */
+  private static void shotTableRoundTrip() throws IOException {
+    System.out.println("ShotTable");
+    File directory = new File(System.getProperty("java.io.tmpdir"));
+    for (boolean withFeederSpeeds : new boolean[] {false, true}) {
+      String name = withFeederSpeeds ? "with feeder speeds" : "without feeder speeds";
+      File file = File.createTempFile("shots", ".csv", directory);
+      File copy = File.createTempFile("shots", ".csv", directory);
+      try {
+        try (PrintWriter writer = new PrintWriter(file)) {
+          writer.println("# distance, flywheelRPS" + (withFeederSpeeds ? ", feederSpeed" : ""));
+          writer.println(withFeederSpeeds ? "2.0, 52.5, 0.42" : "2.0, 52.5");
+          writer.println(withFeederSpeeds ? "3.0, 58.0, 0.45" : "3.0, 58.0");
+          writer.println(withFeederSpeeds ? "4.5, 66.0, 0.5" : "4.5, 66.0");
+        }
+        ShotTable table = ShotTable.load(file);
+        // (a new entry between the others, and a refined one)
+        table.recordShot(3.7, 61, ShotTable.ShotResult.MADE);
+        table.recordShot(2.05, 52, ShotTable.ShotResult.SHORT);
+        table.save(copy);
+        ShotTable loaded = ShotTable.load(copy);
+
+        check(loaded.size() == table.size(), name + ": same number of entries");
+        boolean same = true;
+        for (double distance = 1.5; distance <= 5; distance += 0.05) {
+          same &= Math.abs(loaded.getFlywheelRPS(distance) - table.getFlywheelRPS(distance)) < 0.01;
+          same &= Math.abs(loaded.getFeederSpeed(distance, -1) - table.getFeederSpeed(distance, -1)) < 0.01;
+        }
+        check(same, name + ": same speeds everywhere");
+        check((loaded.getFeederSpeed(3, -1) == -1) != withFeederSpeeds,
+              name + ": " + (withFeederSpeeds ? "has" : "doesn't have") + " feeder speeds");
+      } finally {
+        file.delete();
+        copy.delete();
+      }
+    }
+  }
+
+  // Handing results between threads (TripleBuffer, ImageProcessor.getCurrentTarget())
+
+  private static class Pair {
+    long first;
+    long second;
+  }
+
+  /**
+   * While the writer keeps publishing as fast as it can, whatever the reader has must never change,
+   * and must always be a whole result (both halves from the same publish()).
+   */
+  private static void tripleBufferNeverChangesWhatTheReaderHas() throws InterruptedException {
+    System.out.println("TripleBuffer");
+    TripleBuffer<Pair> buffer = new TripleBuffer<Pair>(Pair::new);
+    final long results = 2000000;
+    Thread writer = new Thread(() -> {
+      for (long i = 1; i <= results; i++) {
+        Pair pair = buffer.getWriteBuffer();
+        pair.first = i;
+        pair.second = i;
+        buffer.publish();
+      }
+    });
+    writer.start();
+
+    int torn = 0;
+    int changed = 0;
+    int wentBackwards = 0;
+    long last = 0;
+    while (writer.isAlive() || last < results) {
+      Pair pair = buffer.acquire();
+      long first = pair.first;
+      long second = pair.second;
+      // (give the writer time to get ahead)
+      Thread.yield();
+      torn += (first != second) ? 1 : 0;
+      changed += (pair.first != first || pair.second != second) ? 1 : 0;
+      wentBackwards += (first < last) ? 1 : 0;
+      last = first;
+    }
+    writer.join();
+    check(torn == 0, "the reader never gets half of one result and half of another");
+    check(changed == 0, "what the reader has never changes until it acquires again");
+    check(wentBackwards == 0, "the reader never gets an older result than it already had");
+    check(last == results, "the reader ends up with the last result");
+  }
+
+  /**
+   * Handing off a result shouldn't make any garbage (that's the whole point of reusing them).
+   */
+  private static void tripleBufferDoesntAllocate() {
+    TripleBuffer<Pair> buffer = new TripleBuffer<Pair>(Pair::new);
+    long sum = 0;
+    // (run it enough times first that the JIT has compiled everything)
+    for (int round = 0; round < 2; round++) {
+      long start = getAllocatedBytes();
+      long overhead = getAllocatedBytes() - start;
+      start = getAllocatedBytes();
+      for (int i = 0; i < 100000; i++) {
+        buffer.getWriteBuffer().first = i;
+        buffer.publish();
+        sum += buffer.acquire().first;
+      }
+      long allocated = getAllocatedBytes() - start - overhead;
+      if (start == -1) {
+        System.out.println("(this JVM can't count allocations, so that check is skipped)");
+        return;
+      }
+      if (round == 1) {
+        check(allocated <= 0, "publish() and acquire() don't allocate anything (" + allocated + " bytes, sum " + sum + ")");
+      }
+    }
+  }
+
+  /**
+   * The Target the main loop has from getCurrentTarget() mustn't change while the VisionThread keeps processing frames
+   * (it used to, after a couple frames).
+   */
+  private static void currentTargetDoesntChangeWhileHeld() {
+    System.out.println("ImageProcessor");
+    Mat frame = Scenes.make(Scene.SINGLE_TARGET, 160, 120);
+    ImageProcessor imgProcessor = new ImageProcessor(new StaticFrameSource(frame));
+    imgProcessor.runVisionProcessing();
+    Target target = imgProcessor.getCurrentTarget();
+    long timestamp = target.getTimestamp();
+    double distance = target.getHorizontalDistance();
+    for (int i = 0; i < 10; i++) {
+      imgProcessor.runVisionProcessing();
+    }
+    check(timestamp != 0 && distance > 0, "the target is found");
+    check(target.getTimestamp() == timestamp && target.getHorizontalDistance() == distance,
+          "the Target held doesn't change while more frames are processed");
+    Target newer = imgProcessor.getCurrentTarget();
+    check(newer.getTimestamp() > timestamp, "getCurrentTarget() then gets the newest one");
+    frame.release();
+  }
+
+  /**
+   * Searching just the tracking window (copied out of the frame, see RegionBuffer) has to find the target
+   * in exactly the same place as searching the whole frame.
+   */
+  private static void trackingWindowFindsTheSameTarget() {
+    Mat frame = Scenes.make(Scene.CLUTTERED, 320, 240);
+    ImageProcessor imgProcessor = new ImageProcessor(new StaticFrameSource(frame));
+    imgProcessor.setTrackingWindowEnabled(false);
+    imgProcessor.runVisionProcessing();
+    Target wholeFrame = imgProcessor.getCurrentTarget();
+    double errorX = wholeFrame.getErrorInDegreesX();
+    double errorY = wholeFrame.getErrorInDegreesY();
+
+    imgProcessor.setTrackingWindowEnabled(true);
+    imgProcessor.runVisionProcessing();
+    imgProcessor.runVisionProcessing();
+    Target windowed = imgProcessor.getCurrentTarget();
+    check(imgProcessor.isSearchWindowActive(), "the tracking window is used once the target's been found");
+    check(windowed.getErrorInDegreesX() == errorX && windowed.getErrorInDegreesY() == errorY,
+          "the target is in the same place as when the whole frame is searched");
+
+    // the pyramid finds the target, then the tracking window takes over
+    ImageProcessor pyramidProcessor = new ImageProcessor(new StaticFrameSource(frame));
+    pyramidProcessor.setPyramidLevels(1);
+    pyramidProcessor.runVisionProcessing();
+    check(pyramidProcessor.getCurrentTarget().getHorizontalDistance() > 0, "the pyramid finds the target");
+    check(pyramidProcessor.isSearchWindowActive(), "the tracking window is used after the pyramid finds the target");
+    pyramidProcessor.runVisionProcessing();
+    check(pyramidProcessor.getCurrentTarget().getHorizontalDistance() > 0, "the target is still found in the tracking window");
+    frame.release();
+  }
+
+  /**
+   * Once it's warmed up, a frame with nothing in it shouldn't allocate anything, and a frame with contours in it
+   * should only allocate what Imgproc.findContours() can't avoid (see ImageProcessor.CONTOUR_ALLOCATION_BYTES_PER_FRAME).
+   */
+  private static void framesDontAllocate() {
+    if (getAllocatedBytes() == -1) {
+      System.out.println("(this JVM can't count allocations, so the frame allocation checks are skipped)");
+      return;
+    }
+    int frames = 100;
+    
+    Mat empty = Scenes.make(Scene.EMPTY, 320, 240);
+    ImageProcessor emptyProcessor = new ImageProcessor(new StaticFrameSource(empty));
+    long allocated = measureFrameAllocation(emptyProcessor, frames);
+    check(allocated <= 0, "a frame with nothing in it doesn't allocate anything (" + allocated + " bytes)");
+    empty.release();
+    
+    // (the whole frame is searched every time, so every contour in it is found every frame)
+    Mat cluttered = Scenes.make(Scene.CLUTTERED, 320, 240);
+    ImageProcessor clutteredProcessor = new ImageProcessor(new StaticFrameSource(cluttered));
+    clutteredProcessor.setTrackingWindowEnabled(false);
+    allocated = measureFrameAllocation(clutteredProcessor, frames);
+    Mat mask = clutteredProcessor.getHSVFilter(clutteredProcessor.DEFAULT_HSV_LOWER_BOUNDS, 
+                                               clutteredProcessor.DEFAULT_HSV_UPPER_BOUNDS);
+    int contours = clutteredProcessor.findContours(mask).size();
+    long bound = frames * (ImageProcessor.CONTOUR_ALLOCATION_BYTES_PER_FRAME 
+                           + (contours * ImageProcessor.CONTOUR_ALLOCATION_BYTES_PER_CONTOUR));
+    check(contours > 0 && allocated <= bound, "a frame with " + contours + " contours only allocates the contours (" 
+                                              + (allocated / frames) + " bytes / frame, at most " + (bound / frames) + ")");
+    cluttered.release();
+  }
+  
+  /**
+   * @return How many bytes running the given number of frames (after warming up) allocates on this thread.
+   */
+  private static long measureFrameAllocation(ImageProcessor imgProcessor, int frames) {
+    // (run it enough times first that the JIT has compiled everything, and every scratch buffer has grown to size)
+    for (int i = 0; i < 2000; i++) {
+      imgProcessor.runVisionProcessing();
+    }
+    // asking for the count can allocate a little itself, and runVisionProcessing() asks twice (for its own count),
+    // so take that out.
+    long start = getAllocatedBytes();
+    long overhead = getAllocatedBytes() - start;
+    start = getAllocatedBytes();
+    for (int i = 0; i < frames; i++) {
+      imgProcessor.runVisionProcessing();
+    }
+    return getAllocatedBytes() - start - (overhead * (1 + (2 * frames)));
+  }
+
+  // CameraCalibration
+
+  /**
+   * Every value in a calibration is in pixels, so one made at a different resolution than the turretCam runs at
+   * has to be rejected (then the pinhole camera model is used, see Robot.robotInit()).
+   */
+  private static void calibrationMustMatchTheResolution() throws IOException {
+    System.out.println("CameraCalibration");
+    File file = File.createTempFile("calibration", ".properties", new File(System.getProperty("java.io.tmpdir")));
+    try {
+      int width = CameraController.IMAGE_WIDTH_PIXELS;
+      int height = CameraController.IMAGE_HEIGHT_PIXELS;
+      try (PrintWriter writer = new PrintWriter(file)) {
+        writer.println("width = " + width);
+        writer.println("height = " + height);
+        writer.println("k1 = -0.31");
+      }
+      check(CameraCalibration.load(file).k1 == -0.31, "a calibration at " + width + "x" + height + " loads");
+
+      try (PrintWriter writer = new PrintWriter(file)) {
+        writer.println("width = " + (2 * width));
+        writer.println("height = " + (2 * height));
+      }
+      boolean rejected = false;
+      try {
+        CameraCalibration.load(file);
+      } catch (IOException e) {
+        rejected = true;
+      }
+      check(rejected, "a calibration at " + (2 * width) + "x" + (2 * height) + " is rejected");
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.util.Random;
+
+import org.usfirst.frc.team1787.robot.utils.BangBangFeedforward;
+import org.usfirst.frc.team1787.robot.utils.CustomPIDController;
+import org.usfirst.frc.team1787.robot.utils.FeedScheduler;
+import org.usfirst.frc.team1787.robot.utils.FlywheelCharacterizer;
+import org.usfirst.frc.team1787.robot.utils.FlywheelFeedforward;
+import org.usfirst.frc.team1787.robot.utils.VelocityEstimator;
+
+/**
+ * Tries out the flywheel's characterization and controllers against a simulated flywheel, so they
+ * can be checked (and compared) without the robot.
+ *
+ * 1) Runs the FlywheelCharacterizer against the simulated flywheel, and prints the gains it found
+ *    next to the simulation's real ones.
+ * 2) Using the gains it found, spins the flywheel up and shoots a few balls with each controller,
+ *    and prints how long it took to spin up, how long it took to recover after each ball, and how far
+ *    off the speed was while holding steady.
+ * 3) With the bang-bang controller, feeds balls as fast as it can for FEEDING_SECONDS: once only while the flywheel
+ *    is in tolerance (like full auto shooting used to), and once with the FeedScheduler. Prints how many balls
+ *    per second went out, how many left with the flywheel in tolerance, and how many times the feeder started.
+ *
+ * The simulated flywheel follows the same model the feedforward uses (plus encoder noise),
+ * so this shows how the controllers compare, not exactly how fast the real flywheel will be.
+ * See build.xml in the benchmark folder for how to run it.
+ */
+public class FlywheelSimulation {
+
+  // The simulated flywheel's "real" gains (about 80 revolutions / second at 12 volts, like the real one)
+  private static final FlywheelFeedforward PLANT = new FlywheelFeedforward(0.6, 0.14, 0.12);
+  private static final double BATTERY_VOLTS = 12;
+  // how much speed each ball takes out of the flywheel (a fraction of its speed)
+  private static final double SPEED_LOST_PER_BALL = 0.15;
+
+  // Encoder (same as the real one)
+  private static final double PULSES_PER_REVOLUTION = 2048;
+
+  // Control Loop (same as the ControlLoop's default)
+  private static final double CONTROL_PERIOD = 1.0 / 200;
+  private static final int PHYSICS_STEPS_PER_PERIOD = 10;
+
+  // Shooting
+  private static final double SETPOINT = 60;
+  private static final double TOLERANCE = 1;
+  // (the robot's flywheel uses the same gain, see Flywheel.FLYWHEEL_PID_CONTROLLER_KD)
+  private static final double KP = 0.02;
+  private static final double BANG_BANG_WINDOW = 5;
+  private static final double SECONDS_BETWEEN_BALLS = 1.5;
+  private static final int BALLS = 5;
+
+  // Feeding
+  // with the feeder running, a ball gets to the flywheel every this many seconds (after the last one, or after it starts)
+  private static final double FEEDER_SECONDS_PER_BALL = 0.12;
+  private static final double FEEDING_SECONDS = 10;
+  // (same as the flywheel's VelocityEstimator)
+  private static final int VELOCITY_ESTIMATOR_WINDOW = 8;
+
+  /**
+   * What's being tested: returns whether to run the feeder.
+   */
+  private interface FeedGate {
+    public boolean update(double time, double speed);
+  }
+
+  /**
+   * What's being tested: returns the output (0 to 1) for the given setpoint and measured speed.
+   */
+  private interface Controller {
+    public double calculate(double setpoint, double measurement);
+  }
+
+  public static void main(String[] args) {
+    // 1) Characterization
+    SimulatedFlywheel flywheel = new SimulatedFlywheel();
+    FlywheelCharacterizer characterizer = new FlywheelCharacterizer();
+    double volts = 0;
+    double time = 0;
+    // (test mode runs the characterization every 20 ms)
+    double characterizationPeriod = 0.02;
+    while (!characterizer.isDone()) {
+      volts = characterizer.update(time, volts, flywheel.measureVelocity(characterizationPeriod));
+      flywheel.run(volts, characterizationPeriod);
+      time += characterizationPeriod;
+    }
+    FlywheelFeedforward fitted = characterizer.getResult();
+    System.out.println("Characterization (took " + String.format("%.1f", time) + " s)");
+    System.out.println("  real:   " + PLANT);
+    System.out.println("  fitted: " + fitted + String.format(" (R^2 = %.4f)", characterizer.getRSquared()));
+
+    // 2) Controllers
+    System.out.println();
+    System.out.printf("Setpoint %.0f rev/s, tolerance %.0f rev/s, %d balls %.1f s apart (each takes %.0f%% of the speed)%n",
+                      SETPOINT, TOLERANCE, BALLS, SECONDS_BETWEEN_BALLS, SPEED_LOST_PER_BALL * 100);
+    System.out.printf("  %-36s %12s %16s %16s %14s%n", "controller", "spin up (s)", "avg recovery (s)",
+                      "max recovery (s)", "steady error");
+
+    // the old controller: F = 1/80, no P
+    simulate("old (F = 1/80)", (setpoint, measurement) -> clamp(setpoint / 80));
+
+    FlywheelFeedforward model = fitted;
+    simulate("model feedforward + P", (setpoint, measurement) ->
+        clamp(model.calculate(setpoint) / BATTERY_VOLTS + KP * (setpoint - measurement)));
+
+    BangBangFeedforward bangBang = new BangBangFeedforward(model, BANG_BANG_WINDOW, () -> BATTERY_VOLTS);
+    simulate("bang-bang + model feedforward + P", withP(bangBang));
+
+    // 3) Feeding
+    System.out.println();
+    System.out.printf("Feeding for %.0f s (a ball every %.2f s while the feeder runs), bang-bang + model feedforward + P%n",
+                      FEEDING_SECONDS, FEEDER_SECONDS_PER_BALL);
+    System.out.printf("  %-36s %12s %14s %16s%n", "feeding", "balls / s", "in tolerance", "feeder starts");
+    feed("only while in tolerance", withP(bangBang), (now, speed) -> Math.abs(SETPOINT - speed) <= TOLERANCE);
+    FeedScheduler scheduler = new FeedScheduler(() -> model, BANG_BANG_WINDOW);
+    feed("FeedScheduler", withP(bangBang),
+         (now, speed) -> scheduler.update(now, speed, SETPOINT, TOLERANCE, BATTERY_VOLTS, true));
+    System.out.printf("  (FeedScheduler saw %.2f balls / s, cadence %.3f s, %d of %d in tolerance; learned feed latency %.3f s,"
+                      + " approach time constant %.3f s)%n", scheduler.getBallsPerSecond(), scheduler.getCadenceSeconds(),
+                      scheduler.getShotsInTolerance(), scheduler.getShots(), scheduler.getFeedLatencySeconds(),
+                      scheduler.getApproachTimeConstant());
+  }
+
+  /**
+   * Spins up, then feeds for FEEDING_SECONDS, running the feeder whenever the gate says to.
+   * The gate sees the speed from a VelocityEstimator, like on the robot.
+   */
+  private static void feed(String name, Controller controller, FeedGate gate) {
+    SimulatedFlywheel flywheel = new SimulatedFlywheel();
+    VelocityEstimator estimator = new VelocityEstimator(null, 32, VELOCITY_ESTIMATOR_WINDOW);
+    double time = 0;
+    double feedingStartTime = Double.NaN;
+    double feederProgress = 0;
+    boolean feederWasRunning = false;
+    int balls = 0;
+    int ballsInTolerance = 0;
+    int feederStarts = 0;
+    while (Double.isNaN(feedingStartTime) || time < feedingStartTime + FEEDING_SECONDS) {
+      estimator.addSample(Math.round(time * 1e6), flywheel.measurePosition());
+      double speed = estimator.getVelocity();
+      flywheel.run(controller.calculate(SETPOINT, speed) * BATTERY_VOLTS, CONTROL_PERIOD);
+      time += CONTROL_PERIOD;
+
+      if (Double.isNaN(feedingStartTime)) {
+        // spin up first
+        if (Math.abs(SETPOINT - flywheel.velocity) <= TOLERANCE) {
+          feedingStartTime = time;
+        }
+        continue;
+      }
+      boolean feederRunning = gate.update(time, speed);
+      if (feederRunning && !feederWasRunning) {
+        feederStarts++;
+      }
+      feederWasRunning = feederRunning;
+      if (feederRunning) {
+        feederProgress += CONTROL_PERIOD;
+        if (feederProgress >= FEEDER_SECONDS_PER_BALL) {
+          if (Math.abs(SETPOINT - flywheel.velocity) <= TOLERANCE) {
+            ballsInTolerance++;
+          }
+          flywheel.velocity *= (1 - SPEED_LOST_PER_BALL);
+          balls++;
+          feederProgress = 0;
+        }
+      }
+    }
+    System.out.printf("  %-36s %12.2f %13.0f%% %16d%n", name, balls / FEEDING_SECONDS,
+                      (balls > 0) ? 100.0 * ballsInTolerance / balls : 0, feederStarts);
+  }
+
+  /**
+   * Does what the flywheel's CustomPIDController does with a feedforward: KP * error + feedforward,
+   * clamped to the output range (0 to 1). (On the robot, KP is the controller's D gain, since it's in rate mode,
+   * see CustomPIDController.)
+   */
+  private static Controller withP(CustomPIDController.Feedforward feedforward) {
+    return (setpoint, measurement) ->
+        clamp(KP * (setpoint - measurement) + feedforward.calculate(setpoint, measurement));
+  }
+
+  private static void simulate(String name, Controller controller) {
+    SimulatedFlywheel flywheel = new SimulatedFlywheel();
+    double time = 0;
+    double spinUpTime = Double.NaN;
+    double nextBallTime = Double.NaN;
+    int ballsShot = 0;
+    double lastBallTime = 0;
+    double totalRecovery = 0;
+    double maxRecovery = 0;
+    int recoveries = 0;
+    boolean recovering = false;
+    double steadyErrorSum = 0;
+    int steadySamples = 0;
+
+    double endTime = 3 + (BALLS + 1) * SECONDS_BETWEEN_BALLS;
+    while (time < endTime) {
+      double measurement = flywheel.measureVelocity(CONTROL_PERIOD);
+      double output = controller.calculate(SETPOINT, measurement);
+      flywheel.run(output * BATTERY_VOLTS, CONTROL_PERIOD);
+      time += CONTROL_PERIOD;
+
+      boolean onTarget = Math.abs(SETPOINT - flywheel.velocity) <= TOLERANCE;
+      if (Double.isNaN(spinUpTime)) {
+        if (onTarget) {
+          spinUpTime = time;
+          // (like the shooter, wait a little after first getting on target before feeding)
+          nextBallTime = time + 0.5;
+        }
+        continue;
+      }
+
+      if (recovering && onTarget) {
+        double recovery = time - lastBallTime;
+        totalRecovery += recovery;
+        maxRecovery = Math.max(maxRecovery, recovery);
+        recoveries++;
+        recovering = false;
+      }
+      if (!recovering && ballsShot > 0) {
+        steadyErrorSum += Math.abs(SETPOINT - flywheel.velocity);
+        steadySamples++;
+      }
+      if (ballsShot < BALLS && time >= nextBallTime) {
+        flywheel.velocity *= (1 - SPEED_LOST_PER_BALL);
+        ballsShot++;
+        lastBallTime = time;
+        nextBallTime = time + SECONDS_BETWEEN_BALLS;
+        if (recovering) {
+          // it never recovered from the last one
+          maxRecovery = Double.POSITIVE_INFINITY;
+        }
+        recovering = true;
+      }
+    }
+
+    String avgRecovery = (recoveries > 0) ? String.format("%.3f", totalRecovery / recoveries) : "never";
+    String worstRecovery = (recoveries == BALLS && !Double.isInfinite(maxRecovery)) ? String.format("%.3f", maxRecovery)
+                                                                                     : "didn't always";
+    String steadyError = (steadySamples > 0) ? String.format("%.3f", steadyErrorSum / steadySamples) : "n/a";
+    System.out.printf("  %-36s %12.3f %16s %16s %14s%n", name, spinUpTime, avgRecovery, worstRecovery, steadyError);
+  }
+
+  private static double clamp(double output) {
+    return Math.max(0, Math.min(1, output));
+  }
+
+  /**
+   * A flywheel that follows volts = kS * sign(v) + kV * v + kA * a, with an encoder on it.
+   */
+  private static class SimulatedFlywheel {
+    double velocity = 0;
+    double position = 0;
+    long lastPulses = 0;
+    Random random = new Random(1787);
+
+    void run(double volts, double seconds) {
+      double dt = seconds / PHYSICS_STEPS_PER_PERIOD;
+      for (int i = 0; i < PHYSICS_STEPS_PER_PERIOD; i++) {
+        double frictionVolts = PLANT.kS * Math.signum(velocity);
+        if (velocity == 0) {
+          // static friction: it doesn't move until there's enough voltage to get it going
+          if (Math.abs(volts) <= PLANT.kS) {
+            continue;
+          }
+          frictionVolts = PLANT.kS * Math.signum(volts);
+        }
+        double acceleration = (volts - frictionVolts - PLANT.kV * velocity) / PLANT.kA;
+        double newVelocity = velocity + acceleration * dt;
+        // friction can stop the flywheel, but not spin it backwards
+        if (velocity != 0 && Math.signum(newVelocity) != Math.signum(velocity) && Math.abs(volts) <= PLANT.kS) {
+          newVelocity = 0;
+        }
+        velocity = newVelocity;
+        position += velocity * dt;
+      }
+    }
+
+    /**
+     * @return What the encoder says the position is (whole pulses only).
+     */
+    double measurePosition() {
+      return Math.floor(position * PULSES_PER_REVOLUTION) / PULSES_PER_REVOLUTION;
+    }
+
+    /**
+     * @return What the encoder says the speed was over the last period (whole pulses only, plus a little timing jitter).
+     */
+    double measureVelocity(double seconds) {
+      long pulses = (long) Math.floor(position * PULSES_PER_REVOLUTION);
+      long newPulses = pulses - lastPulses;
+      lastPulses = pulses;
+      double measuredSeconds = seconds * (1 + random.nextGaussian() * 0.01);
+      return newPulses / PULSES_PER_REVOLUTION / measuredSeconds;
+    }
+  }
+}
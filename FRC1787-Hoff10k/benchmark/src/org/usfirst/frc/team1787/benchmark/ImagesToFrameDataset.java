@@ -0,0 +1,69 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.usfirst.frc.team1787.robot.vision.CameraController;
+import org.usfirst.frc.team1787.robot.vision.FrameDatasetWriter;
+
+/**
+ * Makes a FrameDataset out of a folder of images (png, jpg, etc.), so pictures
+ * taken with the turretCam can be replayed through the vision code with VisionReplay.
+ * 
+ * Images are added in alphabetical order, and are resized to the turretCam's resolution if needed.
+ * Since images don't have capture timestamps, frames are given timestamps 1/30th of a second apart.
+ * 
+ * See build.xml in the benchmark folder for how to run it.
+ */
+public class ImagesToFrameDataset {
+  
+  private static final long MICROSECONDS_BETWEEN_FRAMES = 1000000 / 30;
+  
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: ImagesToFrameDataset <image folder> <output file>");
+      System.exit(1);
+    }
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    
+    File[] images = new File(args[0]).listFiles();
+    if (images == null) {
+      System.err.println(args[0] + " isn't a folder.");
+      System.exit(1);
+    }
+    Arrays.sort(images);
+    
+    int width = CameraController.IMAGE_WIDTH_PIXELS;
+    int height = CameraController.IMAGE_HEIGHT_PIXELS;
+    FrameDatasetWriter writer = new FrameDatasetWriter(new File(args[1]), width, height);
+    Mat resized = new Mat();
+    try {
+      for (File image : images) {
+        Mat frame = Imgcodecs.imread(image.getPath());
+        if (frame.empty()) {
+          System.err.println("Skipping " + image + " (couldn't read it as an image)");
+          continue;
+        }
+        if (frame.cols() != width || frame.rows() != height) {
+          Imgproc.resize(frame, resized, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+          frame.release();
+          frame = resized;
+        }
+        // (timestamps start at 1 frame in, because a timestamp of 0 means "no frame")
+        writer.addFrame(frame, (writer.getFrameCount() + 1) * MICROSECONDS_BETWEEN_FRAMES);
+        if (frame != resized) {
+          frame.release();
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    System.out.println("Wrote " + writer.getFrameCount() + " frames to " + args[1]);
+  }
+}
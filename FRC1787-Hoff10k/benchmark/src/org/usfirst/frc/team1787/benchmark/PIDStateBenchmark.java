@@ -0,0 +1,220 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import org.usfirst.frc.team1787.robot.utils.PIDState;
+
+/**
+ * Compares two ways of checking on a PID controller while another thread is running it:
+ * 1) synchronized getters, like WPILib's PIDController (the old way)
+ * 2) reading an immutable PIDState that the controller swaps in after every calculation,
+ *    like CustomPIDController does now
+ *
+ * The real controllers need the robot (their constructors start a Notifier), so the two
+ * controllers here just copy how each one locks, with a bit of fake math standing in for calculate().
+ *
+ * For each method, a "control" thread calculates as fast as it can while other threads
+ * do what publishDataToSmartDash() does (isEnabled(), getError(), get(), onTarget()) as fast as they can.
+ * It prints how fast the readers went, and how long each calculation took (including any time spent
+ * waiting for a reader to let go of the lock), which is what matters for the control loop.
+ *
+ * This only needs java. See build.xml in the benchmark folder for how to run it.
+ */
+public class PIDStateBenchmark {
+
+  private static final double WARMUP_SECONDS = 1;
+  private static final double MEASURE_SECONDS = 3;
+
+  // what the background readers read gets added up here, so none of it is "unused".
+  private static volatile double sink;
+
+  /**
+   * The parts of a controller that matter for this benchmark.
+   */
+  private interface Controller {
+    public void calculate();
+    public double readLikeTheDashboard();
+  }
+
+  public static void main(String[] args) {
+    BenchmarkRunner runner = new BenchmarkRunner(WARMUP_SECONDS, MEASURE_SECONDS);
+    int[] readerCounts = {1, 2, 4};
+    for (int readers : readerCounts) {
+      runner.printHeader("Readers: " + readers + " (ops are on one reader thread)");
+      benchmark(runner, "synchronized getters", new LockedController(), readers);
+      benchmark(runner, "PIDState snapshot", new SnapshotController(), readers);
+    }
+  }
+
+  private static void benchmark(BenchmarkRunner runner, String name, Controller controller, int readers) {
+    ControlThread control = new ControlThread(controller);
+    control.start();
+
+    // the other readers just run in the background, the runner measures the one on this thread.
+    Thread[] extraReaders = new Thread[readers - 1];
+    for (int i = 0; i < extraReaders.length; i++) {
+      extraReaders[i] = new Thread(() -> {
+        double sum = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+          sum += controller.readLikeTheDashboard();
+        }
+        sink += sum;
+      });
+      extraReaders[i].setDaemon(true);
+      extraReaders[i].start();
+    }
+
+    // (the control thread's stats include the runner's warmup too)
+    control.resetStats();
+    runner.run(name, controller::readLikeTheDashboard);
+    control.printStats();
+
+    control.interrupt();
+    for (Thread reader : extraReaders) {
+      reader.interrupt();
+    }
+    try {
+      control.join();
+      for (Thread reader : extraReaders) {
+        reader.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Runs calculate() over and over, and keeps track of how long each one took.
+   */
+  private static class ControlThread extends Thread {
+    private Controller controller;
+    private volatile boolean resetRequested = false;
+    private volatile long calculations = 0;
+    private volatile long totalNanos = 0;
+    private volatile long maxNanos = 0;
+
+    ControlThread(Controller controller) {
+      this.controller = controller;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (!isInterrupted()) {
+        if (resetRequested) {
+          calculations = 0;
+          totalNanos = 0;
+          maxNanos = 0;
+          resetRequested = false;
+        }
+        long start = System.nanoTime();
+        controller.calculate();
+        long duration = System.nanoTime() - start;
+        calculations++;
+        totalNanos += duration;
+        if (duration > maxNanos) {
+          maxNanos = duration;
+        }
+      }
+    }
+
+    void resetStats() {
+      resetRequested = true;
+      while (resetRequested) {
+        Thread.yield();
+      }
+    }
+
+    void printStats() {
+      long count = Math.max(1, calculations);
+      System.out.printf("  %-44s %14d %12.2f %12.1f%n", "  control thread: calculations, avg us, max us",
+                        calculations, totalNanos / 1000.0 / count, maxNanos / 1000.0);
+    }
+  }
+
+  /**
+   * Locks like WPILib's PIDController: everything is synchronized.
+   */
+  private static class LockedController implements Controller {
+    private double setpoint = 10;
+    private double input = 0;
+    private double error = 0;
+    private double result = 0;
+    private double totalError = 0;
+    private boolean enabled = true;
+    private double tolerance = 0.5;
+
+    @Override
+    public synchronized void calculate() {
+      input = fakeSensor(input);
+      error = setpoint - input;
+      totalError += error;
+      result = fakePID(error, totalError);
+    }
+
+    public synchronized boolean isEnabled() {
+      return enabled;
+    }
+
+    public synchronized double getError() {
+      return error;
+    }
+
+    public synchronized double get() {
+      return result;
+    }
+
+    public synchronized boolean onTarget() {
+      return Math.abs(getError()) <= tolerance;
+    }
+
+    @Override
+    public double readLikeTheDashboard() {
+      double sum = isEnabled() ? 1 : 0;
+      sum += getError();
+      sum += get();
+      sum += onTarget() ? 1 : 0;
+      return sum;
+    }
+  }
+
+  /**
+   * Locks like CustomPIDController: calculating is still synchronized (so it can't happen at the same time
+   * as a setSetpoint(), etc.), but reading only looks at the latest PIDState.
+   */
+  private static class SnapshotController implements Controller {
+    private double setpoint = 10;
+    private double input = 0;
+    private double totalError = 0;
+    private boolean enabled = true;
+    private double tolerance = 0.5;
+    private volatile PIDState state = new PIDState(setpoint, 0, 0, enabled, tolerance);
+
+    @Override
+    public synchronized void calculate() {
+      input = fakeSensor(input);
+      double error = setpoint - input;
+      totalError += error;
+      double result = fakePID(error, totalError);
+      state = new PIDState(setpoint, error, result, enabled, tolerance);
+    }
+
+    @Override
+    public double readLikeTheDashboard() {
+      // (CustomPIDController's getters each read the state, so that's what's done here too)
+      double sum = state.isEnabled() ? 1 : 0;
+      sum += state.getError();
+      sum += state.getOutput();
+      sum += state.isOnTarget() ? 1 : 0;
+      return sum;
+    }
+  }
+
+  // a mechanism that slowly moves toward 10, then jumps back to 0
+  private static double fakeSensor(double input) {
+    return (input > 9.99) ? 0 : input + (10 - input) * 0.01;
+  }
+
+  private static double fakePID(double error, double totalError) {
+    double output = 0.1 * error + 0.001 * totalError;
+    return Math.max(-1, Math.min(1, output));
+  }
+}
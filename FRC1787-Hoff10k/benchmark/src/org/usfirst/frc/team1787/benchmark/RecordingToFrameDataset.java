@@ -0,0 +1,48 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.usfirst.frc.team1787.robot.vision.FrameDatasetWriter;
+import org.usfirst.frc.team1787.robot.vision.FrameRecording;
+
+/**
+ * Turns a recording made on the robot (by a FrameRecorder) into a FrameDataset,
+ * so the frames can be replayed through the vision code with VisionReplay.
+ * 
+ * It also prints (as CSV) what the robot's vision code found in each frame during the match,
+ * which can be compared against what VisionReplay finds.
+ * 
+ * See build.xml in the benchmark folder for how to run it.
+ */
+public class RecordingToFrameDataset {
+  
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: RecordingToFrameDataset <recording file> <output file>");
+      System.exit(1);
+    }
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    
+    FrameRecording recording = new FrameRecording(new File(args[0]));
+    FrameDatasetWriter writer = new FrameDatasetWriter(new File(args[1]), recording.getWidth(), recording.getHeight());
+    Mat frame = new Mat();
+    
+    System.out.println("frame,timestampMicros,targetFound,errorInDegreesX,errorInDegreesY,distance");
+    try {
+      for (int i = 0; i < recording.getFrameCount(); i++) {
+        long timestamp = recording.readFrame(i, frame);
+        writer.addFrame(frame, timestamp);
+        System.out.printf("%d,%d,%b,%.3f,%.3f,%.3f%n", i, timestamp, recording.getTargetFound(i),
+                          recording.getErrorInDegreesX(i), recording.getErrorInDegreesY(i), 
+                          recording.getHorizontalDistance(i));
+      }
+    } finally {
+      writer.close();
+      frame.release();
+    }
+    System.err.println("Wrote " + writer.getFrameCount() + " frames to " + args[1]);
+  }
+}
@@ -0,0 +1,70 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.usfirst.frc.team1787.robot.vision.Target;
+
+/**
+ * Makes fake turretCam frames (in BGR format) for benchmarking, so benchmarks can run without a camera.
+ * Everything is scaled to the frame size, so the same scene looks the same at every resolution.
+ */
+public class Scenes {
+  
+  public enum Scene {
+    /** Nothing in the frame passes the HSV filter. */
+    EMPTY,
+    /** A single target-shaped strip in the middle of the frame. */
+    SINGLE_TARGET,
+    /** A target, plus lots of other target-colored blobs of different shapes and sizes, plus noise. */
+    CLUTTERED
+  }
+  
+  // A color that's in the middle of ImageProcessor's default HSV bounds (HSV = 82, 230, 120)
+  private static final Scalar TARGET_COLOR = new Scalar(91, 120, 12);
+  // A dim, grayish background (fails the HSV filter because it's not saturated enough)
+  private static final Scalar BACKGROUND_COLOR = new Scalar(40, 45, 50);
+  
+  public static Mat make(Scene scene, int width, int height) {
+    Mat frame = new Mat(height, width, CvType.CV_8UC3, BACKGROUND_COLOR);
+    if (scene == Scene.EMPTY) {
+      return frame;
+    }
+    
+    drawTarget(frame, width / 2.0, height / 2.0, width / 5.0);
+    
+    if (scene == Scene.CLUTTERED) {
+      // always the same "random" clutter, so runs can be compared to each other.
+      Random random = new Random(1787);
+      for (int i = 0; i < 40; i++) {
+        double x = random.nextDouble() * width;
+        double y = random.nextDouble() * height;
+        double blobWidth = (0.01 + (random.nextDouble() * 0.08)) * width;
+        double blobHeight = (0.01 + (random.nextDouble() * 0.08)) * height;
+        Imgproc.rectangle(frame, new Point(x, y), new Point(x + blobWidth, y + blobHeight), 
+                          TARGET_COLOR, Core.FILLED);
+      }
+      // sprinkle single target-colored pixels around, like noise from reflections
+      byte[] pixel = {(byte) TARGET_COLOR.val[0], (byte) TARGET_COLOR.val[1], (byte) TARGET_COLOR.val[2]};
+      for (int i = 0; i < (width * height) / 100; i++) {
+        frame.put(random.nextInt(height), random.nextInt(width), pixel);
+      }
+    }
+    return frame;
+  }
+  
+  /**
+   * Draws a filled strip with the same aspect ratio as the real target.
+   */
+  private static void drawTarget(Mat frame, double centerX, double centerY, double targetWidth) {
+    double targetHeight = targetWidth / Target.DESIRED_CONTOUR_ASPECT_RATIO;
+    Point topLeft = new Point(centerX - (targetWidth / 2), centerY - (targetHeight / 2));
+    Point bottomRight = new Point(centerX + (targetWidth / 2), centerY + (targetHeight / 2));
+    Imgproc.rectangle(frame, topLeft, bottomRight, TARGET_COLOR, Core.FILLED);
+  }
+}
@@ -0,0 +1,217 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.usfirst.frc.team1787.robot.utils.ShotSolver;
+
+/**
+ * Tries out ShotSolver against simulated balls, so shooting on the move can be checked without the robot.
+ *
+ * The ball is simulated with gravity and air resistance. First, a "shot table" is made by shooting from standing
+ * still: for each distance, the exit speed that drops the ball into the target, and how long it's in the air
+ * (like the real ShotTable, but made from the simulation). Then a few thousand shots are taken from a robot
+ * that's driving and turning at random, and each ball is followed until it comes back down to the target's height.
+ * For each way of aiming, it prints:
+ * - hits: how many balls came down within TARGET_RADIUS of the target's center
+ * - median / 95% miss: how far from the center they came down
+ * - cost: how long each solve() took
+ *
+ * Aiming is tried 3 ways:
+ * - standing still: aim straight at the target, at the speed for its distance (what full auto shooting used to do)
+ * - led, no air resistance: ShotSolver with a time of flight that leaves out air resistance (like Flywheel.getTimeOfFlight())
+ * - led, table time of flight: ShotSolver with the real time of flight from the shot table
+ *
+ * Leaving out air resistance leads better than the real time of flight does: air resistance slows down the speed
+ * the ball got from the robot as much as the rest of the ball's speed, so the robot's speed carries the ball about as
+ * far as it would in distance / (horizontal exit speed) seconds, not for the whole (longer) flight.
+ *
+ * See build.xml in the benchmark folder for how to run it.
+ */
+public class ShootOnTheMoveSimulation {
+
+  // Ball (a 2017 fuel ball)
+  private static final double BALL_MASS = 0.074;          // kg
+  private static final double BALL_DIAMETER = 0.127;      // meters
+  private static final double DRAG_COEFFICIENT = 0.5;
+  private static final double AIR_DENSITY = 1.2;          // kg/m^3
+  // drag acceleration = DRAG * speed^2
+  private static final double DRAG = 0.5 * AIR_DENSITY * DRAG_COEFFICIENT
+                                     * (Math.PI * BALL_DIAMETER * BALL_DIAMETER / 4) / BALL_MASS;
+  private static final double GRAVITY = 9.81;
+  private static final double STEP = 0.001;               // seconds
+
+  // Shooter
+  private static final double EXIT_ANGLE_DEGREES = 70;
+  private static final double EXIT_HEIGHT = 0.5;          // meters
+  private static final double TARGET_HEIGHT = 2.5;        // meters
+  private static final double TARGET_RADIUS = 0.25;       // meters
+  private static final double TURRET_OFFSET = -0.15;      // meters in front of the center of rotation
+
+  // Shot table (made from standing still)
+  private static final double MIN_DISTANCE = 1;
+  private static final double MAX_DISTANCE = 7;
+  private static final double TABLE_STEP = 0.25;
+
+  // Shots
+  private static final int SHOTS = 5000;
+  private static final double MAX_SPEED = 3;              // meters / second
+  private static final double MAX_TURN_RATE = 90;         // degrees / second
+  private static final double MIN_SHOT_DISTANCE = 2;
+  private static final double MAX_SHOT_DISTANCE = 5;
+
+  private static double[] tableDistances;
+  private static double[] tableExitSpeeds;
+  private static double[] tableFlightTimes;
+
+  public static void main(String[] args) {
+    makeShotTable();
+    System.out.printf("Shot table: %d entries from %.1f to %.1f m (%.0f degree exit angle, with air resistance)%n",
+                      tableDistances.length, MIN_DISTANCE, MAX_DISTANCE, EXIT_ANGLE_DEGREES);
+    System.out.printf("%d shots, driving up to %.1f m/s and turning up to %.0f deg/s, %.1f to %.1f m from the target%n",
+                      SHOTS, MAX_SPEED, MAX_TURN_RATE, MIN_SHOT_DISTANCE, MAX_SHOT_DISTANCE);
+    System.out.printf("  %-34s %8s %16s %14s %12s%n", "aiming", "hits", "median miss (m)", "95% miss (m)", "cost (ns)");
+
+    run("standing still", null);
+    // leaves out air resistance, like Flywheel.getTimeOfFlight()
+    ShotSolver noDrag = new ShotSolver(distance -> distance / (interpolate(tableExitSpeeds, distance)
+                                                               * Math.cos(Math.toRadians(EXIT_ANGLE_DEGREES))),
+                                       TURRET_OFFSET);
+    run("led, no air resistance", noDrag);
+    ShotSolver fromTable = new ShotSolver(distance -> interpolate(tableFlightTimes, distance), TURRET_OFFSET);
+    run("led, table time of flight", fromTable);
+  }
+
+  /**
+   * Takes SHOTS shots from a randomly moving robot (the same ones for every solver) and prints how they did.
+   * @param solver null to aim as if the robot were standing still.
+   */
+  private static void run(String name, ShotSolver solver) {
+    Random random = new Random(1787);
+    double[] misses = new double[SHOTS];
+    long solveNanos = 0;
+    int hits = 0;
+    for (int i = 0; i < SHOTS; i++) {
+      double distance = MIN_SHOT_DISTANCE + random.nextDouble() * (MAX_SHOT_DISTANCE - MIN_SHOT_DISTANCE);
+      double bearingDegrees = (random.nextDouble() * 2 - 1) * 180;
+      double forwardSpeed = (random.nextDouble() * 2 - 1) * MAX_SPEED;
+      double turnRateDegrees = (random.nextDouble() * 2 - 1) * MAX_TURN_RATE;
+
+      double leadDegrees = 0;
+      double shotDistance = distance;
+      if (solver != null) {
+        long start = System.nanoTime();
+        ShotSolver.Solution solution = solver.solve(distance, bearingDegrees, forwardSpeed, turnRateDegrees);
+        solveNanos += System.nanoTime() - start;
+        leadDegrees = solution.getLeadDegrees();
+        shotDistance = solution.getEffectiveDistance();
+      }
+
+      // Everything below is in terms of the line to the target when the ball leaves: the turret is at (0, 0),
+      // the target is at (distance, 0), and y is to the right. The robot's front is bearingDegrees counter-clockwise of x.
+      double bearing = Math.toRadians(bearingDegrees);
+      double forwardX = Math.cos(bearing);
+      double forwardY = -Math.sin(bearing);
+      double rightX = Math.sin(bearing);
+      double rightY = Math.cos(bearing);
+      // the turret's velocity: driving, plus swinging around the center of rotation while turning
+      double sideways = -Math.toRadians(turnRateDegrees) * TURRET_OFFSET;
+      double turretVX = forwardSpeed * forwardX + sideways * rightX;
+      double turretVY = forwardSpeed * forwardY + sideways * rightY;
+
+      // the ball leaves at the stationary exit speed for shotDistance, pointed leadDegrees clockwise of the target
+      double exitSpeed = interpolate(tableExitSpeeds, shotDistance);
+      double exitAngle = Math.toRadians(EXIT_ANGLE_DEGREES);
+      double lead = Math.toRadians(leadDegrees);
+      double horizontalSpeed = exitSpeed * Math.cos(exitAngle);
+      double[] landing = fly(horizontalSpeed * Math.cos(lead) + turretVX, horizontalSpeed * Math.sin(lead) + turretVY,
+                             exitSpeed * Math.sin(exitAngle));
+      misses[i] = Math.hypot(landing[0] - distance, landing[1]);
+      if (misses[i] <= TARGET_RADIUS) {
+        hits++;
+      }
+    }
+    Arrays.sort(misses);
+    String cost = (solver != null) ? String.format("%.0f", (double) solveNanos / SHOTS) : "n/a";
+    System.out.printf("  %-34s %7.1f%% %16.3f %14.3f %12s%n", name, 100.0 * hits / SHOTS,
+                      misses[SHOTS / 2], misses[(int) (SHOTS * 0.95)], cost);
+  }
+
+  /**
+   * Follows a ball from the turret until it comes back down to the target's height.
+   * @return {x, y, time of flight} where it came down, or {NaN, NaN, NaN} if it never got that high.
+   */
+  private static double[] fly(double vx, double vy, double vz) {
+    double x = 0;
+    double y = 0;
+    double z = EXIT_HEIGHT;
+    double time = 0;
+    while (true) {
+      double speed = Math.sqrt(vx * vx + vy * vy + vz * vz);
+      double previousZ = z;
+      x += vx * STEP;
+      y += vy * STEP;
+      z += vz * STEP;
+      vx -= DRAG * speed * vx * STEP;
+      vy -= DRAG * speed * vy * STEP;
+      vz -= (GRAVITY + DRAG * speed * vz) * STEP;
+      time += STEP;
+      if (vz <= 0 && z <= TARGET_HEIGHT) {
+        if (previousZ < TARGET_HEIGHT) {
+          // it started coming down before it got high enough
+          return new double[] {Double.NaN, Double.NaN, Double.NaN};
+        }
+        // back up to exactly where it crossed the target's height
+        double fraction = (previousZ - TARGET_HEIGHT) / (previousZ - z);
+        double backUp = (1 - fraction) * STEP;
+        return new double[] {x - vx * backUp, y - vy * backUp, time - backUp};
+      }
+    }
+  }
+
+  /**
+   * For each distance in the table, finds the exit speed that drops a ball shot from standing still
+   * into the target (by bisection), and how long it's in the air.
+   */
+  private static void makeShotTable() {
+    int entries = (int) Math.round((MAX_DISTANCE - MIN_DISTANCE) / TABLE_STEP) + 1;
+    tableDistances = new double[entries];
+    tableExitSpeeds = new double[entries];
+    tableFlightTimes = new double[entries];
+    double exitAngle = Math.toRadians(EXIT_ANGLE_DEGREES);
+    for (int i = 0; i < entries; i++) {
+      double distance = MIN_DISTANCE + i * TABLE_STEP;
+      double low = 0;
+      double high = 50;
+      double[] landing = null;
+      for (int iteration = 0; iteration < 60; iteration++) {
+        double speed = (low + high) / 2;
+        landing = fly(speed * Math.cos(exitAngle), 0, speed * Math.sin(exitAngle));
+        if (Double.isNaN(landing[0]) || landing[0] < distance) {
+          low = speed;
+        } else {
+          high = speed;
+        }
+      }
+      tableDistances[i] = distance;
+      tableExitSpeeds[i] = high;
+      tableFlightTimes[i] = landing[2];
+    }
+  }
+
+  /**
+   * Linear interpolation in the shot table (the closest entry past either end).
+   */
+  private static double interpolate(double[] values, double distance) {
+    double position = (distance - MIN_DISTANCE) / TABLE_STEP;
+    if (position <= 0) {
+      return values[0];
+    }
+    if (position >= values.length - 1) {
+      return values[values.length - 1];
+    }
+    int index = (int) position;
+    double fraction = position - index;
+    return values[index] + (values[index + 1] - values[index]) * fraction;
+  }
+}
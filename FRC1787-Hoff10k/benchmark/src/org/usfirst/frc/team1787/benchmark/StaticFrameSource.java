@@ -0,0 +1,26 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import org.opencv.core.Mat;
+import org.usfirst.frc.team1787.robot.vision.FrameSource;
+
+/**
+ * Hands out copies of the same frame over and over.
+ * (A copy is needed because the ImageProcessor draws on the frames it's given.)
+ */
+public class StaticFrameSource implements FrameSource {
+  
+  private Mat frame;
+  private long timestamp = 0;
+  
+  public StaticFrameSource(Mat frame) {
+    this.frame = frame;
+  }
+  
+  @Override
+  public long getFrame(Mat destination) {
+    frame.copyTo(destination);
+    // pretend frames come in 1/30th of a second apart
+    timestamp += 1000000 / 30;
+    return timestamp;
+  }
+}
@@ -0,0 +1,84 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.usfirst.frc.team1787.robot.vision.HSVThresholdTable;
+
+/**
+ * Compares the two ways the ImageProcessor can do an HSV filter:
+ * 1) Imgproc.cvtColor() to HSV followed by Core.inRange() (the old way)
+ * 2) a single pass with an HSVThresholdTable
+ * 
+ * This doesn't need the robot, just the OpenCV java bindings. See build.xml in the benchmark folder for how to run it.
+ * 
+ * For each frame size it prints the average time per frame for both methods,
+ * and what percent of pixels the two methods disagree on.
+ */
+public class ThresholdBenchmark {
+  
+  private static final Scalar LOWER_BOUNDS = new Scalar(75, 200, 30);
+  private static final Scalar UPPER_BOUNDS = new Scalar(90, 255, 150);
+  private static final int WARMUP_ITERATIONS = 200;
+  private static final int MEASURED_ITERATIONS = 2000;
+  
+  public static void main(String[] args) {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    
+    benchmark(160, 120);
+    benchmark(320, 240);
+    benchmark(640, 480);
+  }
+  
+  private static void benchmark(int width, int height) {
+    // random noise has every color in it, so it's a fair test of both methods.
+    Mat frame = new Mat(height, width, CvType.CV_8UC3);
+    Core.randu(frame, 0, 256);
+    
+    Mat hsv = new Mat();
+    Mat inRangeMask = new Mat();
+    Mat tableMask = new Mat();
+    HSVThresholdTable table = new HSVThresholdTable();
+    
+    long tableBuildStart = System.nanoTime();
+    table.setBounds(LOWER_BOUNDS, UPPER_BOUNDS);
+    long tableBuildNanos = System.nanoTime() - tableBuildStart;
+    
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      Imgproc.cvtColor(frame, hsv, Imgproc.COLOR_BGR2HSV);
+      Core.inRange(hsv, LOWER_BOUNDS, UPPER_BOUNDS, inRangeMask);
+      table.apply(frame, tableMask);
+    }
+    
+    long start = System.nanoTime();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      Imgproc.cvtColor(frame, hsv, Imgproc.COLOR_BGR2HSV);
+      Core.inRange(hsv, LOWER_BOUNDS, UPPER_BOUNDS, inRangeMask);
+    }
+    double inRangeMicros = (System.nanoTime() - start) / 1000.0 / MEASURED_ITERATIONS;
+    
+    start = System.nanoTime();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      table.apply(frame, tableMask);
+    }
+    double tableMicros = (System.nanoTime() - start) / 1000.0 / MEASURED_ITERATIONS;
+    
+    // how many pixels the two methods disagree on
+    Mat difference = new Mat();
+    Core.bitwise_xor(inRangeMask, tableMask, difference);
+    double percentDifferent = 100.0 * Core.countNonZero(difference) / (width * height);
+    
+    System.out.printf("%dx%d: cvtColor+inRange %.1f us/frame, table %.1f us/frame "
+                      + "(table built in %.1f ms), %.3f%% of pixels differ%n",
+                      width, height, inRangeMicros, tableMicros, 
+                      tableBuildNanos / 1e6, percentDifferent);
+    
+    frame.release();
+    hsv.release();
+    inRangeMask.release();
+    tableMask.release();
+    difference.release();
+  }
+}
@@ -0,0 +1,98 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.usfirst.frc.team1787.robot.auto.AutoPaths;
+import org.usfirst.frc.team1787.robot.utils.Trajectory;
+import org.usfirst.frc.team1787.robot.utils.TrajectoryGenerator;
+import org.usfirst.frc.team1787.robot.utils.TrajectoryGenerator.Waypoint;
+
+/**
+ * Makes the autonomous routines' trajectories (see AutoPaths) and saves them to a folder, so they can be
+ * copied to AutoPaths.TRAJECTORY_DIRECTORY on the roboRIO instead of being made there the first time it boots.
+ *
+ * For each routine, it also checks the trajectory and prints:
+ * - how long the drive takes, how many samples there are, and how big the file is
+ * - the fastest either side goes (shouldn't be over AutoPaths.MAX_VELOCITY_METERS_PER_SECOND)
+ * - how far the end of the trajectory is from the last waypoint
+ * - how long it took to generate, to save, and to load back (memory mapped), and to look up a time
+ *
+ * Usage: TrajectoryBenchmark [folder]   (build/trajectories if it isn't given)
+ * See build.xml in the benchmark folder for how to run it.
+ */
+public class TrajectoryBenchmark {
+
+  private static final int GENERATE_RUNS = 10;
+  private static final int LOOKUPS = 1000000;
+
+  public static void main(String[] args) throws IOException {
+    File directory = new File((args.length > 0 && !args[0].isEmpty()) ? args[0] : "build/trajectories");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Couldn't make the folder " + directory);
+    }
+    TrajectoryGenerator generator = AutoPaths.GENERATOR;
+    System.out.printf("Limits: %.2f m/s, %.2f m/s^2, track width %.3f m, a sample every %.0f ms%n",
+                      AutoPaths.MAX_VELOCITY_METERS_PER_SECOND, AutoPaths.MAX_ACCELERATION_METERS_PER_SECOND_SQUARED,
+                      AutoPaths.TRACK_WIDTH_METERS, AutoPaths.SECONDS_PER_SAMPLE * 1000);
+    System.out.printf("  %-6s %9s %8s %10s %13s %11s %14s %10s %10s %12s%n", "auto", "time (s)", "samples", "file (KB)",
+                      "max wheel m/s", "end error", "generate (ms)", "save (ms)", "load (ms)", "lookup (ns)");
+
+    Waypoint[][] routines = AutoPaths.getAll();
+    for (int i = 0; i < routines.length; i++) {
+      Waypoint[] waypoints = routines[i];
+
+      // (the first few runs are slow while the JIT compiles everything, so the average is of the rest)
+      Trajectory trajectory = null;
+      long generateNanos = 0;
+      for (int run = 0; run < 2 * GENERATE_RUNS; run++) {
+        long start = System.nanoTime();
+        trajectory = generator.generate(waypoints);
+        if (run >= GENERATE_RUNS) {
+          generateNanos += System.nanoTime() - start;
+        }
+      }
+
+      File file = Trajectory.getFile(directory, generator.getKey(waypoints));
+      long start = System.nanoTime();
+      trajectory.save(file);
+      long saveNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      Trajectory loaded = Trajectory.load(file, generator.getKey(waypoints));
+      long loadNanos = System.nanoTime() - start;
+      if (loaded == null) {
+        throw new IOException("Couldn't read back " + file);
+      }
+
+      double maxWheelVelocity = 0;
+      for (int sample = 0; sample < loaded.getSampleCount(); sample++) {
+        double time = sample * AutoPaths.SECONDS_PER_SAMPLE;
+        maxWheelVelocity = Math.max(maxWheelVelocity, Math.max(Math.abs(loaded.getLeftVelocity(time)),
+                                                               Math.abs(loaded.getRightVelocity(time))));
+      }
+      Waypoint last = waypoints[waypoints.length - 1];
+      double end = loaded.getDuration();
+      String endError = String.format("%.3fm %.1fd", Math.hypot(loaded.getX(end) - last.x, loaded.getY(end) - last.y),
+                                      Math.abs(loaded.getHeadingDegrees(end) - last.headingDegrees));
+
+      double sum = 0;
+      for (int round = 0; round < 2; round++) {
+        start = System.nanoTime();
+        for (int lookup = 0; lookup < LOOKUPS; lookup++) {
+          double time = (lookup % 1500) * 0.0103;
+          sum += loaded.getLeftPosition(time) + loaded.getLeftVelocity(time) + loaded.getLeftAcceleration(time);
+        }
+      }
+      double lookupNanos = (double) (System.nanoTime() - start) / LOOKUPS;
+
+      System.out.printf("  %-6s %9.2f %8d %10.1f %13.2f %11s %14.2f %10.2f %10.3f %12.1f%n", "auto" + (i + 1),
+                        loaded.getDuration(), loaded.getSampleCount(), file.length() / 1024.0, maxWheelVelocity, endError,
+                        generateNanos / 1e6 / GENERATE_RUNS, saveNanos / 1e6, loadNanos / 1e6, lookupNanos);
+      if (Double.isNaN(sum)) {
+        System.out.println("(lookups gave NaN)");
+      }
+    }
+    System.out.println("Saved to " + directory.getAbsolutePath() + " (copy these to " + AutoPaths.TRAJECTORY_DIRECTORY
+                       + " on the roboRIO)");
+  }
+}
@@ -0,0 +1,304 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.util.Random;
+
+import org.usfirst.frc.team1787.robot.utils.TrapezoidProfile;
+
+/**
+ * Tries out the turret's motion profile (see TrapezoidProfile and Turret.setProfiledSetpoint()) against a
+ * simulated turret, so it can be compared to jumping the setpoint straight to the target without the robot.
+ *
+ * The turret is simulated as a motor turning a load (volts = kS * sign(v) + kV * v + kA * a), with a
+ * P + D controller running at the ControlLoop's rate, clamped to full power either way.
+ * Each way of aiming is run through:
+ * 1) steps: vision suddenly says the target is STEPS degrees away, one after another. Prints the average
+ *    and worst time until the turret got within TOLERANCE of the target and stayed there, the worst overshoot,
+ *    and how much of the time the motor was maxed out.
+ * 2) moving target: the target swings back and forth (like the robot turning), with a new vision frame every
+ *    FRAME_PERIOD. Prints how far off the turret was on average and at worst, and how much of the time the motor was maxed out.
+ * Then it prints how long plan() takes (it's run every time the target moves, so it has to be cheap).
+ *
+ * The gains aren't the real ones (those aren't tuned yet), so this shows how the two compare,
+ * not exactly how the real turret will do. See build.xml in the benchmark folder for how to run it.
+ */
+public class TurretProfileSimulation {
+
+  // The simulated turret (in volts, degrees, and seconds: about 575 degrees / second at 12 volts)
+  private static final double KS = 0.5;
+  private static final double KV = 0.02;
+  private static final double KA = 0.002;
+  private static final double BATTERY_VOLTS = 12;
+  private static final double GYRO_NOISE_DEGREES = 0.05;
+
+  // Control Loop (same as the ControlLoop's default)
+  private static final double CONTROL_PERIOD = 1.0 / 200;
+  private static final int PHYSICS_STEPS_PER_PERIOD = 10;
+
+  // Profile (same as the Turret's)
+  private static final double MAX_VELOCITY = 360;
+  private static final double MAX_ACCELERATION = 1440;
+  private static final double PROFILE_RESYNC_DEGREES = 10;
+
+  // 1) Steps
+  private static final double[] STEPS = {5, -20, 45, -90, 180, -10, 120, -30};
+  private static final double SECONDS_PER_STEP = 1.5;
+  private static final double TOLERANCE = 1;
+
+  // 2) Moving target
+  private static final double SWING_DEGREES = 60;
+  private static final double SWING_PERIOD = 2;
+  private static final double FRAME_PERIOD = 1.0 / 30;
+  private static final double MOVING_SECONDS = 10;
+
+  // plan() timing
+  private static final int PLANS = 1000000;
+
+  /**
+   * What's being tested: gets told whenever vision says the target moved,
+   * and returns the controller's output (-1 to 1) every tick.
+   */
+  private interface Aimer {
+    public void setTarget(double time, double angle, double measuredAngle, double measuredRate);
+    public double calculate(double time, double measuredAngle);
+  }
+
+  public static void main(String[] args) {
+    System.out.printf("Simulated turret: %.0f deg/s at %.0f volts; profile limited to %.0f deg/s and %.0f deg/s^2%n",
+                      (BATTERY_VOLTS - KS) / KV, BATTERY_VOLTS, MAX_VELOCITY, MAX_ACCELERATION);
+    System.out.println();
+    System.out.printf("1) Steps of %s degrees, %.1f s apart (tolerance %.0f degree)%n",
+                      java.util.Arrays.toString(STEPS), SECONDS_PER_STEP, TOLERANCE);
+    System.out.printf("  %-34s %14s %14s %16s %12s%n", "aiming", "avg settle (s)", "max settle (s)", "max overshoot", "saturated");
+    steps("step setpoint, soft gains", new StepAimer(0.02, 0.1));
+    steps("step setpoint, stiff gains", new StepAimer(0.3, 3));
+    steps("profiled + feedforward, stiff gains", new ProfiledAimer(0.3, 3));
+
+    System.out.println();
+    System.out.printf("2) Target swinging +/-%.0f degrees every %.0f s, a frame every %.0f ms%n",
+                      SWING_DEGREES, SWING_PERIOD, FRAME_PERIOD * 1000);
+    System.out.printf("  %-34s %14s %14s %12s%n", "aiming", "avg error", "max error", "saturated");
+    moving("step setpoint, soft gains", new StepAimer(0.02, 0.1));
+    moving("step setpoint, stiff gains", new StepAimer(0.3, 3));
+    moving("profiled + feedforward, stiff gains", new ProfiledAimer(0.3, 3));
+
+    System.out.println();
+    timePlans();
+  }
+
+  private static void steps(String name, Aimer aimer) {
+    SimulatedTurret turret = new SimulatedTurret();
+    double target = 0;
+    double time = 0;
+    double totalSettle = 0;
+    double maxSettle = 0;
+    double maxOvershoot = 0;
+    boolean allSettled = true;
+    int saturatedTicks = 0;
+    int ticks = 0;
+    for (double step : STEPS) {
+      double start = target;
+      target += step;
+      aimer.setTarget(time, target, turret.measureAngle(), turret.velocity);
+      double stepStart = time;
+      // the last time the turret was out of tolerance
+      double lastOutside = time;
+      while (time < stepStart + SECONDS_PER_STEP) {
+        double output = aimer.calculate(time, turret.measureAngle());
+        if (Math.abs(output) >= 1) {
+          saturatedTicks++;
+        }
+        ticks++;
+        turret.run(output * BATTERY_VOLTS, CONTROL_PERIOD);
+        time += CONTROL_PERIOD;
+        if (Math.abs(target - turret.angle) > TOLERANCE) {
+          lastOutside = time;
+        }
+        // (how far past the target it went, in the direction it was going)
+        maxOvershoot = Math.max(maxOvershoot, Math.signum(target - start) * (turret.angle - target));
+      }
+      if (time - lastOutside < CONTROL_PERIOD / 2) {
+        allSettled = false;
+      }
+      double settle = lastOutside - stepStart;
+      totalSettle += settle;
+      maxSettle = Math.max(maxSettle, settle);
+    }
+    String max = allSettled ? String.format("%.3f", maxSettle) : "didn't always";
+    System.out.printf("  %-34s %14.3f %14s %14.2f deg %11.1f%%%n", name, totalSettle / STEPS.length, max,
+                      maxOvershoot, 100.0 * saturatedTicks / ticks);
+  }
+
+  private static void moving(String name, Aimer aimer) {
+    SimulatedTurret turret = new SimulatedTurret();
+    double time = 0;
+    double nextFrame = 0;
+    double totalError = 0;
+    double maxError = 0;
+    int saturatedTicks = 0;
+    int ticks = 0;
+    while (time < MOVING_SECONDS) {
+      double target = SWING_DEGREES * Math.sin(2 * Math.PI * time / SWING_PERIOD);
+      if (time >= nextFrame) {
+        aimer.setTarget(time, target, turret.measureAngle(), turret.velocity);
+        nextFrame += FRAME_PERIOD;
+      }
+      double output = aimer.calculate(time, turret.measureAngle());
+      if (Math.abs(output) >= 1) {
+        saturatedTicks++;
+      }
+      ticks++;
+      turret.run(output * BATTERY_VOLTS, CONTROL_PERIOD);
+      time += CONTROL_PERIOD;
+      // (the first swing is skipped, since everything starts from a standstill)
+      if (time > SWING_PERIOD) {
+        double error = Math.abs(SWING_DEGREES * Math.sin(2 * Math.PI * time / SWING_PERIOD) - turret.angle);
+        totalError += error;
+        maxError = Math.max(maxError, error);
+      }
+    }
+    int measuredTicks = (int) Math.round((MOVING_SECONDS - SWING_PERIOD) / CONTROL_PERIOD);
+    System.out.printf("  %-34s %10.2f deg %10.2f deg %11.1f%%%n", name, totalError / measuredTicks, maxError,
+                      100.0 * saturatedTicks / ticks);
+  }
+
+  private static void timePlans() {
+    TrapezoidProfile profile = new TrapezoidProfile(MAX_VELOCITY, MAX_ACCELERATION);
+    Random random = new Random(1787);
+    double[] positions = new double[1024];
+    double[] velocities = new double[1024];
+    double[] goals = new double[1024];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = (random.nextDouble() * 2 - 1) * 180;
+      velocities[i] = (random.nextDouble() * 2 - 1) * MAX_VELOCITY;
+      goals[i] = (random.nextDouble() * 2 - 1) * 180;
+    }
+    double sum = 0;
+    // (warm up first, so the JIT has compiled it)
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < PLANS; i++) {
+        int j = i & (positions.length - 1);
+        profile.plan(positions[j], velocities[j], goals[j]);
+        sum += profile.getPosition(CONTROL_PERIOD);
+      }
+      long nanos = System.nanoTime() - start;
+      if (round == 1) {
+        System.out.printf("plan() + getPosition(): %.1f ns each (%d random plans; checksum %.1f)%n",
+                          (double) nanos / PLANS, PLANS, sum);
+      }
+    }
+  }
+
+  private static double clamp(double output) {
+    return Math.max(-1, Math.min(1, output));
+  }
+
+  /**
+   * The old way: the setpoint jumps straight to the target, and a P + D controller gets it there.
+   */
+  private static class StepAimer implements Aimer {
+    final double kP;
+    final double kD;
+    double setpoint = 0;
+    double lastError = 0;
+
+    StepAimer(double kP, double kD) {
+      this.kP = kP;
+      this.kD = kD;
+    }
+
+    @Override
+    public void setTarget(double time, double angle, double measuredAngle, double measuredRate) {
+      setpoint = angle;
+    }
+
+    @Override
+    public double calculate(double time, double measuredAngle) {
+      double error = setpoint - measuredAngle;
+      double output = kP * error + kD * (error - lastError);
+      lastError = error;
+      return clamp(output);
+    }
+  }
+
+  /**
+   * Like Turret.setProfiledSetpoint(): the setpoint follows a profile toward the target (re-planned from where
+   * the profile is whenever the target moves), with the same P + D controller plus a kV / kA feedforward.
+   */
+  private static class ProfiledAimer implements Aimer {
+    final double kP;
+    final double kD;
+    TrapezoidProfile profile = new TrapezoidProfile(MAX_VELOCITY, MAX_ACCELERATION);
+    boolean profiling = false;
+    double goal = 0;
+    double profileStart = 0;
+    double lastError = 0;
+
+    ProfiledAimer(double kP, double kD) {
+      this.kP = kP;
+      this.kD = kD;
+    }
+
+    @Override
+    public void setTarget(double time, double angle, double measuredAngle, double measuredRate) {
+      if (profiling && angle == goal) {
+        return;
+      }
+      double position = measuredAngle;
+      double velocity = measuredRate;
+      if (profiling && Math.abs(profile.getPosition(time - profileStart) - measuredAngle) <= PROFILE_RESYNC_DEGREES) {
+        position = profile.getPosition(time - profileStart);
+        velocity = profile.getVelocity(time - profileStart);
+      }
+      profile.plan(position, velocity, angle);
+      goal = angle;
+      profileStart = time;
+      profiling = true;
+    }
+
+    @Override
+    public double calculate(double time, double measuredAngle) {
+      double t = time - profileStart;
+      double error = profile.getPosition(t) - measuredAngle;
+      // (the feedforward is in volts, as a fraction of the battery like the Turret's TURRET_KV and TURRET_KA)
+      double feedforward = (KV * profile.getVelocity(t) + KA * profile.getAcceleration(t)) / BATTERY_VOLTS;
+      double output = kP * error + kD * (error - lastError) + feedforward;
+      lastError = error;
+      return clamp(output);
+    }
+  }
+
+  /**
+   * A turret that follows volts = kS * sign(v) + kV * v + kA * a, with a (slightly noisy) gyro on it.
+   */
+  private static class SimulatedTurret {
+    double angle = 0;
+    double velocity = 0;
+    Random random = new Random(1787);
+
+    void run(double volts, double seconds) {
+      double dt = seconds / PHYSICS_STEPS_PER_PERIOD;
+      for (int i = 0; i < PHYSICS_STEPS_PER_PERIOD; i++) {
+        double frictionVolts = KS * Math.signum(velocity);
+        if (velocity == 0) {
+          // static friction: it doesn't move until there's enough voltage to get it going
+          if (Math.abs(volts) <= KS) {
+            continue;
+          }
+          frictionVolts = KS * Math.signum(volts);
+        }
+        double newVelocity = velocity + ((volts - frictionVolts - KV * velocity) / KA) * dt;
+        if (velocity != 0 && Math.signum(newVelocity) != Math.signum(velocity) && Math.abs(volts) <= KS) {
+          // friction stops it, but doesn't turn it around
+          newVelocity = 0;
+        }
+        velocity = newVelocity;
+        angle += velocity * dt;
+      }
+    }
+
+    double measureAngle() {
+      return angle + random.nextGaussian() * GYRO_NOISE_DEGREES;
+    }
+  }
+}
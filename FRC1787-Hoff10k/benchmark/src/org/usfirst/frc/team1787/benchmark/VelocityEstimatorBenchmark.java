@@ -0,0 +1,236 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.usfirst.frc.team1787.robot.utils.VelocityEstimator;
+
+/**
+ * Compares ways of getting the flywheel's speed from its encoder: Encoder.getRate() and
+ * VelocityEstimator with different settings. For each one it prints:
+ * - noise: how far off the speed is (RMS) while the real speed is holding steady, once the lag is accounted for
+ * - lag: how far behind the real speed it is (the delay that best lines it up with the real speed)
+ * - cost: how long each sample takes to process
+ *
+ * With no arguments, it uses a simulated flywheel (spinning up, then losing speed to a ball every 1.5 seconds),
+ * with an encoder whose marks aren't perfectly evenly spaced, like a real one, and which isn't read at exactly
+ * the same moment as the time. The real speed is known exactly.
+ *
+ * It can also use a recording from the robot (see EncoderRecorder):
+ *   ant velocity-benchmark -DencoderRecording=flywheelEncoder.csv
+ * The real speed isn't known then, so a zero lag reference is used instead: a least squares fit centered
+ * on each sample (using samples from before AND after it, which only works after the fact).
+ */
+public class VelocityEstimatorBenchmark {
+
+  // Simulated Encoder (like the flywheel's)
+  private static final double PULSES_PER_REVOLUTION = 2048;
+  // how far (in pulses) each mark on the encoder's disk is from where it should be (standard deviation)
+  private static final double MARK_ERROR = 0.05;
+  // the encoder is read a little before or after the time is (2 separate calls), by about this much (seconds)
+  private static final double READ_TIME_ERROR = 20e-6;
+  private static final double SAMPLE_PERIOD = 1.0 / 200;
+  private static final double SIMULATED_SECONDS = 10;
+
+  // how many samples on each side the zero lag reference uses (recordings only)
+  private static final int REFERENCE_HALF_WINDOW = 20;
+  private static final int MAX_LAG_SAMPLES = 40;
+  // the speed counts as steady if it changed less than this (rev/s) over the last MAX_LAG_SAMPLES
+  private static final double STEADY_CHANGE = 0.5;
+
+  private static long[] timestamps;
+  private static double[] positions;
+  // what Encoder.getRate() said at each sample
+  private static double[] rawRates;
+  // the real speed (or the zero lag reference) at each sample
+  private static double[] truth;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length > 0 && !args[0].isEmpty()) {
+      loadRecording(args[0]);
+      System.out.println("Recording: " + args[0] + " (" + timestamps.length + " samples, compared to a zero lag reference)");
+    } else {
+      simulate();
+      System.out.println("Simulated flywheel (" + timestamps.length + " samples at " + Math.round(1 / SAMPLE_PERIOD)
+                         + " Hz, compared to the real speed)");
+    }
+
+    System.out.printf("  %-32s %14s %10s %14s%n", "estimator", "noise (rev/s)", "lag (ms)", "cost (ns/sample)");
+    if (rawRates != null) {
+      report("Encoder.getRate()", rawRates, 0);
+    }
+    int[] windows = {2, 4, 8, 16};
+    for (int window : windows) {
+      VelocityEstimator estimator = new VelocityEstimator(null, 32, window);
+      run("least squares, window " + window, estimator);
+    }
+    double[][] alphaBetas = {{0.5, 0.1}, {0.3, 0.03}, {0.2, 0.01}};
+    for (double[] alphaBeta : alphaBetas) {
+      VelocityEstimator estimator = new VelocityEstimator(null, 32, 2);
+      estimator.useAlphaBeta(alphaBeta[0], alphaBeta[1]);
+      run("alpha-beta, " + alphaBeta[0] + " / " + alphaBeta[1], estimator);
+    }
+  }
+
+  private static void run(String name, VelocityEstimator estimator) {
+    double[] estimates = new double[timestamps.length];
+    // run it through a few times first, so the JIT compiler has warmed it up before it's timed.
+    for (int pass = 0; pass < 5; pass++) {
+      estimator.reset();
+      for (int i = 0; i < timestamps.length; i++) {
+        estimator.addSample(timestamps[i], positions[i]);
+      }
+    }
+    estimator.reset();
+    long start = System.nanoTime();
+    for (int i = 0; i < timestamps.length; i++) {
+      estimator.addSample(timestamps[i], positions[i]);
+      estimates[i] = estimator.getVelocity();
+    }
+    double nanosPerSample = (double) (System.nanoTime() - start) / timestamps.length;
+    report(name, estimates, nanosPerSample);
+  }
+
+  private static void report(String name, double[] estimates, double nanosPerSample) {
+    // skip the start (where the estimators are still filling up) and the ends the reference can't cover
+    int first = Math.max(MAX_LAG_SAMPLES, REFERENCE_HALF_WINDOW) + 32;
+    int last = timestamps.length - REFERENCE_HALF_WINDOW;
+
+    // find the lag that best lines the estimate up with the truth
+    int bestLag = 0;
+    double bestRMS = Double.MAX_VALUE;
+    for (int lag = 0; lag <= MAX_LAG_SAMPLES; lag++) {
+      double sumSquared = 0;
+      for (int i = first; i < last; i++) {
+        double error = estimates[i] - truth[i - lag];
+        sumSquared += error * error;
+      }
+      double rms = Math.sqrt(sumSquared / (last - first));
+      if (rms < bestRMS) {
+        bestRMS = rms;
+        bestLag = lag;
+      }
+    }
+
+    // noise: only while the speed is steady, so the lag doesn't count as noise too
+    double sumSquared = 0;
+    int steadySamples = 0;
+    for (int i = first; i < last; i++) {
+      if (Math.abs(truth[i] - truth[i - MAX_LAG_SAMPLES]) < STEADY_CHANGE) {
+        double error = estimates[i] - truth[i - bestLag];
+        sumSquared += error * error;
+        steadySamples++;
+      }
+    }
+    double noise = Math.sqrt(sumSquared / Math.max(1, steadySamples));
+
+    double samplePeriodMillis = (timestamps[last - 1] - timestamps[first]) / 1000.0 / (last - 1 - first);
+    String cost = (nanosPerSample > 0) ? String.format("%.0f", nanosPerSample) : "n/a";
+    System.out.printf("  %-32s %14.3f %10.1f %14s%n", name, noise, bestLag * samplePeriodMillis, cost);
+  }
+
+  /**
+   * Makes samples from a simulated flywheel: it spins up to 60 rev/s, then loses 15% of its speed
+   * every 1.5 seconds and recovers.
+   */
+  private static void simulate() {
+    Random random = new Random(1787);
+    double[] markErrors = new double[(int) PULSES_PER_REVOLUTION];
+    for (int i = 0; i < markErrors.length; i++) {
+      markErrors[i] = random.nextGaussian() * MARK_ERROR;
+    }
+
+    int samples = (int) (SIMULATED_SECONDS / SAMPLE_PERIOD);
+    timestamps = new long[samples];
+    positions = new double[samples];
+    rawRates = new double[samples];
+    truth = new double[samples];
+
+    double setpoint = 60;
+    double timeConstant = 0.3;
+    double velocity = 0;
+    double position = 0;
+    double time = 0;
+    double nextBall = 2;
+    double physicsStep = 1e-5;
+    for (int i = 0; i < samples; i++) {
+      // the control loop doesn't run perfectly on time
+      double sampleTime = i * SAMPLE_PERIOD + random.nextGaussian() * 100e-6;
+      while (time < sampleTime) {
+        velocity += (setpoint - velocity) / timeConstant * physicsStep;
+        position += velocity * physicsStep;
+        time += physicsStep;
+        if (time >= nextBall) {
+          velocity *= 0.85;
+          nextBall += 1.5;
+        }
+      }
+      // the encoder counts a pulse when the (slightly misplaced) mark passes
+      double readPosition = position + velocity * random.nextGaussian() * READ_TIME_ERROR;
+      double exactPulses = readPosition * PULSES_PER_REVOLUTION;
+      long pulse = (long) Math.floor(exactPulses);
+      int mark = (int) (pulse % markErrors.length);
+      long count = (exactPulses - pulse >= markErrors[mark]) ? pulse : pulse - 1;
+
+      timestamps[i] = Math.round(time * 1e6);
+      positions[i] = count / PULSES_PER_REVOLUTION;
+      truth[i] = velocity;
+      // getRate() is the distance of one pulse divided by the time between the last 2 marks
+      int previousMark = (mark + markErrors.length - 1) % markErrors.length;
+      double markSpacing = 1 + markErrors[mark] - markErrors[previousMark];
+      rawRates[i] = (velocity / markSpacing);
+    }
+  }
+
+  /**
+   * Reads a recording made by EncoderRecorder (time in microseconds, position, rate).
+   */
+  private static void loadRecording(String path) throws IOException {
+    ArrayList<double[]> rows = new ArrayList<double[]>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] values = line.split(",");
+        double rate = (values.length > 2) ? Double.parseDouble(values[2]) : Double.NaN;
+        rows.add(new double[] {Double.parseDouble(values[0]), Double.parseDouble(values[1]), rate});
+      }
+    }
+    timestamps = new long[rows.size()];
+    positions = new double[rows.size()];
+    rawRates = new double[rows.size()];
+    for (int i = 0; i < rows.size(); i++) {
+      timestamps[i] = (long) rows.get(i)[0];
+      positions[i] = rows.get(i)[1];
+      rawRates[i] = rows.get(i)[2];
+    }
+    if (rows.size() > 0 && Double.isNaN(rawRates[0])) {
+      rawRates = null;
+    }
+
+    // zero lag reference: the slope of a least squares line through the samples on both sides of each one
+    truth = new double[rows.size()];
+    for (int i = REFERENCE_HALF_WINDOW; i < rows.size() - REFERENCE_HALF_WINDOW; i++) {
+      double sumT = 0;
+      double sumX = 0;
+      double sumTT = 0;
+      double sumTX = 0;
+      int n = 2 * REFERENCE_HALF_WINDOW + 1;
+      for (int j = i - REFERENCE_HALF_WINDOW; j <= i + REFERENCE_HALF_WINDOW; j++) {
+        double t = (timestamps[j] - timestamps[i]) / 1e6;
+        double x = positions[j] - positions[i];
+        sumT += t;
+        sumX += x;
+        sumTT += t * t;
+        sumTX += t * x;
+      }
+      truth[i] = (n * sumTX - sumT * sumX) / (n * sumTT - sumT * sumT);
+    }
+  }
+}
@@ -0,0 +1,384 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.usfirst.frc.team1787.robot.vision.ContourFeatures;
+import org.usfirst.frc.team1787.robot.vision.FrameDataset;
+import org.usfirst.frc.team1787.robot.vision.HSVThresholdTable;
+import org.usfirst.frc.team1787.robot.vision.LargestTargetRanker;
+
+/**
+ * Finds the best HSV bounds and contour filter settings for ImageProcessor,
+ * instead of tuning them by hand with tuning modes 2 and 3.
+ *
+ * Give it a frame dataset and a file saying where the target really is in some of those frames,
+ * and it tries every combination of settings (in the ranges below) on all of them,
+ * using every core on the computer. Each combination gets a score:
+ *
+ *   score = (fraction of frames it got right) - costWeight * (milliseconds it took per frame)
+ *
+ * A frame is "right" if the target was found within CENTER_TOLERANCE_PIXELS of where it really is,
+ * or if no target was found and there really isn't one. The cost part means that if two
+ * combinations are about as accurate, the faster one wins (looser HSV bounds let more junk through,
+ * which means more contours to find and measure).
+ * At the end, the best settings are printed in a form that can be pasted right into ImageProcessor.
+ *
+ * The labels file is CSV with one line per labeled frame:
+ *   frame,targetPresent,centerX,centerY
+ * (frame index in the dataset, true/false, and the center of the target in pixels if it's there).
+ * A header line, blank lines, and lines starting with # are skipped. Frames without a label aren't used.
+ *
+ * The ranges searched can be changed with system properties like -DhMin=70:85:5 (min:max:step),
+ * and -DcostWeight=0.02. See build.xml in the benchmark folder for how to run it.
+ *
+ * Note that the frames are filtered with HSVThresholdTable, same as the robot does by default.
+ */
+public class VisionAutotuner {
+
+  // how far off (in pixels) a detection can be and still count as finding the target
+  private static final double CENTER_TOLERANCE_PIXELS = 5;
+  // how many of the best combinations to print
+  private static final int NUM_OF_RESULTS_SHOWN = 10;
+  // HSV combinations handled by a single fork/join task before it stops splitting.
+  // (each one filters every frame, so there's plenty of work in even a few)
+  private static final int HSV_COMBOS_PER_TASK = 2;
+
+  /* Parameter Ranges (min:max:step), centered around the current defaults in ImageProcessor */
+  private static final String DEFAULT_H_MIN = "65:85:5";
+  private static final String DEFAULT_H_MAX = "85:100:5";
+  private static final String DEFAULT_S_MIN = "150:230:20";
+  private static final String DEFAULT_S_MAX = "255:255:1";
+  private static final String DEFAULT_V_MIN = "10:60:10";
+  private static final String DEFAULT_V_MAX = "110:230:20";
+  private static final String DEFAULT_MIN_AREA = "20:120:10";
+  private static final String DEFAULT_MIN_SCORE = "0.5:1.0:0.1";
+  private static final String DEFAULT_MAX_SCORE = "1.5:3.0:0.25";
+  private static final double DEFAULT_COST_WEIGHT = 0.02;
+
+  // the labeled frames (index i of each array is about the same frame)
+  private static Mat[] frames;
+  private static boolean[] targetPresent;
+  private static double[] targetX;
+  private static double[] targetY;
+
+  // every (minArea, minScore, maxScore) to try with each set of HSV bounds
+  private static double[][] contourCombos;
+  private static double costWeight;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: VisionAutotuner <frame dataset file> <labels file>");
+      System.exit(1);
+    }
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+    loadLabeledFrames(new FrameDataset(new File(args[0])), new File(args[1]));
+    if (frames.length == 0) {
+      System.err.println("None of the frames in the dataset are labeled.");
+      System.exit(1);
+    }
+
+    double[][] hsvCombos = combine(range("hMin", DEFAULT_H_MIN), range("sMin", DEFAULT_S_MIN),
+                                   range("vMin", DEFAULT_V_MIN), range("hMax", DEFAULT_H_MAX),
+                                   range("sMax", DEFAULT_S_MAX), range("vMax", DEFAULT_V_MAX));
+    contourCombos = combine(range("minArea", DEFAULT_MIN_AREA), range("minScore", DEFAULT_MIN_SCORE),
+                            range("maxScore", DEFAULT_MAX_SCORE));
+    costWeight = Double.parseDouble(System.getProperty("costWeight", String.valueOf(DEFAULT_COST_WEIGHT)));
+
+    ForkJoinPool pool = new ForkJoinPool();
+    System.err.printf("Trying %d HSV bounds x %d contour filters on %d frames, using %d threads...%n",
+                      hsvCombos.length, contourCombos.length, frames.length, pool.getParallelism());
+    long start = System.nanoTime();
+    Result[] best = pool.invoke(new SweepTask(hsvCombos, 0, hsvCombos.length));
+    System.err.printf("Done in %.1f s%n", (System.nanoTime() - start) / 1e9);
+
+    printResults(best);
+  }
+
+  /**
+   * A set of settings and how well they did.
+   */
+  private static class Result {
+    double[] hsvBounds;  // {hMin, sMin, vMin, hMax, sMax, vMax}
+    double[] contourFilter;  // {minArea, minScore, maxScore}
+    double accuracy;
+    double millisPerFrame;
+    double score;
+  }
+
+  /**
+   * Tries the HSV bounds from index lo to hi (and every contour filter with each one).
+   * Splits itself in half until the pieces are small, so the pool can spread them over all the cores.
+   * @return the best NUM_OF_RESULTS_SHOWN results, best first.
+   */
+  private static class SweepTask extends RecursiveTask<Result[]> {
+    private double[][] hsvCombos;
+    private int lo;
+    private int hi;
+
+    SweepTask(double[][] hsvCombos, int lo, int hi) {
+      this.hsvCombos = hsvCombos;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected Result[] compute() {
+      if (hi - lo <= HSV_COMBOS_PER_TASK) {
+        Result[] best = new Result[0];
+        Evaluator evaluator = EVALUATORS.get();
+        for (int i = lo; i < hi; i++) {
+          best = merge(best, evaluator.evaluate(hsvCombos[i]));
+        }
+        return best;
+      }
+      int mid = (lo + hi) >>> 1;
+      SweepTask left = new SweepTask(hsvCombos, lo, mid);
+      left.fork();
+      Result[] right = new SweepTask(hsvCombos, mid, hi).compute();
+      return merge(left.join(), right);
+    }
+  }
+
+  // each thread in the pool gets its own Evaluator, since they're full of scratch buffers.
+  private static final ThreadLocal<Evaluator> EVALUATORS = new ThreadLocal<Evaluator>() {
+    @Override
+    protected Evaluator initialValue() {
+      return new Evaluator();
+    }
+  };
+
+  /**
+   * Runs the same steps as ImageProcessor.runVisionProcessing() (HSV filter, find contours,
+   * measure them, pick the target) on every labeled frame.
+   */
+  private static class Evaluator {
+    private HSVThresholdTable thresholdTable = new HSVThresholdTable();
+    private Mat mask = new Mat();
+    private ArrayList<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+    private Mat hierarchy = new Mat();
+    private Scalar lower = new Scalar(0, 0, 0);
+    private Scalar upper = new Scalar(0, 0, 0);
+    // the contours of each frame only depend on the HSV bounds, so they're measured once
+    // here and then reused for every contour filter.
+    private ContourFeatures[] featuresPerFrame = new ContourFeatures[frames.length];
+
+    Evaluator() {
+      for (int i = 0; i < featuresPerFrame.length; i++) {
+        featuresPerFrame[i] = new ContourFeatures();
+      }
+    }
+
+    /**
+     * @return the best results of all the contour filters with the given HSV bounds, best first.
+     */
+    Result[] evaluate(double[] hsvBounds) {
+      for (int i = 0; i < 3; i++) {
+        lower.val[i] = hsvBounds[i];
+        upper.val[i] = hsvBounds[i + 3];
+      }
+      thresholdTable.setBounds(lower, upper);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < frames.length; i++) {
+        thresholdTable.apply(frames[i], mask);
+        for (int j = 0; j < contours.size(); j++) {
+          contours.get(j).release();
+        }
+        contours.clear();
+        Imgproc.findContours(mask, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        featuresPerFrame[i].measure(contours);
+      }
+      double millisPerFrame = (System.nanoTime() - start) / 1e6 / frames.length;
+
+      Result[] best = new Result[0];
+      for (double[] contourFilter : contourCombos) {
+        LargestTargetRanker ranker = new LargestTargetRanker(contourFilter[0], contourFilter[1], contourFilter[2]);
+        int correct = 0;
+        for (int i = 0; i < frames.length; i++) {
+          ContourFeatures features = featuresPerFrame[i];
+          int bestIndex = ranker.selectBest(features);
+          if (bestIndex == -1) {
+            if (!targetPresent[i]) {
+              correct++;
+            }
+          } else if (targetPresent[i]) {
+            double dx = features.getCenterX(bestIndex) - targetX[i];
+            double dy = features.getCenterY(bestIndex) - targetY[i];
+            if (Math.sqrt((dx*dx) + (dy*dy)) <= CENTER_TOLERANCE_PIXELS) {
+              correct++;
+            }
+          }
+        }
+
+        Result result = new Result();
+        result.hsvBounds = hsvBounds;
+        result.contourFilter = contourFilter;
+        result.accuracy = (double) correct / frames.length;
+        result.millisPerFrame = millisPerFrame;
+        result.score = result.accuracy - (costWeight * millisPerFrame);
+        best = merge(best, new Result[] {result});
+      }
+      return best;
+    }
+  }
+
+  /**
+   * @return the best NUM_OF_RESULTS_SHOWN results out of a and b (which are each sorted best first), best first.
+   */
+  private static Result[] merge(Result[] a, Result[] b) {
+    Result[] merged = new Result[Math.min(NUM_OF_RESULTS_SHOWN, a.length + b.length)];
+    int i = 0;
+    int j = 0;
+    for (int k = 0; k < merged.length; k++) {
+      if (j >= b.length || (i < a.length && a[i].score >= b[j].score)) {
+        merged[k] = a[i++];
+      } else {
+        merged[k] = b[j++];
+      }
+    }
+    return merged;
+  }
+
+  private static void loadLabeledFrames(FrameDataset dataset, File labelsFile) throws IOException {
+    ArrayList<double[]> labels = new ArrayList<double[]>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(labelsFile))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#") || line.startsWith("frame")) {
+          continue;
+        }
+        String[] parts = line.split(",");
+        int frame = Integer.parseInt(parts[0].trim());
+        boolean present = Boolean.parseBoolean(parts[1].trim());
+        if (frame < 0 || frame >= dataset.getFrameCount()) {
+          throw new IOException("Label for frame " + frame + ", but the dataset only has "
+                                + dataset.getFrameCount() + " frames");
+        }
+        double x = present ? Double.parseDouble(parts[2].trim()) : 0;
+        double y = present ? Double.parseDouble(parts[3].trim()) : 0;
+        labels.add(new double[] {frame, present ? 1 : 0, x, y});
+      }
+    }
+
+    frames = new Mat[labels.size()];
+    targetPresent = new boolean[labels.size()];
+    targetX = new double[labels.size()];
+    targetY = new double[labels.size()];
+    for (int i = 0; i < labels.size(); i++) {
+      double[] label = labels.get(i);
+      frames[i] = new Mat();
+      dataset.readFrame((int) label[0], frames[i]);
+      targetPresent[i] = (label[1] == 1);
+      targetX[i] = label[2];
+      targetY[i] = label[3];
+    }
+  }
+
+  /**
+   * @return every value in the range given by the system property with the given name ("min:max:step").
+   */
+  private static double[] range(String name, String defaultRange) {
+    String[] parts = System.getProperty(name, defaultRange).split(":");
+    double min = Double.parseDouble(parts[0]);
+    double max = Double.parseDouble(parts[1]);
+    double step = (parts.length > 2) ? Double.parseDouble(parts[2]) : 1;
+    if (step <= 0 || max < min) {
+      throw new IllegalArgumentException("Bad range for " + name + ": " + System.getProperty(name, defaultRange));
+    }
+    // (the small extra bit makes sure max is included even with rounding error)
+    int count = (int) Math.floor(((max - min) / step) + 1e-9) + 1;
+    double[] values = new double[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = min + (i * step);
+    }
+    return values;
+  }
+
+  /**
+   * @return every combination of one value from each of the given ranges.
+   * Combinations where a min is bigger than its max are left out, assuming the ranges are
+   * given as all the mins followed by all the maxes (like {hMin, sMin, vMin, hMax, sMax, vMax}),
+   * or as {minArea, minScore, maxScore}.
+   */
+  private static double[][] combine(double[]... ranges) {
+    ArrayList<double[]> combos = new ArrayList<double[]>();
+    int[] indexes = new int[ranges.length];
+    while (true) {
+      double[] combo = new double[ranges.length];
+      for (int i = 0; i < ranges.length; i++) {
+        combo[i] = ranges[i][indexes[i]];
+      }
+      if (isValid(combo)) {
+        combos.add(combo);
+      }
+
+      // count up, like an odometer
+      int i = ranges.length - 1;
+      while (i >= 0 && ++indexes[i] == ranges[i].length) {
+        indexes[i] = 0;
+        i--;
+      }
+      if (i < 0) {
+        break;
+      }
+    }
+    return combos.toArray(new double[combos.size()][]);
+  }
+
+  private static boolean isValid(double[] combo) {
+    if (combo.length == 6) {
+      return combo[0] <= combo[3] && combo[1] <= combo[4] && combo[2] <= combo[5];
+    }
+    return combo[1] <= combo[2];
+  }
+
+  private static void printResults(Result[] best) {
+    System.out.println("rank,score,accuracy,millisPerFrame,hMin,sMin,vMin,hMax,sMax,vMax,minArea,minScore,maxScore");
+    for (int i = 0; i < best.length; i++) {
+      Result r = best[i];
+      System.out.printf("%d,%.4f,%.4f,%.3f,%s,%s,%s,%s,%s,%s,%s,%s,%s%n", i + 1, r.score, r.accuracy, r.millisPerFrame,
+                        format(r.hsvBounds[0]), format(r.hsvBounds[1]), format(r.hsvBounds[2]),
+                        format(r.hsvBounds[3]), format(r.hsvBounds[4]), format(r.hsvBounds[5]),
+                        format(r.contourFilter[0]), format(r.contourFilter[1]), format(r.contourFilter[2]));
+    }
+    if (best.length == 0) {
+      return;
+    }
+
+    // (printed to stderr so it doesn't end up in the CSV)
+    Result r = best[0];
+    System.err.println();
+    System.err.println("Best settings, for ImageProcessor:");
+    System.err.printf("  public final Scalar DEFAULT_HSV_LOWER_BOUNDS = new Scalar(%s, %s, %s);%n",
+                      format(r.hsvBounds[0]), format(r.hsvBounds[1]), format(r.hsvBounds[2]));
+    System.err.printf("  public final Scalar DEFAULT_HSV_UPPER_BOUNDS = new Scalar(%s, %s, %s);%n",
+                      format(r.hsvBounds[3]), format(r.hsvBounds[4]), format(r.hsvBounds[5]));
+    System.err.printf("  private final double defaultMinArea = %s;%n", format(r.contourFilter[0]));
+    System.err.printf("  private final double defaultMinScore = %s;%n", format(r.contourFilter[1]));
+    System.err.printf("  private final double defaultMaxScore = %s;%n", format(r.contourFilter[2]));
+  }
+
+  /**
+   * @return the given value without a bunch of extra digits (from adding up steps) on the end.
+   */
+  private static String format(double value) {
+    double rounded = Math.round(value * 1000) / 1000.0;
+    if (rounded == Math.rint(rounded)) {
+      return String.valueOf((long) rounded);
+    }
+    return String.valueOf(rounded);
+  }
+}
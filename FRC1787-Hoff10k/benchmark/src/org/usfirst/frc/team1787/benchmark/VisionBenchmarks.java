@@ -0,0 +1,127 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.util.ArrayList;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.usfirst.frc.team1787.benchmark.Scenes.Scene;
+import org.usfirst.frc.team1787.robot.vision.ContourFeatures;
+import org.usfirst.frc.team1787.robot.vision.ImageProcessor;
+import org.usfirst.frc.team1787.robot.vision.Target;
+import org.usfirst.frc.team1787.robot.vision.TargetRanker;
+
+/**
+ * Benchmarks the hot paths of the vision and targeting code on fake frames (see Scenes),
+ * at 160x120 (what the turretCam uses now), 320x240, and 640x480.
+ * For each one, the throughput, time per call, and bytes allocated per call are printed.
+ * 
+ * Everything runs headless, no camera or robot needed. See build.xml in the benchmark folder for how to run it.
+ * Optional arguments: [warmup seconds] [measurement seconds] (defaults are 1 and 2)
+ */
+public class VisionBenchmarks {
+  
+  private static final int[][] RESOLUTIONS = {{160, 120}, {320, 240}, {640, 480}};
+  
+  public static void main(String[] args) {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    double warmupSeconds = (args.length > 0) ? Double.parseDouble(args[0]) : 1;
+    double measureSeconds = (args.length > 1) ? Double.parseDouble(args[1]) : 2;
+    BenchmarkRunner runner = new BenchmarkRunner(warmupSeconds, measureSeconds);
+    
+    for (int[] resolution : RESOLUTIONS) {
+      for (Scene scene : Scene.values()) {
+        benchmarkScene(runner, scene, resolution[0], resolution[1]);
+      }
+    }
+  }
+  
+  private static void benchmarkScene(BenchmarkRunner runner, Scene scene, int width, int height) {
+    runner.printHeader(scene + " " + width + "x" + height);
+    
+    Mat frame = Scenes.make(scene, width, height);
+    final ImageProcessor imgProcessor = new ImageProcessor(new StaticFrameSource(frame));
+    // every call should do the same work, so always search the whole frame.
+    imgProcessor.setTrackingWindowEnabled(false);
+    
+    // (getHSVFilter also copies the frame out of the StaticFrameSource, 
+    // just like it would grab a frame from the turretCam)
+    runner.run("getHSVFilter (lookup table)", () -> 
+      imgProcessor.getHSVFilter(imgProcessor.DEFAULT_HSV_LOWER_BOUNDS, imgProcessor.DEFAULT_HSV_UPPER_BOUNDS).rows());
+    imgProcessor.setUseThresholdTable(false);
+    runner.run("getHSVFilter (cvtColor + inRange)", () -> 
+      imgProcessor.getHSVFilter(imgProcessor.DEFAULT_HSV_LOWER_BOUNDS, imgProcessor.DEFAULT_HSV_UPPER_BOUNDS).rows());
+    imgProcessor.setUseThresholdTable(true);
+    
+    // findContours changes the image it's given, so it gets a fresh copy of the mask every time.
+    final Mat mask = imgProcessor.getHSVFilter(imgProcessor.DEFAULT_HSV_LOWER_BOUNDS, 
+                                               imgProcessor.DEFAULT_HSV_UPPER_BOUNDS).clone();
+    final Mat maskCopy = new Mat();
+    runner.run("findContours", () -> {
+      mask.copyTo(maskCopy);
+      return imgProcessor.findContours(maskCopy).size();
+    });
+    
+    // findContours reuses (and frees) its list of contours, so these are from the very last call.
+    mask.copyTo(maskCopy);
+    final ArrayList<MatOfPoint> contours = new ArrayList<MatOfPoint>(imgProcessor.findContours(maskCopy));
+    
+    final ContourFeatures features = new ContourFeatures();
+    runner.run("ContourFeatures.measure (" + contours.size() + " contours)", () -> {
+      features.measure(contours);
+      return features.size();
+    });
+    
+    // (this is what the pipeline does to pick the target out of the contours)
+    final TargetRanker ranker = imgProcessor.getTargetRanker();
+    runner.run("measure + selectBest (" + contours.size() + " contours)", () -> {
+      features.measure(contours);
+      return ranker.selectBest(features);
+    });
+    
+    // the rest need a contour to work with
+    features.measure(contours);
+    int bestIndex = ranker.selectBest(features);
+    MatOfPoint best = (bestIndex != -1) ? contours.get(bestIndex) : null;
+    if (best == null && !contours.isEmpty()) {
+      best = contours.get(0);
+    }
+    if (best != null) {
+      final MatOfPoint contour = best;
+      features.clear();
+      final double perimeter = features.getPerimeter(features.add(contour));
+      final double area = features.getArea(0);
+      runner.run("getEquivalentRectangleAspectRatio", () -> 
+        ContourFeatures.getEquivalentRectangleAspectRatio(perimeter, area));
+      runner.run("contour center (ContourFeatures.add)", () -> {
+        features.clear();
+        return features.getCenterX(features.add(contour));
+      });
+      runner.run("new Target(MatOfPoint)", () -> new Target(contour).getErrorInDegreesX());
+      features.clear();
+      features.add(contour);
+      final double centerX = features.getCenterX(0);
+      final double centerY = features.getCenterY(0);
+      runner.run("new Target(centerX, centerY)", () -> new Target(centerX, centerY).getErrorInDegreesX());
+    }
+    
+    runner.run("runVisionProcessing (whole pipeline)", () -> {
+      imgProcessor.runVisionProcessing();
+      return imgProcessor.getCurrentTarget().getErrorInDegreesX();
+    });
+    
+    // the same thing, but finding the target coarse to fine (see PyramidDetector)
+    for (int levels = 1; levels <= 2; levels++) {
+      imgProcessor.setPyramidLevels(levels);
+      runner.run("runVisionProcessing (pyramid, " + levels + " level" + ((levels > 1) ? "s" : "") + ")", () -> {
+        imgProcessor.runVisionProcessing();
+        return imgProcessor.getCurrentTarget().getErrorInDegreesX();
+      });
+    }
+    imgProcessor.setPyramidLevels(0);
+    
+    frame.release();
+    mask.release();
+    maskCopy.release();
+  }
+}
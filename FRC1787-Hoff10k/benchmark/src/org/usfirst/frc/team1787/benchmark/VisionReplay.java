@@ -0,0 +1,74 @@
+package org.usfirst.frc.team1787.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.opencv.core.Core;
+import org.usfirst.frc.team1787.robot.vision.FrameDataset;
+import org.usfirst.frc.team1787.robot.vision.ImageProcessor;
+import org.usfirst.frc.team1787.robot.vision.ReplayFrameSource;
+import org.usfirst.frc.team1787.robot.vision.Target;
+
+/**
+ * Runs the exact same vision pipeline the robot runs (ImageProcessor.runVisionProcessing()),
+ * but on frames from a FrameDataset instead of the turretCam, as fast as possible.
+ * 
+ * See build.xml in the benchmark folder for how to run it.
+ * 
+ * For every frame, it prints (as CSV) how long processing took and what target was found.
+ * At the end, it prints a summary of the processing times.
+ */
+public class VisionReplay {
+  
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: VisionReplay <frame dataset file>");
+      System.exit(1);
+    }
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    
+    FrameDataset dataset = new FrameDataset(new File(args[0]));
+    ReplayFrameSource frameSource = new ReplayFrameSource(dataset, false);
+    ImageProcessor imgProcessor = new ImageProcessor(frameSource);
+    long[] latencyNanos = new long[dataset.getFrameCount()];
+    
+    System.out.println("frame,timestampMicros,latencyMicros,targetFound,errorInDegreesX,errorInDegreesY,distance");
+    int frame = 0;
+    while (frameSource.hasMoreFrames()) {
+      long start = System.nanoTime();
+      imgProcessor.runVisionProcessing();
+      latencyNanos[frame] = System.nanoTime() - start;
+      
+      Target target = imgProcessor.getCurrentTarget();
+      System.out.printf("%d,%d,%.1f,%b,%.3f,%.3f,%.3f%n", frame, dataset.getTimestamp(frame), 
+                        latencyNanos[frame] / 1000.0, target.getHorizontalDistance() > 0, 
+                        target.getErrorInDegreesX(), target.getErrorInDegreesY(), target.getHorizontalDistance());
+      frame++;
+    }
+    
+    printSummary(latencyNanos, frame);
+  }
+  
+  private static void printSummary(long[] latencyNanos, int numOfFrames) {
+    if (numOfFrames == 0) {
+      System.err.println("The dataset has no frames.");
+      return;
+    }
+    long[] sorted = Arrays.copyOf(latencyNanos, numOfFrames);
+    Arrays.sort(sorted);
+    long total = 0;
+    for (long nanos : sorted) {
+      total += nanos;
+    }
+    double meanMicros = total / 1000.0 / numOfFrames;
+    
+    // (printed to stderr so it doesn't end up in the CSV)
+    System.err.printf("%d frames: mean %.1f us, median %.1f us, 99th percentile %.1f us, max %.1f us (%.0f frames/s)%n",
+                      numOfFrames, meanMicros, 
+                      sorted[numOfFrames / 2] / 1000.0, 
+                      sorted[(int) Math.min(numOfFrames - 1, Math.ceil(numOfFrames * 0.99) - 1)] / 1000.0,
+                      sorted[numOfFrames - 1] / 1000.0, 
+                      1e6 / meanMicros);
+  }
+}
@@ -1,21 +1,38 @@
 package org.usfirst.frc.team1787.robot;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.Scalar;
+import org.usfirst.frc.team1787.robot.auto.AutoMethods;
 import org.usfirst.frc.team1787.robot.subsystems.DriveTrain;
 import org.usfirst.frc.team1787.robot.subsystems.Flywheel;
 import org.usfirst.frc.team1787.robot.subsystems.PickupArm;
 import org.usfirst.frc.team1787.robot.subsystems.Shooter;
 import org.usfirst.frc.team1787.robot.subsystems.Turret;
 import org.usfirst.frc.team1787.robot.subsystems.Winch;
+import org.usfirst.frc.team1787.robot.utils.ControlLoop;
 import org.usfirst.frc.team1787.robot.utils.CustomJoystick;
+import org.usfirst.frc.team1787.robot.utils.EncoderRecorder;
+import org.usfirst.frc.team1787.robot.utils.FlywheelCharacterizer;
+import org.usfirst.frc.team1787.robot.utils.FlywheelFeedforward;
+import org.usfirst.frc.team1787.robot.utils.ShotTable;
+import org.usfirst.frc.team1787.robot.utils.UnitConverter;
+import org.usfirst.frc.team1787.robot.vision.CameraCalibration;
 import org.usfirst.frc.team1787.robot.vision.CameraController;
+import org.usfirst.frc.team1787.robot.vision.FrameRecorder;
+import org.usfirst.frc.team1787.robot.vision.GearPegProcessor;
+import org.usfirst.frc.team1787.robot.vision.PixelAngleMap;
+import org.usfirst.frc.team1787.robot.vision.Target;
 import org.usfirst.frc.team1787.robot.vision.ImageProcessor;
+import org.usfirst.frc.team1787.robot.vision.VisionThread;
+import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.IterativeRobot;
 import edu.wpi.first.wpilibj.Preferences;
+import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 /**
@@ -53,6 +70,17 @@ public class Robot extends IterativeRobot {
   private final int TOGGLE_SHOOTER_CONTROL_BUTTON = 2;
   private final int TOGGLE_CAM_BUTTON = 10;
   
+  // In full auto shooting, these tell the ShotTable how the last shot went, so it can learn from it.
+  // The table is saved whenever the robot is disabled.
+  private final int SHOT_WAS_SHORT_BUTTON = 4;
+  private final int SHOT_WAS_MADE_BUTTON = 3;
+  private final int SHOT_WAS_LONG_BUTTON = 5;
+  private final File SHOT_TABLE_FILE = new File("/home/lvuser/shotTable.csv");
+  
+  // Optionally records the flywheel encoder (see EncoderRecorder), saved whenever the robot is disabled.
+  private EncoderRecorder flywheelEncoderRecorder = null;
+  private final File FLYWHEEL_ENCODER_RECORDING_FILE = new File("/home/lvuser/flywheelEncoder.csv");
+  
   // Testing Mode Stuff
   private boolean tuningModeActive = false;
   private final int TOGGLE_TUNING_MODE_BUTTON = -1;
@@ -69,21 +97,130 @@ public class Robot extends IterativeRobot {
   private Winch winch = Winch.getInstance();
   private CameraController camController = CameraController.getInstance();
   private ImageProcessor imgProcessor = ImageProcessor.getInstance();
+  private VisionThread visionThread = VisionThread.getInstance();
+  // the gearCam gets its own pipeline (and thread), so it runs alongside the turretCam's.
+  private GearPegProcessor gearPegProcessor = GearPegProcessor.getInstance();
+  private VisionThread gearVisionThread = new VisionThread("GearVisionThread", gearPegProcessor);
   
   // These are only used for tuning
   private Flywheel flywheel = Flywheel.getInstance();
   private Turret turret = Turret.getInstance();
   
+  // Autonomous (made in robotInit())
+  private AutoMethods autoMethods;
+  
   // Preferences (used to get values from the smart dash)
   Preferences prefs = Preferences.getInstance();
   
+  // Test mode runs the flywheel characterization (see FlywheelCharacterizer)
+  private FlywheelCharacterizer flywheelCharacterizer;
+  
   /**
    * This function is run when the robot is first started up and should be used
    * for any initialization code.
    */
   @Override
   public void robotInit() {
+    // Load the turretCam's calibration (see CameraCalibration), and the table of pixel angles made from it.
+    // The table is only rebuilt if the calibration changed, so this is quick.
+    File calibrationFile = new File("/home/lvuser/turretCamCalibration.properties");
+    File pixelAngleMapFile = new File("/home/lvuser/turretCamPixelAngles.dat");
+    try {
+      CameraCalibration calibration = calibrationFile.exists() ? CameraCalibration.load(calibrationFile)
+                                                                : CameraCalibration.getDefault();
+      Target.setPixelAngleMap(PixelAngleMap.loadOrBuild(calibration, pixelAngleMapFile));
+    } catch (IOException e) {
+      // Target will just calculate everything the old way (the pinhole camera model).
+      // (this includes a calibration made at a different resolution than the turretCam runs at)
+      DriverStation.reportError("Couldn't load the turretCam calibration: " + e, false);
+    }
+    
+    // Optionally record what the turretCam sees, so we can figure out what went wrong if auto-aim misbehaves.
+    // The file holds the last "visionRecordingFrames" frames (each is about 57 KB at 160x120).
+    if (prefs.getBoolean("recordVision", false)) {
+      String path = prefs.getString("visionRecordingPath", "/home/lvuser/vision_recording.dat");
+      int numOfFrames = prefs.getInt("visionRecordingFrames", 300);
+      try {
+        imgProcessor.setFrameRecorder(new FrameRecorder(new File(path), CameraController.IMAGE_WIDTH_PIXELS,
+                                                        CameraController.IMAGE_HEIGHT_PIXELS, numOfFrames));
+      } catch (IOException e) {
+        DriverStation.reportError("Couldn't start recording vision to " + path + ": " + e, false);
+      }
+    }
+    
+    // 0 = search the whole frame for the target, more = find it coarse to fine (see PyramidDetector)
+    imgProcessor.setPyramidLevels(prefs.getInt("visionPyramidLevels", 0));
+    
+    // how many frames per second (at most) to send to the "OpenCV Stream". Fewer frames = less work for the RIO.
+    imgProcessor.getAnnotatedStream().setMaxFramesPerSecond(prefs.getDouble("visionStreamFPS", 10));
+    
+    // The flywheel's feedforward model. These get saved by the characterization in test mode.
+    FlywheelFeedforward defaultModel = flywheel.DEFAULT_FEEDFORWARD_MODEL;
+    flywheel.setFeedforwardModel(new FlywheelFeedforward(prefs.getDouble("flywheelKS", defaultModel.kS),
+                                                         prefs.getDouble("flywheelKV", defaultModel.kV),
+                                                         prefs.getDouble("flywheelKA", defaultModel.kA)));
+    
+    // How fast to spin the flywheel for each distance (see ShotTable). 
+    // Without it, the flywheel speed is calculated the old way.
+    if (SHOT_TABLE_FILE.exists()) {
+      try {
+        flywheel.setShotTable(ShotTable.load(SHOT_TABLE_FILE));
+      } catch (IOException e) {
+        DriverStation.reportError("Couldn't load the shot table: " + e, false);
+      }
+    }
     
+    // Lead shots for how the robot is moving in full auto shooting (see ShotSolver). 
+    // This only does anything once there's a shot table, since that's where the time of flight comes from.
+    shooter.setShootOnTheMove(prefs.getBoolean("shootOnTheMove", true));
+    // How far in front of the robot's center of rotation the turret is (inches, negative = behind).
+    // Measure it on the robot and put it in the preferences.
+    double turretOffsetInches = prefs.getDouble("turretOffsetInches", shooter.DEFAULT_TURRET_OFFSET_INCHES);
+    shooter.setTurretOffsetMeters(UnitConverter.inchesToMeters(turretOffsetInches));
+    
+    // Move the turret along a motion profile instead of jumping the setpoint straight to the target (see TrapezoidProfile).
+    turret.setMotionProfileEnabled(prefs.getBoolean("turretMotionProfile", true));
+    turret.setMotionProfileLimits(prefs.getDouble("turretMaxVelocity", turret.DEFAULT_MAX_VELOCITY_IN_DEGREES_PER_SECOND),
+                                  prefs.getDouble("turretMaxAcceleration", 
+                                                  turret.DEFAULT_MAX_ACCELERATION_IN_DEGREES_PER_SECOND_SQUARED));
+    turret.setFeedforwardGains(prefs.getDouble("turretKV", turret.DEFAULT_TURRET_KV),
+                               prefs.getDouble("turretKA", turret.DEFAULT_TURRET_KA));
+    
+    // Optionally record the flywheel encoder, to try out VelocityEstimator settings off the robot.
+    if (prefs.getBoolean("recordFlywheelEncoder", false)) {
+      // (1 minute's worth at the default control loop rate)
+      flywheelEncoderRecorder = new EncoderRecorder(flywheel.getEncoder(), 12000);
+      ControlLoop.getInstance().registerSensor(flywheelEncoderRecorder);
+    }
+    
+    // How hard the drivetrain follows the autonomous trajectories (see DriveTrain's "Trajectory Following").
+    driveTrain.setTrajectoryGains(prefs.getDouble("trajectoryKV", driveTrain.DEFAULT_TRAJECTORY_KV),
+                                  prefs.getDouble("trajectoryKA", driveTrain.DEFAULT_TRAJECTORY_KA),
+                                  prefs.getDouble("trajectoryKP", driveTrain.DEFAULT_TRAJECTORY_KP));
+    
+    // Load (or make) the autonomous routines' trajectories now, so they're ready when a match starts (see AutoPaths).
+    autoMethods = new AutoMethods();
+    autoMethods.loadTrajectories();
+    
+    // Runs the turret and flywheel PID controllers, samples the encoders for their VelocityEstimators, 
+    // moves the turret along its motion profile, and works out the shot for full auto shooting (see ControlLoop). 
+    // The subsystems register their controllers, sensors, and stages when they're created, which has already happened by now.
+    // (start() checks the rate, see ControlLoop)
+    ControlLoop.getInstance().start(prefs.getDouble("controlLoopHz", ControlLoop.DEFAULT_FREQUENCY_HZ));
+    
+    // the gearCam's HSV bounds (see GearPegProcessor). The defaults are the turretCam's.
+    Scalar gearLowerBounds = gearPegProcessor.DEFAULT_HSV_LOWER_BOUNDS;
+    Scalar gearUpperBounds = gearPegProcessor.DEFAULT_HSV_UPPER_BOUNDS;
+    gearPegProcessor.setHSVBounds(new Scalar(prefs.getDouble("gearHMin", gearLowerBounds.val[0]),
+                                             prefs.getDouble("gearSMin", gearLowerBounds.val[1]),
+                                             prefs.getDouble("gearVMin", gearLowerBounds.val[2])),
+                                  new Scalar(prefs.getDouble("gearHMax", gearUpperBounds.val[0]),
+                                             prefs.getDouble("gearSMax", gearUpperBounds.val[1]),
+                                             prefs.getDouble("gearVMax", gearUpperBounds.val[2])));
+    
+    // vision runs in the background from here on out, so it never holds up the main loop.
+    visionThread.start();
+    gearVisionThread.start();
   }
 
   /**
@@ -91,7 +228,11 @@ public class Robot extends IterativeRobot {
    */
   @Override
   public void autonomousInit() {
-    
+    // autonomous is measured from wherever the robot starts (see DriveTrain.getPose())
+    driveTrain.resetPose(0, 0, 0);
+    // (the trajectories were already loaded in robotInit(), so this starts driving right away)
+    autoMethods.getSelectedAutoRoutine();
+    autoMethods.runSelectedAutoRoutine();
   }
 
   /**
@@ -106,6 +247,8 @@ public class Robot extends IterativeRobot {
    * This function is run once upon entering teleop mode.
    */
   public void teleopInit() {
+    // in case autonomous ended before the trajectory did
+    driveTrain.stopTrajectory();
     SmartDashboard.putBoolean("Tuning Mode Active", tuningModeActive);
   }
 
@@ -129,6 +272,8 @@ public class Robot extends IterativeRobot {
       driveTrain.setGear(driveTrain.LOW_GEAR);
     }
     driveTrain.publishDataToSmartDash();
+    gearPegProcessor.publishDataToSmartDash();
+    ControlLoop.getInstance().publishDataToSmartDash();
     
     // Pickup Arm
     if (rightStick.getRawButton(DEPLOY_ARM_BUTTON)) {
@@ -164,6 +309,7 @@ public class Robot extends IterativeRobot {
       runTuningCode();
       return;
     }
+    visionThread.setPaused(false);
     
     // Shooter
     if (leftStick.getSinglePress(TOGGLE_SHOOTER_CONTROL_BUTTON)) {
@@ -180,10 +326,18 @@ public class Robot extends IterativeRobot {
         shooter.enablePIDControllers();
       }
       shooter.fullAutoShooting();
+      
+      if (leftStick.getSinglePress(SHOT_WAS_SHORT_BUTTON)) {
+        shooter.recordShotResult(ShotTable.ShotResult.SHORT);
+      } else if (leftStick.getSinglePress(SHOT_WAS_MADE_BUTTON)) {
+        shooter.recordShotResult(ShotTable.ShotResult.MADE);
+      } else if (leftStick.getSinglePress(SHOT_WAS_LONG_BUTTON)) {
+        shooter.recordShotResult(ShotTable.ShotResult.LONG);
+      }
     }
     shooter.publishDataToSmartDash();
     
-    // Cams (note that most img processing code is already called by shooter.fullAutoShooting())
+    // Cams (note that img processing itself runs on the VisionThread)
     if (rightStick.getSinglePress(TOGGLE_CAM_BUTTON)) {
       camController.toggleCamStream();
     }
@@ -196,6 +350,12 @@ public class Robot extends IterativeRobot {
       shooter.stop();
     }
     
+    // Tuning modes 2 and 3 use the ImageProcessor directly,
+    // so the vision thread needs to stay out of the way while they run.
+    // (pausing doesn't wait for the frame it's on, so those modes skip the ImageProcessor until it's done)
+    visionThread.setPaused(tuningMode == 2 || tuningMode == 3);
+    boolean imgProcessorIsFree = visionThread.isIdle();
+    
     if (tuningMode == 0) {
       // Tuning Mode 0 = Turret PID Testing
       if (!shooter.pidIsEnabled()) {
@@ -215,7 +375,8 @@ public class Robot extends IterativeRobot {
       if (!shooter.pidIsEnabled()) {
         double flywheelP = prefs.getDouble("flywheelP", 0);
         double flywheelI = prefs.getDouble("flywheelI", 0);
-        double flywheelD = prefs.getDouble("flywheelD", 0);
+        // (the flywheel is in rate mode, so D is its proportional gain, see Flywheel)
+        double flywheelD = prefs.getDouble("flywheelD", 0.02);
         flywheel.getPIDController().setPID(flywheelP, flywheelI, flywheelD);
         
         double flywheelTolerance = prefs.getDouble("flywheelRPSTolerance", 0);
@@ -227,43 +388,40 @@ public class Robot extends IterativeRobot {
       flywheel.getPIDController().setSetpoint(flywheelSetpoint);
     } else if (tuningMode == 2) {
       // Tuning Mode 2 = HSV Filter Testing
+      // (benchmark/VisionAutotuner can also find the HSV and contour settings off the robot, from recorded frames)
       shooter.manualControl(leftStick);
-      
-      double hMin = prefs.getDouble("hMin", 0);
-      double sMin = prefs.getDouble("sMin", 0);
-      double vMin = prefs.getDouble("vMin", 0);
-      Scalar minRange = new Scalar(hMin, sMin, vMin);
-      
-      double hMax = prefs.getDouble("hMax", 180);
-      double sMax = prefs.getDouble("sMax", 255);
-      double vMax = prefs.getDouble("vMax", 255);
-      Scalar maxRange = new Scalar(hMax, sMax, vMax);
-      
-      Mat result = imgProcessor.getHSVFilter(minRange, maxRange);
-      camController.pushFrameToDash(result);
+      if (imgProcessorIsFree) {
+        double hMin = prefs.getDouble("hMin", 0);
+        double sMin = prefs.getDouble("sMin", 0);
+        double vMin = prefs.getDouble("vMin", 0);
+        Scalar minRange = new Scalar(hMin, sMin, vMin);
+        
+        double hMax = prefs.getDouble("hMax", 180);
+        double sMax = prefs.getDouble("sMax", 255);
+        double vMax = prefs.getDouble("vMax", 255);
+        Scalar maxRange = new Scalar(hMax, sMax, vMax);
+        
+        Mat result = imgProcessor.getHSVFilter(minRange, maxRange);
+        camController.pushFrameToDash(result);
+      }
     } else if (tuningMode == 3) {
       // Tuning Mode 3 = Contour Filter Testing
       shooter.manualControl(leftStick);
-      
-      double minArea = prefs.getDouble("minArea", 0);
-      double minShapeScore = prefs.getDouble("minShapeScore", 0);
-      double maxShapeScore = prefs.getDouble("maxShapeScore", 2);
-      
-      Scalar minHsvRange = imgProcessor.DEFAULT_HSV_LOWER_BOUNDS;
-      Scalar maxHsvRange = imgProcessor.DEFAULT_HSV_UPPER_BOUNDS;
-      Mat result = imgProcessor.getHSVFilter(minHsvRange, maxHsvRange);
-      
-      ArrayList<MatOfPoint> contours = imgProcessor.findContours(result);
-      for (int i = contours.size()-1; i >= 0; i--) {
-        boolean test1 = imgProcessor.passesAreaTest(contours.get(i), minArea);
-        boolean test2 = imgProcessor.passesShapeTest(contours.get(i), minShapeScore, maxShapeScore);
-        if (!(test1 && test2)) {
-          contours.remove(i);
-        }
+      if (imgProcessorIsFree) {
+        double minArea = prefs.getDouble("minArea", 0);
+        double minShapeScore = prefs.getDouble("minShapeScore", 0);
+        double maxShapeScore = prefs.getDouble("maxShapeScore", 2);
+        
+        Scalar minHsvRange = imgProcessor.DEFAULT_HSV_LOWER_BOUNDS;
+        Scalar maxHsvRange = imgProcessor.DEFAULT_HSV_UPPER_BOUNDS;
+        Mat result = imgProcessor.getHSVFilter(minHsvRange, maxHsvRange);
+        
+        ArrayList<MatOfPoint> contours = imgProcessor.findContours(result);
+        imgProcessor.filterContours(contours, minArea, minShapeScore, maxShapeScore);
+        
+        result = imgProcessor.drawContours(true, contours);
+        camController.pushFrameToDash(result);
       }
-      
-      result = imgProcessor.drawContours(true, contours);
-      camController.pushFrameToDash(result);
     }
     
     // Publish all data to smart dash
@@ -276,10 +434,35 @@ public class Robot extends IterativeRobot {
    */
   public void disabledInit() {
     shooter.stop();
+    driveTrain.stopTrajectory();
+    
+    // save anything the shot table learned
+    ShotTable shotTable = flywheel.getShotTable();
+    if (shotTable != null) {
+      try {
+        shotTable.save(SHOT_TABLE_FILE);
+      } catch (IOException e) {
+        DriverStation.reportError("Couldn't save the shot table: " + e, false);
+      }
+    }
+    if (flywheelEncoderRecorder != null && flywheelEncoderRecorder.size() > 0) {
+      try {
+        flywheelEncoderRecorder.save(FLYWHEEL_ENCODER_RECORDING_FILE);
+      } catch (IOException e) {
+        DriverStation.reportError("Couldn't save the flywheel encoder recording: " + e, false);
+      }
+    }
   }
   
+  /**
+   * Test mode characterizes the flywheel: it ramps and steps the flywheel's voltage, then fits kS, kV, and kA
+   * to how it responded (see FlywheelCharacterizer). Make sure the flywheel is free to spin, and that there
+   * aren't any balls in the turret! It takes about 30 seconds. When it's done, the results are saved to the preferences
+   * and used from then on.
+   */
   public void testInit() {
-    
+    shooter.stop();
+    flywheelCharacterizer = new FlywheelCharacterizer();
   }
 
   /**
@@ -287,6 +470,27 @@ public class Robot extends IterativeRobot {
    */
   @Override
   public void testPeriodic() {
-    
+    if (!flywheelCharacterizer.isDone()) {
+      double volts = flywheelCharacterizer.update(Timer.getFPGATimestamp(), flywheel.getOutputVoltage(), 
+                                                  flywheel.getVelocity());
+      flywheel.setVoltage(volts);
+      
+      if (flywheelCharacterizer.isDone()) {
+        flywheel.stop();
+        FlywheelFeedforward result = flywheelCharacterizer.getResult();
+        if (result == null) {
+          DriverStation.reportError("Flywheel characterization failed: not enough data (is the encoder plugged in?)", false);
+        } else {
+          prefs.putDouble("flywheelKS", result.kS);
+          prefs.putDouble("flywheelKV", result.kV);
+          prefs.putDouble("flywheelKA", result.kA);
+          flywheel.setFeedforwardModel(result);
+          SmartDashboard.putString("Flywheel Characterization", result.toString());
+          SmartDashboard.putNumber("Flywheel Characterization R^2", flywheelCharacterizer.getRSquared());
+        }
+      }
+    }
+    SmartDashboard.putString("Flywheel Characterization Phase", flywheelCharacterizer.getPhase().toString());
+    flywheel.publishDataToSmartDash();
   }
 }
\ No newline at end of file
@@ -1,5 +1,13 @@
 package org.usfirst.frc.team1787.robot.auto;
 
+import java.io.File;
+import java.io.IOException;
+
+import org.usfirst.frc.team1787.robot.subsystems.DriveTrain;
+import org.usfirst.frc.team1787.robot.utils.Trajectory;
+import org.usfirst.frc.team1787.robot.utils.TrajectoryGenerator.Waypoint;
+
+import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
@@ -8,15 +16,43 @@ public class AutoMethods {
   private SendableChooser<Integer> autoChooser = new SendableChooser<Integer>();
   private int selectedAuto;
 
+  private DriveTrain driveTrain = DriveTrain.getInstance();
+
+  // The trajectory each routine drives (see AutoPaths). They're loaded at boot by loadTrajectories(),
+  // so starting one at the beginning of autonomous doesn't take any time. null if it couldn't be loaded.
+  private Trajectory auto1Trajectory = null;
+  private Trajectory auto2Trajectory = null;
+  private Trajectory auto3Trajectory = null;
+
   public AutoMethods() {
     // Add options to chooser
     autoChooser.addDefault("auto1", 1);
     autoChooser.addObject("auto2", 2);
     autoChooser.addObject("auto3", 3);
-    
+
     SmartDashboard.putData("Auto Chooser", autoChooser);
   }
 
+  /**
+   * Loads every routine's trajectory from AutoPaths.TRAJECTORY_DIRECTORY (memory mapped, so it's quick).
+   * Any that are missing or out of date are made and saved there, which takes a while, so call this in robotInit().
+   */
+  public void loadTrajectories() {
+    File directory = new File(AutoPaths.TRAJECTORY_DIRECTORY);
+    auto1Trajectory = loadTrajectory("auto1", directory, AutoPaths.AUTO1);
+    auto2Trajectory = loadTrajectory("auto2", directory, AutoPaths.AUTO2);
+    auto3Trajectory = loadTrajectory("auto3", directory, AutoPaths.AUTO3);
+  }
+
+  private Trajectory loadTrajectory(String name, File directory, Waypoint[] waypoints) {
+    try {
+      return Trajectory.loadOrGenerate(AutoPaths.GENERATOR, directory, waypoints);
+    } catch (IOException e) {
+      DriverStation.reportError("Couldn't load or save the trajectory for " + name + ", making it without saving: " + e, false);
+      return AutoPaths.GENERATOR.generate(waypoints);
+    }
+  }
+
   public void getSelectedAutoRoutine() {
     selectedAuto = autoChooser.getSelected();
   }
@@ -31,15 +67,35 @@ public class AutoMethods {
     }
   }
 
-  public void auto1() {
+  /**
+   * Drives the given trajectory (the drivetrain follows it in the background, see DriveTrain.followTrajectory()).
+   */
+  private void drive(Trajectory trajectory) {
+    if (trajectory == null) {
+      DriverStation.reportError("That auto routine's trajectory never loaded", false);
+      return;
+    }
+    driveTrain.followTrajectory(trajectory);
+  }
 
+  /**
+   * Drives straight across the baseline.
+   */
+  public void auto1() {
+    drive(auto1Trajectory);
   }
-  
+
+  /**
+   * Drives onto the left peg of the airship.
+   */
   public void auto2() {
-    
+    drive(auto2Trajectory);
   }
-  
+
+  /**
+   * Drives onto the right peg of the airship.
+   */
   public void auto3() {
-    
+    drive(auto3Trajectory);
   }
 }
@@ -0,0 +1,65 @@
+package org.usfirst.frc.team1787.robot.auto;
+
+import org.usfirst.frc.team1787.robot.utils.TrajectoryGenerator;
+import org.usfirst.frc.team1787.robot.utils.TrajectoryGenerator.Waypoint;
+import org.usfirst.frc.team1787.robot.utils.UnitConverter;
+
+/**
+ * The paths the autonomous routines drive, and the settings their trajectories are made with (see TrajectoryGenerator).
+ *
+ * Waypoints are measured from where the robot starts: x is forward and y is to the left (meters),
+ * and the heading is counter-clockwise (degrees), like DriveTrain.getPose().
+ *
+ * Changing anything here changes the trajectory's key, so it's made again (and saved) the next time the robot boots.
+ * Run "ant trajectories" in the benchmark folder to make them on a computer instead, and copy them to TRAJECTORY_DIRECTORY.
+ */
+public class AutoPaths {
+
+  // where the trajectories are saved on the roboRIO
+  public static final String TRAJECTORY_DIRECTORY = "/home/lvuser/trajectories";
+
+  // Limits
+  // Full output drives about 3.5 meters / second (see DriveTrain's trajectory kV), so the trajectories stay
+  // well under that, to leave the feedback some output to catch up with when the robot falls behind.
+  // The acceleration is kept low enough that the wheels don't slip (which would throw off the encoders).
+  // If the robot can't keep up with a trajectory, lower these instead of raising the gains.
+  public static final double MAX_VELOCITY_METERS_PER_SECOND = 2.5;
+  public static final double MAX_ACCELERATION_METERS_PER_SECOND_SQUARED = 2;
+  // the distance between the left and right wheels (DriveTrain works out its heading with this too).
+  public static final double TRACK_WIDTH_METERS = UnitConverter.inchesToMeters(24);
+  // (100 samples / second is plenty, since they're interpolated)
+  public static final double SECONDS_PER_SAMPLE = 0.01;
+
+  public static final TrajectoryGenerator GENERATOR = new TrajectoryGenerator(MAX_VELOCITY_METERS_PER_SECOND,
+                                                                              MAX_ACCELERATION_METERS_PER_SECOND_SQUARED,
+                                                                              TRACK_WIDTH_METERS, SECONDS_PER_SAMPLE);
+
+  // These are worked out from the field drawings, for the robot starting with its back bumper against the wall.
+  // The baseline is 2.37 meters (7 ft 9.25 in) from the wall, and the airship's side pegs face 60 degrees
+  // from the wall. If the robot ends up off on a real field, change the last waypoint by how far off it was.
+
+  // auto1: drive straight across the baseline
+  public static final Waypoint[] AUTO1 = {
+    new Waypoint(0, 0, 0),
+    new Waypoint(2.5, 0, 0)
+  };
+
+  // auto2: from the left side of the driver station wall, curve right onto the left peg of the airship
+  public static final Waypoint[] AUTO2 = {
+    new Waypoint(0, 0, 0),
+    new Waypoint(2.4, -0.9, -60)
+  };
+
+  // auto3: from the right side of the driver station wall, curve left onto the right peg of the airship
+  public static final Waypoint[] AUTO3 = {
+    new Waypoint(0, 0, 0),
+    new Waypoint(2.4, 0.9, 60)
+  };
+
+  /**
+   * @return The waypoints for every routine, in order (auto1 first).
+   */
+  public static Waypoint[][] getAll() {
+    return new Waypoint[][] {AUTO1, AUTO2, AUTO3};
+  }
+}
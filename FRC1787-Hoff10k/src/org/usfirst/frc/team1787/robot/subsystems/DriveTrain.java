@@ -1,11 +1,19 @@
 package org.usfirst.frc.team1787.robot.subsystems;
 
+import org.usfirst.frc.team1787.robot.auto.AutoPaths;
+import org.usfirst.frc.team1787.robot.utils.ControlLoop;
+import org.usfirst.frc.team1787.robot.utils.Odometry;
+import org.usfirst.frc.team1787.robot.utils.Pose;
+import org.usfirst.frc.team1787.robot.utils.Trajectory;
 import org.usfirst.frc.team1787.robot.utils.UnitConverter;
+import org.usfirst.frc.team1787.robot.utils.VelocityEstimator;
 import com.ctre.CANTalon;
 
 import edu.wpi.first.wpilibj.Encoder;
+import edu.wpi.first.wpilibj.Notifier;
 import edu.wpi.first.wpilibj.RobotDrive;
 import edu.wpi.first.wpilibj.Solenoid;
+import edu.wpi.first.wpilibj.Utility;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 public class DriveTrain {
@@ -30,6 +38,45 @@ public class DriveTrain {
   private final double METERS_PER_PULSE = UnitConverter.inchesToMeters(0.01249846);
   private Encoder leftEncoder = new Encoder(LEFT_ENCODER_A_CHANNEL, LEFT_ENCODER_B_CHANNEL);
   private Encoder rightEncoder = new Encoder(RIGHT_ENCODER_A_CHANNEL, RIGHT_ENCODER_B_CHANNEL);
+  // Speed of each side, from the encoders' distances sampled every tick of the ControlLoop (see VelocityEstimator)
+  private final int VELOCITY_ESTIMATOR_WINDOW = 10;
+  private VelocityEstimator leftVelocity = new VelocityEstimator(leftEncoder::getDistance, 32, VELOCITY_ESTIMATOR_WINDOW);
+  private VelocityEstimator rightVelocity = new VelocityEstimator(rightEncoder::getDistance, 32, VELOCITY_ESTIMATOR_WINDOW);
+  
+  // Heading
+  // There's no gyro on the drivetrain, so the heading is worked out from how much farther
+  // one side has driven than the other, divided by the track width (the distance between the left and right wheels).
+  // The wheels scrub sideways when the robot turns, so the "effective" track width can be a bit wider than the real one.
+  // To check it: turn in place exactly 10 times, and it should be (right distance - left distance) / (10 * 2 * pi).
+  // (It lives in AutoPaths since the trajectories are made with it too, sometimes off the robot.)
+  private final double TRACK_WIDTH_METERS = AutoPaths.TRACK_WIDTH_METERS;
+  
+  // Odometry (see Odometry)
+  // Where the robot is on the field is worked out from the encoders every ODOMETRY_PERIOD_SECONDS on its own thread,
+  // and the poses are remembered so they can be looked up later (see getPoseAt()).
+  private final double ODOMETRY_PERIOD_SECONDS = 0.005;
+  private final int POSE_HISTORY_SIZE = 400; // (2 seconds' worth)
+  private Odometry odometry = new Odometry(this::getLeftDistance, this::getRightDistance, 
+                                           this::getHeadingDegrees, POSE_HISTORY_SIZE);
+  private Notifier odometryNotifier = new Notifier(() -> odometry.update(Utility.getFPGATime()));
+  
+  // Trajectory Following (see Trajectory)
+  // In autonomous, each side follows a trajectory every tick of the ControlLoop: a feedforward from how fast
+  // it should be going (and how fast that's changing), plus a correction for how far behind or ahead it is.
+  // The gains can be changed with setTrajectoryGains() (from the preferences, see Robot.robotInit()).
+  // kV: full output drives about 3.5 meters / second. kA: a little extra to get the robot's mass moving.
+  // kP: 10 cm behind adds 0.1 output. Tune kV first (driving straight at a constant speed), then kA, then kP.
+  public final double DEFAULT_TRAJECTORY_KV = 1.0 / 3.5; // motor output per meter / second
+  public final double DEFAULT_TRAJECTORY_KA = 0.02;      // motor output per meter / second^2
+  public final double DEFAULT_TRAJECTORY_KP = 1.0;       // motor output per meter behind
+  private volatile double trajectoryKV = DEFAULT_TRAJECTORY_KV;
+  private volatile double trajectoryKA = DEFAULT_TRAJECTORY_KA;
+  private volatile double trajectoryKP = DEFAULT_TRAJECTORY_KP;
+  // null when not following one
+  private volatile Trajectory trajectory = null;
+  private double trajectoryStartSeconds = 0;
+  private double trajectoryStartLeftDistance = 0;
+  private double trajectoryStartRightDistance = 0;
 
   // Gear Shifter (pneumatic shifter controlled by a solenoid)
   private final int SOLENOID_ID = 0;
@@ -45,6 +92,10 @@ public class DriveTrain {
   private DriveTrain() {
     leftEncoder.setDistancePerPulse(METERS_PER_PULSE);
     rightEncoder.setDistancePerPulse(METERS_PER_PULSE);
+    ControlLoop.getInstance().registerSensor(leftVelocity);
+    ControlLoop.getInstance().registerSensor(rightVelocity);
+    ControlLoop.getInstance().registerStage(this::updateTrajectory);
+    odometryNotifier.startPeriodic(ODOMETRY_PERIOD_SECONDS);
   }
   
   // Drive Train Related Methods
@@ -58,9 +109,76 @@ public class DriveTrain {
   }
   
   public void stop() {
+    stopTrajectory();
     driveController.setLeftRightMotorOutputs(0, 0);
   }
   
+  /**
+   * Starts driving along the given trajectory, from wherever the robot is now.
+   * Don't drive it any other way until it's done (or call stopTrajectory() first).
+   * @param trajectory
+   */
+  public synchronized void followTrajectory(Trajectory trajectory) {
+    trajectoryStartSeconds = Utility.getFPGATime() / 1e6;
+    trajectoryStartLeftDistance = getLeftDistance();
+    trajectoryStartRightDistance = getRightDistance();
+    this.trajectory = trajectory;
+  }
+  
+  /**
+   * Stops following the trajectory (the motors are left wherever they were last set).
+   */
+  public synchronized void stopTrajectory() {
+    trajectory = null;
+  }
+  
+  /**
+   * @return Whether the drivetrain is following a trajectory (it stops on its own at the end of one).
+   */
+  public boolean isFollowingTrajectory() {
+    return trajectory != null;
+  }
+  
+  /**
+   * Runs every tick of the ControlLoop: sets the motors to follow the trajectory (if there is one).
+   */
+  private synchronized void updateTrajectory() {
+    Trajectory currentTrajectory = trajectory;
+    if (currentTrajectory == null) {
+      return;
+    }
+    double time = Utility.getFPGATime() / 1e6 - trajectoryStartSeconds;
+    if (time > currentTrajectory.getDuration()) {
+      trajectory = null;
+      driveController.setLeftRightMotorOutputs(0, 0);
+      return;
+    }
+    double leftError = currentTrajectory.getLeftPosition(time) - (getLeftDistance() - trajectoryStartLeftDistance);
+    double rightError = currentTrajectory.getRightPosition(time) - (getRightDistance() - trajectoryStartRightDistance);
+    double kV = trajectoryKV;
+    double kA = trajectoryKA;
+    double kP = trajectoryKP;
+    double leftOutput = (kV * currentTrajectory.getLeftVelocity(time))
+                        + (kA * currentTrajectory.getLeftAcceleration(time))
+                        + (kP * leftError);
+    double rightOutput = (kV * currentTrajectory.getRightVelocity(time))
+                         + (kA * currentTrajectory.getRightAcceleration(time))
+                         + (kP * rightError);
+    driveController.setLeftRightMotorOutputs(leftOutput, rightOutput);
+  }
+  
+  /**
+   * Changes the gains trajectories are followed with (see "Trajectory Following" above).
+   * @param kV motor output per meter / second
+   * @param kA motor output per meter / second^2
+   * @param kP motor output per meter behind
+   */
+  public void setTrajectoryGains(double kV, double kA, double kP) {
+    trajectoryKV = kV;
+    trajectoryKA = kA;
+    trajectoryKP = kP;
+  }
+  
   // Gear Shifter Related Methods
   
   /**
@@ -83,6 +201,10 @@ public class DriveTrain {
   public void zeroSensors() {
     leftEncoder.reset();
     rightEncoder.reset();
+    leftVelocity.reset();
+    rightVelocity.reset();
+    // (the robot hasn't actually moved, but the pose is measured from here on out)
+    odometry.reset(0, 0, 0);
   }
   
   public Encoder getLeftEncoder() {
@@ -93,14 +215,89 @@ public class DriveTrain {
     return rightEncoder;
   }
   
+  /**
+   * @return How far the left side has driven (meters) since the encoders were zeroed.
+   */
+  public double getLeftDistance() {
+    return leftEncoder.getDistance();
+  }
+  
+  /**
+   * @return How far the right side has driven (meters) since the encoders were zeroed.
+   */
+  public double getRightDistance() {
+    return rightEncoder.getDistance();
+  }
+  
+  /**
+   * @return The average speed of the 2 sides (meters / second).
+   */
   public double getAvgSpeed() {
-    return (leftEncoder.getRate() + rightEncoder.getRate()) / 2.0;
+    return (leftVelocity.getVelocity() + rightVelocity.getVelocity()) / 2.0;
+  }
+  
+  public VelocityEstimator getLeftVelocityEstimator() {
+    return leftVelocity;
+  }
+  
+  public VelocityEstimator getRightVelocityEstimator() {
+    return rightVelocity;
+  }
+  
+  /**
+   * @return How far the robot has turned (counter-clockwise, in degrees) since the encoders were zeroed.
+   */
+  public double getHeadingDegrees() {
+    double differenceMeters = rightEncoder.getDistance() - leftEncoder.getDistance();
+    return Math.toDegrees(differenceMeters / TRACK_WIDTH_METERS);
+  }
+  
+  /**
+   * @return How fast the robot is turning (counter-clockwise, in degrees / second), from the sides' speeds.
+   */
+  public double getTurnRateDegreesPerSecond() {
+    double differenceMetersPerSecond = rightVelocity.getVelocity() - leftVelocity.getVelocity();
+    return Math.toDegrees(differenceMetersPerSecond / TRACK_WIDTH_METERS);
+  }
+  
+  // Odometry Related Methods
+  
+  /**
+   * @return Where the robot is on the field, as of the odometry's last update (at most ODOMETRY_PERIOD_SECONDS old).
+   * This doesn't read any sensors, so it's cheap to call from anywhere.
+   */
+  public Pose getPose() {
+    return odometry.getPose();
+  }
+  
+  /**
+   * @param timestamp A time in the last 2 seconds, in microseconds (FPGA time, like Utility.getFPGATime()).
+   * @return Where the robot was at that time.
+   */
+  public Pose getPoseAt(long timestamp) {
+    return odometry.getPoseAt(timestamp);
+  }
+  
+  /**
+   * Says the robot is at the given pose right now (like at the start of autonomous).
+   * The heading in the pose can be different from getHeadingDegrees() after this.
+   * @param x meters forward
+   * @param y meters to the left
+   * @param headingDegrees counter-clockwise
+   */
+  public void resetPose(double x, double y, double headingDegrees) {
+    odometry.reset(x, y, headingDegrees);
   }
   
   // Other Methods
 
   public void publishDataToSmartDash() {
     SmartDashboard.putNumber("Average Speed (m/s)", getAvgSpeed());
+    Pose pose = odometry.getPose();
+    SmartDashboard.putNumber("Robot X (m)", pose.getX());
+    SmartDashboard.putNumber("Robot Y (m)", pose.getY());
+    SmartDashboard.putNumber("Robot Heading (deg)", pose.getHeadingDegrees());
+    SmartDashboard.putBoolean("Following Trajectory", isFollowingTrajectory());
     
     if (gearShifter.get() == HIGH_GEAR) {
       SmartDashboard.putString("Current Gear", "High Gear");
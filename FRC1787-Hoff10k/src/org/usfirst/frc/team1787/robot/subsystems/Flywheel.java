@@ -1,12 +1,17 @@
 package org.usfirst.frc.team1787.robot.subsystems;
 
+import org.usfirst.frc.team1787.robot.utils.BangBangFeedforward;
+import org.usfirst.frc.team1787.robot.utils.ControlLoop;
 import org.usfirst.frc.team1787.robot.utils.CustomPIDController;
+import org.usfirst.frc.team1787.robot.utils.FlywheelFeedforward;
+import org.usfirst.frc.team1787.robot.utils.ShotTable;
+import org.usfirst.frc.team1787.robot.utils.PIDState;
 import org.usfirst.frc.team1787.robot.utils.UnitConverter;
+import org.usfirst.frc.team1787.robot.utils.VelocityEstimator;
 
 import com.ctre.CANTalon;
 
 import edu.wpi.first.wpilibj.Encoder;
-import edu.wpi.first.wpilibj.PIDController;
 import edu.wpi.first.wpilibj.PIDSourceType;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
@@ -22,17 +27,36 @@ public class Flywheel {
   // 2048 encoder ticks per encoder revolution, and the encoder is mounted on the same axle as the flywheel
   private final double FLYWHEEL_ENCODER_REVOLUTIONS_PER_PULSE = 1.0 / 2048;
   private Encoder flywheelEncoder = new Encoder(FLYWHEEL_ENCODER_A_CHANNEL, FLYWHEEL_ENCODER_B_CHANNEL);
+  // The flywheel's speed, from the encoder's position sampled every tick of the ControlLoop (see VelocityEstimator).
+  // It's a lot less noisy than flywheelEncoder.getRate(). A window of 8 samples at 200 Hz lags by about 17 ms.
+  private final int VELOCITY_ESTIMATOR_WINDOW = 8;
+  private VelocityEstimator flywheelVelocity = new VelocityEstimator(flywheelEncoder::getDistance, 32, VELOCITY_ESTIMATOR_WINDOW);
 
   // PID Control Loop Gains / Preferences
+  // The encoder is a kRate source, and in rate mode PIDController works differently (see CustomPIDController):
+  // D * error is the proportional term, and P is multiplied by the total error (like an I gain, per tick of the ControlLoop).
+  // So the proportional gain is KD: 0.02 is the whole output for 50 rev/s of error, on top of the feedforward.
+  // That's the gain FlywheelSimulation ("ant flywheel-sim" in the benchmark folder) uses, so change both together.
   private final double FLYWHEEL_PID_CONTROLLER_KP = 0;
   private final double FLYWHEEL_PID_CONTROLLER_KI = 0;
-  private final double FLYWHEEL_PID_CONTROLLER_KD = 0;
+  private final double FLYWHEEL_PID_CONTROLLER_KD = 0.02;
   private final double FLYWHEEL_PID_ABSOLUTE_TOLERENCE_IN_REVOLUTIONS_PER_SECOND = 0;
   private CustomPIDController flywheelController = new CustomPIDController(FLYWHEEL_PID_CONTROLLER_KP, 
                                                                FLYWHEEL_PID_CONTROLLER_KI, 
                                                                FLYWHEEL_PID_CONTROLLER_KD,
-                                                               1.0/80, flywheelEncoder, flywheelMotor, 
-                                                               PIDController.kDefaultPeriod);
+                                                               0, flywheelVelocity, flywheelMotor);
+  
+  // Feedforward (see BangBangFeedforward)
+  // The default model is the same as the old F of 1/80 (at 12 volts). 
+  // Run the characterization in test mode to find the real numbers.
+  public final FlywheelFeedforward DEFAULT_FEEDFORWARD_MODEL = new FlywheelFeedforward(0, 12.0 / 80, 0);
+  public final double BANG_BANG_WINDOW_IN_REVOLUTIONS_PER_SECOND = 5;
+  private BangBangFeedforward feedforward = new BangBangFeedforward(DEFAULT_FEEDFORWARD_MODEL, 
+                                                                    BANG_BANG_WINDOW_IN_REVOLUTIONS_PER_SECOND, 
+                                                                    flywheelMotor::getBusVoltage);
+
+  // How fast to spin for each distance, from real shots (see ShotTable). If it's null, the old calculation is used.
+  private volatile ShotTable shotTable = null;
 
   // Geometric Constants (in meters)
   // 4.875 inch flywheel diameter
@@ -52,9 +76,14 @@ public class Flywheel {
     flywheelEncoder.setPIDSourceType(PIDSourceType.kRate);
     flywheelEncoder.setDistancePerPulse(FLYWHEEL_ENCODER_REVOLUTIONS_PER_PULSE);
     flywheelEncoder.setReverseDirection(true);
+    ControlLoop.getInstance().registerSensor(flywheelVelocity);
     
     // Configure PID Controller
     flywheelController.setAbsoluteTolerance(FLYWHEEL_PID_ABSOLUTE_TOLERENCE_IN_REVOLUTIONS_PER_SECOND);
+    flywheelController.setFeedforward(feedforward);
+    // the flywheel is only ever slowed down by coasting (running it backwards would just fight the next ball)
+    flywheelController.setOutputRange(0, 1);
+    ControlLoop.getInstance().register(flywheelController);
   }
   
   // PID Controller Methods
@@ -64,11 +93,47 @@ public class Flywheel {
   }
   
   /**
-   * Sets the flywheel to the appropriate speed for the given distance
-   * @param distanceX The horizontal distance to the target in meters
+   * Changes the model used for the flywheel's feedforward (for example, to the result of a characterization).
+   * @param model
+   */
+  public void setFeedforwardModel(FlywheelFeedforward model) {
+    feedforward.setModel(model);
+  }
+  
+  public FlywheelFeedforward getFeedforwardModel() {
+    return feedforward.getModel();
+  }
+  
+  /**
+   * @param shotTable The table to get the flywheel speed for each distance from, or null to use the old calculation.
+   */
+  public void setShotTable(ShotTable shotTable) {
+    this.shotTable = shotTable;
+  }
+  
+  public ShotTable getShotTable() {
+    return shotTable;
+  }
+  
+  /**
+   * Sets the flywheel to the appropriate speed for the given distance.
+   * If there's a ShotTable, the speed comes from that. Otherwise, it's calculated (see below).
+   * @param distanceX The horizontal distance to the target in meters (0 or less means there's no target, so the flywheel stops)
    * @param distanceY The vertical distance to the target in meters
    */
   public void setCalculatedSetpoint(double distanceX, double distanceY) {
+    if (distanceX <= 0) {
+      // (the table would give its closest entry's speed for this, and keep the flywheel spinning at nothing)
+      flywheelController.setSetpoint(0);
+      return;
+    }
+    ShotTable table = shotTable;
+    if (table != null) {
+      // (the table was measured from where the turret is to the target, so distanceY is already accounted for)
+      flywheelController.setSetpoint(table.getFlywheelRPS(distanceX));
+      return;
+    }
+    
     /* TO DO: figure out how to determine the appropriate
      * flywheel speed for a given horizontal distance and vertical distance
      * to the target. 
@@ -94,11 +159,45 @@ public class Flywheel {
     // Ignore the calculated setpoint for now, because it needs to be tested.
     flywheelController.setSetpoint(distanceX);
   }
-  
+
+  /**
+   * Roughly how long a ball shot from standing still takes to reach the target (used to lead shots while moving, see ShotSolver).
+   * Like above, the ball is assumed to leave at half the speed of the edge of the flywheel, at EXIT_ANGLE_DEGREES,
+   * with the flywheel at the ShotTable's speed for that distance.
+   * Air resistance is left out on purpose, so the real time is longer (see the ShotSolver constructor for why).
+   * 
+   * Without a ShotTable, there's no real flywheel speed for a distance (the old calculation just sets the setpoint
+   * to the distance), so this is 0, which means no leading. It can't use the current setpoint instead: that setpoint
+   * came from the last shot solution, so the lead would feed back into itself and run away.
+   * @param distanceX The horizontal distance to the target in meters
+   * @return The time of flight in seconds (or 0 if there's no ShotTable, or the flywheel wouldn't be spinning).
+   */
+  public double getTimeOfFlight(double distanceX) {
+    ShotTable table = shotTable;
+    if (table == null) {
+      return 0;
+    }
+    double rps = table.getFlywheelRPS(distanceX);
+    double horizontalBallSpeed = (rps * FLYWHEEL_CIRCUMFERENCE / 2.0) * Math.cos(EXIT_ANGLE_RADIANS);
+    return (horizontalBallSpeed > 0) ? (distanceX / horizontalBallSpeed) : 0;
+  }
+
   // Encoder Methods
   
   public void zeroSensors() {
     flywheelEncoder.reset();
+    flywheelVelocity.reset();
+  }
+  
+  /**
+   * @return How fast the flywheel is spinning (revolutions / second). This is what the PID controller uses.
+   */
+  public double getVelocity() {
+    return flywheelVelocity.getVelocity();
+  }
+  
+  public VelocityEstimator getVelocityEstimator() {
+    return flywheelVelocity;
   }
   
   public Encoder getEncoder() {
@@ -117,14 +216,41 @@ public class Flywheel {
   public void stop() {
     manualControl(0);
   }
+  
+  /**
+   * Like manualControl(), but in volts instead of a fraction of the battery voltage.
+   * @param volts
+   */
+  public void setVoltage(double volts) {
+    double batteryVoltage = flywheelMotor.getBusVoltage();
+    manualControl((batteryVoltage > 0) ? (volts / batteryVoltage) : 0);
+  }
+  
+  /**
+   * @return The battery voltage, as seen by the flywheel's Talon.
+   */
+  public double getBatteryVoltage() {
+    return flywheelMotor.getBusVoltage();
+  }
+  
+  /**
+   * @return The voltage the Talon is actually applying to the motor.
+   */
+  public double getOutputVoltage() {
+    return flywheelMotor.getOutputVoltage();
+  }
 
   public void publishDataToSmartDash() {
-    SmartDashboard.putBoolean("Flywheel PID Enabled", flywheelController.isEnabled());
+    // read the controller's state once, so all the values published are from the same moment
+    PIDState state = flywheelController.getState();
+    SmartDashboard.putBoolean("Flywheel PID Enabled", state.isEnabled());
     SmartDashboard.putNumber("Flywheel Encoder Ticks", flywheelEncoder.getRaw());
-    SmartDashboard.putNumber("flywheelRPS", flywheelEncoder.getRate());
-    SmartDashboard.putNumber("flywheelError", flywheelController.getError());
-    SmartDashboard.putNumber("flywheelOutputVoltage", flywheelController.get());
-    SmartDashboard.putBoolean("Flywheel On Target", flywheelController.onTarget());
+    SmartDashboard.putNumber("flywheelRPS", flywheelVelocity.getVelocity());
+    SmartDashboard.putNumber("flywheelRawRPS", flywheelEncoder.getRate());
+    SmartDashboard.putNumber("flywheelError", state.getError());
+    SmartDashboard.putNumber("flywheelOutputVoltage", state.getOutput());
+    SmartDashboard.putBoolean("Flywheel On Target", state.isOnTarget());
+    SmartDashboard.putBoolean("Flywheel Bang-Bang", state.isEnabled() && feedforward.isInBangBang(state.getSetpoint(), state.getSetpoint() - state.getError()));
   }
   
   public static Flywheel getInstance() {
@@ -1,9 +1,19 @@
 package org.usfirst.frc.team1787.robot.subsystems;
 
+import org.usfirst.frc.team1787.robot.utils.ControlLoop;
+import org.usfirst.frc.team1787.robot.utils.FeedScheduler;
+import org.usfirst.frc.team1787.robot.utils.PIDState;
+import org.usfirst.frc.team1787.robot.utils.ShotSolver;
+import org.usfirst.frc.team1787.robot.utils.ShotTable;
+import org.usfirst.frc.team1787.robot.utils.UnitConverter;
+import org.usfirst.frc.team1787.robot.vision.CameraController;
 import org.usfirst.frc.team1787.robot.vision.ImageProcessor;
 import org.usfirst.frc.team1787.robot.vision.Target;
+import org.usfirst.frc.team1787.robot.vision.TargetTracker;
 
 import edu.wpi.first.wpilibj.Joystick;
+import edu.wpi.first.wpilibj.Utility;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 /**
  * The shooter class is composed of the turret, the flywheel, and the feeder.
@@ -18,15 +28,88 @@ public class Shooter {
   
   // Vision
   private ImageProcessor imgProcessor = ImageProcessor.getInstance();
+  // smooths the target out over many frames (see TargetTracker)
+  private TargetTracker targetTracker = new TargetTracker();
+  // how sure the tracker has to be about the target before any balls are fed to the flywheel (0 to 1)
+  private final double MIN_CONFIDENCE_TO_SHOOT = 0.8;
+  // how long (in milliseconds) it took from the turretCam taking the last frame 
+  // until the turret was aimed based on it. -1 if that can't be measured (see getVisionLatencyMillis()).
+  private double visionLatencyMillis = -1;
+  private long lastFrameTimestamp = 0;
+  private final double MAX_SECONDS_WITHOUT_FRAMES = 0.5;
+  
+  // Shooting On The Move (see ShotSolver)
+  // In full auto shooting, the main loop only says where the target is (the "aim"). Every tick of the ControlLoop,
+  // that's combined with the latest drivetrain speeds to lead the shot, and the turret and flywheel setpoints are set.
+  private DriveTrain driveTrain = DriveTrain.getInstance();
+  // how far in front of the robot's center of rotation the turret is, until it's set from the preferences
+  // (see setTurretOffsetMeters()).
+  public final double DEFAULT_TURRET_OFFSET_INCHES = -6;
+  // the aim is moved forward in time (along the target's angular velocity) by at most this much,
+  // in case the main loop falls behind.
+  private final double MAX_AIM_PREDICTION_SECONDS = 0.1;
+  private ShotSolver shotSolver = new ShotSolver(flywheel::getTimeOfFlight, 
+                                                UnitConverter.inchesToMeters(DEFAULT_TURRET_OFFSET_INCHES));
+  private volatile boolean shootOnTheMove = true;
+  // null when not shooting
+  private volatile Aim aim = null;
+  private volatile ShotSolver.Solution solution = null;
+  
+  // Feeding (see FeedScheduler)
+  // The main loop says whether everything besides the flywheel is ready to shoot, and how fast to run the feeder.
+  // Every tick of the ControlLoop, the FeedScheduler decides when to actually run it, timing each ball to get to the
+  // flywheel right as it's back up to speed.
+  private FeedScheduler feedScheduler = new FeedScheduler(flywheel::getFeedforwardModel,
+                                                          flywheel.BANG_BANG_WINDOW_IN_REVOLUTIONS_PER_SECOND);
+  private volatile boolean readyToFeed = false;
+  private volatile double feederSpeed = 0;
+  // what the feeder was last set to by updateFeeder() (0 = stopped)
+  private double feederOutput = 0;
+  // the last ball the FeedScheduler saw get shot, for recordShotResult(). null if there hasn't been one
+  // since the last result was recorded.
+  private volatile Shot lastShot = null;
+  
+  /**
+   * Where the target was, according to the TargetTracker, at a given moment. Never changes once it's made.
+   */
+  private static class Aim {
+    final double targetAngle;      // turret gyro degrees
+    final double angularVelocity;  // degrees / second
+    final double distance;         // horizontal, meters
+    final long timestamp;          // microseconds (FPGA time)
+
+    Aim(double targetAngle, double angularVelocity, double distance, long timestamp) {
+      this.targetAngle = targetAngle;
+      this.angularVelocity = angularVelocity;
+      this.distance = distance;
+      this.timestamp = timestamp;
+    }
+  }
+  
+  /**
+   * The distance and flywheel setpoint a ball was shot with. Never changes once it's made.
+   */
+  private static class Shot {
+    final double distance;     // horizontal (or led, see ShotSolver), meters
+    final double flywheelRPS;  // the setpoint, revolutions / second
+
+    Shot(double distance, double flywheelRPS) {
+      this.distance = distance;
+      this.flywheelRPS = flywheelRPS;
+    }
+  }
   
   // Singleton Instance
   private static final Shooter instance = new Shooter();
 
   private Shooter() {
-    // Intentionally left blank; no initialization needed.
+    ControlLoop.getInstance().registerStage(this::updateShotSolution);
+    ControlLoop.getInstance().registerStage(this::updateFeeder);
   }
   
   public void enablePIDControllers() {
+    feedScheduler.reset();
+    turret.stopProfile();
     turret.getPIDController().enable();
     flywheel.getPIDController().enable();
   }
@@ -36,21 +119,186 @@ public class Shooter {
            flywheel.getPIDController().isEnabled();
   }
   
+  /**
+   * Aims at the target and shoots once it's locked on, even while driving.
+   * The turret and flywheel setpoints are set by updateShotSolution(), and the feeder is run by updateFeeder(),
+   * every tick of the ControlLoop.
+   */
   public void fullAutoShooting() {
-    trackTarget();
-    double horizontalDistanceToTarget = imgProcessor.getCurrentTarget().getHorizontalDistance();
-    double verticalDistanceToTarget = Target.TURRET_TO_TARGET_VERTICAL_DISTANCE;
-    flywheel.setCalculatedSetpoint(horizontalDistanceToTarget, verticalDistanceToTarget);
-    if (turret.getPIDController().onTarget() && flywheel.getPIDController().onTarget()) {
-      feeder.spin(feeder.DEFAULT_FEEDER_SPEED);
+    updateTargetTracker();
+    if (targetTracker.hasTrack()) {
+      long now = Utility.getFPGATime();
+      aim = new Aim(targetTracker.getTargetAngle(now), targetTracker.getTargetAngularVelocity(),
+                    targetTracker.getHorizontalDistance(), now);
     } else {
-      feeder.stop();
+      aim = null;
+      solution = null;
+      turret.holdPosition();
+      flywheel.setCalculatedSetpoint(0, Target.TURRET_TO_TARGET_VERTICAL_DISTANCE);
+    }
+    
+    // only shoot once the target has been locked on to for a bit, not just seen in 1 frame.
+    // (whether the flywheel is ready is up to the FeedScheduler, which never feeds an uncharacterized flywheel
+    // until it's in tolerance)
+    ShotSolver.Solution currentSolution = solution;
+    if (currentSolution != null) {
+      ShotTable table = flywheel.getShotTable();
+      feederSpeed = (table != null) ? table.getFeederSpeed(currentSolution.getEffectiveDistance(), feeder.DEFAULT_FEEDER_SPEED)
+                                    : feeder.DEFAULT_FEEDER_SPEED;
+    }
+    readyToFeed = currentSolution != null && targetTracker.getConfidence() >= MIN_CONFIDENCE_TO_SHOOT
+                  && turret.getPIDController().onTarget();
+  }
+  
+  /**
+   * Runs every tick of the ControlLoop, right after the drivetrain encoders are sampled.
+   * Moves the latest aim forward to now, leads it for how the robot is moving (see ShotSolver),
+   * and sets the turret and flywheel setpoints. Does nothing when not in full auto shooting.
+   */
+  private void updateShotSolution() {
+    Aim currentAim = aim;
+    if (currentAim == null) {
+      return;
+    }
+    long now = Utility.getFPGATime();
+    double secondsSinceAim = Math.max(0, Math.min(MAX_AIM_PREDICTION_SECONDS, (now - currentAim.timestamp) / 1e6));
+    double targetAngle = currentAim.targetAngle + (currentAim.angularVelocity * secondsSinceAim);
+    
+    double forwardSpeed = 0;
+    double turnRate = 0;
+    // (leading needs the ShotTable's time of flight, see Flywheel.getTimeOfFlight())
+    if (shootOnTheMove && flywheel.getShotTable() != null) {
+      forwardSpeed = driveTrain.getAvgSpeed();
+      turnRate = driveTrain.getTurnRateDegreesPerSecond();
+    }
+    /* Where the target is compared to the front of the robot. The turret gyro is clockwise and the drivetrain heading
+     * is counter-clockwise, and both started at 0 with the turret facing the front of the robot (when the robot turned on). */
+    double bearing = targetAngle + driveTrain.getHeadingDegrees();
+    ShotSolver.Solution newSolution = shotSolver.solve(currentAim.distance, bearing, forwardSpeed, turnRate);
+    
+    // (the turret follows a motion profile to get there, see Turret.setProfiledSetpoint())
+    turret.setProfiledSetpoint(targetAngle + newSolution.getLeadDegrees());
+    flywheel.setCalculatedSetpoint(newSolution.getEffectiveDistance(), Target.TURRET_TO_TARGET_VERTICAL_DISTANCE);
+    solution = newSolution;
+  }
+  
+  /**
+   * Runs every tick of the ControlLoop, right after updateShotSolution().
+   * Runs the feeder whenever the FeedScheduler says to. Does nothing when not in full auto shooting.
+   */
+  private void updateFeeder() {
+    boolean feed = false;
+    if (aim != null) {
+      PIDState flywheelState = flywheel.getPIDController().getState();
+      int shotsBefore = feedScheduler.getShots();
+      feed = feedScheduler.update(Utility.getFPGATime() / 1e6, flywheel.getVelocity(), flywheelState.getSetpoint(),
+                                  flywheelState.getAbsoluteTolerance(), flywheel.getBatteryVoltage(), readyToFeed);
+      // remember what a ball that just got shot was shot with, since the distance and setpoint will have changed
+      // by the time anyone says how it turned out.
+      ShotSolver.Solution currentSolution = solution;
+      if (feedScheduler.getShots() != shotsBefore && currentSolution != null) {
+        lastShot = new Shot(currentSolution.getEffectiveDistance(), flywheelState.getSetpoint());
+      }
+    } else if (feederOutput == 0) {
+      // (the feeder belongs to manual control when not in full auto shooting)
+      return;
     }
+    // (only talk to the Talon when something changes)
+    double output = feed ? feederSpeed : 0;
+    if (output != feederOutput) {
+      feeder.spin(output);
+      feederOutput = output;
+    }
+  }
+  
+  public FeedScheduler getFeedScheduler() {
+    return feedScheduler;
+  }
+  
+  /**
+   * @param enabled Whether to lead shots for how the robot is moving (true by default).
+   * If not (or if the flywheel doesn't have a ShotTable), full auto shooting aims as if the robot were standing still.
+   */
+  public void setShootOnTheMove(boolean enabled) {
+    shootOnTheMove = enabled;
   }
   
+  /**
+   * @param turretOffsetMeters How far in front of the robot's center of rotation the turret is (negative = behind),
+   * measured on the robot. Used to lead shots while the robot is turning.
+   */
+  public void setTurretOffsetMeters(double turretOffsetMeters) {
+    shotSolver.setTurretOffsetMeters(turretOffsetMeters);
+  }
+  
+  /**
+   * Aims the turret at the target (as estimated by the TargetTracker from the latest frames).
+   * If there's no target, the turret comes to a stop.
+   * The vision processing itself runs on the VisionThread, so this never waits on the camera.
+   */
   public void trackTarget() {
-    imgProcessor.runVisionProcessing();
-    turret.getPIDController().setRelativeSetpoint(imgProcessor.getCurrentTarget().getErrorInDegreesX());
+    aim = null;
+    updateTargetTracker();
+    if (targetTracker.hasTrack()) {
+      // the tracker's angle is in terms of the turret gyro, so it can be used as the setpoint directly.
+      // (it's also moved forward to now, in case the target is moving relative to the robot)
+      turret.setProfiledSetpoint(targetTracker.getTargetAngle(Utility.getFPGATime()));
+    } else {
+      turret.holdPosition();
+    }
+  }
+  
+  /**
+   * Gives the TargetTracker the latest frame's target.
+   */
+  private void updateTargetTracker() {
+    /* By the time a frame has been processed, the turret has already moved. So the error in the frame is added
+     * to where the turret was pointing when the frame was taken, not where it's pointing now 
+     * (that's what made the turret overshoot whenever it was moving).
+     * The turret gyro turns with the robot, so its history already includes the robot turning,
+     * and the drivetrain's heading isn't needed here. */
+    Target target = imgProcessor.getCurrentTarget();
+    long now = Utility.getFPGATime();
+    targetTracker.update(target, turret.getAngleAt(target.getTimestamp()));
+    if (target.getTimestamp() != 0 && target.getTimestamp() != lastFrameTimestamp) {
+      lastFrameTimestamp = target.getTimestamp();
+      // (if the frames' timestamps are just when they showed up, how old they really are isn't known)
+      visionLatencyMillis = CameraController.getInstance().frameTimestampsAreFPGATime() 
+                            ? (now - lastFrameTimestamp) / 1000.0 : -1;
+    }
+    // if frames stop showing up altogether (like if the camera gets unplugged), don't keep aiming at an old target.
+    if (targetTracker.hasTrack() && targetTracker.getSecondsSinceLastFrame(now) > MAX_SECONDS_WITHOUT_FRAMES) {
+      targetTracker.reset();
+    }
+  }
+  
+  /**
+   * Refines the flywheel's ShotTable with how the last shot turned out, using the distance and flywheel setpoint
+   * from the moment the ball was shot (not from when this is called). If the shot was led, the distance it was shot
+   * for is used (that's what the setpoint was for).
+   * Each shot is only recorded once. Does nothing if there's no ShotTable, or no ball has been shot since the last result.
+   * @param result
+   */
+  public void recordShotResult(ShotTable.ShotResult result) {
+    ShotTable table = flywheel.getShotTable();
+    Shot shot = lastShot;
+    if (table != null && shot != null) {
+      table.recordShot(shot.distance, shot.flywheelRPS, result);
+      lastShot = null;
+    }
+  }
+  
+  public TargetTracker getTargetTracker() {
+    return targetTracker;
+  }
+  
+  /**
+   * @return How long (in milliseconds) it took from the turretCam taking the latest frame 
+   * until the turret was aimed based on it, or -1 if that isn't known (no frames yet, or the camera server's
+   * timestamps aren't in FPGA time, see CameraController.frameTimestampsAreFPGATime()).
+   */
+  public double getVisionLatencyMillis() {
+    return visionLatencyMillis;
   }
   
   public void zeroSensors() {
@@ -59,12 +307,14 @@ public class Shooter {
   }
   
   public void manualControl(double turretValue, double flywheelValue, double feederValue) {
+    aim = null;
     turret.manualControl(turretValue);
     flywheel.manualControl(flywheelValue);
     feeder.spin(feederValue);
   }
   
   public void manualControl(Joystick stick) {
+    aim = null;
     turret.manualControl(stick.getX());
     flywheel.manualControl(stick.getY());
     if (stick.getTrigger()) {
@@ -75,6 +325,7 @@ public class Shooter {
   }
   
   public void stop() {
+    aim = null;
     turret.stop();
     flywheel.stop();
     feeder.stop();
@@ -83,6 +334,20 @@ public class Shooter {
   public void publishDataToSmartDash() {
     turret.publishDataToSmartDash();
     flywheel.publishDataToSmartDash();
+    SmartDashboard.putNumber("Target Lock Confidence", targetTracker.getConfidence());
+    SmartDashboard.putNumber("Tracked Distance", targetTracker.getHorizontalDistance());
+    SmartDashboard.putNumber("Vision Latency (ms)", visionLatencyMillis);
+    ShotSolver.Solution currentSolution = solution;
+    SmartDashboard.putNumber("Shot Lead (deg)", (currentSolution != null) ? currentSolution.getLeadDegrees() : 0);
+    SmartDashboard.putNumber("Shot Distance (m)", (currentSolution != null) ? currentSolution.getEffectiveDistance() : 0);
+    SmartDashboard.putNumber("Shot Time Of Flight (s)", (currentSolution != null) ? currentSolution.getTimeOfFlight() : 0);
+    SmartDashboard.putString("Feed State", feedScheduler.getState().toString());
+    SmartDashboard.putBoolean("Feed Timing Predicted", feedScheduler.isPredicting());
+    SmartDashboard.putNumber("Balls Per Second", feedScheduler.getBallsPerSecond());
+    SmartDashboard.putNumber("Feed Cadence (s)", feedScheduler.getCadenceSeconds());
+    SmartDashboard.putNumber("Balls Shot", feedScheduler.getShots());
+    SmartDashboard.putNumber("Balls Shot In Tolerance", feedScheduler.getShotsInTolerance());
+    SmartDashboard.putNumber("Feed Latency (s)", feedScheduler.getFeedLatencySeconds());
   }
   
   public static Shooter getInstance() {
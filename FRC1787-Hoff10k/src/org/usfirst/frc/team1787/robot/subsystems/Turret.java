@@ -1,11 +1,16 @@
 package org.usfirst.frc.team1787.robot.subsystems;
 
+import org.usfirst.frc.team1787.robot.utils.ControlLoop;
 import org.usfirst.frc.team1787.robot.utils.CustomPIDController;
+import org.usfirst.frc.team1787.robot.utils.InterpolatingHistory;
+import org.usfirst.frc.team1787.robot.utils.PIDState;
+import org.usfirst.frc.team1787.robot.utils.TrapezoidProfile;
 
 import com.ctre.CANTalon;
 
 import edu.wpi.first.wpilibj.AnalogGyro;
-import edu.wpi.first.wpilibj.PIDController;
+import edu.wpi.first.wpilibj.Notifier;
+import edu.wpi.first.wpilibj.Utility;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 public class Turret {
@@ -17,8 +22,17 @@ public class Turret {
   // Gyro
   private final int TURRET_GYRO_ANALOG_PORT = 0;
   private AnalogGyro gyro = new AnalogGyro(TURRET_GYRO_ANALOG_PORT);
+  
+  // Angle History
+  // The gyro angle is recorded every ANGLE_HISTORY_PERIOD_SECONDS, so that vision can find out
+  // where the turret was pointing when a frame was taken (see getAngleAt()).
+  private final double ANGLE_HISTORY_PERIOD_SECONDS = 0.01;
+  private final int ANGLE_HISTORY_SIZE = 100; // (1 second's worth)
+  private InterpolatingHistory angleHistory = new InterpolatingHistory(ANGLE_HISTORY_SIZE);
+  private Notifier angleHistoryNotifier = new Notifier(() -> angleHistory.add(Utility.getFPGATime(), gyro.getAngle()));
 
   // PID Controller Gains / Configuration Preferences
+  // (the controller is run by the ControlLoop, so the I and D gains are per tick of that loop)
   private final double TURRET_PID_CONTROLLER_KP = 0;
   private final double TURRET_PID_CONTROLLER_KI = 0;
   private final double TURRET_PID_CONTROLLER_KD = 0;
@@ -26,8 +40,37 @@ public class Turret {
   private CustomPIDController turretController = new CustomPIDController(TURRET_PID_CONTROLLER_KP,
                                                              TURRET_PID_CONTROLLER_KI,
                                                              TURRET_PID_CONTROLLER_KD,
-                                                             0, gyro, turretMotor, 
-                                                             PIDController.kDefaultPeriod);
+                                                             0, gyro, turretMotor);
+  
+  // Motion Profile (see TrapezoidProfile)
+  // Instead of jumping the setpoint straight to the target (which saturates the motor and overshoots on big moves),
+  // the setpoint follows a profile toward it, moved along every tick of the ControlLoop.
+  // The limits and gains can be changed with setMotionProfileLimits() and setFeedforwardGains()
+  // (from the preferences, see Robot.robotInit()).
+  // The limits are a full turn per second, reached in a quarter second: fast enough to keep up with the robot turning,
+  // slow enough that the motor isn't saturated the whole way there (which would leave nothing for the PID controller).
+  public final double DEFAULT_MAX_VELOCITY_IN_DEGREES_PER_SECOND = 360;
+  public final double DEFAULT_MAX_ACCELERATION_IN_DEGREES_PER_SECOND_SQUARED = 1440;
+  // motor output per degree / second, and per degree / second^2, of the profile (added to the PID output).
+  // About 0.02 volts per degree / second and 0.002 volts per degree / second^2, divided by 12 volts.
+  // Tune kV first (so the turret keeps up with the profile in the middle of a big move), then kA.
+  public final double DEFAULT_TURRET_KV = 0.02 / 12;
+  public final double DEFAULT_TURRET_KA = 0.002 / 12;
+  private volatile double turretKV = DEFAULT_TURRET_KV;
+  private volatile double turretKA = DEFAULT_TURRET_KA;
+  private double maxAcceleration = DEFAULT_MAX_ACCELERATION_IN_DEGREES_PER_SECOND_SQUARED;
+  // if the turret ends up this far from the profile (like if it was bumped, or couldn't keep up),
+  // the next plan starts from where the turret actually is, instead of where the profile says it should be.
+  private final double PROFILE_RESYNC_DEGREES = 10;
+  private TrapezoidProfile profile = new TrapezoidProfile(DEFAULT_MAX_VELOCITY_IN_DEGREES_PER_SECOND, 
+                                                          DEFAULT_MAX_ACCELERATION_IN_DEGREES_PER_SECOND_SQUARED);
+  private volatile boolean motionProfileEnabled = true;
+  private volatile boolean profiling = false;
+  private double profileGoal = 0;
+  private double profileStartSeconds = 0;
+  // where the profile is this tick (read by the feedforward, which runs on the ControlLoop thread)
+  private volatile double profileVelocity = 0;
+  private volatile double profileAcceleration = 0;
   
   // Singleton Instance
   private static final Turret instance = new Turret();
@@ -35,22 +78,145 @@ public class Turret {
   private Turret() {
     // Configure PID Controller
     turretController.setAbsoluteTolerance(TURRET_PID_ABSOLUTE_TOLERENCE_IN_DEGREES);
+    turretController.setFeedforward((setpoint, measurement) -> 
+        profiling ? (turretKV * profileVelocity) + (turretKA * profileAcceleration) : 0);
+    ControlLoop.getInstance().register(turretController);
+    // (stages run before the controllers, so the controller always sees this tick's spot on the profile)
+    ControlLoop.getInstance().registerStage(this::followProfile);
     gyro.calibrate();
+    angleHistoryNotifier.startPeriodic(ANGLE_HISTORY_PERIOD_SECONDS);
   }
   
   public CustomPIDController getPIDController() {
     return turretController;
   }
   
+  /**
+   * Moves the turret to the given angle along a motion profile (see TrapezoidProfile).
+   * This can be called as often as the target changes (like every new vision frame, or every tick).
+   * The profile is re-planned from where it currently is, so the turret keeps moving smoothly.
+   * If motion profiling is turned off, this is the same as turretController.setSetpoint().
+   * @param angle The gyro angle to end up at (degrees).
+   */
+  public synchronized void setProfiledSetpoint(double angle) {
+    if (!motionProfileEnabled) {
+      stopProfile();
+      turretController.setSetpoint(angle);
+      return;
+    }
+    if (profiling && angle == profileGoal) {
+      return;
+    }
+    double now = Utility.getFPGATime() / 1e6;
+    double position = gyro.getAngle();
+    double velocity = gyro.getRate();
+    if (profiling) {
+      // start from where the profile says the turret should be, unless it's gotten too far from it.
+      double time = now - profileStartSeconds;
+      double profilePosition = profile.getPosition(time);
+      if (Math.abs(profilePosition - position) <= PROFILE_RESYNC_DEGREES) {
+        position = profilePosition;
+        velocity = profile.getVelocity(time);
+      }
+    }
+    profile.plan(position, velocity, angle);
+    profileGoal = angle;
+    profileStartSeconds = now;
+    profiling = true;
+    // set the setpoint right away, so it doesn't matter whether this runs before or after followProfile() this tick
+    followProfile();
+  }
+  
+  /**
+   * Stops the turret where it is. If it's following a profile, it slows down as fast as the profile allows
+   * and stops wherever that ends up. Otherwise, it holds the current angle.
+   */
+  public synchronized void holdPosition() {
+    if (profiling) {
+      double time = Utility.getFPGATime() / 1e6 - profileStartSeconds;
+      double position = profile.getPosition(time);
+      double velocity = profile.getVelocity(time);
+      setProfiledSetpoint(position + (velocity * Math.abs(velocity)) / (2 * maxAcceleration));
+    } else {
+      turretController.setRelativeSetpoint(0);
+    }
+  }
+  
+  /**
+   * Stops following the profile (the setpoint stays wherever it was last set).
+   */
+  public synchronized void stopProfile() {
+    profiling = false;
+    profileVelocity = 0;
+    profileAcceleration = 0;
+  }
+  
+  /**
+   * Runs every tick of the ControlLoop: moves the setpoint along the profile.
+   */
+  private synchronized void followProfile() {
+    if (!profiling) {
+      return;
+    }
+    double time = Utility.getFPGATime() / 1e6 - profileStartSeconds;
+    profileVelocity = profile.getVelocity(time);
+    profileAcceleration = profile.getAcceleration(time);
+    turretController.setSetpoint(profile.getPosition(time));
+  }
+  
+  /**
+   * Changes how fast the motion profile lets the turret move. Used starting with the next setProfiledSetpoint().
+   * @param maxVelocity degrees / second
+   * @param maxAcceleration degrees / second^2
+   */
+  public synchronized void setMotionProfileLimits(double maxVelocity, double maxAcceleration) {
+    profile.setLimits(maxVelocity, maxAcceleration);
+    this.maxAcceleration = Math.abs(maxAcceleration);
+  }
+  
+  /**
+   * Changes the feedforward added to the PID output while following the motion profile.
+   * @param kV motor output per degree / second
+   * @param kA motor output per degree / second^2
+   */
+  public void setFeedforwardGains(double kV, double kA) {
+    turretKV = kV;
+    turretKA = kA;
+  }
+  
+  /**
+   * @param enabled Whether setProfiledSetpoint() follows a motion profile (true by default).
+   * If not, the setpoint goes straight to the target, like it used to.
+   */
+  public void setMotionProfileEnabled(boolean enabled) {
+    motionProfileEnabled = enabled;
+    if (!enabled) {
+      stopProfile();
+    }
+  }
+  
   public AnalogGyro getGyro() {
     return gyro;
   }
   
+  /**
+   * @param timestamp A time in the last second, in microseconds (FPGA time, like Utility.getFPGATime()).
+   * @return What the gyro angle was at that time.
+   */
+  public double getAngleAt(long timestamp) {
+    return angleHistory.get(timestamp);
+  }
+  
   public void zeroSensors() {
+    // (the profile is in terms of the old angles too)
+    stopProfile();
     gyro.reset();
+    // the old angles don't mean anything anymore
+    angleHistory.clear();
   }
 
   public void manualControl(double value) {
+    stopProfile();
     if (turretController.isEnabled()) {
       turretController.reset();
     }
@@ -62,11 +228,16 @@ public class Turret {
   }
 
   public void publishDataToSmartDash() {
-    SmartDashboard.putBoolean("Turret PID Enabled", turretController.isEnabled());
+    // read the controller's state once, so all the values published are from the same moment
+    PIDState state = turretController.getState();
+    SmartDashboard.putBoolean("Turret PID Enabled", state.isEnabled());
     SmartDashboard.putNumber("turretAngle", gyro.getAngle());
-    SmartDashboard.putNumber("turretError", turretController.getError());
-    SmartDashboard.putNumber("turretMotorOutput", turretController.get());
-    SmartDashboard.putBoolean("Turret On Target", turretController.onTarget());
+    SmartDashboard.putNumber("turretError", state.getError());
+    SmartDashboard.putNumber("turretMotorOutput", state.getOutput());
+    SmartDashboard.putBoolean("Turret On Target", state.isOnTarget());
+    SmartDashboard.putBoolean("Turret Profiling", profiling);
+    SmartDashboard.putNumber("turretSetpoint", state.getSetpoint());
+    SmartDashboard.putNumber("turretProfileVelocity", profileVelocity);
   }
   
   public static Turret getInstance() {
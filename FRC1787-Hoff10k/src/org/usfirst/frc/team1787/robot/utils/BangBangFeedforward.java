@@ -0,0 +1,70 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * The feedforward for the flywheel's CustomPIDController.
+ *
+ * - When the flywheel is a lot slower than it should be (like right after a ball goes through,
+ *   or when it's first spinning up), it asks for full output ("bang-bang"). Nothing gets it back up to speed faster.
+ * - Otherwise, it asks for exactly the voltage the FlywheelFeedforward model says it takes to hold the setpoint,
+ *   so the PID part of the controller only has to clean up the small errors the model doesn't catch.
+ *
+ * The voltage is divided by the actual battery voltage, so the flywheel spins the same speed
+ * even when the battery sags.
+ *
+ * This doesn't touch any hardware, so it can also be used to control a simulated flywheel.
+ */
+public class BangBangFeedforward implements CustomPIDController.Feedforward {
+
+  // In bang-bang, this is returned. It's bigger than the controller's output range, so no matter what
+  // P, I, and D add to it, the output is clamped to full.
+  public static final double BANG_BANG_OUTPUT = 2.0;
+
+  private volatile FlywheelFeedforward model;
+  private volatile double bangBangWindow;
+  private DoubleSupplier batteryVoltage;
+
+  /**
+   * @param model How many volts the flywheel needs to spin at a given speed.
+   * @param bangBangWindow How far below the setpoint (revolutions / second) the flywheel has to be for bang-bang to kick in.
+   * @param batteryVoltage Where to get the current battery voltage from.
+   */
+  public BangBangFeedforward(FlywheelFeedforward model, double bangBangWindow, DoubleSupplier batteryVoltage) {
+    this.model = model;
+    this.bangBangWindow = bangBangWindow;
+    this.batteryVoltage = batteryVoltage;
+  }
+
+  @Override
+  public double calculate(double setpoint, double measurement) {
+    if (setpoint <= 0) {
+      // never bang-bang toward (or past) stopped
+      return 0;
+    }
+    if (isInBangBang(setpoint, measurement)) {
+      return BANG_BANG_OUTPUT;
+    }
+    double volts = batteryVoltage.getAsDouble();
+    if (volts <= 0) {
+      return 0;
+    }
+    return model.calculate(setpoint) / volts;
+  }
+
+  public boolean isInBangBang(double setpoint, double measurement) {
+    return setpoint > 0 && measurement < setpoint - bangBangWindow;
+  }
+
+  public void setModel(FlywheelFeedforward model) {
+    this.model = model;
+  }
+
+  public FlywheelFeedforward getModel() {
+    return model;
+  }
+
+  public void setBangBangWindow(double bangBangWindow) {
+    this.bangBangWindow = bangBangWindow;
+  }
+}
@@ -0,0 +1,279 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.util.ArrayList;
+
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Notifier;
+import edu.wpi.first.wpilibj.Utility;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Runs every registered CustomPIDController, one after another, in a single fixed rate loop.
+ *
+ * Normally, each PIDController runs on its own timer. That means the turret and flywheel loops
+ * run at random times relative to each other (and to when the sensors update), and each one
+ * drifts around on its own. Here, every "tick":
+ *   1) every registered Sensor is sampled (like a VelocityEstimator, which needs samples at an even rate),
+ *   2) every registered Stage runs (like working out setpoints from those fresh samples),
+ *   3) every controller's sensor is read once (so every controller works off of the same moment in time),
+ *   4) then every controller calculates and sets its output.
+ *
+ * It also keeps track of how well the loop is keeping time:
+ * - jitter: how much later or earlier than planned each tick started.
+ * - overruns: ticks that took longer than the period (so the next tick was late).
+ *
+ * A sensor, stage, or controller that throws doesn't stop the loop (or anything else in it). The error is reported
+ * to the driver station, and the rest of that tick still runs. (When each PIDController had its own timer,
+ * one bad calculation only stopped that controller, so this keeps it that way.)
+ *
+ * Note that WPILib's PIDController doesn't know how much time passes between calculations,
+ * so the I and D gains are "per tick". Changing the frequency means re-tuning I and D.
+ */
+public class ControlLoop {
+
+  private ArrayList<CustomPIDController> controllers = new ArrayList<CustomPIDController>();
+  // copied to an array when the loop starts, so ticks don't have to deal with the list changing.
+  private CustomPIDController[] controllerArray = new CustomPIDController[0];
+  private ArrayList<Sensor> sensors = new ArrayList<Sensor>();
+  private Sensor[] sensorArray = new Sensor[0];
+  private ArrayList<Stage> stages = new ArrayList<Stage>();
+  private Stage[] stageArray = new Stage[0];
+  private Notifier notifier = new Notifier(this::tick);
+  // start() keeps the frequency in this range (it comes from the preferences, so it could be anything).
+  // Below MIN, the controllers react too slowly. Above MAX, the ticks don't leave the RIO time for anything else.
+  public static final double DEFAULT_FREQUENCY_HZ = 200;
+  private static final double MIN_FREQUENCY_HZ = 50;
+  private static final double MAX_FREQUENCY_HZ = 1000;
+  private double frequencyHz = DEFAULT_FREQUENCY_HZ;
+  private boolean running = false;
+
+  // Timing Stats (microseconds). Only written by the loop, but read by anybody.
+  private long lastTickStart = 0;
+  private volatile long ticks = 0;
+  private volatile long overruns = 0;
+  private volatile long maxJitter = 0;
+  private volatile double averageAbsJitter = 0;
+  private volatile long lastTickDuration = 0;
+  // Failures (see tick()). They're counted every time, but only reported once a second at most,
+  // so something that fails every tick doesn't flood the driver station.
+  private final long FAILURE_REPORT_PERIOD_MICROS = 1000000;
+  private volatile long failures = 0;
+  private long lastFailureReport = 0;
+
+  // Singleton Instance
+  private static final ControlLoop instance = new ControlLoop();
+
+  private ControlLoop() {
+    // Intentionally left blank.
+  }
+  
+  /**
+   * Something that needs to be sampled every tick, before the controllers run.
+   */
+  public interface Sensor {
+    public void sample();
+  }
+  
+  /**
+   * Something that runs every tick, after the sensors are sampled and before the controllers run.
+   */
+  public interface Stage {
+    public void update();
+  }
+  
+  /**
+   * Adds a sensor to be sampled every tick. Sensors have to be registered before start() is called.
+   * @param sensor
+   */
+  public synchronized void registerSensor(Sensor sensor) {
+    if (running) {
+      throw new IllegalStateException("Sensors have to be registered before the ControlLoop starts");
+    }
+    if (!sensors.contains(sensor)) {
+      sensors.add(sensor);
+    }
+  }
+
+  /**
+   * Adds a stage to run every tick (in the order they're registered). 
+   * Stages have to be registered before start() is called.
+   * @param stage
+   */
+  public synchronized void registerStage(Stage stage) {
+    if (running) {
+      throw new IllegalStateException("Stages have to be registered before the ControlLoop starts");
+    }
+    if (!stages.contains(stage)) {
+      stages.add(stage);
+    }
+  }
+
+  /**
+   * Adds a controller to the loop. Controllers have to be registered before start() is called.
+   * @param controller
+   */
+  public synchronized void register(CustomPIDController controller) {
+    if (running) {
+      throw new IllegalStateException("Controllers have to be registered before the ControlLoop starts");
+    }
+    if (!controllers.contains(controller)) {
+      controllers.add(controller);
+      controller.useSensorSnapshots();
+    }
+  }
+
+  /**
+   * Starts running the loop. Calling this more than once has no effect.
+   * @param frequencyHz How many times per second to run every controller (for example, 200).
+   * It's clamped to between 50 and 1000, and DEFAULT_FREQUENCY_HZ is used instead if it's 0, negative, or NaN.
+   */
+  public synchronized void start(double frequencyHz) {
+    if (running) {
+      return;
+    }
+    if (!(frequencyHz > 0)) {
+      DriverStation.reportError("ControlLoop frequency " + frequencyHz + " Hz isn't valid, using " 
+                                + DEFAULT_FREQUENCY_HZ + " Hz", false);
+      frequencyHz = DEFAULT_FREQUENCY_HZ;
+    } else if (frequencyHz < MIN_FREQUENCY_HZ || frequencyHz > MAX_FREQUENCY_HZ) {
+      double clamped = Math.max(MIN_FREQUENCY_HZ, Math.min(MAX_FREQUENCY_HZ, frequencyHz));
+      DriverStation.reportError("ControlLoop frequency " + frequencyHz + " Hz is out of range, using " 
+                                + clamped + " Hz", false);
+      frequencyHz = clamped;
+    }
+    this.frequencyHz = frequencyHz;
+    controllerArray = controllers.toArray(new CustomPIDController[controllers.size()]);
+    sensorArray = sensors.toArray(new Sensor[sensors.size()]);
+    stageArray = stages.toArray(new Stage[stages.size()]);
+    running = true;
+    notifier.startPeriodic(1.0 / frequencyHz);
+  }
+
+  private void tick() {
+    long start = Utility.getFPGATime();
+    long periodMicros = (long) (1e6 / frequencyHz);
+
+    // 1) sample every registered sensor
+    for (Sensor sensor : sensorArray) {
+      try {
+        sensor.sample();
+      } catch (RuntimeException e) {
+        reportFailure("sensor", e, start);
+      }
+    }
+    // 2) run every registered stage
+    for (Stage stage : stageArray) {
+      try {
+        stage.update();
+      } catch (RuntimeException e) {
+        reportFailure("stage", e, start);
+      }
+    }
+    // 3) read every controller's sensor
+    for (CustomPIDController controller : controllerArray) {
+      try {
+        controller.takeSensorSnapshot();
+      } catch (RuntimeException e) {
+        reportFailure("controller sensor", e, start);
+      }
+    }
+    // 4) run every controller
+    for (CustomPIDController controller : controllerArray) {
+      try {
+        controller.calculateNow();
+      } catch (RuntimeException e) {
+        reportFailure("controller", e, start);
+      }
+    }
+
+    long end = Utility.getFPGATime();
+    recordTiming(start, end - start, periodMicros);
+  }
+
+  /**
+   * Counts a failure, and reports it to the driver station (unless one was reported less than a second ago).
+   * @param what What kind of thing failed (a sensor, stage, or controller).
+   * @param e What it threw.
+   * @param now The FPGA time of this tick (microseconds).
+   */
+  private void reportFailure(String what, RuntimeException e, long now) {
+    failures++;
+    if (lastFailureReport == 0 || now - lastFailureReport >= FAILURE_REPORT_PERIOD_MICROS) {
+      lastFailureReport = now;
+      DriverStation.reportError("ControlLoop " + what + " failed (" + failures + " failures so far): " + e, false);
+    }
+  }
+
+  private void recordTiming(long start, long duration, long periodMicros) {
+    if (lastTickStart != 0) {
+      long jitter = (start - lastTickStart) - periodMicros;
+      long absJitter = Math.abs(jitter);
+      if (absJitter > maxJitter) {
+        maxJitter = absJitter;
+      }
+      // (exponential moving average, so old ticks slowly stop counting)
+      averageAbsJitter += (absJitter - averageAbsJitter) * 0.01;
+    }
+    if (duration > periodMicros) {
+      overruns++;
+    }
+    lastTickStart = start;
+    lastTickDuration = duration;
+    ticks++;
+  }
+
+  /**
+   * Forgets the timing stats so far (for example, to only see stats for a single match).
+   */
+  public void resetStats() {
+    overruns = 0;
+    maxJitter = 0;
+    averageAbsJitter = 0;
+  }
+
+  public double getFrequencyHz() {
+    return frequencyHz;
+  }
+
+  public long getTicks() {
+    return ticks;
+  }
+
+  public long getOverruns() {
+    return overruns;
+  }
+
+  /**
+   * @return How many times a sensor, stage, or controller has thrown during a tick.
+   */
+  public long getFailures() {
+    return failures;
+  }
+
+  /**
+   * @return The most any tick has started early or late (microseconds).
+   */
+  public long getMaxJitterMicros() {
+    return maxJitter;
+  }
+
+  /**
+   * @return About how much ticks have been starting early or late lately (microseconds).
+   */
+  public double getAverageJitterMicros() {
+    return averageAbsJitter;
+  }
+
+  public void publishDataToSmartDash() {
+    SmartDashboard.putNumber("Control Loop Ticks", ticks);
+    SmartDashboard.putNumber("Control Loop Overruns", overruns);
+    SmartDashboard.putNumber("Control Loop Max Jitter (us)", maxJitter);
+    SmartDashboard.putNumber("Control Loop Avg Jitter (us)", averageAbsJitter);
+    SmartDashboard.putNumber("Control Loop Tick Duration (us)", lastTickDuration);
+    SmartDashboard.putNumber("Control Loop Failures", failures);
+  }
+
+  public static ControlLoop getInstance() {
+    return instance;
+  }
+}
@@ -20,13 +20,66 @@ import edu.wpi.first.wpilibj.PIDSourceType;
  * the average.
  * 
  * Also adds some additional functionality, which is in the documentation for the methods below.
+ * 
+ * Controllers made without a period are meant to be run by the ControlLoop (see ControlLoop.register()),
+ * rather than on their own timer.
+ * 
+ * Every method on PIDController is synchronized, so just checking on the controller (like when publishing to the SmartDash)
+ * used to have to wait for the controller to finish calculating, and would hold up the next calculation while it checked.
+ * Now, getError(), get(), isEnabled(), and onTarget() (and getState()) read from a PIDState instead, which is 
+ * replaced every time the controller calculates or is changed. They never lock anything.
+ * The values can be up to one calculation old, which is the same as before, since the output only changes when the controller calculates.
+ * 
+ * Rate mode (a kRate PIDSource, like the flywheel encoder): PIDController doesn't use the gains the usual way.
+ * Every time it calculates, the output is
+ *   P * (total error so far) + D * error + calculateFeedForward()
+ * (then limited to the output range). I isn't used at all, P works like an I gain, and D is the proportional gain.
+ * The feedforward is always added, even if P is 0 (P being 0 only skips keeping track of the total error).
+ * Normally the feedforward is F * setpoint, but if setFeedforward() is used, it's whatever that returns instead
+ * (see calculateFeedForward() below).
  */
 public class CustomPIDController extends PIDController {
   
   private double absoluteTolerance;
+  
+  // PIDController always starts its own timer. For controllers that are run by the ControlLoop instead,
+  // the timer is given this period, so it never actually goes off (it's about 11 days).
+  private static final double CONTROL_LOOP_ONLY_PERIOD = 1e6;
+  
+  // only used when run by the ControlLoop (see useSensorSnapshots())
+  private SensorSnapshot sensorSnapshot = null;
+  
+  // the latest state (see the comment at the top)
+  private volatile PIDState state = new PIDState(0, 0, 0, false, 0);
+  
+  // if this is null, PIDController's usual feedforward (F * setpoint) is used.
+  private volatile Feedforward feedforward = null;
+  
+  /**
+   * Something that gets added to the controller's output (on top of P, I, and D) every time it calculates.
+   * Use this when F * setpoint isn't a good enough guess of what the output should be (see BangBangFeedforward).
+   */
+  public interface Feedforward {
+    /**
+     * @param setpoint
+     * @param measurement The same sensor reading the rest of the controller is using this time.
+     * @return What to add to the output.
+     */
+    public double calculate(double setpoint, double measurement);
+  }
 
   public CustomPIDController(double p, double i, double d, double f, PIDSource source, PIDOutput output, double period) {
     super(p, i, d, f, source, output, period);
+    publishState();
+  }
+  
+  /**
+   * Makes a controller that only runs when the ControlLoop tells it to.
+   * Don't forget to register it with the ControlLoop!
+   */
+  public CustomPIDController(double p, double i, double d, double f, PIDSource source, PIDOutput output) {
+    super(p, i, d, f, source, output, CONTROL_LOOP_ONLY_PERIOD);
+    publishState();
   }
   
   /**
@@ -34,8 +87,8 @@ public class CustomPIDController extends PIDController {
    * within acceptable bounds.
    */
   @Override
-  public synchronized boolean onTarget() {
-    return Math.abs(this.getError()) <= absoluteTolerance;
+  public boolean onTarget() {
+    return state.isOnTarget();
   }
   
   /**
@@ -45,6 +98,7 @@ public class CustomPIDController extends PIDController {
   @Override
   public synchronized void setAbsoluteTolerance(double tolerance) {
     absoluteTolerance = Math.abs(tolerance);
+    publishState();
   }
   
   /**
@@ -60,6 +114,25 @@ public class CustomPIDController extends PIDController {
       super.setSetpoint(0);
     }
     super.enable();
+    publishState();
+  }
+  
+  @Override
+  public synchronized void disable() {
+    super.disable();
+    publishState();
+  }
+  
+  @Override
+  public synchronized void reset() {
+    super.reset();
+    publishState();
+  }
+  
+  @Override
+  public synchronized void setSetpoint(double setpoint) {
+    super.setSetpoint(setpoint);
+    publishState();
   }
   
   /**
@@ -72,6 +145,129 @@ public class CustomPIDController extends PIDController {
    * @param setpoint
    */
   public synchronized void setRelativeSetpoint(double setpoint) {
-    super.setSetpoint(m_pidInput.pidGet() + setpoint);
+    setSetpoint(m_pidInput.pidGet() + setpoint);
+  }
+  
+  /**
+   * @return The setpoint, error, output, etc. all from the same moment.
+   * Never waits on the controller, so it's safe to call as often as you want.
+   */
+  public PIDState getState() {
+    return state;
+  }
+  
+  /**
+   * (from the latest PIDState, see the comment at the top)
+   */
+  @Override
+  public double getError() {
+    return state.getError();
+  }
+  
+  /**
+   * (from the latest PIDState, see the comment at the top)
+   */
+  @Override
+  public double get() {
+    return state.getOutput();
+  }
+  
+  /**
+   * (from the latest PIDState, see the comment at the top)
+   */
+  @Override
+  public boolean isEnabled() {
+    return state.isEnabled();
+  }
+  
+  /**
+   * Replaces the controller's usual feedforward (F * setpoint) with the given one.
+   * @param feedforward the new feedforward, or null to go back to F * setpoint.
+   */
+  public void setFeedforward(Feedforward feedforward) {
+    this.feedforward = feedforward;
+  }
+  
+  @Override
+  protected double calculateFeedForward() {
+    Feedforward currentFeedforward = feedforward;
+    if (currentFeedforward == null) {
+      return super.calculateFeedForward();
+    }
+    return currentFeedforward.calculate(getSetpoint(), m_pidInput.pidGet());
+  }
+  
+  @Override
+  protected void calculate() {
+    super.calculate();
+    publishState();
+  }
+  
+  /**
+   * Replaces the PIDState with the controller's current state.
+   * Only the controller itself changes things, so only the controller calls this.
+   */
+  private synchronized void publishState() {
+    // (super's methods are used here since the ones above just read the old state)
+    state = new PIDState(getSetpoint(), super.getError(), super.get(), super.isEnabled(), absoluteTolerance);
+  }
+  
+  /**
+   * Makes the controller read its sensor only when takeSensorSnapshot() is called,
+   * and use that value until the next snapshot. Only the ControlLoop should call this.
+   */
+  synchronized void useSensorSnapshots() {
+    if (sensorSnapshot == null) {
+      sensorSnapshot = new SensorSnapshot(m_pidInput);
+      sensorSnapshot.update();
+      m_pidInput = sensorSnapshot;
+    }
+  }
+  
+  /**
+   * Reads the sensor. Only the ControlLoop should call this.
+   */
+  void takeSensorSnapshot() {
+    if (sensorSnapshot != null) {
+      sensorSnapshot.update();
+    }
+  }
+  
+  /**
+   * Calculates and sets the output (if enabled). Only the ControlLoop should call this.
+   */
+  void calculateNow() {
+    calculate();
+  }
+  
+  /**
+   * A PIDSource that only reads the real sensor when update() is called.
+   */
+  private static class SensorSnapshot implements PIDSource {
+    private final PIDSource sensor;
+    private volatile double value = 0;
+    
+    SensorSnapshot(PIDSource sensor) {
+      this.sensor = sensor;
+    }
+    
+    void update() {
+      value = sensor.pidGet();
+    }
+    
+    @Override
+    public void setPIDSourceType(PIDSourceType pidSource) {
+      sensor.setPIDSourceType(pidSource);
+    }
+    
+    @Override
+    public PIDSourceType getPIDSourceType() {
+      return sensor.getPIDSourceType();
+    }
+    
+    @Override
+    public double pidGet() {
+      return value;
+    }
   }
 }
@@ -0,0 +1,68 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import edu.wpi.first.wpilibj.Encoder;
+import edu.wpi.first.wpilibj.Utility;
+
+/**
+ * Records an encoder's position (and getRate(), for comparison) every tick of the ControlLoop,
+ * so VelocityEstimator settings can be tried out on real data off the robot (see benchmark/VelocityEstimatorBenchmark).
+ *
+ * Everything is stored in arrays made up front, so recording never allocates anything.
+ * Once the arrays are full, recording just stops. save() writes them to a CSV file:
+ *   time in microseconds, position, rate
+ */
+public class EncoderRecorder implements ControlLoop.Sensor {
+
+  private Encoder encoder;
+  private final long[] timestamps;
+  private final double[] positions;
+  private final double[] rates;
+  private volatile int size = 0;
+
+  /**
+   * @param encoder
+   * @param maxSamples How many samples to record (at 200 Hz, 12000 is 1 minute).
+   */
+  public EncoderRecorder(Encoder encoder, int maxSamples) {
+    this.encoder = encoder;
+    timestamps = new long[maxSamples];
+    positions = new double[maxSamples];
+    rates = new double[maxSamples];
+  }
+
+  @Override
+  public void sample() {
+    int index = size;
+    if (index >= timestamps.length) {
+      return;
+    }
+    timestamps[index] = Utility.getFPGATime();
+    positions[index] = encoder.getDistance();
+    rates[index] = encoder.getRate();
+    size = index + 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Writes everything recorded so far to a CSV file.
+   */
+  public void save(File file) throws IOException {
+    int count = size;
+    try (PrintWriter writer = new PrintWriter(file)) {
+      writer.println("# time (us), position, rate");
+      for (int i = 0; i < count; i++) {
+        writer.println(timestamps[i] + "," + positions[i] + "," + rates[i]);
+      }
+      if (writer.checkError()) {
+        throw new IOException("Couldn't write " + file);
+      }
+    }
+  }
+}
@@ -0,0 +1,312 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.util.function.Supplier;
+
+/**
+ * Decides when to run the feeder in full auto shooting, so balls go out as fast as the flywheel can keep up.
+ *
+ * Every ball takes a chunk of speed out of the flywheel, and it takes a while to get back into tolerance.
+ * Only running the feeder while the flywheel is in tolerance wastes time, since a ball takes a while to get
+ * from the feeder to the flywheel: the feeder stops after every ball, waits for the flywheel to recover,
+ * and only THEN starts moving the next ball (and it chatters on and off the whole time).
+ *
+ * Instead, the time until the flywheel is back in tolerance is predicted, and the feeder starts as soon as
+ * that's less than how long a ball takes to reach the flywheel, so the next ball gets there right as it's ready.
+ * The flywheel recovers in 2 parts (see BangBangFeedforward):
+ * - until it's within the bang-bang window, it gets full voltage. How long that takes comes from its model (see FlywheelFeedforward).
+ * - then the controller eases it the rest of the way into tolerance. That slows down as it gets closer
+ *   (about exponentially), and how fast depends on the P gain and such, so how long it takes is learned
+ *   from watching it happen.
+ *
+ * The prediction needs a model with a real kA (from a characterization) and a learned easing-in time.
+ * Until there's both, the feeder only runs while the flywheel is actually in tolerance (like it used to),
+ * so an uncharacterized flywheel never gets balls fed into it while it's still spinning up.
+ *
+ * Balls going out are spotted from the flywheel's speed: a drop of more than SHOT_DROP below the highest
+ * speed since the last ball. That's used to:
+ * - learn how long a ball takes to reach the flywheel (from when the feeder starts until the next ball goes out)
+ * - keep track of how many balls per second are going out, the average time between balls (the cadence),
+ *   and how many of them left with the flywheel in tolerance.
+ *
+ * benchmark/FlywheelSimulation compares it to only feeding in tolerance.
+ * update() is meant to be called every tick of the ControlLoop; everything else can be called from anywhere.
+ */
+public class FeedScheduler {
+
+  public enum State { HOLDING, RECOVERING, FEEDING }
+
+  // Ball Detection
+  // a drop of more than this (rev/s) below the highest speed since the last ball counts as a ball going out.
+  private final double SHOT_DROP = 2;
+  // after a ball, the speed keeps dropping for a bit (the speed measurement lags), so no new ball is looked for until this is up.
+  private final double SHOT_HOLDOFF_SECONDS = 0.06;
+
+  // Feed Latency (how long a ball takes to get from the feeder to the flywheel, as seen by the speed measurement)
+  private final double DEFAULT_FEED_LATENCY_SECONDS = 0.1;
+  private final double MIN_FEED_LATENCY_SECONDS = 0.02;
+  private final double MAX_FEED_LATENCY_SECONDS = 0.5;
+  private final double FEED_LATENCY_LEARNING_RATE = 0.2;
+  // the next ball is timed to get there this much after the flywheel is predicted to be ready, to be safe.
+  private final double READY_MARGIN_SECONDS = 0.02;
+
+  // Stats
+  // balls per second is counted over this long.
+  private final double BALLS_PER_SECOND_WINDOW_SECONDS = 2;
+  private final double CADENCE_SMOOTHING = 0.3;
+  private final int MAX_SHOT_TIMES = 64;
+
+  // Recovery
+  private final double APPROACH_LEARNING_RATE = 0.3;
+
+  private Supplier<FlywheelFeedforward> model;
+  private double bangBangWindow;
+  private double feedLatency = DEFAULT_FEED_LATENCY_SECONDS;
+  // how fast the speed closes in on the setpoint once it's within the bang-bang window (seconds to get 1 - 1/e closer).
+  // NaN until it's been seen (nothing is predicted until then).
+  private double approachTimeConstant = Double.NaN;
+  private double approachStartTime = Double.NaN;
+  private double previousSpeed = Double.NaN;
+
+  private State state = State.HOLDING;
+  private double lastUpdateTime = 0;
+  private double feedStartTime = Double.NaN;
+  private double feedStopTime = Double.NaN;
+  private boolean shotSinceFeedStart = false;
+  private double peakSpeed = 0;
+  private double lastShotTime = Double.NaN;
+  private double secondsToReady = Double.POSITIVE_INFINITY;
+
+  // (ring buffer of when the last few balls went out)
+  private final double[] shotTimes = new double[MAX_SHOT_TIMES];
+  private int shots = 0;
+  private int shotsInTolerance = 0;
+  private double cadence = 0;
+
+  /**
+   * @param model Where to get the flywheel's model from (it can change, like after a characterization).
+   * @param bangBangWindow How far below the setpoint the flywheel gets full voltage (see BangBangFeedforward).
+   */
+  public FeedScheduler(Supplier<FlywheelFeedforward> model, double bangBangWindow) {
+    this.model = model;
+    this.bangBangWindow = bangBangWindow;
+  }
+
+  /**
+   * @param time The current time (seconds).
+   * @param speed How fast the flywheel is spinning (revolutions / second).
+   * @param setpoint How fast it should be spinning.
+   * @param tolerance How far off it can be and still shoot.
+   * @param batteryVolts The battery's voltage (what the flywheel has to recover with).
+   * @param allowed Whether anything else is stopping the shot (like the turret not being on target yet).
+   * @return Whether to run the feeder.
+   */
+  public synchronized boolean update(double time, double speed, double setpoint, double tolerance,
+                                     double batteryVolts, boolean allowed) {
+    lastUpdateTime = time;
+
+    // 1) look for a ball going out. Balls only go out while feeding (or just after, if one was already on its way),
+    // otherwise a drop is just the flywheel slowing down on purpose.
+    boolean mightBeShooting = (state == State.FEEDING) || (time - feedStopTime <= feedLatency);
+    if (!mightBeShooting || time - lastShotTime < SHOT_HOLDOFF_SECONDS) {
+      peakSpeed = speed;
+    } else if (speed < peakSpeed - SHOT_DROP) {
+      recordShot(time, setpoint, tolerance);
+      peakSpeed = speed;
+    } else {
+      peakSpeed = Math.max(peakSpeed, speed);
+    }
+
+    // 2) how long until the flywheel is ready
+    learnApproach(time, speed, setpoint, tolerance);
+    if (Math.abs(setpoint - speed) <= tolerance) {
+      secondsToReady = 0;
+    } else if (speed < setpoint) {
+      secondsToReady = predictRecoverySeconds(speed, setpoint, tolerance, batteryVolts);
+    } else {
+      // too fast; wait for it to coast down into tolerance
+      secondsToReady = Double.POSITIVE_INFINITY;
+    }
+
+    // 3) feed if the next ball would get there after the flywheel is ready
+    State newState;
+    if (!allowed) {
+      newState = State.HOLDING;
+    } else if (secondsToReady + READY_MARGIN_SECONDS <= feedLatency) {
+      newState = State.FEEDING;
+    } else {
+      newState = State.RECOVERING;
+    }
+    if (newState == State.FEEDING && state != State.FEEDING) {
+      feedStartTime = time;
+      shotSinceFeedStart = false;
+    } else if (newState != State.FEEDING && state == State.FEEDING) {
+      feedStopTime = time;
+    }
+    state = newState;
+    return state == State.FEEDING;
+  }
+
+  /**
+   * @return Whether there's enough to go on to predict how long the flywheel will take to recover:
+   * a model with kV and kA (from a characterization), and a learned easing-in time.
+   */
+  private boolean canPredict(FlywheelFeedforward currentModel) {
+    return currentModel.kV > 0 && currentModel.kA > 0 && !Double.isNaN(approachTimeConstant);
+  }
+
+  /**
+   * @return How long (seconds) the flywheel should take to get from speed into tolerance,
+   * or infinity if it can't be predicted (so the feeder waits until it's actually in tolerance).
+   */
+  private double predictRecoverySeconds(double speed, double setpoint, double tolerance, double batteryVolts) {
+    FlywheelFeedforward currentModel = model.get();
+    if (tolerance <= 0 || !canPredict(currentModel)) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double modelTimeConstant = currentModel.kA / currentModel.kV;
+    double approachStart = setpoint - Math.max(bangBangWindow, tolerance);
+
+    // 1) full voltage up to the bang-bang window. The speed heads toward topSpeed, getting (1 - 1/e) closer every kA / kV seconds.
+    double seconds = 0;
+    if (speed < approachStart) {
+      double topSpeed = (batteryVolts - currentModel.kS) / currentModel.kV;
+      if (topSpeed <= approachStart) {
+        return Double.POSITIVE_INFINITY;
+      }
+      seconds += modelTimeConstant * Math.log((topSpeed - speed) / (topSpeed - approachStart));
+    }
+
+    // 2) easing in from the bang-bang window to the tolerance
+    double error = setpoint - Math.max(speed, approachStart);
+    if (error > tolerance) {
+      seconds += approachTimeConstant * Math.log(error / tolerance);
+    }
+    return seconds;
+  }
+
+  /**
+   * Times how long the flywheel takes to get from the edge of the bang-bang window into tolerance.
+   */
+  private void learnApproach(double time, double speed, double setpoint, double tolerance) {
+    double approachStart = setpoint - bangBangWindow;
+    if (bangBangWindow <= tolerance || tolerance <= 0) {
+      // (nothing to learn)
+      approachStartTime = Double.NaN;
+    } else if (speed < approachStart) {
+      approachStartTime = Double.NaN;
+    } else if (previousSpeed < approachStart && speed < setpoint - tolerance) {
+      approachStartTime = time;
+    } else if (!Double.isNaN(approachStartTime) && speed >= setpoint - tolerance) {
+      double observedTimeConstant = (time - approachStartTime) / Math.log(bangBangWindow / tolerance);
+      approachTimeConstant = Double.isNaN(approachTimeConstant) ? observedTimeConstant
+          : approachTimeConstant + (observedTimeConstant - approachTimeConstant) * APPROACH_LEARNING_RATE;
+      approachStartTime = Double.NaN;
+    }
+    previousSpeed = speed;
+  }
+
+  private void recordShot(double time, double setpoint, double tolerance) {
+    // the speed right before the ball is the highest speed since the last one
+    if (Math.abs(setpoint - peakSpeed) <= tolerance) {
+      shotsInTolerance++;
+    }
+    // the first ball after the feeder starts shows how long a ball takes to get to the flywheel
+    if (state == State.FEEDING && !shotSinceFeedStart) {
+      double latency = Math.max(MIN_FEED_LATENCY_SECONDS, Math.min(MAX_FEED_LATENCY_SECONDS, time - feedStartTime));
+      feedLatency += (latency - feedLatency) * FEED_LATENCY_LEARNING_RATE;
+    }
+    shotSinceFeedStart = true;
+
+    double sinceLastShot = time - lastShotTime;
+    if (sinceLastShot < BALLS_PER_SECOND_WINDOW_SECONDS) {
+      cadence = (cadence == 0) ? sinceLastShot : cadence + (sinceLastShot - cadence) * CADENCE_SMOOTHING;
+    }
+    lastShotTime = time;
+    shotTimes[shots % shotTimes.length] = time;
+    shots++;
+  }
+
+  /**
+   * Forgets the stats and where things were (but not what's been learned), like when full auto shooting starts.
+   */
+  public synchronized void reset() {
+    state = State.HOLDING;
+    feedStartTime = Double.NaN;
+    feedStopTime = Double.NaN;
+    shotSinceFeedStart = false;
+    peakSpeed = 0;
+    lastShotTime = Double.NaN;
+    secondsToReady = Double.POSITIVE_INFINITY;
+    approachStartTime = Double.NaN;
+    previousSpeed = Double.NaN;
+    shots = 0;
+    shotsInTolerance = 0;
+    cadence = 0;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return How many balls went out over the last BALLS_PER_SECOND_WINDOW_SECONDS, per second.
+   */
+  public synchronized double getBallsPerSecond() {
+    int count = 0;
+    int remembered = Math.min(shots, shotTimes.length);
+    for (int i = 0; i < remembered; i++) {
+      if (lastUpdateTime - shotTimes[i] <= BALLS_PER_SECOND_WINDOW_SECONDS) {
+        count++;
+      }
+    }
+    return count / BALLS_PER_SECOND_WINDOW_SECONDS;
+  }
+
+  /**
+   * @return The average time between balls lately (seconds), or 0 if there haven't been 2 balls close enough together.
+   */
+  public synchronized double getCadenceSeconds() {
+    return cadence;
+  }
+
+  public synchronized int getShots() {
+    return shots;
+  }
+
+  /**
+   * @return How many balls left while the flywheel was in tolerance.
+   */
+  public synchronized int getShotsInTolerance() {
+    return shotsInTolerance;
+  }
+
+  /**
+   * @return How long a ball takes to get from the feeder to the flywheel (seconds, learned as it goes).
+   */
+  public synchronized double getFeedLatencySeconds() {
+    return feedLatency;
+  }
+
+  /**
+   * @return How fast the flywheel closes in on the setpoint once it's within the bang-bang window
+   * (seconds to get 1 - 1/e closer, learned as it goes), or NaN if it hasn't been seen yet.
+   */
+  public synchronized double getApproachTimeConstant() {
+    return approachTimeConstant;
+  }
+
+  /**
+   * @return Whether the feeder is being timed from the predicted recovery (false = it only runs in tolerance, see canPredict()).
+   */
+  public synchronized boolean isPredicting() {
+    return canPredict(model.get());
+  }
+
+  /**
+   * @return How long until the flywheel is predicted to be in tolerance 
+   * (seconds, 0 if it already is, infinity if it can't be predicted).
+   */
+  public synchronized double getSecondsToReady() {
+    return secondsToReady;
+  }
+}
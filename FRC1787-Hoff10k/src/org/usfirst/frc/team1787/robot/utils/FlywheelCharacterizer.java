@@ -0,0 +1,200 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.util.ArrayList;
+
+/**
+ * Figures out the flywheel's kS, kV, and kA (see FlywheelFeedforward) by actually running it.
+ *
+ * The routine has 4 parts:
+ * 1) Ramp: slowly raise the voltage (so the flywheel is barely accelerating, which shows kS and kV).
+ * 2) Coast: turn the motor off and wait for the flywheel to stop.
+ * 3) Step: apply a fixed voltage all at once (so the flywheel accelerates hard, which shows kA).
+ * 4) Done: the motor is off, and the gains are found with a least squares fit to every sample
+ *    from the ramp and step (see getResult()).
+ *
+ * This class doesn't touch any hardware; something else has to call update() regularly
+ * with what the flywheel is doing, and apply the voltage it returns (on the robot, test mode does this).
+ * That way the same routine can also be run against a simulated flywheel.
+ */
+public class FlywheelCharacterizer {
+
+  // Routine Settings
+  private final double RAMP_VOLTS_PER_SECOND = 0.5;
+  private final double RAMP_MAX_VOLTS = 7;
+  private final double STEP_VOLTS = 6;
+  private final double STEP_SECONDS = 3;
+  // the flywheel counts as stopped when it's going slower than this (revolutions / second)
+  private final double STOPPED_VELOCITY = 0.5;
+  private final double MAX_COAST_SECONDS = 15;
+
+  // Fit Settings
+  // samples where the flywheel is barely moving are left out, since friction acts weird there.
+  private final double MIN_VELOCITY_TO_FIT = 1;
+  // acceleration is found from the velocity this many samples before and after,
+  // since the difference between 2 neighboring samples is mostly encoder noise.
+  private final int ACCELERATION_HALF_WINDOW = 5;
+
+  public enum Phase { RAMP, COAST, STEP, DONE }
+
+  private Phase phase = Phase.RAMP;
+  private double phaseStartTime = Double.NaN;
+
+  // the samples from each part of the routine (time, volts, velocity), kept separate
+  // so accelerations are never calculated across the boundary between the ramp and the step.
+  private ArrayList<double[]> rampSamples = new ArrayList<double[]>();
+  private ArrayList<double[]> stepSamples = new ArrayList<double[]>();
+
+  private FlywheelFeedforward result = null;
+  private double rSquared = 0;
+
+  /**
+   * Records what the flywheel is doing and decides the next voltage to apply.
+   * Call this regularly (every 10-20 ms is good) until isDone().
+   *
+   * @param timeSeconds The current time.
+   * @param appliedVolts The voltage that's actually being applied to the motor right now.
+   * @param velocity How fast the flywheel is spinning right now (revolutions / second).
+   * @return The voltage to apply to the motor until the next update.
+   */
+  public double update(double timeSeconds, double appliedVolts, double velocity) {
+    if (Double.isNaN(phaseStartTime)) {
+      phaseStartTime = timeSeconds;
+    }
+    double timeInPhase = timeSeconds - phaseStartTime;
+
+    if (phase == Phase.RAMP) {
+      rampSamples.add(new double[] {timeSeconds, appliedVolts, velocity});
+      double volts = timeInPhase * RAMP_VOLTS_PER_SECOND;
+      if (volts < RAMP_MAX_VOLTS) {
+        return volts;
+      }
+      startPhase(Phase.COAST, timeSeconds);
+      return 0;
+    } else if (phase == Phase.COAST) {
+      if (Math.abs(velocity) > STOPPED_VELOCITY && timeInPhase < MAX_COAST_SECONDS) {
+        return 0;
+      }
+      startPhase(Phase.STEP, timeSeconds);
+      return STEP_VOLTS;
+    } else if (phase == Phase.STEP) {
+      stepSamples.add(new double[] {timeSeconds, appliedVolts, velocity});
+      if (timeInPhase < STEP_SECONDS) {
+        return STEP_VOLTS;
+      }
+      startPhase(Phase.DONE, timeSeconds);
+      fit();
+      return 0;
+    }
+    return 0;
+  }
+
+  private void startPhase(Phase newPhase, double timeSeconds) {
+    phase = newPhase;
+    phaseStartTime = timeSeconds;
+  }
+
+  /**
+   * Least squares fit of volts = kS * sign(v) + kV * v + kA * a over every usable sample.
+   */
+  private void fit() {
+    // sums for the normal equations (X^T X) k = X^T y, where each row of X is [sign(v), v, a]
+    double[][] xtx = new double[3][3];
+    double[] xty = new double[3];
+    double sumY = 0;
+    double sumYSquared = 0;
+    int count = 0;
+
+    ArrayList<ArrayList<double[]>> runs = new ArrayList<ArrayList<double[]>>();
+    runs.add(rampSamples);
+    runs.add(stepSamples);
+    ArrayList<double[]> rows = new ArrayList<double[]>();
+    for (ArrayList<double[]> samples : runs) {
+      for (int i = ACCELERATION_HALF_WINDOW; i < samples.size() - ACCELERATION_HALF_WINDOW; i++) {
+        double[] before = samples.get(i - ACCELERATION_HALF_WINDOW);
+        double[] after = samples.get(i + ACCELERATION_HALF_WINDOW);
+        double[] sample = samples.get(i);
+        double dt = after[0] - before[0];
+        if (dt <= 0 || Math.abs(sample[2]) < MIN_VELOCITY_TO_FIT) {
+          continue;
+        }
+        double acceleration = (after[2] - before[2]) / dt;
+        double[] row = {Math.signum(sample[2]), sample[2], acceleration, sample[1]};
+        rows.add(row);
+        for (int r = 0; r < 3; r++) {
+          for (int c = 0; c < 3; c++) {
+            xtx[r][c] += row[r] * row[c];
+          }
+          xty[r] += row[r] * row[3];
+        }
+        sumY += row[3];
+        sumYSquared += row[3] * row[3];
+        count++;
+      }
+    }
+
+    double[] k = solve3x3(xtx, xty);
+    if (count < 3 || k == null) {
+      // not enough data (for example, the encoder isn't plugged in)
+      result = null;
+      return;
+    }
+    result = new FlywheelFeedforward(k[0], k[1], k[2]);
+
+    // how much of the variation in voltage the model explains (1 = perfect)
+    double residualSquared = 0;
+    for (double[] row : rows) {
+      double error = row[3] - result.calculate(row[1], row[2]);
+      residualSquared += error * error;
+    }
+    double totalSquared = sumYSquared - sumY * sumY / count;
+    rSquared = (totalSquared > 0) ? 1 - residualSquared / totalSquared : 0;
+  }
+
+  /**
+   * Solves a * x = b with Cramer's rule.
+   * @return x, or null if a can't be inverted.
+   */
+  private static double[] solve3x3(double[][] a, double[] b) {
+    double det = determinant(a[0][0], a[0][1], a[0][2], a[1][0], a[1][1], a[1][2], a[2][0], a[2][1], a[2][2]);
+    if (Math.abs(det) < 1e-12) {
+      return null;
+    }
+    double[] x = new double[3];
+    for (int col = 0; col < 3; col++) {
+      double[][] m = new double[3][];
+      for (int r = 0; r < 3; r++) {
+        m[r] = a[r].clone();
+        m[r][col] = b[r];
+      }
+      x[col] = determinant(m[0][0], m[0][1], m[0][2], m[1][0], m[1][1], m[1][2], m[2][0], m[2][1], m[2][2]) / det;
+    }
+    return x;
+  }
+
+  private static double determinant(double a, double b, double c, double d, double e, double f, double g, double h, double i) {
+    return a * (e * i - f * h) - b * (d * i - f * g) + c * (d * h - e * g);
+  }
+
+  public Phase getPhase() {
+    return phase;
+  }
+
+  public boolean isDone() {
+    return phase == Phase.DONE;
+  }
+
+  /**
+   * @return The fitted gains, or null if the routine isn't done or there wasn't enough good data.
+   */
+  public FlywheelFeedforward getResult() {
+    return result;
+  }
+
+  /**
+   * @return How well the fitted gains match the data (1 = perfectly, 0 = not at all).
+   * Anything under about 0.9 probably means something went wrong.
+   */
+  public double getRSquared() {
+    return rSquared;
+  }
+}
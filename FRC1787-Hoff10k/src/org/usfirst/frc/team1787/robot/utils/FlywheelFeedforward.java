@@ -0,0 +1,47 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+/**
+ * A simple model of how many volts a motor + mechanism needs to spin at a given speed:
+ *
+ *   volts = kS * sign(velocity) + kV * velocity + kA * acceleration
+ *
+ * - kS is the voltage it takes just to get the mechanism to start moving (friction).
+ * - kV is how many volts it takes to spin 1 unit / second faster and stay there.
+ * - kA is how many volts it takes to speed up by 1 unit / second, every second.
+ *
+ * For the flywheel, the units are revolutions (so velocity is in revolutions / second).
+ * The numbers come from running the flywheel through a characterization routine (see FlywheelCharacterizer).
+ */
+public class FlywheelFeedforward {
+
+  public final double kS;
+  public final double kV;
+  public final double kA;
+
+  public FlywheelFeedforward(double kS, double kV, double kA) {
+    this.kS = kS;
+    this.kV = kV;
+    this.kA = kA;
+  }
+
+  /**
+   * @param velocity The speed to spin at.
+   * @param acceleration How fast the speed should be changing.
+   * @return How many volts that should take.
+   */
+  public double calculate(double velocity, double acceleration) {
+    return kS * Math.signum(velocity) + kV * velocity + kA * acceleration;
+  }
+
+  /**
+   * @return How many volts it should take to hold the given speed.
+   */
+  public double calculate(double velocity) {
+    return calculate(velocity, 0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("kS = %.4f V, kV = %.5f V/(rev/s), kA = %.5f V/(rev/s^2)", kS, kV, kA);
+  }
+}
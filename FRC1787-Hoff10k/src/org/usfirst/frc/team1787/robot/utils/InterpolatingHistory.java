@@ -0,0 +1,102 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+/**
+ * Remembers the last few values of something (like a gyro angle) along with when they were measured,
+ * so you can ask what the value was at some point in the past.
+ *
+ * This is used for latency compensation: by the time a camera frame has been processed, the turret
+ * has already moved, so the error found in the frame has to be compared against where the turret
+ * was when the frame was taken, not where it is now.
+ *
+ * Values are stored in a ring buffer (arrays that get written to in a circle), so once it's full,
+ * each new value replaces the oldest one. Nothing is allocated after construction.
+ * If the time asked for is in between two samples, the value is interpolated between them.
+ *
+ * add() and get() can be called from different threads.
+ */
+public class InterpolatingHistory {
+
+  private final long[] timestamps;
+  private final double[] values;
+  // index that the next sample will be written to
+  private int next = 0;
+  private int size = 0;
+
+  /**
+   * @param capacity How many samples to remember.
+   * (for example, sampling every 10ms with a capacity of 100 remembers the last second)
+   */
+  public InterpolatingHistory(int capacity) {
+    timestamps = new long[capacity];
+    values = new double[capacity];
+  }
+
+  /**
+   * @param timestamp When the value was measured, in microseconds (like Utility.getFPGATime()).
+   * Must be later than the timestamp of the last value added.
+   * @param value
+   */
+  public synchronized void add(long timestamp, double value) {
+    if (size > 0 && timestamp <= timestamps[indexOf(size - 1)]) {
+      return;
+    }
+    timestamps[next] = timestamp;
+    values[next] = value;
+    next = (next + 1) % timestamps.length;
+    size = Math.min(size + 1, timestamps.length);
+  }
+
+  /**
+   * @param timestamp The time (in microseconds) to look up.
+   * @return The value at the given time. If the time is before the oldest sample or after the newest one,
+   * the oldest or newest value is returned. If nothing has been added yet, 0 is returned.
+   */
+  public synchronized double get(long timestamp) {
+    if (size == 0) {
+      return 0;
+    }
+    if (timestamp <= timestamps[indexOf(0)]) {
+      return values[indexOf(0)];
+    }
+    if (timestamp >= timestamps[indexOf(size - 1)]) {
+      return values[indexOf(size - 1)];
+    }
+
+    // binary search for the last sample at or before the given time
+    int low = 0;
+    int high = size - 1;
+    while (high - low > 1) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[indexOf(mid)] <= timestamp) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+
+    int before = indexOf(low);
+    int after = indexOf(high);
+    double fraction = (double) (timestamp - timestamps[before]) / (timestamps[after] - timestamps[before]);
+    return values[before] + (fraction * (values[after] - values[before]));
+  }
+
+  /**
+   * @return The timestamp of the newest sample, or 0 if there aren't any.
+   */
+  public synchronized long getNewestTimestamp() {
+    return (size == 0) ? 0 : timestamps[indexOf(size - 1)];
+  }
+
+  public synchronized void clear() {
+    next = 0;
+    size = 0;
+  }
+
+  /**
+   * @return The index in the arrays of the i-th oldest sample (0 = oldest).
+   */
+  private int indexOf(int i) {
+    int oldest = (size < timestamps.length) ? 0 : next;
+    return (oldest + i) % timestamps.length;
+  }
+}
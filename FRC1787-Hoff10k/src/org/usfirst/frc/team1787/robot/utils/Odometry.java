@@ -0,0 +1,118 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Keeps track of where the robot is on the field, from how far each side of the drivetrain has driven
+ * and which way the robot is facing.
+ *
+ * Every update(), the distance the robot drove since the last one (the average of the 2 sides) is added on
+ * in the direction it was facing halfway through (the average of the old and new heading). That's a lot closer
+ * than using either the old or the new heading when the robot is turning, and since update() runs every few
+ * milliseconds, each little piece is short enough that the error is tiny.
+ *
+ * The heading comes from its own source, so a gyro can be swapped in for the encoder heading later on
+ * without changing anything here. Only how much the sources change between updates is used, so they don't
+ * have to be zeroed when the pose is reset.
+ *
+ * Every pose is saved in a PoseHistory, so the pose at any recent moment can be looked up (see getPoseAt()).
+ * update() is meant to be run on its own thread at a fixed rate (see DriveTrain), and everything else
+ * can be called from any thread.
+ */
+public class Odometry {
+
+  private final DoubleSupplier leftDistance;
+  private final DoubleSupplier rightDistance;
+  private final DoubleSupplier headingDegrees;
+  private final PoseHistory history;
+
+  // what the sources said last time (only valid once started)
+  private boolean started = false;
+  private double lastLeft = 0;
+  private double lastRight = 0;
+  private double lastHeading = 0;
+
+  // the pose, as of the last update
+  private double x = 0;
+  private double y = 0;
+  private double heading = 0;
+  private volatile Pose pose = new Pose(0, 0, 0, 0);
+
+  /**
+   * @param leftDistance How far the left side has driven (meters, forward = positive).
+   * @param rightDistance How far the right side has driven (meters, forward = positive).
+   * @param headingDegrees Which way the robot is facing (degrees, counter-clockwise).
+   * @param historySize How many poses to remember (see PoseHistory).
+   */
+  public Odometry(DoubleSupplier leftDistance, DoubleSupplier rightDistance, DoubleSupplier headingDegrees,
+                  int historySize) {
+    this.leftDistance = leftDistance;
+    this.rightDistance = rightDistance;
+    this.headingDegrees = headingDegrees;
+    history = new PoseHistory(historySize);
+  }
+
+  /**
+   * Reads the sources and moves the pose along by however much the robot moved since the last update.
+   * @param timestamp The time right now, in microseconds (like Utility.getFPGATime()).
+   */
+  public synchronized void update(long timestamp) {
+    double left = leftDistance.getAsDouble();
+    double right = rightDistance.getAsDouble();
+    double newHeading = headingDegrees.getAsDouble();
+    if (!started) {
+      // nothing to compare to yet, so this is just where the robot starts
+      started = true;
+    } else {
+      double distance = ((left - lastLeft) + (right - lastRight)) / 2.0;
+      double headingChange = newHeading - lastHeading;
+      double averageHeading = Math.toRadians(heading + (headingChange / 2.0));
+      x += distance * Math.cos(averageHeading);
+      y += distance * Math.sin(averageHeading);
+      heading += headingChange;
+    }
+    lastLeft = left;
+    lastRight = right;
+    lastHeading = newHeading;
+
+    history.add(timestamp, x, y, heading);
+    pose = new Pose(timestamp, x, y, heading);
+  }
+
+  /**
+   * Says the robot is at the given pose right now (like at the start of autonomous), and forgets the old poses.
+   * @param x meters
+   * @param y meters
+   * @param headingDegrees counter-clockwise
+   */
+  public synchronized void reset(double x, double y, double headingDegrees) {
+    this.x = x;
+    this.y = y;
+    heading = headingDegrees;
+    // (the sources are read again on the next update, so it doesn't matter if they were just zeroed too)
+    started = false;
+    history.clear();
+    pose = new Pose(0, x, y, headingDegrees);
+  }
+
+  /**
+   * @return The pose as of the last update. Never waits on the odometry thread.
+   */
+  public Pose getPose() {
+    return pose;
+  }
+
+  /**
+   * @param timestamp A recent time, in microseconds (FPGA time, like Utility.getFPGATime()).
+   * @return Where the robot was at that time (interpolated between updates). Times older than the history
+   * get the oldest pose, and times after the last update get the newest one.
+   */
+  public Pose getPoseAt(long timestamp) {
+    Pose past = history.get(timestamp);
+    return (past != null) ? past : pose;
+  }
+
+  public PoseHistory getHistory() {
+    return history;
+  }
+}
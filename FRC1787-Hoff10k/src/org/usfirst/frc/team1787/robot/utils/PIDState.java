@@ -0,0 +1,56 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+/**
+ * Everything about a CustomPIDController that the rest of the code usually wants to know,
+ * all from the same moment in time.
+ *
+ * These never change once they're made. The controller makes a new one every time something changes,
+ * and hands it out by swapping a single volatile reference (see CustomPIDController.getState()),
+ * so reading one never has to wait for (or hold up) the thread that runs the controller.
+ */
+public class PIDState {
+
+  private final double setpoint;
+  private final double error;
+  private final double output;
+  private final boolean enabled;
+  private final double absoluteTolerance;
+
+  public PIDState(double setpoint, double error, double output, boolean enabled, double absoluteTolerance) {
+    this.setpoint = setpoint;
+    this.error = error;
+    this.output = output;
+    this.enabled = enabled;
+    this.absoluteTolerance = absoluteTolerance;
+  }
+
+  public double getSetpoint() {
+    return setpoint;
+  }
+
+  public double getError() {
+    return error;
+  }
+
+  /**
+   * @return What the controller last set its output to.
+   */
+  public double getOutput() {
+    return output;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public double getAbsoluteTolerance() {
+    return absoluteTolerance;
+  }
+
+  /**
+   * @return if the error is within [-tolerance, tolerance] (see CustomPIDController.onTarget()).
+   */
+  public boolean isOnTarget() {
+    return Math.abs(error) <= absoluteTolerance;
+  }
+}
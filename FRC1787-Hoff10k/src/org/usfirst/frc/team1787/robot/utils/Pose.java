@@ -0,0 +1,63 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+/**
+ * Where the robot is on the field (and which way it's facing) at some moment, according to the Odometry.
+ *
+ * The position is in meters from where the robot was when the odometry was last reset:
+ * x is forward and y is to the left (of the way the robot was facing then).
+ * The heading is counter-clockwise in degrees, like DriveTrain.getHeadingDegrees(),
+ * and isn't wrapped to 0-360 (turning around twice is 720 degrees).
+ *
+ * These never change once they're made, so they can be handed between threads freely.
+ */
+public class Pose {
+
+  private final long timestamp;
+  private final double x;
+  private final double y;
+  private final double headingDegrees;
+
+  /**
+   * @param timestamp When the robot was here, in microseconds (FPGA time, like Utility.getFPGATime()).
+   */
+  public Pose(long timestamp, double x, double y, double headingDegrees) {
+    this.timestamp = timestamp;
+    this.x = x;
+    this.y = y;
+    this.headingDegrees = headingDegrees;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return How far forward (meters) of where the odometry was reset.
+   */
+  public double getX() {
+    return x;
+  }
+
+  /**
+   * @return How far to the left (meters) of where the odometry was reset.
+   */
+  public double getY() {
+    return y;
+  }
+
+  public double getHeadingDegrees() {
+    return headingDegrees;
+  }
+
+  /**
+   * @return The straight line distance (meters) from here to the given point.
+   */
+  public double distanceTo(double x, double y) {
+    return Math.hypot(x - this.x, y - this.y);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("(%.3f m, %.3f m, %.1f deg)", x, y, headingDegrees);
+  }
+}
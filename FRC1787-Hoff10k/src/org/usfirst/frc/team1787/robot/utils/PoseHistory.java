@@ -0,0 +1,128 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+/**
+ * Remembers the robot's last few poses along with when they were measured, so you can ask where the robot was
+ * at some point in the past (like InterpolatingHistory, but for a whole Pose).
+ *
+ * This is what lets autonomous, aiming, and logging find out where the robot was at any recent moment
+ * (for example, when a camera frame was taken) without reading any sensors themselves.
+ *
+ * Poses are stored in a ring buffer of primitives (one array each for the timestamps, x, y, and heading),
+ * so once it's full, each new pose replaces the oldest one, and adding a pose never allocates anything.
+ * If the time asked for is in between two samples, the pose is interpolated between them.
+ *
+ * add() and get() can be called from different threads.
+ */
+public class PoseHistory {
+
+  private final long[] timestamps;
+  private final double[] xs;
+  private final double[] ys;
+  private final double[] headings;
+  // index that the next sample will be written to
+  private int next = 0;
+  private int size = 0;
+
+  /**
+   * @param capacity How many poses to remember.
+   * (for example, sampling every 5ms with a capacity of 400 remembers the last 2 seconds)
+   */
+  public PoseHistory(int capacity) {
+    timestamps = new long[capacity];
+    xs = new double[capacity];
+    ys = new double[capacity];
+    headings = new double[capacity];
+  }
+
+  /**
+   * @param timestamp When the robot was there, in microseconds (like Utility.getFPGATime()).
+   * Must be later than the timestamp of the last pose added.
+   */
+  public synchronized void add(long timestamp, double x, double y, double headingDegrees) {
+    if (size > 0 && timestamp <= timestamps[indexOf(size - 1)]) {
+      return;
+    }
+    timestamps[next] = timestamp;
+    xs[next] = x;
+    ys[next] = y;
+    headings[next] = headingDegrees;
+    next = (next + 1) % timestamps.length;
+    size = Math.min(size + 1, timestamps.length);
+  }
+
+  /**
+   * @param timestamp The time (in microseconds) to look up.
+   * @return Where the robot was at the given time. If the time is before the oldest pose or after the newest one,
+   * the oldest or newest pose is returned. If nothing has been added yet, null is returned.
+   */
+  public synchronized Pose get(long timestamp) {
+    if (size == 0) {
+      return null;
+    }
+    if (timestamp <= timestamps[indexOf(0)]) {
+      return poseAt(indexOf(0));
+    }
+    if (timestamp >= timestamps[indexOf(size - 1)]) {
+      return poseAt(indexOf(size - 1));
+    }
+
+    // binary search for the last pose at or before the given time
+    int low = 0;
+    int high = size - 1;
+    while (high - low > 1) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[indexOf(mid)] <= timestamp) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+
+    int before = indexOf(low);
+    int after = indexOf(high);
+    double fraction = (double) (timestamp - timestamps[before]) / (timestamps[after] - timestamps[before]);
+    // (the heading isn't wrapped, so it can be interpolated just like x and y)
+    return new Pose(timestamp,
+                    xs[before] + (fraction * (xs[after] - xs[before])),
+                    ys[before] + (fraction * (ys[after] - ys[before])),
+                    headings[before] + (fraction * (headings[after] - headings[before])));
+  }
+
+  /**
+   * @return The newest pose, or null if there aren't any.
+   */
+  public synchronized Pose getNewest() {
+    return (size == 0) ? null : poseAt(indexOf(size - 1));
+  }
+
+  /**
+   * @return The timestamp of the oldest pose still remembered, or 0 if there aren't any.
+   */
+  public synchronized long getOldestTimestamp() {
+    return (size == 0) ? 0 : timestamps[indexOf(0)];
+  }
+
+  /**
+   * @return The timestamp of the newest pose, or 0 if there aren't any.
+   */
+  public synchronized long getNewestTimestamp() {
+    return (size == 0) ? 0 : timestamps[indexOf(size - 1)];
+  }
+
+  public synchronized void clear() {
+    next = 0;
+    size = 0;
+  }
+
+  private Pose poseAt(int index) {
+    return new Pose(timestamps[index], xs[index], ys[index], headings[index]);
+  }
+
+  /**
+   * @return The index in the arrays of the i-th oldest pose (0 = oldest).
+   */
+  private int indexOf(int i) {
+    int oldest = (size < timestamps.length) ? 0 : next;
+    return (oldest + i) % timestamps.length;
+  }
+}
@@ -0,0 +1,140 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Works out how to aim and how hard to shoot while the robot is driving.
+ *
+ * A ball keeps the robot's velocity when it leaves the turret. So if the robot is moving,
+ * a shot aimed straight at the target (at the speed for that distance) gets carried off to the side,
+ * or lands short or long. The fix is to aim at a "virtual target" instead: where the target
+ * would be if it moved backwards along the robot's velocity for as long as the ball is in the air.
+ * Shooting at that spot as if the robot were sitting still puts the ball in the real target.
+ *
+ * The time the ball is in the air depends on how far away the virtual target is (and moving the
+ * virtual target changes that time), so the two are worked out back and forth a few times.
+ * It settles down fast, since the robot is a lot slower than the ball.
+ *
+ * The robot's velocity here is the velocity of the turret itself, which includes the turret swinging
+ * around when the robot turns (the turret isn't at the robot's center of rotation).
+ *
+ * See benchmark/ShootOnTheMoveSimulation for how well it hits.
+ */
+public class ShotSolver {
+
+  // how many times to go back and forth between the time of flight and the virtual target (at most).
+  private final int MAX_ITERATIONS = 5;
+  // stop going back and forth once the time of flight changes by less than this (seconds).
+  private final double TIME_OF_FLIGHT_TOLERANCE = 0.001;
+
+  // how long (seconds) the ball takes to go a given horizontal distance (meters), when shot from standing still.
+  private DoubleUnaryOperator timeOfFlight;
+  // how far in front of the robot's center of rotation the turret is (meters, negative = behind).
+  private volatile double turretOffsetMeters;
+
+  /**
+   * The result of solve(). Never changes once it's made.
+   */
+  public static class Solution {
+    private final double leadDegrees;
+    private final double effectiveDistance;
+    private final double timeOfFlight;
+
+    public Solution(double leadDegrees, double effectiveDistance, double timeOfFlight) {
+      this.leadDegrees = leadDegrees;
+      this.effectiveDistance = effectiveDistance;
+      this.timeOfFlight = timeOfFlight;
+    }
+
+    /**
+     * @return How far to turn the turret past the target (degrees, clockwise like the turret gyro).
+     */
+    public double getLeadDegrees() {
+      return leadDegrees;
+    }
+
+    /**
+     * @return The distance (meters) to set the flywheel for, as if the robot were standing still.
+     */
+    public double getEffectiveDistance() {
+      return effectiveDistance;
+    }
+
+    /**
+     * @return The time of flight to the virtual target (seconds, from the timeOfFlight given to the constructor).
+     */
+    public double getTimeOfFlight() {
+      return timeOfFlight;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("lead %.2f deg, distance %.2f m, flight %.3f s", leadDegrees, effectiveDistance, timeOfFlight);
+    }
+  }
+
+  /**
+   * @param timeOfFlight How long (seconds) a ball takes to go a given horizontal distance (meters),
+   * when shot from standing still. Leave out air resistance (use the distance divided by the ball's horizontal
+   * exit speed): air resistance slows down the speed the ball got from the robot just as much as the rest of it,
+   * so the real (longer) time of flight leads too much (see benchmark/ShootOnTheMoveSimulation).
+   * @param turretOffsetMeters How far in front of the robot's center of rotation the turret is (negative = behind).
+   */
+  public ShotSolver(DoubleUnaryOperator timeOfFlight, double turretOffsetMeters) {
+    this.timeOfFlight = timeOfFlight;
+    this.turretOffsetMeters = turretOffsetMeters;
+  }
+
+  /**
+   * @param turretOffsetMeters How far in front of the robot's center of rotation the turret is (negative = behind).
+   */
+  public void setTurretOffsetMeters(double turretOffsetMeters) {
+    this.turretOffsetMeters = turretOffsetMeters;
+  }
+
+  /**
+   * @param distance The horizontal distance from the turret to the target (meters).
+   * @param bearingDegrees Where the target is compared to the front of the robot (degrees, clockwise).
+   * @param forwardSpeed How fast the robot is driving forward (meters / second, negative = backwards).
+   * @param turnRateDegreesPerSecond How fast the robot is turning (degrees / second, counter-clockwise like DriveTrain's heading).
+   */
+  public Solution solve(double distance, double bearingDegrees, double forwardSpeed, double turnRateDegreesPerSecond) {
+    // the turret's velocity, in terms of the front and right side of the robot
+    // (turning counter-clockwise swings a turret in front of the center to the left)
+    double turnRate = Math.toRadians(turnRateDegreesPerSecond);
+    double velocityForward = forwardSpeed;
+    double velocityRight = -turnRate * turretOffsetMeters;
+
+    // ...and in terms of the line to the target (toward the target, and to the right of it)
+    double bearing = Math.toRadians(bearingDegrees);
+    double velocityToward = velocityForward * Math.cos(bearing) + velocityRight * Math.sin(bearing);
+    double velocityAcross = -velocityForward * Math.sin(bearing) + velocityRight * Math.cos(bearing);
+    return solveAlongLineToTarget(distance, velocityToward, velocityAcross);
+  }
+
+  /**
+   * Same as above, but with the turret's velocity already in terms of the line to the target.
+   * @param distance The horizontal distance from the turret to the target (meters).
+   * @param velocityToward How fast the turret is moving toward the target (meters / second).
+   * @param velocityAcross How fast the turret is moving to the right, across the line to the target (meters / second).
+   */
+  public Solution solveAlongLineToTarget(double distance, double velocityToward, double velocityAcross) {
+    double flightTime = timeOfFlight.applyAsDouble(distance);
+    double virtualX = distance;
+    double virtualY = 0;
+    for (int i = 0; i < MAX_ITERATIONS; i++) {
+      // the virtual target: the real one, moved back along the turret's velocity for the whole flight
+      virtualX = distance - velocityToward * flightTime;
+      virtualY = -velocityAcross * flightTime;
+      double newFlightTime = timeOfFlight.applyAsDouble(Math.hypot(virtualX, virtualY));
+      boolean settled = Math.abs(newFlightTime - flightTime) < TIME_OF_FLIGHT_TOLERANCE;
+      flightTime = newFlightTime;
+      if (settled) {
+        break;
+      }
+    }
+    virtualX = distance - velocityToward * flightTime;
+    virtualY = -velocityAcross * flightTime;
+    return new Solution(Math.toDegrees(Math.atan2(virtualY, virtualX)), Math.hypot(virtualX, virtualY), flightTime);
+  }
+}
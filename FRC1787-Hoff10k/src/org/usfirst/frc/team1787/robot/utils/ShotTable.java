@@ -0,0 +1,322 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * A table of how fast to spin the flywheel (and optionally the feeder) for a given distance to the target,
+ * made from shots that actually went in, instead of from physics equations (which leave out air resistance, spin, etc.).
+ *
+ * Between the distances in the table, the speed is found with monotone cubic interpolation
+ * (Fritsch-Carlson). It's smooth like a normal spline, but it never overshoots: if the speed goes up from
+ * one entry to the next, the curve between them only goes up too. Past either end of the table,
+ * the closest entry is used.
+ *
+ * The file is plain text, one entry per line (lines starting with # are ignored):
+ *   distance in meters, flywheel revolutions / second[, feeder speed[, shots recorded]]
+ * (a feeder speed that's left empty or is NaN means the table doesn't have feeder speeds)
+ * for example:
+ *   # distance, flywheelRPS, feederSpeed
+ *   2.0, 52.5, 0.42
+ *   3.0, 58.0, 0.45
+ *
+ * The table can also be refined during practice with recordShot(), and written back with save().
+ *
+ * Lookups are safe to call from any thread, never allocate anything, and take O(log n) time:
+ * the interpolation is precomputed into an immutable Curves object, which is swapped out
+ * whenever the table changes (the same idea as PIDState).
+ */
+public class ShotTable {
+
+  public enum ShotResult { MADE, SHORT, LONG }
+
+  // shots recorded this close (in meters) to an entry refine that entry, instead of making a new one.
+  private final double MERGE_DISTANCE = 0.15;
+  // how much a short or long shot changes the flywheel speed (as a fraction of it)
+  private final double MISS_ADJUSTMENT = 0.02;
+
+  /**
+   * One row of the table. Only used while loading, saving, or refining; lookups use the Curves.
+   */
+  private static class Entry {
+    double distance;
+    double flywheelRPS;
+    double feederSpeed;
+    int shots;
+
+    Entry(double distance, double flywheelRPS, double feederSpeed, int shots) {
+      this.distance = distance;
+      this.flywheelRPS = flywheelRPS;
+      this.feederSpeed = feederSpeed;
+      this.shots = shots;
+    }
+  }
+
+  private ArrayList<Entry> entries = new ArrayList<Entry>();
+  private boolean hasFeederSpeeds;
+  private volatile Curves curves;
+
+  private ShotTable(ArrayList<Entry> entries, boolean hasFeederSpeeds) {
+    this.entries = entries;
+    this.hasFeederSpeeds = hasFeederSpeeds;
+    rebuild();
+  }
+
+  /**
+   * Reads a table from a file (see the comment at the top for the format).
+   * @throws IOException if the file can't be read, or doesn't have at least one valid entry.
+   */
+  public static ShotTable load(File file) throws IOException {
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    boolean hasFeederSpeeds = true;
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] values = line.split(",");
+        if (values.length < 2) {
+          throw new IOException(file + " line " + lineNumber + ": expected at least a distance and a flywheel speed");
+        }
+        try {
+          double distance = Double.parseDouble(values[0].trim());
+          double flywheelRPS = Double.parseDouble(values[1].trim());
+          double feederSpeed = (values.length > 2 && !values[2].trim().isEmpty()) ? Double.parseDouble(values[2].trim())
+                                                                                   : Double.NaN;
+          int shots = (values.length > 3) ? Integer.parseInt(values[3].trim()) : 0;
+          hasFeederSpeeds &= !Double.isNaN(feederSpeed);
+          entries.add(new Entry(distance, flywheelRPS, feederSpeed, shots));
+        } catch (NumberFormatException e) {
+          throw new IOException(file + " line " + lineNumber + ": " + e.getMessage());
+        }
+      }
+    }
+    if (entries.isEmpty()) {
+      throw new IOException(file + " doesn't have any entries");
+    }
+
+    // sort by distance, and combine any entries at the same distance.
+    entries.sort(Comparator.comparingDouble(entry -> entry.distance));
+    ArrayList<Entry> merged = new ArrayList<Entry>();
+    for (Entry entry : entries) {
+      Entry last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null && last.distance == entry.distance) {
+        last.flywheelRPS = (last.flywheelRPS + entry.flywheelRPS) / 2;
+        last.feederSpeed = (last.feederSpeed + entry.feederSpeed) / 2;
+        last.shots += entry.shots;
+      } else {
+        merged.add(entry);
+      }
+    }
+    return new ShotTable(merged, hasFeederSpeeds);
+  }
+
+  /**
+   * Writes the table (including anything learned from recordShot()) to a file, in the same format load() reads.
+   */
+  public synchronized void save(File file) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    try (PrintWriter writer = new PrintWriter(tempFile)) {
+      writer.println("# distance (m), flywheel (rev/s), feeder speed, shots recorded");
+      for (Entry entry : entries) {
+        // (always with a '.' for the decimal point, whatever language the computer is set to, since load() expects one)
+        String feederSpeed = hasFeederSpeeds ? String.format(Locale.ROOT, "%.3f", entry.feederSpeed) : "NaN";
+        writer.println(String.format(Locale.ROOT, "%.3f, %.3f, %s, %d", entry.distance, entry.flywheelRPS, feederSpeed,
+                                     entry.shots));
+      }
+      if (writer.checkError()) {
+        throw new IOException("Couldn't write " + tempFile);
+      }
+    }
+    // (so a half written file never replaces the old one)
+    if (!tempFile.renameTo(file)) {
+      throw new IOException("Couldn't replace " + file);
+    }
+  }
+
+  /**
+   * @param distance The horizontal distance to the target in meters
+   * @return How fast to spin the flywheel (revolutions / second).
+   */
+  public double getFlywheelRPS(double distance) {
+    return curves.flywheelRPS.get(distance);
+  }
+
+  /**
+   * @param distance The horizontal distance to the target in meters
+   * @param defaultSpeed What to return if the table doesn't have feeder speeds.
+   * @return How fast to run the feeder.
+   */
+  public double getFeederSpeed(double distance, double defaultSpeed) {
+    Curve feederSpeeds = curves.feederSpeed;
+    return (feederSpeeds != null) ? feederSpeeds.get(distance) : defaultSpeed;
+  }
+
+  /**
+   * Refines the table with how a shot turned out.
+   * - MADE: the entry at that distance moves toward the speed that was used (averaged with every other made shot there).
+   * - SHORT / LONG: the entry at that distance is made a bit faster / slower.
+   * If there isn't an entry close enough to the distance, a new one is added.
+   *
+   * @param distance The horizontal distance to the target in meters when the ball was shot.
+   * @param flywheelRPS The flywheel speed the ball was shot at.
+   * @param result How the shot turned out.
+   */
+  public synchronized void recordShot(double distance, double flywheelRPS, ShotResult result) {
+    double correctedRPS = flywheelRPS;
+    if (result == ShotResult.SHORT) {
+      correctedRPS *= 1 + MISS_ADJUSTMENT;
+    } else if (result == ShotResult.LONG) {
+      correctedRPS *= 1 - MISS_ADJUSTMENT;
+    }
+
+    Entry closest = null;
+    for (Entry entry : entries) {
+      if (closest == null || Math.abs(entry.distance - distance) < Math.abs(closest.distance - distance)) {
+        closest = entry;
+      }
+    }
+
+    if (closest != null && Math.abs(closest.distance - distance) <= MERGE_DISTANCE) {
+      if (result == ShotResult.MADE) {
+        closest.shots++;
+        closest.flywheelRPS += (correctedRPS - closest.flywheelRPS) / (closest.shots + 1);
+      } else {
+        closest.flywheelRPS *= (result == ShotResult.SHORT) ? (1 + MISS_ADJUSTMENT) : (1 - MISS_ADJUSTMENT);
+      }
+    } else {
+      double feederSpeed = hasFeederSpeeds ? getFeederSpeed(distance, Double.NaN) : Double.NaN;
+      Entry newEntry = new Entry(distance, correctedRPS, feederSpeed, (result == ShotResult.MADE) ? 1 : 0);
+      int index = 0;
+      while (index < entries.size() && entries.get(index).distance < distance) {
+        index++;
+      }
+      entries.add(index, newEntry);
+    }
+    rebuild();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Recalculates the Curves from the entries, and swaps them in.
+   */
+  private synchronized void rebuild() {
+    double[] distances = new double[entries.size()];
+    double[] flywheelRPS = new double[entries.size()];
+    double[] feederSpeeds = new double[entries.size()];
+    for (int i = 0; i < entries.size(); i++) {
+      distances[i] = entries.get(i).distance;
+      flywheelRPS[i] = entries.get(i).flywheelRPS;
+      feederSpeeds[i] = entries.get(i).feederSpeed;
+    }
+    curves = new Curves(new Curve(distances, flywheelRPS),
+                        hasFeederSpeeds ? new Curve(distances, feederSpeeds) : null);
+  }
+
+  /**
+   * Everything lookups need, which never changes once it's made.
+   */
+  private static class Curves {
+    final Curve flywheelRPS;
+    final Curve feederSpeed;
+
+    Curves(Curve flywheelRPS, Curve feederSpeed) {
+      this.flywheelRPS = flywheelRPS;
+      this.feederSpeed = feederSpeed;
+    }
+  }
+
+  /**
+   * A monotone cubic (Fritsch-Carlson) curve through a set of points. Never changes once it's made.
+   */
+  private static class Curve {
+    private final double[] x;
+    private final double[] y;
+    // the slope of the curve at each point
+    private final double[] slopes;
+
+    /**
+     * @param x must be sorted, with no repeats.
+     */
+    Curve(double[] x, double[] y) {
+      this.x = x;
+      this.y = y;
+      int n = x.length;
+      slopes = new double[n];
+      if (n < 2) {
+        return;
+      }
+
+      // slopes of the straight lines between neighboring points
+      double[] secants = new double[n - 1];
+      for (int i = 0; i < n - 1; i++) {
+        secants[i] = (y[i + 1] - y[i]) / (x[i + 1] - x[i]);
+      }
+
+      // start with the average of the lines on either side (or 0 at a peak or valley)...
+      slopes[0] = secants[0];
+      slopes[n - 1] = secants[n - 2];
+      for (int i = 1; i < n - 1; i++) {
+        slopes[i] = (Math.signum(secants[i - 1]) == Math.signum(secants[i])) ? (secants[i - 1] + secants[i]) / 2 : 0;
+      }
+
+      // ...then limit any slopes that are steep enough to make the curve overshoot.
+      for (int i = 0; i < n - 1; i++) {
+        if (secants[i] == 0) {
+          slopes[i] = 0;
+          slopes[i + 1] = 0;
+          continue;
+        }
+        double a = slopes[i] / secants[i];
+        double b = slopes[i + 1] / secants[i];
+        double length = a * a + b * b;
+        if (length > 9) {
+          double scale = 3 / Math.sqrt(length);
+          slopes[i] = scale * a * secants[i];
+          slopes[i + 1] = scale * b * secants[i];
+        }
+      }
+    }
+
+    double get(double value) {
+      int n = x.length;
+      if (value <= x[0]) {
+        return y[0];
+      }
+      if (value >= x[n - 1]) {
+        return y[n - 1];
+      }
+
+      // binarySearch returns (-(insertion point) - 1) when value isn't exactly one of the x's
+      int index = Arrays.binarySearch(x, value);
+      if (index >= 0) {
+        return y[index];
+      }
+      int i = -index - 2;
+
+      // cubic Hermite interpolation between points i and i + 1
+      double h = x[i + 1] - x[i];
+      double t = (value - x[i]) / h;
+      double t2 = t * t;
+      double t3 = t2 * t;
+      return (2 * t3 - 3 * t2 + 1) * y[i]
+             + (t3 - 2 * t2 + t) * h * slopes[i]
+             + (-2 * t3 + 3 * t2) * y[i + 1]
+             + (t3 - t2) * h * slopes[i + 1];
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where each side of the drivetrain should be (and how fast it should be going) at every moment of a drive,
+ * made by a TrajectoryGenerator. Looking up a time interpolates between the 2 samples around it.
+ *
+ * Making one takes a while on the roboRIO, so they're made ahead of time and saved to a file named after the
+ * generator's key for the waypoints (see loadOrGenerate()). As long as the waypoints and settings don't change,
+ * the file is just memory mapped at boot, so picking an autonomous routine doesn't cost anything at the start of a match.
+ *
+ * For each sample (one every dt seconds), 9 floats are stored:
+ *   x, y, heading          where the robot should be (meters, and degrees counter-clockwise, like a Pose)
+ *   left position          how far the left side should have driven since the start (meters)
+ *   left velocity          how fast the left side should be going (meters / second)
+ *   left acceleration      how fast that's changing (meters / second^2)
+ *   right ...              the same for the right side
+ *
+ * The file (all numbers little endian):
+ *
+ * Header (HEADER_SIZE_BYTES long):
+ *   int     MAGIC_NUMBER
+ *   int     VERSION
+ *   long    the generator's key for the waypoints (see TrajectoryGenerator.getKey())
+ *   int     how many samples there are
+ *   int     FLOATS_PER_SAMPLE
+ *   double  dt (seconds between samples)
+ * Then the samples, in order.
+ *
+ * That's 36 bytes per sample, so about 54 KB for 15 seconds' worth at 100 samples / second.
+ */
+public class Trajectory {
+
+  public static final int MAGIC_NUMBER = 0x54524A31; // "TRJ1"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE_BYTES = 32;
+  public static final String FILE_EXTENSION = ".traj";
+
+  // where each value is in a sample
+  static final int FLOATS_PER_SAMPLE = 9;
+  static final int X = 0;
+  static final int Y = 1;
+  static final int HEADING = 2;
+  static final int LEFT_POSITION = 3;
+  static final int LEFT_VELOCITY = 4;
+  static final int LEFT_ACCELERATION = 5;
+  static final int RIGHT_POSITION = 6;
+  static final int RIGHT_VELOCITY = 7;
+  static final int RIGHT_ACCELERATION = 8;
+
+  private final FloatBuffer samples;
+  private final int sampleCount;
+  private final double dt;
+  private final long key;
+
+  /**
+   * (only the TrajectoryGenerator and load() make these)
+   */
+  Trajectory(FloatBuffer samples, int sampleCount, double dt, long key) {
+    this.samples = samples;
+    this.sampleCount = sampleCount;
+    this.dt = dt;
+    this.key = key;
+  }
+
+  /**
+   * Loads the trajectory for the given waypoints from the given folder, or if it isn't there
+   * (or the waypoints or settings changed), generates it and saves it there for next time.
+   *
+   * @param generator The settings to generate it with.
+   * @param directory The folder trajectories are saved in (it's made if it doesn't exist).
+   * @param waypoints
+   * @throws IOException if the trajectory file can't be read or written.
+   */
+  public static Trajectory loadOrGenerate(TrajectoryGenerator generator, File directory,
+                                          TrajectoryGenerator.Waypoint... waypoints) throws IOException {
+    long key = generator.getKey(waypoints);
+    File file = getFile(directory, key);
+    if (file.exists()) {
+      Trajectory trajectory = load(file, key);
+      if (trajectory != null) {
+        return trajectory;
+      }
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Couldn't make the folder " + directory);
+    }
+    generator.generate(waypoints).save(file);
+    Trajectory trajectory = load(file, key);
+    if (trajectory == null) {
+      throw new IOException("Couldn't read back the trajectory just written to " + file);
+    }
+    return trajectory;
+  }
+
+  /**
+   * @return Where the trajectory with the given key is saved in the given folder.
+   */
+  public static File getFile(File directory, long key) {
+    return new File(directory, String.format("%016x", key) + FILE_EXTENSION);
+  }
+
+  /**
+   * @param file
+   * @param key The key it should have been made with (see TrajectoryGenerator.getKey()).
+   * @return The trajectory saved in the given file, or null if the file isn't a trajectory this version can read
+   * (or it was made for a different key).
+   */
+  public static Trajectory load(File file, long key) throws IOException {
+    MappedByteBuffer data;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      // (the mapping stays valid after the file is closed)
+    } finally {
+      raf.close();
+    }
+    data.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (data.capacity() < HEADER_SIZE_BYTES || data.getInt(0) != MAGIC_NUMBER || data.getInt(4) != VERSION) {
+      return null;
+    }
+    int sampleCount = data.getInt(16);
+    long expectedSize = HEADER_SIZE_BYTES + (4L * FLOATS_PER_SAMPLE * sampleCount);
+    if (data.getLong(8) != key || sampleCount < 1 || data.getInt(20) != FLOATS_PER_SAMPLE
+        || data.capacity() != expectedSize) {
+      return null;
+    }
+    double dt = data.getDouble(24);
+
+    data.position(HEADER_SIZE_BYTES);
+    return new Trajectory(data.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer(), sampleCount, dt, key);
+  }
+
+  /**
+   * Saves the trajectory to the given file.
+   */
+  public void save(File file) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC_NUMBER);
+    header.putInt(VERSION);
+    header.putLong(key);
+    header.putInt(sampleCount);
+    header.putInt(FLOATS_PER_SAMPLE);
+    header.putDouble(dt);
+    header.position(0);
+
+    ByteBuffer body = ByteBuffer.allocate(4 * FLOATS_PER_SAMPLE * sampleCount).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < FLOATS_PER_SAMPLE * sampleCount; i++) {
+      body.putFloat(samples.get(i));
+    }
+    body.position(0);
+
+    // write to a temporary file first, so a half-written trajectory is never left behind.
+    File tempFile = new File(file.getPath() + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      while (body.hasRemaining()) {
+        channel.write(body);
+      }
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+    if (!tempFile.renameTo(file)) {
+      file.delete();
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Couldn't move " + tempFile + " to " + file);
+      }
+    }
+  }
+
+  /**
+   * @return How long the drive takes (seconds).
+   */
+  public double getDuration() {
+    return (sampleCount - 1) * dt;
+  }
+
+  public int getSampleCount() {
+    return sampleCount;
+  }
+
+  public long getKey() {
+    return key;
+  }
+
+  // Lookups (time is in seconds since the start. Before the start or after the end, the first or last sample is used.)
+
+  public double getX(double time) {
+    return interpolate(time, X);
+  }
+
+  public double getY(double time) {
+    return interpolate(time, Y);
+  }
+
+  public double getHeadingDegrees(double time) {
+    return interpolate(time, HEADING);
+  }
+
+  public double getLeftPosition(double time) {
+    return interpolate(time, LEFT_POSITION);
+  }
+
+  public double getLeftVelocity(double time) {
+    return interpolate(time, LEFT_VELOCITY);
+  }
+
+  public double getLeftAcceleration(double time) {
+    return interpolate(time, LEFT_ACCELERATION);
+  }
+
+  public double getRightPosition(double time) {
+    return interpolate(time, RIGHT_POSITION);
+  }
+
+  public double getRightVelocity(double time) {
+    return interpolate(time, RIGHT_VELOCITY);
+  }
+
+  public double getRightAcceleration(double time) {
+    return interpolate(time, RIGHT_ACCELERATION);
+  }
+
+  /**
+   * Linear interpolation between the 2 samples around the given time.
+   * @param offset which of the values stored for each sample to use.
+   */
+  private double interpolate(double time, int offset) {
+    double position = Math.max(0, Math.min(sampleCount - 1, time / dt));
+    int index = Math.min((int) position, Math.max(0, sampleCount - 2));
+    double fraction = Math.min(1, position - index);
+    double before = samples.get((index * FLOATS_PER_SAMPLE) + offset);
+    if (sampleCount < 2) {
+      return before;
+    }
+    double after = samples.get(((index + 1) * FLOATS_PER_SAMPLE) + offset);
+    return before + (fraction * (after - before));
+  }
+}
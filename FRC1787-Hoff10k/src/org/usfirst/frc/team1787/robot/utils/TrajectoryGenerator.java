@@ -0,0 +1,252 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Makes a Trajectory (how far and how fast each side of the drivetrain should go at every moment) that drives
+ * the robot smoothly through a list of waypoints.
+ *
+ * 1) Path: each pair of waypoints is joined by a quintic Hermite spline, which starts and ends at the waypoints
+ *    facing the waypoints' headings. The curvature is 0 at every waypoint, so it never jumps from one spline
+ *    to the next (a jump in curvature would mean a jump in the speed of each side).
+ * 2) Speed: the path is cut into little pieces. Each piece gets a speed limit low enough that the outside wheel
+ *    doesn't go over maxVelocity on a curve. Then, going forward from a stop at the start (and backwards from a stop
+ *    at the end), the speed is limited to what maxAcceleration can reach over the distance so far.
+ * 3) Timing: the pieces are walked through at those speeds, and a sample is taken every dt seconds: where the robot
+ *    is, and where each side should be, how fast it should be going, and how fast that's changing.
+ *
+ * The acceleration limit is for the middle of the robot, so on tight curves the outside wheel can speed up a little
+ * faster than maxAcceleration.
+ *
+ * This takes a while on the roboRIO (it's a lot of math), which is why trajectories are made ahead of time
+ * and saved (see Trajectory.loadOrGenerate(), or benchmark/TrajectoryBenchmark to make them on a computer).
+ */
+public class TrajectoryGenerator {
+
+  // how many pieces each spline is cut into (to work out the distance along it and its speed limits)
+  private final int SAMPLES_PER_SPLINE = 1000;
+  // how long the tangent at each waypoint is, compared to the distance to the next waypoint.
+  // (bigger = wider, rounder curves)
+  private final double TANGENT_SCALE = 1.2;
+
+  private final double maxVelocity;
+  private final double maxAcceleration;
+  private final double trackWidth;
+  private final double dt;
+
+  /**
+   * A point the robot has to drive through, and which way it should be facing there. Never changes once it's made.
+   * Uses the same units and directions as a Pose: x is forward (meters), y is to the left (meters),
+   * and the heading is counter-clockwise (degrees).
+   */
+  public static class Waypoint {
+    public final double x;
+    public final double y;
+    public final double headingDegrees;
+
+    public Waypoint(double x, double y, double headingDegrees) {
+      this.x = x;
+      this.y = y;
+      this.headingDegrees = headingDegrees;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("(%.2f m, %.2f m, %.0f deg)", x, y, headingDegrees);
+    }
+  }
+
+  /**
+   * @param maxVelocity How fast either side of the drivetrain can go (meters / second).
+   * @param maxAcceleration How fast the robot's speed can change (meters / second^2).
+   * @param trackWidth The (effective) distance between the left and right wheels (meters).
+   * @param dt How far apart in time the samples are (seconds).
+   */
+  public TrajectoryGenerator(double maxVelocity, double maxAcceleration, double trackWidth, double dt) {
+    this.maxVelocity = maxVelocity;
+    this.maxAcceleration = maxAcceleration;
+    this.trackWidth = trackWidth;
+    this.dt = dt;
+  }
+
+  /**
+   * A number that's (almost certainly) different for every set of waypoints and settings, used to tell whether a
+   * saved trajectory was made from these waypoints (see Trajectory.loadOrGenerate()). It includes the file format
+   * version, so changing the format doesn't leave old files looking valid.
+   */
+  public long getKey(Waypoint... waypoints) {
+    // 64 bit FNV-1a (a simple, well spread out hash)
+    long hash = 0xcbf29ce484222325L;
+    hash = mix(hash, Trajectory.VERSION);
+    hash = mix(hash, Double.doubleToLongBits(maxVelocity));
+    hash = mix(hash, Double.doubleToLongBits(maxAcceleration));
+    hash = mix(hash, Double.doubleToLongBits(trackWidth));
+    hash = mix(hash, Double.doubleToLongBits(dt));
+    hash = mix(hash, waypoints.length);
+    for (Waypoint waypoint : waypoints) {
+      hash = mix(hash, Double.doubleToLongBits(waypoint.x));
+      hash = mix(hash, Double.doubleToLongBits(waypoint.y));
+      hash = mix(hash, Double.doubleToLongBits(waypoint.headingDegrees));
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, long value) {
+    for (int i = 0; i < 8; i++) {
+      hash ^= (value >>> (8 * i)) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * @param waypoints At least 2. The robot starts (stopped) at the first one and ends (stopped) at the last one.
+   */
+  public Trajectory generate(Waypoint... waypoints) {
+    if (waypoints.length < 2) {
+      throw new IllegalArgumentException("A trajectory needs at least 2 waypoints");
+    }
+
+    // 1) Path
+    int splines = waypoints.length - 1;
+    int points = (splines * SAMPLES_PER_SPLINE) + 1;
+    double[] xs = new double[points];
+    double[] ys = new double[points];
+    double[] headings = new double[points];    // radians, not wrapped
+    double[] curvatures = new double[points];  // 1 / meters, counter-clockwise = positive
+    double[] distances = new double[points];   // meters along the path
+    for (int spline = 0; spline < splines; spline++) {
+      Waypoint start = waypoints[spline];
+      Waypoint end = waypoints[spline + 1];
+      double tangentLength = TANGENT_SCALE * Math.hypot(end.x - start.x, end.y - start.y);
+      double startTangentX = tangentLength * Math.cos(Math.toRadians(start.headingDegrees));
+      double startTangentY = tangentLength * Math.sin(Math.toRadians(start.headingDegrees));
+      double endTangentX = tangentLength * Math.cos(Math.toRadians(end.headingDegrees));
+      double endTangentY = tangentLength * Math.sin(Math.toRadians(end.headingDegrees));
+
+      // (each spline's first point is the last spline's last point, so it's skipped after the first spline)
+      for (int i = (spline == 0) ? 0 : 1; i <= SAMPLES_PER_SPLINE; i++) {
+        double t = (double) i / SAMPLES_PER_SPLINE;
+        double t2 = t * t;
+        double t3 = t2 * t;
+        double t4 = t3 * t;
+        double t5 = t4 * t;
+        // quintic Hermite basis functions (with 0 second derivative at both ends), and their derivatives
+        double h0 = 1 - 10 * t3 + 15 * t4 - 6 * t5;
+        double h1 = t - 6 * t3 + 8 * t4 - 3 * t5;
+        double h2 = -4 * t3 + 7 * t4 - 3 * t5;
+        double h3 = 10 * t3 - 15 * t4 + 6 * t5;
+        double dh0 = -30 * t2 + 60 * t3 - 30 * t4;
+        double dh1 = 1 - 18 * t2 + 32 * t3 - 15 * t4;
+        double dh2 = -12 * t2 + 28 * t3 - 15 * t4;
+        double dh3 = 30 * t2 - 60 * t3 + 30 * t4;
+        double ddh0 = -60 * t + 180 * t2 - 120 * t3;
+        double ddh1 = -36 * t + 96 * t2 - 60 * t3;
+        double ddh2 = -24 * t + 84 * t2 - 60 * t3;
+        double ddh3 = 60 * t - 180 * t2 + 120 * t3;
+
+        double x = h0 * start.x + h1 * startTangentX + h2 * endTangentX + h3 * end.x;
+        double y = h0 * start.y + h1 * startTangentY + h2 * endTangentY + h3 * end.y;
+        double dx = dh0 * start.x + dh1 * startTangentX + dh2 * endTangentX + dh3 * end.x;
+        double dy = dh0 * start.y + dh1 * startTangentY + dh2 * endTangentY + dh3 * end.y;
+        double ddx = ddh0 * start.x + ddh1 * startTangentX + ddh2 * endTangentX + ddh3 * end.x;
+        double ddy = ddh0 * start.y + ddh1 * startTangentY + ddh2 * endTangentY + ddh3 * end.y;
+
+        int index = (spline * SAMPLES_PER_SPLINE) + i;
+        xs[index] = x;
+        ys[index] = y;
+        double speed = Math.hypot(dx, dy);
+        curvatures[index] = (speed > 0) ? ((dx * ddy) - (dy * ddx)) / (speed * speed * speed) : 0;
+        double heading = (speed > 0) ? Math.atan2(dy, dx) : Math.toRadians(start.headingDegrees);
+        if (index == 0) {
+          headings[index] = heading;
+          distances[index] = 0;
+        } else {
+          // keep the heading from jumping by 360 degrees when it goes past 180
+          double change = heading - headings[index - 1];
+          change -= 2 * Math.PI * Math.round(change / (2 * Math.PI));
+          headings[index] = headings[index - 1] + change;
+          distances[index] = distances[index - 1] + Math.hypot(x - xs[index - 1], y - ys[index - 1]);
+        }
+      }
+    }
+
+    // 2) Speed
+    double[] velocities = new double[points];
+    for (int i = 0; i < points; i++) {
+      // the outside wheel goes (1 + |curvature| * trackWidth / 2) times as fast as the middle of the robot
+      velocities[i] = maxVelocity / (1 + (Math.abs(curvatures[i]) * trackWidth / 2));
+    }
+    velocities[0] = 0;
+    velocities[points - 1] = 0;
+    for (int i = 1; i < points; i++) {
+      double distance = distances[i] - distances[i - 1];
+      velocities[i] = Math.min(velocities[i], Math.sqrt(velocities[i - 1] * velocities[i - 1]
+                                                        + 2 * maxAcceleration * distance));
+    }
+    for (int i = points - 2; i >= 0; i--) {
+      double distance = distances[i + 1] - distances[i];
+      velocities[i] = Math.min(velocities[i], Math.sqrt(velocities[i + 1] * velocities[i + 1]
+                                                        + 2 * maxAcceleration * distance));
+    }
+
+    // 3) Timing
+    double[] times = new double[points];
+    for (int i = 1; i < points; i++) {
+      double distance = distances[i] - distances[i - 1];
+      double averageVelocity = (velocities[i] + velocities[i - 1]) / 2;
+      times[i] = times[i - 1] + ((averageVelocity > 0) ? distance / averageVelocity : 0);
+    }
+    int sampleCount = (int) Math.ceil(times[points - 1] / dt) + 1;
+    ByteBuffer bytes = ByteBuffer.allocate(4 * Trajectory.FLOATS_PER_SAMPLE * sampleCount).order(ByteOrder.LITTLE_ENDIAN);
+    FloatBuffer samples = bytes.asFloatBuffer();
+    double[] leftVelocities = new double[sampleCount];
+    double[] rightVelocities = new double[sampleCount];
+    int point = 0;
+    for (int sample = 0; sample < sampleCount; sample++) {
+      double time = Math.min(sample * dt, times[points - 1]);
+      while (point < points - 2 && times[point + 1] < time) {
+        point++;
+      }
+      double span = times[point + 1] - times[point];
+      double fraction = (span > 0) ? Math.max(0, Math.min(1, (time - times[point]) / span)) : 1;
+      double x = lerp(xs, point, fraction);
+      double y = lerp(ys, point, fraction);
+      double heading = lerp(headings, point, fraction);
+      double curvature = lerp(curvatures, point, fraction);
+      double distance = lerp(distances, point, fraction);
+      double velocity = lerp(velocities, point, fraction);
+
+      // each side drives the same distance as the middle, plus or minus how far it swings around while turning
+      double turn = (heading - headings[0]) * trackWidth / 2;
+      leftVelocities[sample] = velocity * (1 - (curvature * trackWidth / 2));
+      rightVelocities[sample] = velocity * (1 + (curvature * trackWidth / 2));
+      int base = sample * Trajectory.FLOATS_PER_SAMPLE;
+      samples.put(base + Trajectory.X, (float) x);
+      samples.put(base + Trajectory.Y, (float) y);
+      samples.put(base + Trajectory.HEADING, (float) Math.toDegrees(heading));
+      samples.put(base + Trajectory.LEFT_POSITION, (float) (distance - turn));
+      samples.put(base + Trajectory.LEFT_VELOCITY, (float) leftVelocities[sample]);
+      samples.put(base + Trajectory.RIGHT_POSITION, (float) (distance + turn));
+      samples.put(base + Trajectory.RIGHT_VELOCITY, (float) rightVelocities[sample]);
+    }
+    // (the accelerations are worked out from the changes in speed between samples)
+    for (int sample = 0; sample < sampleCount; sample++) {
+      int before = Math.max(0, sample - 1);
+      int after = Math.min(sampleCount - 1, sample + 1);
+      double time = (after - before) * dt;
+      int base = sample * Trajectory.FLOATS_PER_SAMPLE;
+      samples.put(base + Trajectory.LEFT_ACCELERATION,
+                  (float) ((time > 0) ? (leftVelocities[after] - leftVelocities[before]) / time : 0));
+      samples.put(base + Trajectory.RIGHT_ACCELERATION,
+                  (float) ((time > 0) ? (rightVelocities[after] - rightVelocities[before]) / time : 0));
+    }
+    return new Trajectory(samples, sampleCount, dt, getKey(waypoints));
+  }
+
+  private static double lerp(double[] values, int index, double fraction) {
+    return values[index] + (fraction * (values[index + 1] - values[index]));
+  }
+}
@@ -0,0 +1,156 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+/**
+ * Plans a smooth move from where a mechanism is (and how fast it's going) to a goal position:
+ * speed up at maxAcceleration, cruise at maxVelocity (if there's room), then slow down at maxAcceleration
+ * to stop right at the goal. Plotting the speed over time makes a trapezoid (or a triangle, for short moves).
+ *
+ * Following the profile's position (and velocity, as a feedforward) instead of jumping the setpoint straight
+ * to the goal means the controller never gets a huge error all at once, so it doesn't saturate the motor
+ * or overshoot, and the gains can be a lot stiffer.
+ *
+ * plan() works it all out in a handful of math operations (no loops or searching), so it's fine to re-plan
+ * every time the goal moves. Re-planning from the profile's own current position and velocity keeps the motion
+ * smooth, even when the goal changes in the middle of a move. If the mechanism is moving too fast to stop
+ * before the goal, it stops past it and comes back.
+ *
+ * The units are up to whoever uses it (like degrees, degrees / second, and degrees / second^2 for the turret,
+ * see benchmark/TurretProfileSimulation).
+ */
+public class TrapezoidProfile {
+
+  private double maxVelocity;
+  private double maxAcceleration;
+
+  // The Plan (worked out in terms of a move in the positive direction, starting at 0)
+  private double startPosition = 0;
+  private double direction = 1;
+  private double startVelocity = 0;
+  private double distance = 0;
+  private double cruiseVelocity = 0;
+  private double endAccelerationTime = 0;
+  private double endCruiseTime = 0;
+  private double endTime = 0;
+
+  public TrapezoidProfile(double maxVelocity, double maxAcceleration) {
+    this.maxVelocity = Math.abs(maxVelocity);
+    this.maxAcceleration = Math.abs(maxAcceleration);
+  }
+
+  /**
+   * Changes the limits. They're used starting with the next plan().
+   */
+  public void setLimits(double maxVelocity, double maxAcceleration) {
+    this.maxVelocity = Math.abs(maxVelocity);
+    this.maxAcceleration = Math.abs(maxAcceleration);
+  }
+
+  /**
+   * Plans a move that starts now (time 0) from the given position and velocity, and stops at the goal.
+   * @param position Where the mechanism is.
+   * @param velocity How fast it's moving (anything over maxVelocity is treated as maxVelocity).
+   * @param goal Where it should stop.
+   */
+  public void plan(double position, double velocity, double goal) {
+    double a = maxAcceleration;
+    velocity = Math.max(-maxVelocity, Math.min(maxVelocity, velocity));
+
+    // work out which way to go from where it would stop if it started slowing down right now,
+    // so that a move that can't stop in time goes past the goal and comes back.
+    double stoppingPosition = position + (velocity * Math.abs(velocity)) / (2 * a);
+    direction = (goal >= stoppingPosition) ? 1 : -1;
+    startPosition = position;
+    startVelocity = direction * velocity;
+    distance = direction * (goal - position);
+
+    // Pretend the move started from a standstill (going back in time to when it would have been stopped).
+    // That adds startVelocity^2 / (2a) to the distance, and the profile is just a regular trapezoid from there.
+    // (for a negative startVelocity, i.e. moving away from the goal, the time "before" is negative, which still works)
+    double timeToStartVelocity = startVelocity / a;
+    double fullDistance = distance + (startVelocity * startVelocity) / (2 * a);
+    double accelerationTime = maxVelocity / a;
+    double cruiseDistance = fullDistance - accelerationTime * accelerationTime * a;
+    if (cruiseDistance < 0) {
+      // a triangle: it never gets up to maxVelocity
+      accelerationTime = Math.sqrt(Math.max(0, fullDistance) / a);
+      cruiseDistance = 0;
+    }
+    cruiseVelocity = accelerationTime * a;
+    endAccelerationTime = Math.max(0, accelerationTime - timeToStartVelocity);
+    endCruiseTime = endAccelerationTime + ((cruiseVelocity > 0) ? cruiseDistance / cruiseVelocity : 0);
+    endTime = endCruiseTime + accelerationTime;
+  }
+
+  /**
+   * @param time Seconds since plan() was called.
+   * @return Where the mechanism should be at that time.
+   */
+  public double getPosition(double time) {
+    double a = maxAcceleration;
+    double x;
+    if (time <= 0) {
+      x = 0;
+    } else if (time < endAccelerationTime) {
+      x = (startVelocity + a * time / 2) * time;
+    } else if (time < endCruiseTime) {
+      double accelerationDistance = (startVelocity + a * endAccelerationTime / 2) * endAccelerationTime;
+      x = accelerationDistance + cruiseVelocity * (time - endAccelerationTime);
+    } else if (time < endTime) {
+      double timeLeft = endTime - time;
+      x = distance - (a * timeLeft * timeLeft / 2);
+    } else {
+      x = distance;
+    }
+    return startPosition + direction * x;
+  }
+
+  /**
+   * @param time Seconds since plan() was called.
+   * @return How fast the mechanism should be moving at that time.
+   */
+  public double getVelocity(double time) {
+    double a = maxAcceleration;
+    double v;
+    if (time <= 0) {
+      v = startVelocity;
+    } else if (time < endAccelerationTime) {
+      v = startVelocity + a * time;
+    } else if (time < endCruiseTime) {
+      v = cruiseVelocity;
+    } else if (time < endTime) {
+      v = a * (endTime - time);
+    } else {
+      v = 0;
+    }
+    return direction * v;
+  }
+
+  /**
+   * @param time Seconds since plan() was called.
+   * @return How fast the mechanism's speed should be changing at that time.
+   */
+  public double getAcceleration(double time) {
+    if (time < 0 || time >= endTime) {
+      return 0;
+    } else if (time < endAccelerationTime) {
+      return direction * maxAcceleration;
+    } else if (time < endCruiseTime) {
+      return 0;
+    }
+    return -direction * maxAcceleration;
+  }
+
+  /**
+   * @return How long (seconds after plan() was called) until the move is finished.
+   */
+  public double getTotalTime() {
+    return endTime;
+  }
+
+  /**
+   * @return Whether the move is finished at the given time.
+   */
+  public boolean isFinished(double time) {
+    return time >= endTime;
+  }
+}
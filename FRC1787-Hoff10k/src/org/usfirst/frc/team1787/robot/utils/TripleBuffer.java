@@ -0,0 +1,65 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Hands the latest result from one thread (the "writer") to another (the "reader") without locking,
+ * and without making a new object for every result.
+ *
+ * There are 3 objects: the one the writer is filling in, the one the reader has, and the newest finished one
+ * waiting in the middle. publish() swaps the writer's object with the middle one, and acquire() swaps the
+ * reader's object with the middle one (if there's a newer one there). So the object the reader has is never
+ * written to until the reader gives it back by calling acquire() again, no matter how far ahead the writer gets.
+ *
+ * Only 1 thread should ever write, and only 1 thread should ever read (it can be the same thread).
+ */
+public class TripleBuffer<T> {
+
+  // middle holds the index of the middle object, plus NEW if it hasn't been acquired yet.
+  private static final int INDEX = 3;
+  private static final int NEW = 4;
+
+  private final Object[] buffers;
+  private final AtomicInteger middle = new AtomicInteger(2);
+  // (only used by the writer)
+  private int writeIndex = 0;
+  // (only used by the reader)
+  private int readIndex = 1;
+
+  /**
+   * @param factory Makes each of the 3 objects. Until something is published, acquire() returns one of them as is.
+   */
+  public TripleBuffer(Supplier<T> factory) {
+    buffers = new Object[] {factory.get(), factory.get(), factory.get()};
+  }
+
+  /**
+   * (writer only)
+   * @return The object to fill in with the next result. Nobody else sees it until publish() is called.
+   */
+  @SuppressWarnings("unchecked")
+  public T getWriteBuffer() {
+    return (T) buffers[writeIndex];
+  }
+
+  /**
+   * (writer only) Hands the object from getWriteBuffer() to the reader. After this, getWriteBuffer() returns
+   * a different object.
+   */
+  public void publish() {
+    writeIndex = middle.getAndSet(writeIndex | NEW) & INDEX;
+  }
+
+  /**
+   * (reader only) Gives back the object from the last call, and gets the newest one published.
+   * @return The newest result. It won't change until the next time this is called.
+   */
+  @SuppressWarnings("unchecked")
+  public T acquire() {
+    if ((middle.get() & NEW) != 0) {
+      readIndex = middle.getAndSet(readIndex) & INDEX;
+    }
+    return (T) buffers[readIndex];
+  }
+}
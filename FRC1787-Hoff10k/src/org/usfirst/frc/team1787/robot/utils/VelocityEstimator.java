@@ -0,0 +1,211 @@
+package org.usfirst.frc.team1787.robot.utils;
+
+import java.util.function.DoubleSupplier;
+
+import edu.wpi.first.wpilibj.PIDSource;
+import edu.wpi.first.wpilibj.PIDSourceType;
+import edu.wpi.first.wpilibj.Utility;
+
+/**
+ * Works out how fast something is moving from a series of (time, position) samples,
+ * instead of using Encoder.getRate().
+ *
+ * Encoder.getRate() is based on the time between the last couple of encoder pulses. At high speed,
+ * those pulses are only a few microseconds apart, and the marks on the encoder's disk aren't perfectly even,
+ * so the rate jumps around a lot from one reading to the next. Here, the position is sampled every tick of the
+ * ControlLoop (so hundreds of pulses go by between samples), and the speed is found from the last several samples:
+ *
+ * - Least squares (the default): the slope of the best fit line through the last "window" samples.
+ *   A bigger window = less noise, but more lag (about half the window's length).
+ * - Alpha-beta filter: keeps a running estimate of position and speed, and corrects both a little
+ *   every sample (by alpha and beta). Smaller alpha and beta = less noise, but more lag.
+ *
+ * The samples are kept in a ring buffer of primitives, so sampling never allocates anything.
+ * It can be used as a PIDSource: in kRate mode (the default) pidGet() is the speed, in kDisplacement it's the position.
+ */
+public class VelocityEstimator implements PIDSource, ControlLoop.Sensor {
+
+  public enum Mode { LEAST_SQUARES, ALPHA_BETA }
+
+  // where the position comes from when sample() is called (can be null if only addSample() is used)
+  private DoubleSupplier positionSource;
+
+  // Ring Buffer
+  private final long[] timestamps;
+  private final double[] positions;
+  private int newestIndex = -1;
+  private int size = 0;
+
+  // Settings
+  private Mode mode = Mode.LEAST_SQUARES;
+  private int window;
+  private double alpha = 0.5;
+  private double beta = 0.1;
+
+  // Alpha-Beta State
+  private double filteredPosition = 0;
+  private double filteredVelocity = 0;
+
+  // Results (read from any thread)
+  private volatile double velocity = 0;
+  private volatile double position = 0;
+  private volatile PIDSourceType pidSourceType = PIDSourceType.kRate;
+
+  /**
+   * @param positionSource Where to get the position from (for example, encoder::getDistance).
+   * @param capacity How many samples to keep (the biggest least squares window that can be used).
+   * @param window How many samples to fit the line through (least squares). At least 2.
+   */
+  public VelocityEstimator(DoubleSupplier positionSource, int capacity, int window) {
+    this.positionSource = positionSource;
+    timestamps = new long[Math.max(2, capacity)];
+    positions = new double[timestamps.length];
+    useLeastSquares(window);
+  }
+
+  /**
+   * Estimate speed with a least squares fit over the last "window" samples.
+   * @param window At least 2, and no more than the capacity.
+   */
+  public synchronized void useLeastSquares(int window) {
+    this.window = Math.max(2, Math.min(window, timestamps.length));
+    mode = Mode.LEAST_SQUARES;
+  }
+
+  /**
+   * Estimate speed with an alpha-beta filter.
+   * @param alpha How much of each new sample's position error to trust (0 to 1).
+   * @param beta How much of each new sample's position error to turn into a change in speed (0 to 2, and a lot less than alpha).
+   */
+  public synchronized void useAlphaBeta(double alpha, double beta) {
+    this.alpha = alpha;
+    this.beta = beta;
+    mode = Mode.ALPHA_BETA;
+    filteredPosition = position;
+    filteredVelocity = velocity;
+  }
+
+  public synchronized Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Reads the position and records it along with the current time. The ControlLoop calls this every tick.
+   *
+   * (the 2017 Encoder can't say exactly when its last pulse happened, so the time is when this
+   * ran. Since the ControlLoop runs at an even rate, that's good enough.)
+   */
+  @Override
+  public void sample() {
+    addSample(Utility.getFPGATime(), positionSource.getAsDouble());
+  }
+
+  /**
+   * Records a position, and updates the speed estimate.
+   * @param timestamp When the position was read, in microseconds.
+   * @param newPosition
+   */
+  public synchronized void addSample(long timestamp, double newPosition) {
+    long previousTimestamp = (size > 0) ? timestamps[newestIndex] : 0;
+    if (size > 0 && timestamp <= previousTimestamp) {
+      // (a repeated sample doesn't say anything about the speed)
+      return;
+    }
+    newestIndex = (newestIndex + 1) % timestamps.length;
+    timestamps[newestIndex] = timestamp;
+    positions[newestIndex] = newPosition;
+    size = Math.min(size + 1, timestamps.length);
+    position = newPosition;
+
+    if (mode == Mode.LEAST_SQUARES) {
+      velocity = leastSquaresSlope();
+    } else {
+      if (size == 1) {
+        filteredPosition = newPosition;
+        filteredVelocity = 0;
+      } else {
+        double dt = (timestamp - previousTimestamp) / 1e6;
+        double predictedPosition = filteredPosition + filteredVelocity * dt;
+        double error = newPosition - predictedPosition;
+        filteredPosition = predictedPosition + alpha * error;
+        filteredVelocity += (beta / dt) * error;
+      }
+      velocity = filteredVelocity;
+    }
+  }
+
+  /**
+   * @return the slope of the best fit line through the last "window" samples (position units per second).
+   */
+  private double leastSquaresSlope() {
+    int n = Math.min(window, size);
+    if (n < 2) {
+      return 0;
+    }
+    // times are relative to the newest sample, so the numbers stay small
+    long newestTime = timestamps[newestIndex];
+    double newestPosition = positions[newestIndex];
+    double sumT = 0;
+    double sumX = 0;
+    double sumTT = 0;
+    double sumTX = 0;
+    int index = newestIndex;
+    for (int i = 0; i < n; i++) {
+      double t = (timestamps[index] - newestTime) / 1e6;
+      double x = positions[index] - newestPosition;
+      sumT += t;
+      sumX += x;
+      sumTT += t * t;
+      sumTX += t * x;
+      index = (index == 0) ? timestamps.length - 1 : index - 1;
+    }
+    double denominator = n * sumTT - sumT * sumT;
+    if (denominator <= 0) {
+      return 0;
+    }
+    return (n * sumTX - sumT * sumX) / denominator;
+  }
+
+  /**
+   * Forgets every sample (for example, after the encoder is reset).
+   */
+  public synchronized void reset() {
+    newestIndex = -1;
+    size = 0;
+    velocity = 0;
+    position = 0;
+    filteredPosition = 0;
+    filteredVelocity = 0;
+  }
+
+  /**
+   * @return The estimated speed (position units per second) as of the latest sample.
+   */
+  public double getVelocity() {
+    return velocity;
+  }
+
+  /**
+   * @return The latest position sample.
+   */
+  public double getPosition() {
+    return position;
+  }
+
+  // PIDSource Methods
+
+  @Override
+  public void setPIDSourceType(PIDSourceType pidSource) {
+    pidSourceType = pidSource;
+  }
+
+  @Override
+  public PIDSourceType getPIDSourceType() {
+    return pidSourceType;
+  }
+
+  @Override
+  public double pidGet() {
+    return (pidSourceType == PIDSourceType.kDisplacement) ? position : velocity;
+  }
+}
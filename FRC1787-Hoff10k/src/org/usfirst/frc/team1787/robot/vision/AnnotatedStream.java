@@ -0,0 +1,177 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import edu.wpi.first.wpilibj.DriverStation;
+
+/**
+ * Draws the vision results on top of the turretCam's frames and pushes them to the "OpenCV Stream",
+ * all on its own thread.
+ *
+ * This used to happen at the end of every frame in ImageProcessor.runVisionProcessing().
+ * The problem is that pushing a frame means compressing it to a jpeg, which often takes longer
+ * than finding the target in the first place! Now the vision thread just copies the frame
+ * (and where the target was) into here, and goes right back to looking for the target.
+ *
+ * To save even more time:
+ * - Frames are only sent at up to maxFramesPerSecond. Nobody needs 30 fps to check that vision is working.
+ * - If nobody is watching the "OpenCV Stream", nothing is copied, drawn, or sent at all.
+ * - If the stream thread is still busy with the last frame, the new frame replaces
+ *   the one waiting to be drawn (so the stream never falls behind).
+ */
+public class AnnotatedStream implements Runnable {
+
+  private CameraController camController;
+  private Thread thread;
+
+  // How often (at most) to push a frame to the dashboard
+  private volatile double maxFramesPerSecond = 10;
+  private long lastOfferTimeNanos = 0;
+
+  // The vision thread copies into pendingFrame, and the stream thread draws on / sends drawingFrame.
+  // When the stream thread picks up a new frame, the two are swapped, so no frame is ever copied twice.
+  // Everything below (except drawingFrame) is only touched while holding frameLock.
+  private final Object frameLock = new Object();
+  private Mat pendingFrame = new Mat();
+  private boolean framePending = false;
+  private boolean pendingTargetFound = false;
+  private Rect pendingBoundingBox = new Rect();
+  private Point pendingCenter = new Point();
+
+  // only used by the stream thread
+  private Mat drawingFrame = new Mat();
+  private boolean targetFound = false;
+  private Rect boundingBox = new Rect();
+  private Point center = new Point();
+  private Point boxTopLeft = new Point();
+  private Point boxBottomRight = new Point();
+
+  // Overlay settings
+  private final Scalar TARGET_COLOR = ImageProcessor.COLOR_GREEN;
+  private final int MARKER_SIZE = 3;
+  private final int LINE_THICKNESS = 1;
+
+  /**
+   * @param camController where to send the frames (to the "OpenCV Stream").
+   */
+  public AnnotatedStream(CameraController camController) {
+    this.camController = camController;
+  }
+
+  /**
+   * Starts the stream thread. Calling this more than once has no effect.
+   * (offer() can be called before this, the frames just won't go anywhere.)
+   */
+  public synchronized void start() {
+    if (thread == null) {
+      thread = new Thread(this, "AnnotatedStream");
+      thread.setDaemon(true);
+      // this is the least important thing the robot does.
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.start();
+    }
+  }
+
+  /**
+   * Gives the stream a frame to draw on and send, if it wants one.
+   * This is called by the vision thread, and only ever copies the frame (if even that).
+   *
+   * @param frame The frame from the turretCam. It isn't drawn on, so it can be reused right after this returns.
+   * @param targetFound if a target was found in the frame. If false, boundingBox and center are ignored.
+   * @param boundingBox The bounding box of the target
+   * @param center The center of the target
+   */
+  public void offer(Mat frame, boolean targetFound, Rect boundingBox, Point center) {
+    if (thread == null || !camController.isOutputStreamViewed()) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    double minNanosBetweenFrames = 1e9 / maxFramesPerSecond;
+    if (lastOfferTimeNanos != 0 && now - lastOfferTimeNanos < minNanosBetweenFrames) {
+      return;
+    }
+    lastOfferTimeNanos = now;
+
+    synchronized (frameLock) {
+      frame.copyTo(pendingFrame);
+      pendingTargetFound = targetFound;
+      if (targetFound) {
+        pendingBoundingBox.x = boundingBox.x;
+        pendingBoundingBox.y = boundingBox.y;
+        pendingBoundingBox.width = boundingBox.width;
+        pendingBoundingBox.height = boundingBox.height;
+        pendingCenter.x = center.x;
+        pendingCenter.y = center.y;
+      }
+      framePending = true;
+      frameLock.notifyAll();
+    }
+  }
+
+  /**
+   * @param fps The most frames per second that will be sent to the dashboard. Must be > 0.
+   */
+  public void setMaxFramesPerSecond(double fps) {
+    if (fps > 0) {
+      maxFramesPerSecond = fps;
+    }
+  }
+
+  public double getMaxFramesPerSecond() {
+    return maxFramesPerSecond;
+  }
+
+  @Override
+  public void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      synchronized (frameLock) {
+        try {
+          while (!framePending) {
+            frameLock.wait();
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        // swap, so the vision thread can start filling the other Mat right away.
+        Mat temp = drawingFrame;
+        drawingFrame = pendingFrame;
+        pendingFrame = temp;
+        targetFound = pendingTargetFound;
+        boundingBox.x = pendingBoundingBox.x;
+        boundingBox.y = pendingBoundingBox.y;
+        boundingBox.width = pendingBoundingBox.width;
+        boundingBox.height = pendingBoundingBox.height;
+        center.x = pendingCenter.x;
+        center.y = pendingCenter.y;
+        framePending = false;
+      }
+
+      try {
+        drawOverlay();
+        camController.pushFrameToDash(drawingFrame);
+      } catch (RuntimeException e) {
+        DriverStation.reportError("Couldn't send a frame to the OpenCV Stream: " + e, false);
+      }
+    }
+  }
+
+  /**
+   * If a target was found, it's drawn on the drawingFrame in green.
+   */
+  private void drawOverlay() {
+    if (!targetFound) {
+      return;
+    }
+    boxTopLeft.x = boundingBox.x;
+    boxTopLeft.y = boundingBox.y;
+    boxBottomRight.x = boundingBox.x + boundingBox.width;
+    boxBottomRight.y = boundingBox.y + boundingBox.height;
+    Imgproc.rectangle(drawingFrame, boxTopLeft, boxBottomRight, TARGET_COLOR, LINE_THICKNESS);
+    Imgproc.drawMarker(drawingFrame, center, TARGET_COLOR, Imgproc.MARKER_CROSS, MARKER_SIZE, LINE_THICKNESS, Imgproc.LINE_8);
+  }
+}
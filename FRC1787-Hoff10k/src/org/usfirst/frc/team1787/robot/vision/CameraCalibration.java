@@ -0,0 +1,143 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Everything needed to turn a pixel in the turretCam's image into a direction (and a distance to the target).
+ *
+ * The lens part of this (focal length, center, and distortion) comes from calibrating the camera,
+ * for example with OpenCV's calibrateCamera() and a checkerboard. The results go in a text file like this:
+ *
+ *   # turretCam at 160x120
+ *   fx = 95.3
+ *   fy = 95.1
+ *   cx = 80.2
+ *   cy = 59.7
+ *   k1 = -0.31
+ *   k2 = 0.09
+ *
+ * fx and fy are the focal length in pixels (see the big comment in CameraController for why there are 2),
+ * cx and cy are the pixel the lens is actually centered on, and k1 and k2 describe the radial distortion
+ * (how much the lens bends straight lines, especially near the edges of the image).
+ * Anything left out of the file is filled in from the constants in CameraController (which means no distortion).
+ * The mounting of the camera (pitchDegrees and heightMeters) can be given in the file too.
+ */
+public class CameraCalibration {
+
+  public final int width;
+  public final int height;
+  public final double fx;
+  public final double fy;
+  public final double cx;
+  public final double cy;
+  public final double k1;
+  public final double k2;
+  // how far the camera is tilted up from horizontal, and how high it is off the floor.
+  public final double pitchDegrees;
+  public final double heightMeters;
+
+  public CameraCalibration(int width, int height, double fx, double fy, double cx, double cy,
+                           double k1, double k2, double pitchDegrees, double heightMeters) {
+    this.width = width;
+    this.height = height;
+    this.fx = fx;
+    this.fy = fy;
+    this.cx = cx;
+    this.cy = cy;
+    this.k1 = k1;
+    this.k2 = k2;
+    this.pitchDegrees = pitchDegrees;
+    this.heightMeters = heightMeters;
+  }
+
+  /**
+   * @return The calibration that matches what Target did before there were calibration files:
+   * the pinhole camera model using the FOV in CameraController, with no distortion.
+   */
+  public static CameraCalibration getDefault() {
+    return new CameraCalibration(CameraController.IMAGE_WIDTH_PIXELS, CameraController.IMAGE_HEIGHT_PIXELS,
+                                 CameraController.FOCAL_LENGTH_PIXELS_X, CameraController.FOCAL_LENGTH_PIXELS_Y,
+                                 (CameraController.IMAGE_WIDTH_PIXELS - 1) / 2.0,
+                                 (CameraController.IMAGE_HEIGHT_PIXELS - 1) / 2.0,
+                                 0, 0,
+                                 CameraController.TURRET_CAM_ANGLE_FROM_FLOOR_DEGREES,
+                                 CameraController.TURRET_CAM_HEIGHT_FROM_FLOOR);
+  }
+
+  /**
+   * Reads a calibration file (see the top of this class for what goes in it).
+   * @param file
+   * @throws IOException if the file can't be read, has a value that isn't a number, or is for a different
+   * resolution than the turretCam runs at (CameraController.IMAGE_WIDTH_PIXELS x IMAGE_HEIGHT_PIXELS).
+   * A calibration only works at the resolution it was made at, since every value in it is in pixels.
+   */
+  public static CameraCalibration load(File file) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+
+    CameraCalibration d = getDefault();
+    CameraCalibration calibration;
+    try {
+      calibration = new CameraCalibration((int) get(properties, "width", d.width), (int) get(properties, "height", d.height),
+                                          get(properties, "fx", d.fx), get(properties, "fy", d.fy),
+                                          get(properties, "cx", d.cx), get(properties, "cy", d.cy),
+                                          get(properties, "k1", d.k1), get(properties, "k2", d.k2),
+                                          get(properties, "pitchDegrees", d.pitchDegrees),
+                                          get(properties, "heightMeters", d.heightMeters));
+    } catch (NumberFormatException e) {
+      throw new IOException("Bad value in " + file + ": " + e.getMessage());
+    }
+    if (calibration.width != d.width || calibration.height != d.height) {
+      throw new IOException(file + " is for " + calibration.width + "x" + calibration.height 
+                            + ", but the turretCam runs at " + d.width + "x" + d.height);
+    }
+    return calibration;
+  }
+
+  private static double get(Properties properties, String key, double defaultValue) {
+    String value = properties.getProperty(key);
+    return (value == null) ? defaultValue : Double.parseDouble(value.trim());
+  }
+
+  /**
+   * Undoes the lens distortion for the given pixel.
+   * @param result Where to store the answer: {x, y} on the (undistorted) image plane, 1 unit in front of the camera.
+   * So (0, 0) is straight ahead, and x is to the right, y is down.
+   */
+  public void undistort(double pixelX, double pixelY, double[] result) {
+    double distortedX = (pixelX - cx) / fx;
+    double distortedY = (pixelY - cy) / fy;
+
+    /* The distortion model is: distorted = undistorted * (1 + k1*r^2 + k2*r^4)
+     * where r is the distance of the undistorted point from the center. There's no formula to go backwards,
+     * so guess, see how far off the guess is, and repeat. This settles down after a handful of tries. */
+    double x = distortedX;
+    double y = distortedY;
+    for (int i = 0; i < 20; i++) {
+      double r2 = (x*x) + (y*y);
+      double scale = 1 + (k1 * r2) + (k2 * r2 * r2);
+      x = distortedX / scale;
+      y = distortedY / scale;
+    }
+    result[0] = x;
+    result[1] = y;
+  }
+
+  /**
+   * @return if everything in this calibration is the same as the given one.
+   */
+  public boolean sameAs(CameraCalibration other) {
+    return width == other.width && height == other.height && fx == other.fx && fy == other.fy
+           && cx == other.cx && cy == other.cy && k1 == other.k1 && k2 == other.k2
+           && pitchDegrees == other.pitchDegrees && heightMeters == other.heightMeters;
+  }
+}
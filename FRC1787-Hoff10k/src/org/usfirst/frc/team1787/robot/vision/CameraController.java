@@ -7,10 +7,13 @@ import edu.wpi.cscore.CvSink;
 import edu.wpi.cscore.CvSource;
 import edu.wpi.cscore.UsbCamera;
 import edu.wpi.cscore.VideoCamera.WhiteBalance;
+import edu.wpi.cscore.VideoEvent;
+import edu.wpi.cscore.VideoListener;
 import edu.wpi.first.wpilibj.CameraServer;
+import edu.wpi.first.wpilibj.Utility;
 import edu.wpi.first.wpilibj.networktables.NetworkTable;
 
-public class CameraController {
+public class CameraController implements FrameSource {
   
   // Info about the pinhole camera model, focal length, and FOV:
   
@@ -139,28 +142,56 @@ public class CameraController {
   // as well as getting individual frames from a cam. See 2017 frc control system for more info.
   private CameraServer camServer = CameraServer.getInstance();
   private CvSink turretCamFrameGrabber;
+  // (the gearCam has its own, so the turret and gear pipelines never wait on each other)
+  private CvSink gearCamFrameGrabber;
   private CvSource outputStream;
+  private final String OUTPUT_STREAM_NAME = "OpenCV Stream";
+  // CameraServer.putVideo() names the mjpeg server for a stream "serve_" + the stream's name.
+  private final String OUTPUT_SERVER_NAME = "serve_" + OUTPUT_STREAM_NAME;
+  // The mjpeg server is "enabled" while at least 1 client (like the smartdash) is watching the stream.
+  // outputStreamListener keeps outputStreamViewed up to date with that.
+  private VideoListener outputStreamListener;
+  private volatile boolean outputStreamViewed = false;
   // The max amount of time that the code will halt while waiting for an image from the turretCam.
   private final double defaultTimeoutLengthSeconds = 3;
+  // If a frame's timestamp is older than this (or in the future), it can't be in FPGA time,
+  // so the time it was received is used instead (see toFPGATime()).
+  private final long MAX_PLAUSIBLE_FRAME_AGE_MICROS = 1000000;
+  private volatile boolean frameTimestampsAreFPGATime = true;
+  
+  // The values below are static so that the vision code can use them without 
+  // starting up the cameras (for example, when replaying recorded frames off the robot).
   
   // image info
-  public final int IMAGE_WIDTH_PIXELS = 160;
-  public final int IMAGE_HEIGHT_PIXELS = 120;
+  public static final int IMAGE_WIDTH_PIXELS = 160;
+  public static final int IMAGE_HEIGHT_PIXELS = 120;
   
   // physical properties of the turretCam (used to find position of target)
-  public final double TURRET_CAM_ANGLE_FROM_FLOOR_DEGREES = 36.0;
-  public final double TURRET_CAM_HEIGHT_FROM_FLOOR = UnitConverter.inchesToMeters(57);
-  private final double HORIZONTAL_FOV_DEGREES = 90;  // The current values for FOV are just place holders.
-  private final double VERTICAL_FOV_DEGREES = 90;    // The actual values still need to be calculated.
-  public final double FOCAL_LENGTH_PIXELS_X = calculateFocalLength(IMAGE_WIDTH_PIXELS, HORIZONTAL_FOV_DEGREES);
-  public final double FOCAL_LENGTH_PIXELS_Y = calculateFocalLength(IMAGE_HEIGHT_PIXELS, VERTICAL_FOV_DEGREES);
+  public static final double TURRET_CAM_ANGLE_FROM_FLOOR_DEGREES = 36.0;
+  public static final double TURRET_CAM_HEIGHT_FROM_FLOOR = UnitConverter.inchesToMeters(57);
+  private static final double HORIZONTAL_FOV_DEGREES = 90;  // The current values for FOV are just place holders.
+  private static final double VERTICAL_FOV_DEGREES = 90;    // The actual values still need to be calculated.
+  public static final double FOCAL_LENGTH_PIXELS_X = calculateFocalLength(IMAGE_WIDTH_PIXELS, HORIZONTAL_FOV_DEGREES);
+  public static final double FOCAL_LENGTH_PIXELS_Y = calculateFocalLength(IMAGE_HEIGHT_PIXELS, VERTICAL_FOV_DEGREES);
   
   // used for when the FOV calculation seems off, and we need to get on the field RIGHT NOW! :)
-  public final double DEGREES_PER_PIXEL_X = 0.15;
-  public final double DEGREES_PER_PIXEL_Y = 0.15;
+  public static final double DEGREES_PER_PIXEL_X = 0.15;
+  public static final double DEGREES_PER_PIXEL_Y = 0.15;
+  
+  // physical properties of the gearCam (used to find the gear peg, see PegTarget)
+  // configCam() sets both cameras to the same resolution, and the gearCam is the same kind of camera as the turretCam,
+  // so it starts out with the same FOV. If either camera gets swapped out (or its FOV gets measured), change its own values.
+  public static final int GEAR_CAM_IMAGE_WIDTH_PIXELS = IMAGE_WIDTH_PIXELS;
+  private static final double GEAR_CAM_HORIZONTAL_FOV_DEGREES = HORIZONTAL_FOV_DEGREES;
+  public static final double GEAR_CAM_FOCAL_LENGTH_PIXELS_X = calculateFocalLength(GEAR_CAM_IMAGE_WIDTH_PIXELS, 
+                                                                                   GEAR_CAM_HORIZONTAL_FOV_DEGREES);
   
   // Singleton Instance
-  private static final CameraController instance = new CameraController();
+  // (kept in a holder class so that it's only created the first time getInstance() is called.
+  // This way, the constants above can be used without starting up the cameras.)
+  private static class InstanceHolder {
+    private static final CameraController instance = new CameraController();
+  }
 
   private CameraController() {
     /* Note: The cameras themselves used to be constructed on
@@ -184,8 +215,16 @@ public class CameraController {
     
     // used to grab individual frames from turret cam for the ImageProcessor.
     turretCamFrameGrabber = camServer.getVideo(turretCam);
+    // used to grab individual frames from gear cam for the GearPegProcessor.
+    gearCamFrameGrabber = camServer.getVideo(gearCam);
     // used to push processed frames to the dashboard for viewing.
-    outputStream = camServer.putVideo("OpenCV Stream", IMAGE_WIDTH_PIXELS, IMAGE_HEIGHT_PIXELS);
+    outputStream = camServer.putVideo(OUTPUT_STREAM_NAME, IMAGE_WIDTH_PIXELS, IMAGE_HEIGHT_PIXELS);
+    int sinkEvents = VideoEvent.Kind.kSinkEnabled.getValue() | VideoEvent.Kind.kSinkDisabled.getValue();
+    outputStreamListener = new VideoListener(event -> {
+      if (OUTPUT_SERVER_NAME.equals(event.name)) {
+        outputStreamViewed = (event.kind == VideoEvent.Kind.kSinkEnabled);
+      }
+    }, sinkEvents, true);
   }
   
   public void toggleCamStream() {
@@ -284,10 +323,60 @@ public class CameraController {
    * and stores it in the given Mat object.
    * @param destination The OpenCv Mat to 
    * store the image in.
-   * @return The timestamp of the frame.
+   * @return When the frame was taken, in microseconds of FPGA time (same as Utility.getFPGATime()),
+   * or 0 if no frame showed up before the timeout. (If the camera server's timestamps aren't in FPGA time,
+   * it's when the frame showed up instead, see frameTimestampsAreFPGATime().)
    */
+  @Override
   public long getFrame(Mat destination) {
-    return turretCamFrameGrabber.grabFrame(destination, defaultTimeoutLengthSeconds);
+    long frameTimestamp = turretCamFrameGrabber.grabFrame(destination, defaultTimeoutLengthSeconds);
+    if (frameTimestamp == 0) {
+      return 0;
+    }
+    long fpgaTimestamp = toFPGATime(frameTimestamp);
+    frameTimestampsAreFPGATime = (fpgaTimestamp == frameTimestamp);
+    return fpgaTimestamp;
+  }
+  
+  /**
+   * Same as getFrame(), but from the gearCam.
+   */
+  public long getGearCamFrame(Mat destination) {
+    long frameTimestamp = gearCamFrameGrabber.grabFrame(destination, defaultTimeoutLengthSeconds);
+    return (frameTimestamp == 0) ? 0 : toFPGATime(frameTimestamp);
+  }
+  
+  /**
+   * @return A FrameSource that gets frames from the gearCam (see getGearCamFrame()).
+   */
+  public FrameSource getGearCamFrameSource() {
+    return this::getGearCamFrame;
+  }
+  
+  /**
+   * @param frameTimestamp A (non zero) timestamp from the camera server.
+   * @return When the frame was taken, in microseconds of FPGA time.
+   */
+  private long toFPGATime(long frameTimestamp) {
+    /* The camera server stamps each frame with the time it was captured. 
+     * Comparing that against the turret's angle history is what lets vision make up for the frame's age,
+     * but it only works if the camera server's clock is the FPGA clock. If it isn't (the times will be way off),
+     * fall back to when the frame showed up here. How old the frame really is can't be known then,
+     * so frameTimestampsAreFPGATime() says so, and the latency is reported as unavailable (see Shooter). */
+    long now = Utility.getFPGATime();
+    long frameAge = now - frameTimestamp;
+    if (frameAge < 0 || frameAge > MAX_PLAUSIBLE_FRAME_AGE_MICROS) {
+      return now;
+    }
+    return frameTimestamp;
+  }
+  
+  /**
+   * @return false if the timestamps from the camera server didn't make sense, 
+   * so getFrame() is using when frames showed up instead of when they were taken.
+   */
+  public boolean frameTimestampsAreFPGATime() {
+    return frameTimestampsAreFPGATime;
   }
   
   /**
@@ -302,7 +391,15 @@ public class CameraController {
     outputStream.putFrame(img);
   }
   
+  /**
+   * @return if anybody (like the smartdash) is currently watching the "OpenCV Stream".
+   * If not, there's no point in sending frames to it.
+   */
+  public boolean isOutputStreamViewed() {
+    return outputStreamViewed;
+  }
+  
   public static CameraController getInstance() {
-    return instance;
+    return InstanceHolder.instance;
   }
 }
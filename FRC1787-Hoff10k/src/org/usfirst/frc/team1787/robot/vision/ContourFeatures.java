@@ -0,0 +1,266 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import java.util.List;
+
+import org.opencv.core.MatOfPoint;
+
+/**
+ * Holds measurements of every contour found in a frame.
+ *
+ * Each contour is measured exactly once, in a single pass over its points, and the results
+ * are stored in the arrays below. The measurements for the i-th contour are at index i of every array
+ * (so getArea(2) and getCenterX(2) are both about the contour at index 2 of the list passed to measure()).
+ *
+ * Storing them this way (rather than making an object for each contour) means nothing
+ * has to be created every frame. The arrays only grow if more contours show up than ever before.
+ */
+public class ContourFeatures {
+
+  // how many contours are currently stored
+  private int count = 0;
+
+  // the measurements themselves (in pixels)
+  private double[] area;
+  private double[] perimeter;
+  private double[] centerX;
+  private double[] centerY;
+  private int[] boxX;
+  private int[] boxY;
+  private int[] boxWidth;
+  private int[] boxHeight;
+  // (equivalent rectangle aspect ratio) / (aspect ratio of the real target). 1 is a perfect match.
+  private double[] aspectScore;
+
+  // holds the points of a contour as {x0, y0, x1, y1, ...}. Grows if a bigger contour ever shows up.
+  private int[] contourPoints = new int[2 * 256];
+
+  public ContourFeatures() {
+    allocate(16);
+  }
+
+  /**
+   * Replaces whatever is stored with the measurements of the given contours.
+   * @param contours
+   */
+  public void measure(List<MatOfPoint> contours) {
+    clear();
+    for (int i = 0; i < contours.size(); i++) {
+      add(contours.get(i));
+    }
+  }
+
+  public void clear() {
+    count = 0;
+  }
+
+  /**
+   * Measures the given contour and stores it after the ones already stored.
+   * @param contour
+   * @return the index the measurements were stored at.
+   */
+  public int add(MatOfPoint contour) {
+    if (count == area.length) {
+      allocate(2 * area.length);
+    }
+    int index = count;
+    count++;
+
+    int numOfPoints = contour.rows();
+    if (contourPoints.length < 2 * numOfPoints) {
+      contourPoints = new int[2 * numOfPoints];
+    }
+    contour.get(0, 0, contourPoints);
+
+    /* A contour is a polygon, so its moments can be found by summing up the
+     * triangles formed by each edge and the origin (Green's theorem).
+     * m00 is the area, and (m10 / m00, m01 / m00) is the center of mass.
+     * This is the same math that Imgproc.moments() and Imgproc.contourArea() do.
+     * The perimeter is just the length of all the edges added up, like Imgproc.arcLength(). */
+    double m00 = 0;
+    double m10 = 0;
+    double m01 = 0;
+    double edgeLengths = 0;
+    int minX = Integer.MAX_VALUE;
+    int minY = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE;
+    int maxY = Integer.MIN_VALUE;
+    for (int i = 0; i < numOfPoints; i++) {
+      int x = contourPoints[2*i];
+      int y = contourPoints[2*i + 1];
+      // the last point connects back to the first one
+      int j = (i + 1 < numOfPoints) ? (i + 1) : 0;
+      int nextX = contourPoints[2*j];
+      int nextY = contourPoints[2*j + 1];
+
+      double cross = ((double) x * nextY) - ((double) nextX * y);
+      m00 += cross;
+      m10 += (x + nextX) * cross;
+      m01 += (y + nextY) * cross;
+
+      double dx = nextX - x;
+      double dy = nextY - y;
+      edgeLengths += Math.sqrt((dx*dx) + (dy*dy));
+
+      minX = Math.min(minX, x);
+      minY = Math.min(minY, y);
+      maxX = Math.max(maxX, x);
+      maxY = Math.max(maxY, y);
+    }
+
+    area[index] = Math.abs(m00 / 2);
+    perimeter[index] = edgeLengths;
+    boxX[index] = minX;
+    boxY[index] = minY;
+    boxWidth[index] = maxX - minX + 1;
+    boxHeight[index] = maxY - minY + 1;
+
+    if (m00 != 0) {
+      // (the 1/2 and 1/6 factors from the moment formulas cancel out to 1/3 here)
+      centerX[index] = m10 / (3 * m00);
+      centerY[index] = m01 / (3 * m00);
+    } else {
+      // a contour with no area (like a line) has no center of mass, so use the center of its box.
+      centerX[index] = minX + ((maxX - minX) / 2.0);
+      centerY[index] = minY + ((maxY - minY) / 2.0);
+    }
+
+    aspectScore[index] = getEquivalentRectangleAspectRatio(perimeter[index], area[index])
+                         / Target.DESIRED_CONTOUR_ASPECT_RATIO;
+    return index;
+  }
+
+  /**
+   * Converts all the stored measurements as if the image they came from were "factor" times bigger.
+   * (for example, for contours found in a frame that was shrunk to half size, use 2).
+   * The aspect scores don't change, since the shape stays the same.
+   * @param factor
+   */
+  public void scale(int factor) {
+    for (int i = 0; i < count; i++) {
+      area[i] *= factor * factor;
+      perimeter[i] *= factor;
+      // pixel i of the small image covers pixels (i * factor) to ((i + 1) * factor - 1) of the big one,
+      // so the center of pixel i is at ((i + 0.5) * factor - 0.5).
+      centerX[i] = ((centerX[i] + 0.5) * factor) - 0.5;
+      centerY[i] = ((centerY[i] + 0.5) * factor) - 0.5;
+      boxX[i] *= factor;
+      boxY[i] *= factor;
+      boxWidth[i] *= factor;
+      boxHeight[i] *= factor;
+    }
+  }
+
+  /**
+   * @return The number of contours currently stored.
+   */
+  public int size() {
+    return count;
+  }
+  
+  public double getArea(int index) {
+    return area[index];
+  }
+  
+  public double getPerimeter(int index) {
+    return perimeter[index];
+  }
+  
+  public double getCenterX(int index) {
+    return centerX[index];
+  }
+  
+  public double getCenterY(int index) {
+    return centerY[index];
+  }
+  
+  public int getBoxX(int index) {
+    return boxX[index];
+  }
+  
+  public int getBoxY(int index) {
+    return boxY[index];
+  }
+  
+  public int getBoxWidth(int index) {
+    return boxWidth[index];
+  }
+  
+  public int getBoxHeight(int index) {
+    return boxHeight[index];
+  }
+  
+  /**
+   * @return (equivalent rectangle aspect ratio) / (aspect ratio of the real target) 
+   * for the contour at the given index. 1 is a perfect match.
+   */
+  public double getAspectScore(int index) {
+    return aspectScore[index];
+  }
+
+  /**
+   * Finds the aspect ratio (long side / short side) of the rectangle that has
+   * the given perimeter and area.
+   *
+   * The target is a rectangular strip, so contours that are actually the target should
+   * have about the same equivalent rectangle as the real thing. Using the perimeter and area
+   * (rather than the bounding box) means the score still works when the contour is tilted.
+   *
+   * @return the aspect ratio, or 0 if no such rectangle exists.
+   */
+  public static double getEquivalentRectangleAspectRatio(double perimeter, double area) {
+    /* Perimeter = 2*W + 2*H
+     * Area = W*H
+     *
+     * Area / W = H
+     * Perimeter = 2*W + 2*(Area / W)
+     * Perimeter*W = 2*(W^2) + 2*Area
+     * 2*(W^2) - Perimeter*W + 2*Area = 0
+     */
+
+    double a = 2;
+    double b = -1 * perimeter;
+    double c = 2 * area;
+
+    double discriminant = (b*b) - (4*a*c);
+    double largerResult = 0;
+    double smallerResult = 0;
+    if (discriminant >= 0) {
+      // Quadratic Formula
+      largerResult = (-b + Math.sqrt(discriminant)) / (2*a);
+      smallerResult = (-b - Math.sqrt(discriminant)) / (2*a);
+    }
+
+    return (smallerResult > 0) ? (largerResult / smallerResult) : 0;
+  }
+
+  /**
+   * Makes every array the given length, keeping what's already stored.
+   */
+  private void allocate(int capacity) {
+    area = copy(area, capacity);
+    perimeter = copy(perimeter, capacity);
+    centerX = copy(centerX, capacity);
+    centerY = copy(centerY, capacity);
+    boxX = copy(boxX, capacity);
+    boxY = copy(boxY, capacity);
+    boxWidth = copy(boxWidth, capacity);
+    boxHeight = copy(boxHeight, capacity);
+    aspectScore = copy(aspectScore, capacity);
+  }
+
+  private static double[] copy(double[] array, int capacity) {
+    double[] result = new double[capacity];
+    if (array != null) {
+      System.arraycopy(array, 0, result, 0, array.length);
+    }
+    return result;
+  }
+
+  private static int[] copy(int[] array, int capacity) {
+    int[] result = new int[capacity];
+    if (array != null) {
+      System.arraycopy(array, 0, result, 0, array.length);
+    }
+    return result;
+  }
+}
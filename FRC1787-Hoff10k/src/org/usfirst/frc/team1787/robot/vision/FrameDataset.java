@@ -0,0 +1,147 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * A recording of camera frames stored in a single file, so that the vision code
+ * can be run on recorded frames off the robot (see ReplayFrameSource).
+ * 
+ * The file is laid out like this (all numbers are little endian):
+ * 
+ * Header (HEADER_SIZE_BYTES long):
+ *   int   MAGIC_NUMBER (so we know the file is actually a frame dataset)
+ *   int   VERSION
+ *   int   width of each frame in pixels
+ *   int   height of each frame in pixels
+ *   int   number of channels per pixel (3, because frames are BGR)
+ *   int   number of frames in the file
+ *   long  (unused, always 0)
+ * 
+ * Then each frame, one after another:
+ *   long  the frame's capture timestamp (in microseconds)
+ *   byte[width * height * channels]  the raw BGR pixels, row by row
+ * 
+ * Every frame takes up the same number of bytes, so any frame can be found without 
+ * reading the ones before it. The file is memory mapped when it's opened, 
+ * which means frames are read straight out of the file without loading the whole thing first.
+ * (Because of how java memory maps files, a dataset can't be bigger than 2 GB.)
+ * 
+ * Use FrameDatasetWriter to make one of these files.
+ */
+public class FrameDataset {
+  
+  public static final int MAGIC_NUMBER = 0x46524D31; // "FRM1"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE_BYTES = 32;
+  // where the frame count is stored in the header (it's written last, once all frames are written).
+  static final int FRAME_COUNT_POSITION = 20;
+  
+  private MappedByteBuffer data;
+  private int width;
+  private int height;
+  private int channels;
+  private int frameCount;
+  private int frameSizeBytes;
+  
+  // Scratch buffer for copying pixels into Mats. Reused for every frame.
+  private byte[] pixels;
+  
+  /**
+   * Opens the given frame dataset for reading.
+   * @param file
+   * @throws IOException if the file can't be read, or isn't a frame dataset.
+   */
+  public FrameDataset(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      // (the mapping stays valid after the file is closed)
+    } finally {
+      raf.close();
+    }
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    
+    if (data.capacity() < HEADER_SIZE_BYTES || data.getInt(0) != MAGIC_NUMBER) {
+      throw new IOException(file + " isn't a frame dataset.");
+    }
+    if (data.getInt(4) != VERSION) {
+      throw new IOException(file + " is version " + data.getInt(4) + ", but only version " + VERSION + " can be read.");
+    }
+    width = data.getInt(8);
+    height = data.getInt(12);
+    channels = data.getInt(16);
+    frameCount = data.getInt(FRAME_COUNT_POSITION);
+    frameSizeBytes = getFrameSizeBytes(width, height, channels);
+    
+    // if the file was cut short (say the robot lost power while recording), only use the complete frames.
+    long completeFrames = (data.capacity() - HEADER_SIZE_BYTES) / frameSizeBytes;
+    frameCount = (int) Math.min(frameCount, completeFrames);
+    
+    pixels = new byte[width * height * channels];
+  }
+  
+  public int getWidth() {
+    return width;
+  }
+  
+  public int getHeight() {
+    return height;
+  }
+  
+  public int getFrameCount() {
+    return frameCount;
+  }
+  
+  /**
+   * @param index which frame (starting at 0)
+   * @return the capture timestamp of the frame (in microseconds).
+   */
+  public long getTimestamp(int index) {
+    return data.getLong(getFramePosition(index));
+  }
+  
+  /**
+   * Copies the given frame into the given Mat.
+   * @param index which frame (starting at 0)
+   * @param destination the Mat to store the frame in. This is resized if needed.
+   * @return the capture timestamp of the frame (in microseconds).
+   */
+  public long readFrame(int index, Mat destination) {
+    int position = getFramePosition(index);
+    long timestamp = data.getLong(position);
+    
+    // duplicate() makes a new "view" of the data so reading doesn't move the position of 
+    // the original. That way different threads can read different frames at the same time.
+    ByteBuffer view = data.duplicate();
+    view.position(position + 8);
+    view.get(pixels, 0, pixels.length);
+    
+    destination.create(height, width, CvType.CV_8UC(channels));
+    destination.put(0, 0, pixels);
+    return timestamp;
+  }
+  
+  private int getFramePosition(int index) {
+    if (index < 0 || index >= frameCount) {
+      throw new IndexOutOfBoundsException("Frame " + index + " doesn't exist. There are " + frameCount + " frames.");
+    }
+    return HEADER_SIZE_BYTES + (index * frameSizeBytes);
+  }
+  
+  /**
+   * @return how many bytes a single frame (timestamp + pixels) takes up in the file.
+   */
+  static int getFrameSizeBytes(int width, int height, int channels) {
+    return 8 + (width * height * channels);
+  }
+}
@@ -0,0 +1,110 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.Mat;
+
+/**
+ * Writes frames to a file in the FrameDataset format (see FrameDataset for the layout).
+ * 
+ * Call addFrame() for each frame, then close() when you're done. The number of frames
+ * is only written to the file by close(), but FrameDataset can still read a file 
+ * that was never closed properly (it'll just use whatever complete frames it finds).
+ */
+public class FrameDatasetWriter {
+  
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private int width;
+  private int height;
+  private int channels;
+  private int frameCount = 0;
+  
+  // Scratch buffers. Reused for every frame.
+  private byte[] pixels;
+  private ByteBuffer frameBuffer;
+  
+  /**
+   * Creates a new, empty frame dataset (replacing the file if it already exists).
+   * @param file
+   * @param width the width of every frame that will be added, in pixels.
+   * @param height the height of every frame that will be added, in pixels.
+   * @throws IOException
+   */
+  public FrameDatasetWriter(File file, int width, int height) throws IOException {
+    this.width = width;
+    this.height = height;
+    this.channels = 3;
+    
+    this.file = new RandomAccessFile(file, "rw");
+    this.file.setLength(0);
+    channel = this.file.getChannel();
+    
+    ByteBuffer header = ByteBuffer.allocate(FrameDataset.HEADER_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(FrameDataset.MAGIC_NUMBER);
+    header.putInt(FrameDataset.VERSION);
+    header.putInt(width);
+    header.putInt(height);
+    header.putInt(channels);
+    header.putInt(0); // frame count, which gets filled in by close()
+    header.putLong(0);
+    header.flip();
+    writeFully(header);
+    
+    pixels = new byte[width * height * channels];
+    frameBuffer = ByteBuffer.allocate(FrameDataset.getFrameSizeBytes(width, height, channels))
+                            .order(ByteOrder.LITTLE_ENDIAN);
+  }
+  
+  /**
+   * Adds a frame to the end of the dataset.
+   * @param frame a BGR image that's the same size as given to the constructor.
+   * @param timestamp when the frame was captured (in microseconds).
+   * @throws IOException
+   */
+  public void addFrame(Mat frame, long timestamp) throws IOException {
+    if (frame.cols() != width || frame.rows() != height || frame.channels() != channels) {
+      throw new IllegalArgumentException("Expected a " + width + "x" + height + " BGR frame, but got a " 
+                                         + frame.cols() + "x" + frame.rows() + " frame with " 
+                                         + frame.channels() + " channels.");
+    }
+    frame.get(0, 0, pixels);
+    
+    frameBuffer.clear();
+    frameBuffer.putLong(timestamp);
+    frameBuffer.put(pixels);
+    frameBuffer.flip();
+    writeFully(frameBuffer);
+    frameCount++;
+  }
+  
+  public int getFrameCount() {
+    return frameCount;
+  }
+  
+  /**
+   * Writes the number of frames to the header and closes the file.
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    try {
+      ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      count.putInt(frameCount);
+      count.flip();
+      channel.write(count, FrameDataset.FRAME_COUNT_POSITION);
+    } finally {
+      file.close();
+    }
+  }
+  
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.opencv.core.Mat;
+
+/**
+ * Records what the turretCam saw (and what the vision code thought of it) during a match,
+ * so that when auto-aim misbehaves we can go back and see why.
+ * 
+ * Frames are written into a file that works like a ring: it has room for a fixed number of frames,
+ * and once it's full, the oldest frame gets overwritten. So the file never grows,
+ * and it always holds the most recent frames. Use FrameRecording to read the file back.
+ * 
+ * Recording must never slow down vision or control, so:
+ * 1) record() only copies the frame into a spare buffer and hands it off. The actual writing
+ *    happens on a separate, low priority thread.
+ * 2) if there's no spare buffer (because the writing thread has fallen behind), 
+ *    the frame is simply dropped rather than waiting.
+ * 
+ * The file layout (all numbers are little endian):
+ * 
+ * Header (HEADER_SIZE_BYTES long):
+ *   int   MAGIC_NUMBER
+ *   int   VERSION
+ *   int   width of each frame in pixels
+ *   int   height of each frame in pixels
+ *   int   number of channels per pixel (3, because frames are BGR)
+ *   int   number of slots (how many frames the file can hold)
+ *   long  total number of frames ever written. Frame number n is in slot (n % number of slots).
+ * 
+ * Then each slot, one after another:
+ *   long   the frame's capture timestamp (in microseconds)
+ *   double target error in degrees (x)
+ *   double target error in degrees (y)
+ *   double horizontal distance to the target
+ *   int    1 if a target was found, 0 if not
+ *   int    (unused, always 0)
+ *   byte[width * height * channels]  the raw BGR pixels, row by row
+ */
+public class FrameRecorder {
+  
+  public static final int MAGIC_NUMBER = 0x52454331; // "REC1"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE_BYTES = 32;
+  static final int FRAMES_WRITTEN_POSITION = 24;
+  static final int SLOT_INFO_SIZE_BYTES = 40;
+  
+  // how many frames can be waiting to be written at once.
+  private final int NUM_OF_BUFFERS = 4;
+  // how often (in frames) the file is flushed to disk, so not much is lost if the robot loses power.
+  private final int FRAMES_BETWEEN_FLUSHES = 30;
+  
+  private int width;
+  private int height;
+  private int channels = 3;
+  private int numOfSlots;
+  private int slotSizeBytes;
+  private MappedByteBuffer file;
+  
+  // Buffers are passed back and forth between the vision thread and the writing thread through these.
+  // freeBuffers holds the ones that are ready to be filled, and fullBuffers holds the ones waiting to be written.
+  private ArrayBlockingQueue<RecordedFrame> freeBuffers;
+  private ArrayBlockingQueue<RecordedFrame> fullBuffers;
+  
+  private Thread writerThread;
+  
+  // framesDropped is only changed by the vision thread, and framesWritten only by the writing thread.
+  private volatile long framesWritten = 0;
+  private volatile long framesDropped = 0;
+  
+  /**
+   * A frame (and what the vision code found in it) waiting to be written.
+   */
+  private static class RecordedFrame {
+    long timestamp;
+    double errorInDegreesX;
+    double errorInDegreesY;
+    double distance;
+    boolean targetFound;
+    byte[] pixels;
+  }
+  
+  /**
+   * Creates the recording file (replacing it if it already exists) and starts the writing thread.
+   * @param file where to record to.
+   * @param width
+   * @param height the size of the frames that will be recorded.
+   * @param numOfSlots how many frames the file can hold. Each one takes up about (width * height * 3) bytes.
+   * @throws IOException
+   */
+  public FrameRecorder(File file, int width, int height, int numOfSlots) throws IOException {
+    this.width = width;
+    this.height = height;
+    this.numOfSlots = numOfSlots;
+    slotSizeBytes = SLOT_INFO_SIZE_BYTES + (width * height * channels);
+    
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      long fileSize = HEADER_SIZE_BYTES + ((long) numOfSlots * slotSizeBytes);
+      this.file = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+      // (the mapping stays valid after the file is closed)
+    } finally {
+      raf.close();
+    }
+    this.file.order(ByteOrder.LITTLE_ENDIAN);
+    this.file.putInt(0, MAGIC_NUMBER);
+    this.file.putInt(4, VERSION);
+    this.file.putInt(8, width);
+    this.file.putInt(12, height);
+    this.file.putInt(16, channels);
+    this.file.putInt(20, numOfSlots);
+    this.file.putLong(FRAMES_WRITTEN_POSITION, 0);
+    
+    freeBuffers = new ArrayBlockingQueue<RecordedFrame>(NUM_OF_BUFFERS);
+    fullBuffers = new ArrayBlockingQueue<RecordedFrame>(NUM_OF_BUFFERS);
+    for (int i = 0; i < NUM_OF_BUFFERS; i++) {
+      RecordedFrame buffer = new RecordedFrame();
+      buffer.pixels = new byte[width * height * channels];
+      freeBuffers.add(buffer);
+    }
+    
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeFrames();
+      }
+    }, "FrameRecorder");
+    writerThread.setDaemon(true);
+    // recording is the least important thing going on, so it only gets whatever CPU is left over.
+    writerThread.setPriority(Thread.MIN_PRIORITY);
+    writerThread.start();
+  }
+  
+  /**
+   * Queues up the given frame to be recorded. This never waits: if the writing thread
+   * has fallen behind, the frame is dropped instead.
+   * @param frame a BGR image (the size given to the constructor).
+   * @param timestamp when the frame was captured (in microseconds).
+   * @param target what the vision code found in the frame.
+   */
+  public void record(Mat frame, long timestamp, Target target) {
+    RecordedFrame buffer = freeBuffers.poll();
+    if (buffer == null || frame.cols() != width || frame.rows() != height || frame.channels() != channels) {
+      if (buffer != null) {
+        freeBuffers.offer(buffer);
+      }
+      framesDropped++;
+      return;
+    }
+    
+    frame.get(0, 0, buffer.pixels);
+    buffer.timestamp = timestamp;
+    buffer.errorInDegreesX = target.getErrorInDegreesX();
+    buffer.errorInDegreesY = target.getErrorInDegreesY();
+    buffer.distance = target.getHorizontalDistance();
+    buffer.targetFound = target.getHorizontalDistance() > 0;
+    // there's always room, because there are only NUM_OF_BUFFERS buffers in total.
+    fullBuffers.offer(buffer);
+  }
+  
+  /**
+   * Runs on the writing thread. Waits for frames and writes them into the file.
+   */
+  private void writeFrames() {
+    // a "view" of the file with its own position, so the writing thread doesn't share one with anyone.
+    ByteBuffer slots = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    long frameNumber = 0;
+    try {
+      while (true) {
+        RecordedFrame buffer = fullBuffers.take();
+        
+        slots.position(HEADER_SIZE_BYTES + (int) (frameNumber % numOfSlots) * slotSizeBytes);
+        slots.putLong(buffer.timestamp);
+        slots.putDouble(buffer.errorInDegreesX);
+        slots.putDouble(buffer.errorInDegreesY);
+        slots.putDouble(buffer.distance);
+        slots.putInt(buffer.targetFound ? 1 : 0);
+        slots.putInt(0);
+        slots.put(buffer.pixels);
+        freeBuffers.offer(buffer);
+        
+        // only count the frame once it's completely written, so a reader never sees half a frame.
+        frameNumber++;
+        file.putLong(FRAMES_WRITTEN_POSITION, frameNumber);
+        framesWritten = frameNumber;
+        
+        if (frameNumber % FRAMES_BETWEEN_FLUSHES == 0) {
+          file.force();
+        }
+      }
+    } catch (InterruptedException e) {
+      // close() was called
+    }
+  }
+  
+  /**
+   * Stops recording, and makes sure everything recorded so far is saved to the file.
+   */
+  public void close() {
+    writerThread.interrupt();
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    file.force();
+  }
+  
+  /**
+   * @return how many frames have been written to the file so far.
+   */
+  public long getFramesWritten() {
+    return framesWritten;
+  }
+  
+  /**
+   * @return how many frames were dropped (not recorded) so far.
+   */
+  public long getFramesDropped() {
+    return framesDropped;
+  }
+}
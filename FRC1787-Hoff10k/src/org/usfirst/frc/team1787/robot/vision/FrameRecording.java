@@ -0,0 +1,128 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Reads back a file written by a FrameRecorder (see FrameRecorder for the layout).
+ * 
+ * Frames are numbered from 0 (the oldest frame still in the file) 
+ * to getFrameCount() - 1 (the most recent one).
+ */
+public class FrameRecording {
+  
+  private MappedByteBuffer data;
+  private int width;
+  private int height;
+  private int channels;
+  private int numOfSlots;
+  private int slotSizeBytes;
+  // the (FrameRecorder) frame number of the oldest frame still in the file
+  private long firstFrameNumber;
+  private int frameCount;
+  
+  // Scratch buffer for copying pixels into Mats. Reused for every frame.
+  private byte[] pixels;
+  
+  public FrameRecording(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    
+    if (data.capacity() < FrameRecorder.HEADER_SIZE_BYTES || data.getInt(0) != FrameRecorder.MAGIC_NUMBER) {
+      throw new IOException(file + " isn't a frame recording.");
+    }
+    if (data.getInt(4) != FrameRecorder.VERSION) {
+      throw new IOException(file + " is version " + data.getInt(4) + ", but only version " 
+                            + FrameRecorder.VERSION + " can be read.");
+    }
+    width = data.getInt(8);
+    height = data.getInt(12);
+    channels = data.getInt(16);
+    numOfSlots = data.getInt(20);
+    slotSizeBytes = FrameRecorder.SLOT_INFO_SIZE_BYTES + (width * height * channels);
+    long framesWritten = data.getLong(FrameRecorder.FRAMES_WRITTEN_POSITION);
+    
+    if (framesWritten < numOfSlots) {
+      firstFrameNumber = 0;
+      frameCount = (int) framesWritten;
+    } else {
+      // Once the file is full, the recorder overwrites the oldest frame. If the robot lost power 
+      // in the middle of that, it's only half written, so the oldest frame is skipped to be safe.
+      firstFrameNumber = framesWritten - numOfSlots + 1;
+      frameCount = numOfSlots - 1;
+    }
+    pixels = new byte[width * height * channels];
+  }
+  
+  public int getWidth() {
+    return width;
+  }
+  
+  public int getHeight() {
+    return height;
+  }
+  
+  public int getFrameCount() {
+    return frameCount;
+  }
+  
+  /** @return when the given frame was captured (in microseconds). */
+  public long getTimestamp(int index) {
+    return data.getLong(getSlotPosition(index));
+  }
+  
+  public double getErrorInDegreesX(int index) {
+    return data.getDouble(getSlotPosition(index) + 8);
+  }
+  
+  public double getErrorInDegreesY(int index) {
+    return data.getDouble(getSlotPosition(index) + 16);
+  }
+  
+  public double getHorizontalDistance(int index) {
+    return data.getDouble(getSlotPosition(index) + 24);
+  }
+  
+  public boolean getTargetFound(int index) {
+    return data.getInt(getSlotPosition(index) + 32) != 0;
+  }
+  
+  /**
+   * Copies the given frame into the given Mat.
+   * @param index which frame (0 is the oldest)
+   * @param destination the Mat to store the frame in. This is resized if needed.
+   * @return when the frame was captured (in microseconds).
+   */
+  public long readFrame(int index, Mat destination) {
+    int position = getSlotPosition(index);
+    ByteBuffer view = data.duplicate();
+    view.position(position + FrameRecorder.SLOT_INFO_SIZE_BYTES);
+    view.get(pixels, 0, pixels.length);
+    
+    destination.create(height, width, CvType.CV_8UC(channels));
+    destination.put(0, 0, pixels);
+    return data.getLong(position);
+  }
+  
+  private int getSlotPosition(int index) {
+    if (index < 0 || index >= frameCount) {
+      throw new IndexOutOfBoundsException("Frame " + index + " doesn't exist. There are " + frameCount + " frames.");
+    }
+    int slot = (int) ((firstFrameNumber + index) % numOfSlots);
+    return FrameRecorder.HEADER_SIZE_BYTES + (slot * slotSizeBytes);
+  }
+}
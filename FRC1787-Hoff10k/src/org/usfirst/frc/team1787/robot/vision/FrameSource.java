@@ -0,0 +1,19 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import org.opencv.core.Mat;
+
+/**
+ * Anything that can hand frames to an ImageProcessor.
+ * On the robot, this is the CameraController (frames come from the turretCam).
+ * Off the robot, frames can come from a recording instead (see ReplayFrameSource).
+ */
+public interface FrameSource {
+  
+  /**
+   * Gets the next frame and stores it in the given Mat object.
+   * @param destination The OpenCv Mat to store the image in (BGR format).
+   * @return The timestamp of the frame (in microseconds), or 0 if no frame could be gotten.
+   * For the CameraController, this is when the frame was taken, in FPGA time (see Utility.getFPGATime()).
+   */
+  public long getFrame(Mat destination);
+}
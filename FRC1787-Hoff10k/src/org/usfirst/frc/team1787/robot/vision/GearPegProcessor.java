@@ -0,0 +1,191 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import java.util.ArrayList;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.usfirst.frc.team1787.robot.utils.TripleBuffer;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * The vision pipeline for the gearCam: finds the gear peg (by finding the 2 strips of tape on either side of it).
+ *
+ * This is completely separate from the ImageProcessor (which handles the turretCam).
+ * It has its own frame grabber and its own scratch buffers, and it runs on its own VisionThread,
+ * so the 2 pipelines run side by side without ever waiting on each other.
+ *
+ * Note: the gearCam is set up for the driver to look at (auto exposure), not for vision,
+ * so the strips won't stand out as much as the boiler target does for the turretCam.
+ * That's why the HSV bounds can be changed with setHSVBounds() (from the preferences, see Robot.robotInit()),
+ * so they can be tuned on the real gearCam without changing the code.
+ */
+public class GearPegProcessor implements VisionPipeline {
+
+  private FrameSource frameSource;
+
+  // Scratch buffers, all reused every frame.
+  private Mat originalFrame = new Mat();
+  private Mat processedFrame = new Mat();
+  private HSVThresholdTable thresholdTable = new HSVThresholdTable();
+  private ArrayList<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+  private Mat hierarchy = new Mat();
+  private ContourFeatures contourFeatures = new ContourFeatures();
+
+  // HSV Bounds...................................new Scalar(H, S, V);
+  // The defaults are the turretCam's (see ImageProcessor). It's the same tape, so they're a starting point,
+  // but the gearCam's auto exposure makes it brighter and less saturated.
+  public final Scalar DEFAULT_HSV_LOWER_BOUNDS = new Scalar(75, 200, 30);
+  public final Scalar DEFAULT_HSV_UPPER_BOUNDS = new Scalar(90, 255, 150);
+  // {lower, upper}, swapped out together by setHSVBounds(). The VisionThread rebuilds thresholdTable when they change.
+  private volatile Scalar[] hsvBounds = {DEFAULT_HSV_LOWER_BOUNDS, DEFAULT_HSV_UPPER_BOUNDS};
+
+  // Strip Filtering Parameters
+  private final double MIN_STRIP_AREA = 15;
+  // a contour's (bounding box height / width) divided by the real strip's has to be between these
+  private final double MIN_STRIP_SHAPE_SCORE = 0.5;
+  private final double MAX_STRIP_SHAPE_SCORE = 2.0;
+  // the 2 strips should be about the same height...
+  private final double MAX_STRIP_HEIGHT_RATIO = 1.5;
+  // ...at about the same height in the image (as a fraction of the strip height)...
+  private final double MAX_VERTICAL_OFFSET = 0.5;
+  // ...and the right distance apart for how tall they are (as a fraction of the expected distance).
+  private final double SPACING_TOLERANCE = 0.5;
+  private final double EXPECTED_SPACING_TO_HEIGHT = PegTarget.STRIP_SPACING / PegTarget.STRIP_HEIGHT;
+
+  // Current Peg (handed off without locking or making new ones, like ImageProcessor's "Current Target", see TripleBuffer)
+  private final TripleBuffer<PegTarget> pegs = new TripleBuffer<PegTarget>(PegTarget::new);
+
+  // Singleton Instance (the one that processes frames from the gearCam)
+  private static class InstanceHolder {
+    private static final GearPegProcessor instance =
+        new GearPegProcessor(CameraController.getInstance().getGearCamFrameSource());
+  }
+
+  /**
+   * On the robot, use getInstance() instead! This is for processing frames from somewhere else.
+   * @param frameSource where to get frames from.
+   */
+  public GearPegProcessor(FrameSource frameSource) {
+    this.frameSource = frameSource;
+  }
+  
+  /**
+   * Changes the HSV bounds the strips are found with (see ImageProcessor.getHSVFilter() for what they mean).
+   * Safe to call from any thread. The VisionThread starts using them on its next frame.
+   * @param lowerBounds
+   * @param upperBounds
+   */
+  public void setHSVBounds(Scalar lowerBounds, Scalar upperBounds) {
+    hsvBounds = new Scalar[] {lowerBounds, upperBounds};
+  }
+
+  @Override
+  public void runVisionProcessing() {
+    long frameTimestamp = frameSource.getFrame(originalFrame);
+    if (frameTimestamp == 0) {
+      PegTarget noPeg = pegs.getWriteBuffer();
+      noPeg.clear();
+      noPeg.setTimestamp(0);
+      pegs.publish();
+      return;
+    }
+
+    // (the table is only rebuilt if the bounds are different from last time)
+    Scalar[] bounds = hsvBounds;
+    thresholdTable.setBounds(bounds[0], bounds[1]);
+    thresholdTable.apply(originalFrame, processedFrame);
+    for (int i = 0; i < contours.size(); i++) {
+      contours.get(i).release();
+    }
+    contours.clear();
+    Imgproc.findContours(processedFrame, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+    contourFeatures.measure(contours);
+
+    PegTarget newPeg = pegs.getWriteBuffer();
+    findPeg(contourFeatures, newPeg);
+    newPeg.setTimestamp(frameTimestamp);
+    pegs.publish();
+  }
+
+  /**
+   * Out of all the pairs of contours that look like strips, picks the pair that looks most like
+   * the 2 strips around the peg (the biggest pair that's lined up right), and stores where the peg is in result.
+   */
+  private void findPeg(ContourFeatures features, PegTarget result) {
+    int bestLeft = -1;
+    int bestRight = -1;
+    double bestArea = 0;
+
+    for (int i = 0; i < features.size(); i++) {
+      if (!looksLikeStrip(features, i)) {
+        continue;
+      }
+      for (int j = i + 1; j < features.size(); j++) {
+        if (!looksLikeStrip(features, j)) {
+          continue;
+        }
+        double totalArea = features.getArea(i) + features.getArea(j);
+        if (totalArea > bestArea && looksLikePair(features, i, j)) {
+          bestArea = totalArea;
+          boolean iIsLeft = features.getCenterX(i) < features.getCenterX(j);
+          bestLeft = iIsLeft ? i : j;
+          bestRight = iIsLeft ? j : i;
+        }
+      }
+    }
+
+    if (bestLeft == -1) {
+      result.clear();
+      return;
+    }
+    double pegCenterX = (features.getCenterX(bestLeft) + features.getCenterX(bestRight)) / 2;
+    result.set(pegCenterX, features.getCenterX(bestRight) - features.getCenterX(bestLeft));
+  }
+
+  private boolean looksLikeStrip(ContourFeatures features, int index) {
+    if (features.getArea(index) < MIN_STRIP_AREA) {
+      return false;
+    }
+    double aspectRatio = (double) features.getBoxHeight(index) / features.getBoxWidth(index);
+    double score = aspectRatio / PegTarget.STRIP_ASPECT_RATIO;
+    return MIN_STRIP_SHAPE_SCORE <= score && score <= MAX_STRIP_SHAPE_SCORE;
+  }
+
+  private boolean looksLikePair(ContourFeatures features, int a, int b) {
+    double heightA = features.getBoxHeight(a);
+    double heightB = features.getBoxHeight(b);
+    double averageHeight = (heightA + heightB) / 2;
+    if (Math.max(heightA, heightB) / Math.min(heightA, heightB) > MAX_STRIP_HEIGHT_RATIO) {
+      return false;
+    }
+    if (Math.abs(features.getCenterY(a) - features.getCenterY(b)) > MAX_VERTICAL_OFFSET * averageHeight) {
+      return false;
+    }
+    double spacingToHeight = Math.abs(features.getCenterX(a) - features.getCenterX(b)) / averageHeight;
+    return Math.abs(spacingToHeight - EXPECTED_SPACING_TO_HEIGHT) <= SPACING_TOLERANCE * EXPECTED_SPACING_TO_HEIGHT;
+  }
+
+  /**
+   * @return Where the peg was in the most recently processed frame from the gearCam. This never blocks.
+   * The PegTarget returned doesn't change until the next time this is called (then it gets reused),
+   * so only call this from one thread (on the robot, the main robot loop).
+   */
+  public PegTarget getCurrentPeg() {
+    return pegs.acquire();
+  }
+
+  public void publishDataToSmartDash() {
+    // read the peg once, so all the values published come from the same frame
+    PegTarget peg = getCurrentPeg();
+    SmartDashboard.putBoolean("Peg Found", peg.isFound());
+    SmartDashboard.putNumber("Peg Error X", peg.getErrorInDegreesX());
+    SmartDashboard.putNumber("Peg Distance", peg.getDistance());
+  }
+
+  public static GearPegProcessor getInstance() {
+    return InstanceHolder.instance;
+  }
+}
@@ -0,0 +1,147 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * Does the same thing as an HSV filter (Imgproc.cvtColor() to HSV, then Core.inRange()),
+ * but in a single pass over the image using a lookup table.
+ *
+ * The normal way converts every pixel of the frame to HSV (making a whole new 3 channel image),
+ * then goes over that image a second time to check each pixel against the bounds.
+ * But whether a pixel passes the filter only depends on its B, G, and R values.
+ * So instead, the answer for every possible color is worked out ahead of time and stored in a table.
+ * Filtering a frame is then just looking up each pixel's color in the table.
+ *
+ * To keep the table small (256 KB), the lowest 2 bits of each color channel are ignored,
+ * so colors that only differ by a tiny bit share an entry. This means a pixel that's right
+ * on the edge of the bounds might come out differently than it would with Core.inRange().
+ *
+ * The table only has to be rebuilt when the bounds change, which takes a few milliseconds.
+ */
+public class HSVThresholdTable {
+
+  // how many bits of each color channel are used to look up a color.
+  private static final int BITS_PER_CHANNEL = 6;
+  private static final int IGNORED_BITS = 8 - BITS_PER_CHANNEL;
+  private static final int LEVELS_PER_CHANNEL = 1 << BITS_PER_CHANNEL;
+
+  // table[(b << 12) | (g << 6) | r] is 255 if that (quantized) color passes the filter, 0 otherwise.
+  private final byte[] table = new byte[LEVELS_PER_CHANNEL * LEVELS_PER_CHANNEL * LEVELS_PER_CHANNEL];
+
+  // the bounds the table was last built for
+  private final double[] lowerBounds = new double[3];
+  private final double[] upperBounds = new double[3];
+  private boolean tableBuilt = false;
+
+  // Scratch buffers for copying pixels in and out of Mats. These only grow if a bigger image shows up.
+  private byte[] pixels = new byte[0];
+  private byte[] maskPixels = new byte[0];
+
+  /**
+   * Sets the HSV bounds of the filter. The table is only rebuilt
+   * if these are different from the last bounds given.
+   *
+   * @param lower The minimum values of H, S, and V that pass through the filter
+   * @param upper The maximum values of H, S, and V that pass through the filter
+   */
+  public void setBounds(Scalar lower, Scalar upper) {
+    if (tableBuilt && sameBounds(lower, upper)) {
+      return;
+    }
+    for (int i = 0; i < 3; i++) {
+      lowerBounds[i] = lower.val[i];
+      upperBounds[i] = upper.val[i];
+    }
+    buildTable();
+    tableBuilt = true;
+  }
+
+  /**
+   * Filters the given BGR image.
+   * @param bgrSource The image to filter (can be a submat).
+   * @param mask Where to store the result. Pixels that pass the filter will be 255 (white),
+   * all others will be 0 (black). This is resized if needed.
+   */
+  public void apply(Mat bgrSource, Mat mask) {
+    int rows = bgrSource.rows();
+    int cols = bgrSource.cols();
+    int numOfPixels = rows * cols;
+    if (pixels.length < 3 * numOfPixels) {
+      pixels = new byte[3 * numOfPixels];
+    }
+    if (maskPixels.length < numOfPixels) {
+      maskPixels = new byte[numOfPixels];
+    }
+
+    bgrSource.get(0, 0, pixels);
+    for (int i = 0, j = 0; i < numOfPixels; i++, j += 3) {
+      int b = (pixels[j] & 0xFF) >> IGNORED_BITS;
+      int g = (pixels[j + 1] & 0xFF) >> IGNORED_BITS;
+      int r = (pixels[j + 2] & 0xFF) >> IGNORED_BITS;
+      maskPixels[i] = table[(b << (2 * BITS_PER_CHANNEL)) | (g << BITS_PER_CHANNEL) | r];
+    }
+
+    mask.create(rows, cols, CvType.CV_8UC1);
+    mask.put(0, 0, maskPixels);
+  }
+
+  private boolean sameBounds(Scalar lower, Scalar upper) {
+    for (int i = 0; i < 3; i++) {
+      if (lowerBounds[i] != lower.val[i] || upperBounds[i] != upper.val[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void buildTable() {
+    // each entry stands for a small range of colors, so test the color in the middle of that range.
+    int halfStep = (1 << IGNORED_BITS) / 2;
+    int index = 0;
+    for (int b = 0; b < LEVELS_PER_CHANNEL; b++) {
+      for (int g = 0; g < LEVELS_PER_CHANNEL; g++) {
+        for (int r = 0; r < LEVELS_PER_CHANNEL; r++) {
+          int blue = (b << IGNORED_BITS) + halfStep;
+          int green = (g << IGNORED_BITS) + halfStep;
+          int red = (r << IGNORED_BITS) + halfStep;
+          table[index] = passesFilter(blue, green, red) ? (byte) 255 : 0;
+          index++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts the given color to HSV the same way Imgproc.cvtColor() does for 8 bit images
+   * (H in [0, 180], S and V in [0, 255]), and checks it against the bounds like Core.inRange() does.
+   */
+  private boolean passesFilter(int blue, int green, int red) {
+    int max = Math.max(blue, Math.max(green, red));
+    int min = Math.min(blue, Math.min(green, red));
+    int diff = max - min;
+
+    double value = max;
+    double saturation = (max == 0) ? 0 : Math.round(diff * 255.0 / max);
+    double hue = 0;
+    if (diff != 0) {
+      if (max == red) {
+        hue = 60.0 * (green - blue) / diff;
+      } else if (max == green) {
+        hue = 120 + (60.0 * (blue - red) / diff);
+      } else {
+        hue = 240 + (60.0 * (red - green) / diff);
+      }
+      if (hue < 0) {
+        hue += 360;
+      }
+    }
+    // OpenCV halves the hue so that it fits in 1 byte.
+    hue = Math.round(hue / 2);
+
+    return lowerBounds[0] <= hue && hue <= upperBounds[0]
+           && lowerBounds[1] <= saturation && saturation <= upperBounds[1]
+           && lowerBounds[2] <= value && value <= upperBounds[2];
+  }
+}
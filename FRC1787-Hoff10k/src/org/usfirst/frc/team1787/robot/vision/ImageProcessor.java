@@ -1,39 +1,93 @@
 package org.usfirst.frc.team1787.robot.vision;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.imgproc.Moments;
+import org.usfirst.frc.team1787.robot.utils.TripleBuffer;
 
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
-public class ImageProcessor {
+public class ImageProcessor implements VisionPipeline {
+  
+  // Where frames come from. On the robot, this is the turretCam (through the CameraController).
+  // camController is null if frames are coming from somewhere else (like a recording), 
+  // in which case nothing gets pushed to the dashboard.
+  private FrameSource frameSource;
+  private CameraController camController;
+  // draws the results on the frames and sends them to the dashboard on its own thread (null without camController).
+  private AnnotatedStream annotatedStream;
   
   // A "Mat" is the dataformat that OpenCv stores images in.
   // Here 2 different Mats are used:
   // originalFrame stores the raw image from the camera
   // (though sometimes it's drawn on to overlay information)
   // processedFrame stores the filtered/processed image
-  private CameraController camController = CameraController.getInstance();
   private Mat originalFrame = new Mat();
   private Mat processedFrame = new Mat();
+  
+  // Scratch buffers used while measuring contours.
+  // These are all allocated once and then reused every frame. Creating new ones every frame
+  // makes a lot of garbage (and native memory that's only freed once the garbage is collected),
+  // which leads to GC pauses and the RIO running out of memory.
+  private ArrayList<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+  private Mat hierarchy = new Mat();
+  // every contour in the current frame gets measured (just once!) into contourFeatures.
+  // singleContourFeatures is for measuring contours one at a time, like in passesShapeTest().
+  private ContourFeatures contourFeatures = new ContourFeatures();
+  private ContourFeatures singleContourFeatures = new ContourFeatures();
+  private Point contourCenter = new Point();
+  private Rect contourBoundingBox = new Rect();
+  
+  // Tracking Window
+  // Once the target is found, the next frame only needs to be searched near where the target was.
+  // searchWindow is that area: the target's last bounding box, padded by how far it could've moved.
+  // If the target isn't found in the window MAX_MISSES_IN_SEARCH_WINDOW times in a row,
+  // the whole frame is searched again.
+  private volatile boolean trackingWindowEnabled = true;
+  private volatile boolean searchWindowActive = false;
+  private Rect searchWindow = new Rect();
+  private Point searchWindowOffset = new Point();
+  // the searchWindow's pixels are copied into this (see RegionBuffer), since submat() would make a new Mat every frame.
+  // (it's freed whenever the tracking window gets turned off)
+  private RegionBuffer searchAreaBuffer = new RegionBuffer();
+  private int missesInSearchWindow = 0;
+  private final int MAX_MISSES_IN_SEARCH_WINDOW = 3;
+  // how much extra room to leave around the target's bounding box, on each side.
+  // the turret mostly moves side to side, so more room is given horizontally.
+  private final int SEARCH_WINDOW_PADDING_PIXELS_X = 16;
+  private final int SEARCH_WINDOW_PADDING_PIXELS_Y = 8;
 
   // HSV Bounds...................................new Scalar(H, S, V);
   public final Scalar DEFAULT_HSV_LOWER_BOUNDS = new Scalar(75, 200, 30);
   public final Scalar DEFAULT_HSV_UPPER_BOUNDS = new Scalar(90, 255, 150);
   
+  // Does the HSV filter in one pass with a lookup table instead of cvtColor() + inRange().
+  // See HSVThresholdTable for more info. Set useThresholdTable to false to go back to the old way.
+  private HSVThresholdTable thresholdTable = new HSVThresholdTable();
+  private volatile boolean useThresholdTable = true;
+  
+  // If set, the target is found "coarse to fine" (see PyramidDetector) instead of searching the full size frame.
+  // Once it's found, the tracking window takes over like normal, until the target is lost again.
+  private volatile PyramidDetector pyramidDetector = null;
+  
+  // If set, every frame (and the target found in it) is recorded. See FrameRecorder.
+  private volatile FrameRecorder frameRecorder = null;
+  
   // Shape Filtering Parameters
   private final double defaultMinArea = 50;
   private final double defaultMinScore = 0.8;
   private final double defaultMaxScore = 2.0;
   
+  // decides which of the measured contours is the target
+  // (volatile, since it can be changed from another thread while the VisionThread is using it)
+  private volatile TargetRanker targetRanker = new LargestTargetRanker(defaultMinArea, defaultMinScore, defaultMaxScore);
+  
   // Colors used to draw contours..........new Scalar(B, G, R);
   public static final Scalar COLOR_BLACK = new Scalar(0, 0, 0);
   public static final Scalar COLOR_WHITE = new Scalar(255, 255, 255);
@@ -47,40 +101,155 @@ public class ImageProcessor {
                                    COLOR_GREEN, COLOR_PURPLE, COLOR_BLUE};
   
   // Current Target
-  private Target currentTarget = new Target(null);
-  
-  // Singleton Instance
-  private static final ImageProcessor instance = new ImageProcessor();
+  // This is written by the VisionThread and read by the main robot loop.
+  // Rather than creating a new Target each frame, the results are written into one of 3 Targets, which are
+  // handed back and forth through a TripleBuffer (no locking needed). The Target the main loop has is never
+  // written to until it asks for a new one, so it can't change while it's being read.
+  private final TripleBuffer<Target> targets = new TripleBuffer<Target>(() -> new Target(null));
+  
+  // Keeps track of how much memory (in bytes) the vision thread allocates while processing a frame.
+  // A frame with nothing in it allocates nothing. A frame with contours in it can't get all the way to 0, because
+  // OpenCV's Imgproc.findContours() makes a new MatOfPoint for every contour (plus a temporary Mat, and the finalizer
+  // records that come with each Mat), and there's no way to make it reuse them from java. That's at most
+  // CONTOUR_ALLOCATION_BYTES_PER_CONTOUR per contour, plus CONTOUR_ALLOCATION_BYTES_PER_FRAME for the temporary lists.
+  // Anything more than that means something else is making garbage. (benchmark/Checks checks both of these)
+  public static final long CONTOUR_ALLOCATION_BYTES_PER_FRAME = 512;
+  public static final long CONTOUR_ALLOCATION_BYTES_PER_CONTOUR = 256;
+  private com.sun.management.ThreadMXBean threadInfo = null;
+  private long allocationMeasurementOverhead = 0;
+  private volatile long bytesAllocatedLastFrame = -1;
+  
+  // Singleton Instance (the one that processes frames from the turretCam)
+  // (kept in a holder class so that it's only created the first time getInstance() is called.
+  // This way, other ImageProcessors can be made off the robot without starting up the cameras.)
+  private static class InstanceHolder {
+    private static final ImageProcessor instance = new ImageProcessor(CameraController.getInstance());
+  }
 
-  private ImageProcessor() {
-    // initialization intentionally left blank.
+  /**
+   * On the robot, use getInstance() instead! This is for processing frames
+   * from somewhere other than the turretCam (like a recording, see ReplayFrameSource).
+   * @param frameSource where to get frames from.
+   */
+  public ImageProcessor(FrameSource frameSource) {
+    this.frameSource = frameSource;
+    if (frameSource instanceof CameraController) {
+      camController = (CameraController) frameSource;
+      annotatedStream = new AnnotatedStream(camController);
+      annotatedStream.start();
+    }
+    
+    // Not every JVM can count how much memory a thread allocates, so only use it if it's there.
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+      threadInfo = (com.sun.management.ThreadMXBean) bean;
+      threadInfo.setThreadAllocatedMemoryEnabled(true);
+      // asking for the count allocates a little bit itself, so measure how much so it can be subtracted out.
+      long threadId = Thread.currentThread().getId();
+      long start = threadInfo.getThreadAllocatedBytes(threadId);
+      allocationMeasurementOverhead = threadInfo.getThreadAllocatedBytes(threadId) - start;
+    }
   }
   
-  /** This is the main vision pipeline. Call this method periodically to run vision! Woot! */
+  /**
+   * This is the main vision pipeline. Call this method periodically to run vision! Woot!
+   * 
+   * Note that this blocks until the turretCam delivers a frame, so it's normally 
+   * called from the VisionThread rather than from the main robot loop.
+   */
+  @Override
   public void runVisionProcessing() {
-    /* Perform an HSV filter on the originalFrame to get a binary image, which is stored in processedFrame */
-    getHSVFilter(DEFAULT_HSV_LOWER_BOUNDS, DEFAULT_HSV_UPPER_BOUNDS);
+    long threadId = Thread.currentThread().getId();
+    long bytesAllocatedAtStart = (threadInfo != null) ? threadInfo.getThreadAllocatedBytes(threadId) : 0;
     
-    /* Search that binary image for contours, and store the detected contours in a list 
-     * in OpenCv, contours are represented by the "MatOfPoint" type. */
-    ArrayList<MatOfPoint> contours = findContours(processedFrame);
+    processFrame();
     
-    /* Sort through the list of contours, measuring different aspects of them to determine 
-     * which of them, if any, is most likely the target */
-    MatOfPoint bestCandidate = getStrongestCandidate(contours);
-    currentTarget = new Target(bestCandidate);
+    if (threadInfo != null) {
+      long bytesAllocated = threadInfo.getThreadAllocatedBytes(threadId) - bytesAllocatedAtStart;
+      bytesAllocatedLastFrame = Math.max(0, bytesAllocated - allocationMeasurementOverhead);
+    }
+  }
+  
+  private void processFrame() {
+    /* Grab the most recent frame (normally from the turretCam). A timestamp of 0 means no frame
+     * arrived before the timeout, so there's nothing to process this time around. */
+    long frameTimestamp = frameSource.getFrame(originalFrame);
+    if (frameTimestamp == 0) {
+      Target noTarget = targets.getWriteBuffer();
+      noTarget.clear();
+      noTarget.setTimestamp(0);
+      targets.publish();
+      return;
+    }
+    
+    ContourFeatures features = contourFeatures;
+    int bestIndex;
+    if (!trackingWindowEnabled) {
+      searchWindowActive = false;
+      missesInSearchWindow = 0;
+      searchAreaBuffer.release();
+    }
+    boolean usingSearchWindow = searchWindowActive;
+    // (read once, so the whole frame is ranked the same way even if it's changed partway through)
+    TargetRanker ranker = targetRanker;
+    PyramidDetector pyramid = pyramidDetector;
+    if (pyramid != null && !usingSearchWindow) {
+      /* Find the target in a shrunken copy of the frame, then get its exact location from the full size frame. */
+      bestIndex = pyramid.detect(originalFrame, DEFAULT_HSV_LOWER_BOUNDS, DEFAULT_HSV_UPPER_BOUNDS, 
+                                 useThresholdTable, ranker);
+      features = pyramid.getFeatures();
+    } else {
+      /* If the target was seen recently, only look at the part of the frame around where it was.
+       * Just that part is copied out of originalFrame (into the same Mat every time), and filtered. */
+      Mat searchArea = originalFrame;
+      if (usingSearchWindow) {
+        searchArea = searchAreaBuffer.copy(originalFrame, searchWindow);
+        searchWindowOffset.x = searchWindow.x;
+        searchWindowOffset.y = searchWindow.y;
+      } else {
+        searchWindowOffset.x = 0;
+        searchWindowOffset.y = 0;
+      }
+
+      /* Perform an HSV filter on the searchArea to get a binary image, which is stored in processedFrame */
+      applyHSVFilter(searchArea, DEFAULT_HSV_LOWER_BOUNDS, DEFAULT_HSV_UPPER_BOUNDS);
+
+      /* Search that binary image for contours, and store the detected contours in a list 
+       * in OpenCv, contours are represented by the "MatOfPoint" type. 
+       * The offset makes sure the contours are in terms of the whole frame, even if only part was searched. */
+      findContours(processedFrame, searchWindowOffset);
+
+      /* Sort through the list of contours, measuring different aspects of them to determine 
+       * which of them, if any, is most likely the target */
+      contourFeatures.measure(contours);
+      bestIndex = ranker.selectBest(contourFeatures);
+    }
+    
+    Target newTarget = targets.getWriteBuffer();
+    if (bestIndex != -1) {
+      copyMeasurements(features, bestIndex);
+      newTarget.setLocation(contourCenter.x, contourCenter.y);
+    } else {
+      newTarget.clear();
+    }
+    newTarget.setTimestamp(frameTimestamp);
+    // (after this, newTarget belongs to the main loop, so it's only read from here on)
+    targets.publish();
     
-    // if a valid target is found, it will be drawn on the orgininalFrame in green
-    if (currentTarget.getHorizontalDistance() > 0) {
-      Rect box = Imgproc.boundingRect(bestCandidate);
-      drawBoundingBox(box, originalFrame, COLOR_GREEN);
-      
-      Point centroid = this.getContourCenter(bestCandidate);
-      drawPoint(centroid, originalFrame, COLOR_GREEN);
+    // this only hands the frame off to the recorder's own thread (before anything is drawn on it), so it's quick.
+    FrameRecorder recorder = frameRecorder;
+    if (recorder != null) {
+      recorder.record(originalFrame, frameTimestamp, newTarget);
     }
+    updateSearchWindow(bestIndex != -1, usingSearchWindow);
     
-    // Push the original frame to the smartdash
-    camController.pushFrameToDash(originalFrame);
+    /* Send the frame to the smartdash (with a valid target drawn on it in green).
+     * The drawing and sending happen on the AnnotatedStream's thread, so this only copies the frame
+     * (and not even that if nobody is watching, or a frame was sent very recently). */
+    if (annotatedStream != null) {
+      annotatedStream.offer(originalFrame, newTarget.getHorizontalDistance() > 0, contourBoundingBox, contourCenter);
+    }
   }
   
   
@@ -99,8 +268,9 @@ public class ImageProcessor {
    * of the actual target. What exactly "close enough" means is determined by minScore and maxScore.
    * Ultimately, what is returned is this: (minScore <= (contour aspect ratio / ideal aspect ratio) <= maxScore)
    */
-  public boolean passesShapeTest(MatOfPoint contour, double minScore, double maxScore) {
-    double aspectRatioScore = this.getEquivalentRectangleAspectRatio(contour) / Target.DESIRED_CONTOUR_ASPECT_RATIO;
+  private boolean passesShapeTest(MatOfPoint contour, double minScore, double maxScore) {
+    singleContourFeatures.clear();
+    double aspectRatioScore = singleContourFeatures.getAspectScore(singleContourFeatures.add(contour));
     return (minScore <= aspectRatioScore && aspectRatioScore <= maxScore);
   }
   
@@ -114,27 +284,32 @@ public class ImageProcessor {
   }
   
   /**
-   * This method runs all contour filters and finds the contour that's most likely the target.
-   * It does not bother to remove contours that are not the target from the given list.
-   * @param listOfTargets
-   * @return
+   * Removes every contour that doesn't pass both the area test and the shape test from the given list.
+   * This is for tuning the contour filters (see Robot, tuning mode 3), so like getHSVFilter(), 
+   * only call it while the VisionThread is paused (it uses the same scratch buffers as the vision pipeline).
+   * @param contours
+   * @param minArea
+   * @param minScore
+   * @param maxScore See passesAreaTest() and passesShapeTest().
    */
-  public MatOfPoint getStrongestCandidate(ArrayList<MatOfPoint> contours) {
-    MatOfPoint bestCandidate = null;
-    double maxArea = defaultMinArea;
-    
-    for (MatOfPoint c : contours) {
-      double area = Imgproc.contourArea(c);
-      // TODO:
-      // don't forget to also pass the area to the shape test, so it doesn't have to be
-      // recalculated when getting the equivalent rectangle of the contour.
-      if (area > maxArea && passesShapeTest(c, defaultMinScore, defaultMaxScore)) {
-        bestCandidate = c;
-        maxArea = area;
+  public void filterContours(ArrayList<MatOfPoint> contours, double minArea, double minScore, double maxScore) {
+    for (int i = contours.size() - 1; i >= 0; i--) {
+      if (!(passesAreaTest(contours.get(i), minArea) && passesShapeTest(contours.get(i), minScore, maxScore))) {
+        contours.remove(i);
       }
     }
-    
-    return bestCandidate;
+  }
+  
+  /**
+   * Changes how the target is chosen from the contours in each frame.
+   * @param ranker
+   */
+  public void setTargetRanker(TargetRanker ranker) {
+    targetRanker = ranker;
+  }
+  
+  public TargetRanker getTargetRanker() {
+    return targetRanker;
   }
   
   
@@ -145,67 +320,135 @@ public class ImageProcessor {
   // Methods For Finding & Measuring Contours!
   /* ----------------------------------------------------------- */
   
+  /**
+   * Finds the contours in the given binary image.
+   * 
+   * Note that the list returned is reused every time this method is called,
+   * (and the contours in it are released) so don't hold on to it between frames.
+   * @param frame
+   * @return
+   */
   public ArrayList<MatOfPoint> findContours(Mat frame) {
-    ArrayList<MatOfPoint> listOfContours = new ArrayList<MatOfPoint>();
+    searchWindowOffset.x = 0;
+    searchWindowOffset.y = 0;
+    return findContours(frame, searchWindowOffset);
+  }
+  
+  /**
+   * Same as findContours(frame), but the given offset is added to every point found.
+   * This is used when the frame is only part of a bigger image, 
+   * so that the contours still line up with the bigger image.
+   */
+  private ArrayList<MatOfPoint> findContours(Mat frame, Point offset) {
+    // Contours hold native memory that the garbage collector doesn't know about,
+    // so free the last frame's contours now rather than waiting for them to be collected.
+    for (int i = 0; i < contours.size(); i++) {
+      contours.get(i).release();
+    }
+    contours.clear();
+    // Imgproc.findContours() allocates (see CONTOUR_ALLOCATION_BYTES_PER_FRAME) even when there's nothing to find,
+    // so skip it when nothing passed the filter.
+    if (Core.countNonZero(frame) == 0) {
+      return contours;
+    }
     
     // TODO: Add description of what each of these parts do.
-    Mat hierarchy = new Mat();
     int mode = Imgproc.RETR_EXTERNAL;
     int method = Imgproc.CHAIN_APPROX_SIMPLE;
-    Imgproc.findContours(frame, listOfContours, hierarchy, mode, method);
+    Imgproc.findContours(frame, contours, hierarchy, mode, method, offset);
     
-    return listOfContours;
+    return contours;
   }
   
-  public Point getContourCenter(MatOfPoint contour) {
-    //Rect boundingBox = Imgproc.boundingRect(contour);
-    //double centerX = boundingBox.x + (boundingBox.width / 2.0);
-    //double centerY = boundingBox.y + (boundingBox.height / 2.0);
-    
-    // TODO: explain what's going on here
-    Moments moments = Imgproc.moments(contour);
-    double centerX = moments.get_m10() / moments.get_m00();
-    double centerY = moments.get_m01() / moments.get_m00();
-    return new Point(centerX, centerY);
+  /**
+   * Copies the center and bounding box of a measured contour 
+   * into contourCenter and contourBoundingBox (which are reused to avoid making new objects).
+   */
+  private void copyMeasurements(ContourFeatures features, int index) {
+    contourCenter.x = features.getCenterX(index);
+    contourCenter.y = features.getCenterY(index);
+    contourBoundingBox.x = features.getBoxX(index);
+    contourBoundingBox.y = features.getBoxY(index);
+    contourBoundingBox.width = features.getBoxWidth(index);
+    contourBoundingBox.height = features.getBoxHeight(index);
   }
   
-  private double getContourPerimeter(MatOfPoint contour) {
-    //MatOfPoint2f temp = new MatOfPoint2f(contour.toArray());
-    
-    // TODO: Add a bit more explanation for commented out part above.
-    MatOfPoint2f temp = new MatOfPoint2f();
-    contour.convertTo(temp, CvType.CV_32F);
-    /* The arcLength function requires a "MatOfPoint2f", not just a regular "MatOfPoint"
-     * Just from googling, the method above seems to be the best way to deal with this. */
-    
-    return Imgproc.arcLength(temp, true);
-  }
   
-  // TODO: Add explanation for what this is, why it's here, and how it's used.
-  private double getEquivalentRectangleAspectRatio(MatOfPoint contour) {
-    /* Perimeter = 2*W + 2*H
-     * Area = W*H
-     * 
-     * Area / W = H
-     * Perimeter = 2*W + 2*(Area / W)
-     * Perimeter*W = 2*(W^2) + 2*Area
-     * 2*(W^2) - Perimeter*W + 2*Area = 0
-     */
-    
-    double a = 2;
-    double b = -1 * getContourPerimeter(contour);
-    double c = 2 * Imgproc.contourArea(contour);
-    
-    double discriminant = (b*b) - (4*a*c);
-    double largerResult = 0;
-    double smallerResult = 0;
-    if (discriminant >= 0) {
-      // Quadratic Formula
-      largerResult = (-b + Math.sqrt(discriminant)) / (2*a);
-      smallerResult = (-b - Math.sqrt(discriminant)) / (2*a);
+  
+  
+  
+  /* ----------------------------------------------------------- */
+  // Tracking Window Functions!
+  /* ----------------------------------------------------------- */
+  
+  /**
+   * Decides what part of the next frame should be searched.
+   * @param targetFound if the target was found in the frame that was just processed.
+   * @param usedSearchWindow if only the searchWindow was searched in that frame.
+   */
+  private void updateSearchWindow(boolean targetFound, boolean usedSearchWindow) {
+    if (!trackingWindowEnabled) {
+      searchWindowActive = false;
+    } else if (targetFound) {
+      missesInSearchWindow = 0;
+      setSearchWindowAround(contourBoundingBox, 1);
+    } else if (usedSearchWindow) {
+      missesInSearchWindow++;
+      if (missesInSearchWindow >= MAX_MISSES_IN_SEARCH_WINDOW) {
+        // lost it, so go back to searching the whole frame.
+        searchWindowActive = false;
+      } else {
+        // the target could've moved further by now, so give it more room
+        // (this keeps growing the window that the target was missed in, which is already padded once).
+        padSearchWindow(missesInSearchWindow);
+      }
     }
+  }
+  
+  /**
+   * Makes the searchWindow the given box plus paddingMultiplier times the normal padding on each side.
+   */
+  private void setSearchWindowAround(Rect box, int paddingMultiplier) {
+    searchWindow.x = box.x;
+    searchWindow.y = box.y;
+    searchWindow.width = box.width;
+    searchWindow.height = box.height;
+    padSearchWindow(paddingMultiplier);
+  }
+  
+  /**
+   * Grows the searchWindow by paddingMultiplier times the normal padding on each side,
+   * without letting it go outside the frame.
+   */
+  private void padSearchWindow(int paddingMultiplier) {
+    int left = Math.max(0, searchWindow.x - (paddingMultiplier * SEARCH_WINDOW_PADDING_PIXELS_X));
+    int top = Math.max(0, searchWindow.y - (paddingMultiplier * SEARCH_WINDOW_PADDING_PIXELS_Y));
+    int right = Math.min(originalFrame.cols(), 
+                         searchWindow.x + searchWindow.width + (paddingMultiplier * SEARCH_WINDOW_PADDING_PIXELS_X));
+    int bottom = Math.min(originalFrame.rows(), 
+                          searchWindow.y + searchWindow.height + (paddingMultiplier * SEARCH_WINDOW_PADDING_PIXELS_Y));
     
-    return (smallerResult > 0) ? (largerResult / smallerResult) : 0;
+    searchWindow.x = left;
+    searchWindow.y = top;
+    searchWindow.width = right - left;
+    searchWindow.height = bottom - top;
+    searchWindowActive = (searchWindow.width > 0 && searchWindow.height > 0);
+  }
+  
+  /**
+   * @param enabled true to only search around where the target was last seen (when possible),
+   * false to always search the whole frame.
+   */
+  public void setTrackingWindowEnabled(boolean enabled) {
+    // (the vision thread takes care of actually dropping the window on its next frame)
+    trackingWindowEnabled = enabled;
+  }
+  
+  /**
+   * @return if the last frame only searched around where the target was last seen.
+   */
+  public boolean isSearchWindowActive() {
+    return trackingWindowEnabled && searchWindowActive;
   }
   
   
@@ -236,11 +479,26 @@ public class ImageProcessor {
    * Mat that is a member of the ImageProcessor.
    */
   public Mat getHSVFilter(Scalar lowerBounds, Scalar upperBounds) {
-    camController.getFrame(originalFrame);
+    frameSource.getFrame(originalFrame);
+    return applyHSVFilter(originalFrame, lowerBounds, upperBounds);
+  }
+  
+  /**
+   * Performs an HSV filter on the given image (normally all or part of the originalFrame),
+   * without grabbing a new frame from the turretCam first.
+   * See getHSVFilter() for more info on the filter itself.
+   */
+  private Mat applyHSVFilter(Mat source, Scalar lowerBounds, Scalar upperBounds) {
+    if (useThresholdTable) {
+      // (the table is only rebuilt if the bounds are different from last time)
+      thresholdTable.setBounds(lowerBounds, upperBounds);
+      thresholdTable.apply(source, processedFrame);
+      return processedFrame;
+    }
     
     // Images directly from the turretCam are in BGR format, so they 
     // need to be converted to HSV format before the HSV filter is applied
-    Imgproc.cvtColor(originalFrame, processedFrame, Imgproc.COLOR_BGR2HSV);
+    Imgproc.cvtColor(source, processedFrame, Imgproc.COLOR_BGR2HSV);
     
     // This is the HSV filter
     Core.inRange(processedFrame, lowerBounds, upperBounds, processedFrame);
@@ -251,6 +509,45 @@ public class ImageProcessor {
   
   
   
+  /**
+   * @return The stream that shows the vision results on the dashboard, 
+   * or null if this ImageProcessor isn't getting frames from the turretCam.
+   */
+  public AnnotatedStream getAnnotatedStream() {
+    return annotatedStream;
+  }
+  
+  /**
+   * Chooses how the target is found in each frame.
+   * @param levels 0 to search the full size frame for the target (the normal way).
+   * Otherwise, the target is found "coarse to fine" in a frame that's been shrunk by half this many times
+   * (see PyramidDetector). This is meant for when the turretCam is run at a higher resolution.
+   * Either way, once the target is found, only the tracking window around it is searched (if it's enabled,
+   * see setTrackingWindowEnabled()) until it's lost again.
+   */
+  public void setPyramidLevels(int levels) {
+    pyramidDetector = (levels > 0) ? new PyramidDetector(levels) : null;
+  }
+  
+  /**
+   * @param recorder what to record every processed frame with, or null to stop recording.
+   */
+  public void setFrameRecorder(FrameRecorder recorder) {
+    frameRecorder = recorder;
+  }
+  
+  /**
+   * @param useTable true to do the HSV filter with a lookup table (see HSVThresholdTable),
+   * false to use Imgproc.cvtColor() and Core.inRange().
+   */
+  public void setUseThresholdTable(boolean useTable) {
+    useThresholdTable = useTable;
+  }
+  
+  
+  
+  
+  
   /* ----------------------------------------------------------- */
   // Drawing Functions!
   /* ----------------------------------------------------------- */
@@ -280,19 +577,6 @@ public class ImageProcessor {
     return originalFrame;
   }
   
-  public void drawBoundingBox(Rect box, Mat frame, Scalar color) {
-    Point topLeft = new Point(box.x, box.y);
-    Point bottomRight = new Point(box.x + box.width, box.y + box.height);
-    int thickness = 1;
-    Imgproc.rectangle(frame, topLeft, bottomRight, color, thickness);
-  }
-  
-  public void drawPoint(Point point, Mat frame, Scalar color) {
-    int markerSize = 3;
-    int thickness = 1;
-    Imgproc.drawMarker(frame, point, color, Imgproc.MARKER_CROSS, markerSize, thickness, Imgproc.LINE_8);
-  }
-  
   
   
   
@@ -302,21 +586,43 @@ public class ImageProcessor {
   /* ----------------------------------------------------------- */
   
   public void publishDataToSmartDash() {
-    if (currentTarget.getHorizontalDistance() > 0) {
+    // read the target once, so all the values published come from the same frame
+    Target target = getCurrentTarget();
+    if (target.getHorizontalDistance() > 0) {
       SmartDashboard.putBoolean("Target Aquired", true);
     } else {
       SmartDashboard.putBoolean("Target Aquired", false);
     }
-    SmartDashboard.putNumber("Distance", currentTarget.getHorizontalDistance());
-    SmartDashboard.putNumber("targetErrorX", currentTarget.getErrorInDegreesX());
-    SmartDashboard.putNumber("targetErrorY", currentTarget.getErrorInDegreesY());
+    SmartDashboard.putNumber("Distance", target.getHorizontalDistance());
+    SmartDashboard.putNumber("targetErrorX", target.getErrorInDegreesX());
+    SmartDashboard.putNumber("targetErrorY", target.getErrorInDegreesY());
+    SmartDashboard.putNumber("Vision Bytes Allocated Per Frame", bytesAllocatedLastFrame);
+    SmartDashboard.putBoolean("Vision Tracking Window Active", isSearchWindowActive());
+    FrameRecorder recorder = frameRecorder;
+    if (recorder != null) {
+      SmartDashboard.putNumber("Vision Frames Recorded", recorder.getFramesWritten());
+      SmartDashboard.putNumber("Vision Frames Dropped", recorder.getFramesDropped());
+    }
   }
   
+  /**
+   * @return How many bytes the vision thread allocated while processing the last frame,
+   * or -1 if this JVM can't measure that. (0 for a frame with nothing in it, see CONTOUR_ALLOCATION_BYTES_PER_FRAME)
+   */
+  public long getBytesAllocatedLastFrame() {
+    return bytesAllocatedLastFrame;
+  }
+  
+  /**
+   * @return The target found in the most recently processed frame. This never blocks.
+   * The Target returned doesn't change until the next time this is called (then it gets reused),
+   * so only call this from one thread (on the robot, the main robot loop).
+   */
   public Target getCurrentTarget() {
-    return currentTarget;
+    return targets.acquire();
   }
   
   public static ImageProcessor getInstance() {
-    return instance;
+    return InstanceHolder.instance;
   }
 }
@@ -0,0 +1,41 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+/**
+ * The default way of choosing the target:
+ * out of all the contours that are big enough and shaped about right, pick the biggest one.
+ */
+public class LargestTargetRanker implements TargetRanker {
+  
+  private double minArea;
+  private double minScore;
+  private double maxScore;
+  
+  /**
+   * @param minArea Contours must have an area bigger than this (in pixels).
+   * @param minScore
+   * @param maxScore Contours must have an aspect score (see ContourFeatures.getAspectScore())
+   * between these two values.
+   */
+  public LargestTargetRanker(double minArea, double minScore, double maxScore) {
+    this.minArea = minArea;
+    this.minScore = minScore;
+    this.maxScore = maxScore;
+  }
+  
+  @Override
+  public int selectBest(ContourFeatures features) {
+    int bestIndex = -1;
+    double maxArea = minArea;
+    
+    for (int i = 0; i < features.size(); i++) {
+      double area = features.getArea(i);
+      double aspectScore = features.getAspectScore(i);
+      if (area > maxArea && minScore <= aspectScore && aspectScore <= maxScore) {
+        bestIndex = i;
+        maxArea = area;
+      }
+    }
+    
+    return bestIndex;
+  }
+}
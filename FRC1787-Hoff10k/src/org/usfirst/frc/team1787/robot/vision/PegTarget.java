@@ -0,0 +1,86 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import org.usfirst.frc.team1787.robot.utils.UnitConverter;
+
+/**
+ * Describes where the gear peg was in a single frame from the gearCam.
+ *
+ * The peg itself isn't reflective, but it sits right in the middle of 2 vertical
+ * strips of retroreflective tape, so the peg is found by finding those 2 strips.
+ *
+ * Like Target, these are reused by the GearPegProcessor (through set() and clear()),
+ * but one is never changed until whoever got it from getCurrentPeg() calls it again (see TripleBuffer).
+ */
+public class PegTarget {
+  // known geometry of the strips around the peg
+  // each strip is 2 inches wide and 5 inches tall, and their centers are 8.25 inches apart.
+  public static final double STRIP_ASPECT_RATIO = 5 / 2.0;  // (height / width)
+  public static final double STRIP_SPACING = UnitConverter.inchesToMeters(8.25);
+  public static final double STRIP_HEIGHT = UnitConverter.inchesToMeters(5);
+
+  // (see CameraController for the gearCam's own constants)
+  private static final double CENTER_PIXEL_X = (CameraController.GEAR_CAM_IMAGE_WIDTH_PIXELS - 1) / 2.0;
+
+  // member variables
+  private double errorInDegreesX = 0;
+  private double distance = 0;
+  private long timestamp = 0;
+
+  /**
+   * Only the GearPegProcessor should call this.
+   * @param pegCenterX The pixel (x) that's halfway between the 2 strips.
+   * @param stripSpacingPixels How far apart (in pixels) the centers of the 2 strips are.
+   */
+  void set(double pegCenterX, double stripSpacingPixels) {
+    double errorInPixels = pegCenterX - CENTER_PIXEL_X;
+    errorInDegreesX = Math.toDegrees(Math.atan(errorInPixels / CameraController.GEAR_CAM_FOCAL_LENGTH_PIXELS_X));
+    // pinhole camera model: (size in pixels / focal length) = (real size / distance)
+    // (this assumes the robot is facing the peg pretty much head on)
+    distance = (stripSpacingPixels > 0) ? (STRIP_SPACING * CameraController.GEAR_CAM_FOCAL_LENGTH_PIXELS_X / stripSpacingPixels) 
+                                        : 0;
+  }
+
+  /**
+   * Resets this to represent "no peg found".
+   * Only the GearPegProcessor should call this.
+   */
+  void clear() {
+    errorInDegreesX = 0;
+    distance = 0;
+  }
+
+  /**
+   * Only the GearPegProcessor should call this.
+   */
+  void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * @return if the peg was found in this frame.
+   */
+  public boolean isFound() {
+    return distance > 0;
+  }
+
+  /**
+   * @return How many degrees to the right of the middle of the gearCam's image the peg is.
+   */
+  public double getErrorInDegreesX() {
+    return errorInDegreesX;
+  }
+
+  /**
+   * @return About how far (in meters) the gearCam is from the peg's wall.
+   */
+  public double getDistance() {
+    return distance;
+  }
+
+  /**
+   * @return When the frame was taken (in microseconds of FPGA time), or 0 if there was no frame.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+}
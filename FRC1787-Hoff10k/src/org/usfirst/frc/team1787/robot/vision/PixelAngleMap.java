@@ -0,0 +1,245 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A table that says, for every pixel of the turretCam's image, which direction it's looking
+ * and how far away the target would be if it were at that pixel.
+ *
+ * Target used to work this out from scratch every frame with the pinhole camera model
+ * (Math.atan() twice and Math.tan() once), which can't account for the lens bending the image.
+ * The table is built once from a CameraCalibration, with the lens distortion undone,
+ * so looking up a pixel is just reading a few numbers. Since the target's center is almost never
+ * exactly on a pixel, the answer is interpolated between the 4 pixels around it.
+ *
+ * For each pixel, 3 floats are stored:
+ *   azimuth    degrees to the right of straight ahead (measured parallel to the floor)
+ *   elevation  degrees above the middle of the image (measured from the camera, like Target's errorInDegreesY)
+ *   range      horizontal distance (meters) to the target if it's at this pixel, or 0 if it can't be
+ *              (the pixel looks below the height of the target)
+ * Azimuth and range take the camera's tilt into account, so they stay right at the edges of the image.
+ *
+ * The table is saved to a file (all numbers little endian):
+ *
+ * Header (HEADER_SIZE_BYTES long):
+ *   int     MAGIC_NUMBER
+ *   int     VERSION
+ *   int     width of the image in pixels
+ *   int     height of the image in pixels
+ *   double  fx, fy, cx, cy, k1, k2, pitchDegrees, heightMeters (the calibration it was built from)
+ *   double  the height of the target off the floor (meters) it was built for
+ *   (then 0s up to HEADER_SIZE_BYTES)
+ * Then for every pixel (row by row): float azimuth, float elevation, float range
+ *
+ * That's about 225 KB for a 160x120 image. The file is memory mapped when loaded, so loading it
+ * just takes checking the header (rather than reading the whole thing in, or building it all over again).
+ */
+public class PixelAngleMap {
+
+  public static final int MAGIC_NUMBER = 0x50584D31; // "PXM1"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE_BYTES = 96;
+  private static final int FLOATS_PER_PIXEL = 3;
+
+  private FloatBuffer table;
+  private int width;
+  private int height;
+  private CameraCalibration calibration;
+
+  private PixelAngleMap(FloatBuffer table, CameraCalibration calibration) {
+    this.table = table;
+    this.calibration = calibration;
+    this.width = calibration.width;
+    this.height = calibration.height;
+  }
+
+  /**
+   * Loads the table saved in tableFile, or if it's missing or was made from a different calibration,
+   * builds a new one and saves it there.
+   *
+   * @param calibration The calibration of the turretCam.
+   * @param tableFile Where the table is saved.
+   * @throws IOException if the table file can't be read or written.
+   */
+  public static PixelAngleMap loadOrBuild(CameraCalibration calibration, File tableFile) throws IOException {
+    if (tableFile.exists()) {
+      PixelAngleMap map = load(tableFile);
+      if (map != null && map.calibration.sameAs(calibration)) {
+        return map;
+      }
+    }
+    build(calibration, tableFile);
+    PixelAngleMap map = load(tableFile);
+    if (map == null) {
+      throw new IOException("Couldn't read back the table just written to " + tableFile);
+    }
+    return map;
+  }
+
+  /**
+   * @param tableFile
+   * @return The table saved in the given file, or null if the file isn't a table this version can read
+   * (or it was made for a different target height).
+   */
+  public static PixelAngleMap load(File tableFile) throws IOException {
+    MappedByteBuffer data;
+    RandomAccessFile raf = new RandomAccessFile(tableFile, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      // (the mapping stays valid after the file is closed)
+    } finally {
+      raf.close();
+    }
+    data.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (data.capacity() < HEADER_SIZE_BYTES || data.getInt(0) != MAGIC_NUMBER || data.getInt(4) != VERSION) {
+      return null;
+    }
+    int width = data.getInt(8);
+    int height = data.getInt(12);
+    CameraCalibration calibration = new CameraCalibration(width, height,
+                                                          data.getDouble(16), data.getDouble(24),
+                                                          data.getDouble(32), data.getDouble(40),
+                                                          data.getDouble(48), data.getDouble(56),
+                                                          data.getDouble(64), data.getDouble(72));
+    double targetHeight = data.getDouble(80);
+    long expectedSize = HEADER_SIZE_BYTES + (4L * FLOATS_PER_PIXEL * width * height);
+    if (targetHeight != Target.TARGET_HEIGHT_FROM_FLOOR || data.capacity() != expectedSize) {
+      return null;
+    }
+
+    data.position(HEADER_SIZE_BYTES);
+    return new PixelAngleMap(data.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer(), calibration);
+  }
+
+  /**
+   * Builds the table for the given calibration, and saves it to the given file.
+   */
+  public static void build(CameraCalibration calibration, File tableFile) throws IOException {
+    int width = calibration.width;
+    int height = calibration.height;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC_NUMBER);
+    header.putInt(VERSION);
+    header.putInt(width);
+    header.putInt(height);
+    header.putDouble(calibration.fx);
+    header.putDouble(calibration.fy);
+    header.putDouble(calibration.cx);
+    header.putDouble(calibration.cy);
+    header.putDouble(calibration.k1);
+    header.putDouble(calibration.k2);
+    header.putDouble(calibration.pitchDegrees);
+    header.putDouble(calibration.heightMeters);
+    header.putDouble(Target.TARGET_HEIGHT_FROM_FLOOR);
+    header.position(0);
+
+    ByteBuffer body = ByteBuffer.allocate(4 * FLOATS_PER_PIXEL * width * height).order(ByteOrder.LITTLE_ENDIAN);
+    double pitch = Math.toRadians(calibration.pitchDegrees);
+    double targetAboveCamera = Target.TARGET_HEIGHT_FROM_FLOOR - calibration.heightMeters;
+    double[] ray = new double[2];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        calibration.undistort(x, y, ray);
+        // the direction this pixel looks, from the camera: (right, up, forward)
+        double right = ray[0];
+        double up = -ray[1];
+        double forward = 1;
+
+        // tilt it by the camera's pitch, so it's in terms of the floor instead of the camera.
+        double floorUp = (up * Math.cos(pitch)) + (forward * Math.sin(pitch));
+        double floorForward = (forward * Math.cos(pitch)) - (up * Math.sin(pitch));
+        double alongFloor = Math.sqrt((floorForward * floorForward) + (right * right));
+
+        double azimuth = Math.toDegrees(Math.atan2(right, floorForward));
+        double elevation = Math.toDegrees(Math.atan2(up, Math.sqrt((forward * forward) + (right * right))));
+        // similar triangles: (range / targetAboveCamera) = (alongFloor / floorUp)
+        double range = (floorUp > 0) ? (targetAboveCamera * alongFloor / floorUp) : 0;
+
+        body.putFloat((float) azimuth);
+        body.putFloat((float) elevation);
+        body.putFloat((float) Math.max(0, range));
+      }
+    }
+    body.position(0);
+
+    // write to a temporary file first, so a half-written table is never left behind.
+    File tempFile = new File(tableFile.getPath() + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      while (body.hasRemaining()) {
+        channel.write(body);
+      }
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+    if (!tempFile.renameTo(tableFile)) {
+      tableFile.delete();
+      if (!tempFile.renameTo(tableFile)) {
+        throw new IOException("Couldn't move " + tempFile + " to " + tableFile);
+      }
+    }
+  }
+
+  /**
+   * @return Degrees to the right of straight ahead (parallel to the floor) for the given (sub)pixel.
+   */
+  public double getAzimuthDegrees(double pixelX, double pixelY) {
+    return interpolate(pixelX, pixelY, 0);
+  }
+
+  /**
+   * @return Degrees above the middle of the image (as seen by the camera) for the given (sub)pixel.
+   */
+  public double getElevationDegrees(double pixelX, double pixelY) {
+    return interpolate(pixelX, pixelY, 1);
+  }
+
+  /**
+   * @return The horizontal distance (meters) to the target if its center is at the given (sub)pixel,
+   * or 0 if the target can't be there.
+   */
+  public double getRangeMeters(double pixelX, double pixelY) {
+    return interpolate(pixelX, pixelY, 2);
+  }
+
+  public CameraCalibration getCalibration() {
+    return calibration;
+  }
+
+  /**
+   * Bilinear interpolation: a weighted average of the 4 pixels around the given point,
+   * where closer pixels count for more.
+   * @param offset which of the values stored for each pixel to use.
+   */
+  private double interpolate(double pixelX, double pixelY, int offset) {
+    // stay inside the image
+    double x = Math.max(0, Math.min(width - 1, pixelX));
+    double y = Math.max(0, Math.min(height - 1, pixelY));
+    int x0 = Math.min((int) x, width - 2);
+    int y0 = Math.min((int) y, height - 2);
+    double fractionX = x - x0;
+    double fractionY = y - y0;
+
+    int topLeft = (((y0 * width) + x0) * FLOATS_PER_PIXEL) + offset;
+    int bottomLeft = topLeft + (width * FLOATS_PER_PIXEL);
+    double top = table.get(topLeft) + (fractionX * (table.get(topLeft + FLOATS_PER_PIXEL) - table.get(topLeft)));
+    double bottom = table.get(bottomLeft)
+                    + (fractionX * (table.get(bottomLeft + FLOATS_PER_PIXEL) - table.get(bottomLeft)));
+    return top + (fractionY * (bottom - top));
+  }
+}
@@ -0,0 +1,158 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import java.util.ArrayList;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Finds the target "coarse to fine", so that the turretCam can run at a higher resolution
+ * (more precise angles, and the target can be seen from further away) without
+ * vision getting much slower.
+ *
+ * 1) Coarse: the frame is shrunk by half "levels" times (an image pyramid), and the whole
+ *    shrunken frame is searched for the target like normal. This is where most of the pixels are,
+ *    so shrinking it makes this step a lot cheaper (each level = 1/4 the pixels).
+ * 2) Fine: only the part of the full size frame around where the target was found is searched again,
+ *    which gives the target's exact center and bounding box.
+ *
+ * All the measurements that come out are in terms of the full size frame, so the rest of the
+ * vision code doesn't have to know this happened. The HSV filter is done the same way the ImageProcessor's is
+ * (with an HSVThresholdTable, or with Imgproc.cvtColor() and Core.inRange(), see ImageProcessor.setUseThresholdTable()).
+ */
+public class PyramidDetector {
+
+  private int levels;
+  // how much bigger the full size frame is than the coarse one (2^levels)
+  private int scale;
+
+  // extra room (in coarse pixels) left around the coarse target when searching the full size frame,
+  // since its edges are blurry after being shrunk.
+  private final int REFINE_PADDING_COARSE_PIXELS = 2;
+
+  // Scratch buffers, reused every frame.
+  private HSVThresholdTable thresholdTable = new HSVThresholdTable();
+  private Mat[] pyramid;
+  private Mat hsv = new Mat();
+  private Mat mask = new Mat();
+  // the part of the full size frame around the coarse target is copied into this (see RegionBuffer)
+  private RegionBuffer refineArea = new RegionBuffer();
+  private ArrayList<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+  private Mat hierarchy = new Mat();
+  private Point offset = new Point();
+  private Rect refineWindow = new Rect();
+  private ContourFeatures coarseFeatures = new ContourFeatures();
+  private ContourFeatures fineFeatures = new ContourFeatures();
+  // which of the two above the last result is in
+  private ContourFeatures resultFeatures = coarseFeatures;
+
+  /**
+   * @param levels How many times to shrink the frame by half for the coarse search (at least 1).
+   */
+  public PyramidDetector(int levels) {
+    this.levels = Math.max(1, levels);
+    scale = 1 << this.levels;
+    pyramid = new Mat[this.levels];
+    for (int i = 0; i < pyramid.length; i++) {
+      pyramid[i] = new Mat();
+    }
+  }
+
+  /**
+   * Looks for the target in the given frame.
+   *
+   * @param frame The full size BGR frame.
+   * @param lowerBounds
+   * @param upperBounds The HSV bounds to filter with.
+   * @param useThresholdTable true to do the HSV filter with an HSVThresholdTable, false to use cvtColor() and inRange().
+   * @param ranker Decides which contour is the target. It's given measurements in terms of
+   * the full size frame, so the same ranker (and settings) as normal can be used.
+   * @return The index of the target in getFeatures(), or -1 if it wasn't found.
+   */
+  public int detect(Mat frame, Scalar lowerBounds, Scalar upperBounds, boolean useThresholdTable, TargetRanker ranker) {
+    // Coarse
+    Mat source = frame;
+    for (int i = 0; i < levels; i++) {
+      Imgproc.pyrDown(source, pyramid[i]);
+      source = pyramid[i];
+    }
+    applyHSVFilter(source, lowerBounds, upperBounds, useThresholdTable);
+    offset.x = 0;
+    offset.y = 0;
+    findContours(mask, offset);
+    coarseFeatures.measure(contours);
+    coarseFeatures.scale(scale);
+    resultFeatures = coarseFeatures;
+    int coarseIndex = ranker.selectBest(coarseFeatures);
+    if (coarseIndex == -1) {
+      return -1;
+    }
+
+    // Fine
+    int padding = REFINE_PADDING_COARSE_PIXELS * scale;
+    int left = Math.max(0, coarseFeatures.getBoxX(coarseIndex) - padding);
+    int top = Math.max(0, coarseFeatures.getBoxY(coarseIndex) - padding);
+    int right = Math.min(frame.cols(), coarseFeatures.getBoxX(coarseIndex) + coarseFeatures.getBoxWidth(coarseIndex) + padding);
+    int bottom = Math.min(frame.rows(), coarseFeatures.getBoxY(coarseIndex) + coarseFeatures.getBoxHeight(coarseIndex) + padding);
+    if (right <= left || bottom <= top) {
+      return coarseIndex;
+    }
+    refineWindow.x = left;
+    refineWindow.y = top;
+    refineWindow.width = right - left;
+    refineWindow.height = bottom - top;
+
+    applyHSVFilter(refineArea.copy(frame, refineWindow), lowerBounds, upperBounds, useThresholdTable);
+    offset.x = left;
+    offset.y = top;
+    findContours(mask, offset);
+    fineFeatures.measure(contours);
+    int fineIndex = ranker.selectBest(fineFeatures);
+    if (fineIndex == -1) {
+      // (this can happen if the target is right on the edge of passing the filters)
+      // the coarse result is still better than nothing.
+      return coarseIndex;
+    }
+    resultFeatures = fineFeatures;
+    return fineIndex;
+  }
+
+  /**
+   * @return The measurements of the contours from the last call to detect() (in terms of the full size frame).
+   */
+  public ContourFeatures getFeatures() {
+    return resultFeatures;
+  }
+
+  public int getLevels() {
+    return levels;
+  }
+
+  /**
+   * HSV filters the given image into mask (see ImageProcessor.getHSVFilter()).
+   */
+  private void applyHSVFilter(Mat source, Scalar lowerBounds, Scalar upperBounds, boolean useThresholdTable) {
+    if (useThresholdTable) {
+      // (the table is only rebuilt if the bounds are different from last time)
+      thresholdTable.setBounds(lowerBounds, upperBounds);
+      thresholdTable.apply(source, mask);
+    } else {
+      Imgproc.cvtColor(source, hsv, Imgproc.COLOR_BGR2HSV);
+      Core.inRange(hsv, lowerBounds, upperBounds, mask);
+    }
+  }
+
+  private void findContours(Mat binaryImage, Point offset) {
+    // (see ImageProcessor.findContours())
+    for (int i = 0; i < contours.size(); i++) {
+      contours.get(i).release();
+    }
+    contours.clear();
+    Imgproc.findContours(binaryImage, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE, offset);
+  }
+}
@@ -0,0 +1,45 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Copies part of a frame into a Mat that's reused every time, for searching just that part.
+ *
+ * Mat.submat() would avoid the copy, but it makes a new Mat (and native header) every call, which is garbage
+ * every frame (plus native memory that's only freed once it's collected or released).
+ * Copying the pixels is cheap compared to filtering them, since the part being searched is small.
+ */
+class RegionBuffer {
+
+  private final Mat region = new Mat();
+  private final Size size = new Size();
+  private final Point center = new Point();
+
+  /**
+   * @param frame
+   * @param window The part of the frame to copy. Must be completely inside the frame.
+   * @return A copy of that part of the frame. The same Mat is reused (and overwritten) every call.
+   */
+  Mat copy(Mat frame, Rect window) {
+    size.width = window.width;
+    size.height = window.height;
+    // getRectSubPix() centers the copy on this point. Centered like this, the copy starts exactly on
+    // the window's top left pixel, so the pixels are copied as is (nothing gets blended).
+    center.x = window.x + ((window.width - 1) / 2.0);
+    center.y = window.y + ((window.height - 1) / 2.0);
+    Imgproc.getRectSubPix(frame, size, center, region);
+    return region;
+  }
+
+  /**
+   * Frees the copy's memory now instead of waiting for the garbage collector.
+   * (copy() can still be used afterwards, it'll just allocate again.)
+   */
+  void release() {
+    region.release();
+  }
+}
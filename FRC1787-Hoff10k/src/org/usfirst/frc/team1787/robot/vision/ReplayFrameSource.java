@@ -0,0 +1,64 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import org.opencv.core.Mat;
+
+/**
+ * Hands out the frames of a FrameDataset, one after another, as if they were coming from a camera.
+ * Give one of these to an ImageProcessor to run the vision code on recorded frames
+ * (for example, on a laptop, to measure how fast it is or to check it still finds the target).
+ * 
+ * Unlike a real camera, this never waits. Frames are handed out as fast as they're asked for.
+ */
+public class ReplayFrameSource implements FrameSource {
+  
+  private FrameDataset dataset;
+  private boolean loop;
+  private int nextFrame = 0;
+  private int lastFrame = -1;
+  
+  /**
+   * @param dataset the frames to hand out.
+   * @param loop true to start over from the first frame after the last one,
+   * false to stop handing out frames (getFrame() will return 0) after the last one.
+   */
+  public ReplayFrameSource(FrameDataset dataset, boolean loop) {
+    this.dataset = dataset;
+    this.loop = loop;
+  }
+  
+  @Override
+  public long getFrame(Mat destination) {
+    if (nextFrame >= dataset.getFrameCount()) {
+      if (!loop || dataset.getFrameCount() == 0) {
+        return 0;
+      }
+      nextFrame = 0;
+    }
+    lastFrame = nextFrame;
+    nextFrame++;
+    return dataset.readFrame(lastFrame, destination);
+  }
+  
+  /**
+   * @return if there are frames left to hand out.
+   * (always true when looping, unless the dataset is empty).
+   */
+  public boolean hasMoreFrames() {
+    return (loop && dataset.getFrameCount() > 0) || nextFrame < dataset.getFrameCount();
+  }
+  
+  /**
+   * @return the index (in the dataset) of the frame that was handed out last, or -1 if none have been.
+   */
+  public int getLastFrameIndex() {
+    return lastFrame;
+  }
+  
+  /**
+   * Starts over from the first frame.
+   */
+  public void rewind() {
+    nextFrame = 0;
+    lastFrame = -1;
+  }
+}
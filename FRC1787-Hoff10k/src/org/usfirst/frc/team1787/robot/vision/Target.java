@@ -3,41 +3,104 @@ package org.usfirst.frc.team1787.robot.vision;
 import org.usfirst.frc.team1787.robot.utils.UnitConverter;
 
 import org.opencv.core.MatOfPoint;
-import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
 
+/**
+ * Describes where the target was in a single frame.
+ * 
+ * Targets are handed from the VisionThread to the main robot loop. To avoid creating a new one 
+ * every frame, the ImageProcessor reuses them (through setLocation() and clear()), 
+ * but it never changes a Target that the main loop has until the main loop calls getCurrentTarget() again
+ * (see TripleBuffer).
+ */
 public class Target {
-  private static CameraController camController = CameraController.getInstance();
-  
   // known geometry of the target
   // (measurements are in SI units and made to the center of the target unless specified otherwise).
   public static final double TARGET_HEIGHT_FROM_FLOOR = UnitConverter.inchesToMeters((7 * 12) + 2);
   public static final double CAM_TO_TARGET_VERTICAL_DISTANCE = TARGET_HEIGHT_FROM_FLOOR
-                                                               - camController.TURRET_CAM_HEIGHT_FROM_FLOOR;
+                                                               - CameraController.TURRET_CAM_HEIGHT_FROM_FLOOR;
   public static final double TURRET_TO_TARGET_VERTICAL_DISTANCE = TARGET_HEIGHT_FROM_FLOOR;
   // 4 inch tall target wrapped around 15 inch diameter cylinder = 15/4 aspect ratio when viewed head on.
   public static final double DESIRED_CONTOUR_ASPECT_RATIO = 15/4.0;
   
   // known geometry of the image
   // The true center of the image isn't at width/2 or height/2 because of 0 indexing.
-  private static final double CENTER_PIXEL_X = (camController.IMAGE_WIDTH_PIXELS - 1) / 2.0;
-  private static final double CENTER_PIXEL_Y = (camController.IMAGE_HEIGHT_PIXELS - 1) / 2.0;
+  private static final double CENTER_PIXEL_X = (CameraController.IMAGE_WIDTH_PIXELS - 1) / 2.0;
+  private static final double CENTER_PIXEL_Y = (CameraController.IMAGE_HEIGHT_PIXELS - 1) / 2.0;
   
   // used to toggle between 2 different methods of calculating error.
   // pinhole camera model is more correct, but requires that the FOV of the turret cam be known.
   private static boolean usePinholeCameraModel = true;
+  
+  // If set, the angles and distance are looked up in this table instead of being calculated
+  // (which also corrects for lens distortion, see PixelAngleMap).
+  private static volatile PixelAngleMap pixelAngleMap = null;
 
   // member variables
   private double errorInDegreesX = 0;
   private double errorInDegreesY = 0;
   private double distance = 0;
+  // when the frame this target came from was taken (microseconds), 0 if there was no frame.
+  private long timestamp = 0;
   
   public Target(MatOfPoint contour) {
     if (contour != null) {
-      Point centroid = ImageProcessor.getInstance().getContourCenter(contour);
-      calculateErrorInDegreesX(centroid.x);
-      calculateErrorInDegreesY(centroid.y);
-      calculateDistance(errorInDegreesY);
+      // (this is the center of mass of the contour, see ContourFeatures for more info)
+      Moments moments = Imgproc.moments(contour);
+      setLocation(moments.get_m10() / moments.get_m00(), moments.get_m01() / moments.get_m00());
+    }
+  }
+  
+  /**
+   * @param contourCenterX
+   * @param contourCenterY The pixel that the center of the target is at.
+   */
+  public Target(double contourCenterX, double contourCenterY) {
+    setLocation(contourCenterX, contourCenterY);
+  }
+  
+  /**
+   * Recalculates all values for a target whose center is at the given pixel.
+   * Only the ImageProcessor should call this.
+   */
+  void setLocation(double contourCenterX, double contourCenterY) {
+    PixelAngleMap map = pixelAngleMap;
+    if (map != null) {
+      errorInDegreesX = map.getAzimuthDegrees(contourCenterX, contourCenterY);
+      errorInDegreesY = map.getElevationDegrees(contourCenterX, contourCenterY);
+      distance = map.getRangeMeters(contourCenterX, contourCenterY);
+      return;
     }
+    calculateErrorInDegreesX(contourCenterX);
+    calculateErrorInDegreesY(contourCenterY);
+    calculateDistance(errorInDegreesY);
+  }
+  
+  /**
+   * @param map The table to look up the angles and distance of every Target in from now on, 
+   * or null to go back to calculating them with the pinhole camera model.
+   */
+  public static void setPixelAngleMap(PixelAngleMap map) {
+    pixelAngleMap = map;
+  }
+  
+  /**
+   * Resets this target to represent "no target found".
+   * Only the ImageProcessor should call this.
+   */
+  void clear() {
+    errorInDegreesX = 0;
+    errorInDegreesY = 0;
+    distance = 0;
+  }
+  
+  /**
+   * Only the ImageProcessor should call this.
+   * @param timestamp when the frame this target came from was taken (see FrameSource.getFrame()).
+   */
+  void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
   }
   
   /** @return How many degrees off from the center the target is from the turretCam (horizontal). */
@@ -45,9 +108,9 @@ public class Target {
     double errorInPixels = contourCenterX - CENTER_PIXEL_X;
       
     if (usePinholeCameraModel) {
-      errorInDegreesX = Math.toDegrees(Math.atan(errorInPixels / camController.FOCAL_LENGTH_PIXELS_X));
+      errorInDegreesX = Math.toDegrees(Math.atan(errorInPixels / CameraController.FOCAL_LENGTH_PIXELS_X));
     } else {
-      errorInDegreesX = errorInPixels * camController.DEGREES_PER_PIXEL_X;
+      errorInDegreesX = errorInPixels * CameraController.DEGREES_PER_PIXEL_X;
     }
   }
   
@@ -56,9 +119,9 @@ public class Target {
     double errorInPixels = CENTER_PIXEL_Y - contourCenterY;
     
     if (usePinholeCameraModel) {
-      errorInDegreesY = Math.toDegrees(Math.atan(errorInPixels / camController.FOCAL_LENGTH_PIXELS_Y));
+      errorInDegreesY = Math.toDegrees(Math.atan(errorInPixels / CameraController.FOCAL_LENGTH_PIXELS_Y));
     } else {
-      errorInDegreesY = errorInPixels * camController.DEGREES_PER_PIXEL_Y;
+      errorInDegreesY = errorInPixels * CameraController.DEGREES_PER_PIXEL_Y;
     }
   }
   
@@ -68,10 +131,8 @@ public class Target {
    * @return the distance in meters
    */
   private void calculateDistance(double errorY) {
-    if (distance == -1) {
-      double angleFromHorizontal = errorY + camController.TURRET_CAM_ANGLE_FROM_FLOOR_DEGREES;
-      distance = CAM_TO_TARGET_VERTICAL_DISTANCE / Math.tan(Math.toRadians(angleFromHorizontal));
-    }
+    double angleFromHorizontal = errorY + CameraController.TURRET_CAM_ANGLE_FROM_FLOOR_DEGREES;
+    distance = CAM_TO_TARGET_VERTICAL_DISTANCE / Math.tan(Math.toRadians(angleFromHorizontal));
   }
   
   public double getErrorInDegreesX() {
@@ -85,4 +146,12 @@ public class Target {
   public double getHorizontalDistance() {
     return distance;
   }
+  
+  /**
+   * @return When the frame this target came from was taken (in microseconds), or 0 if there was no frame.
+   * Every frame gets a different timestamp, even if no target was found in it.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
 }
@@ -0,0 +1,18 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+/**
+ * Picks which contour (if any) is most likely the target.
+ * 
+ * The ImageProcessor measures every contour once into a ContourFeatures,
+ * then hands those measurements to its TargetRanker to choose from.
+ * To try out a different way of choosing the target, just write a new 
+ * TargetRanker and give it to ImageProcessor.setTargetRanker().
+ */
+public interface TargetRanker {
+  
+  /**
+   * @param features The measurements of every contour in the frame.
+   * @return The index (in features) of the best contour, or -1 if none of them look like the target.
+   */
+  public int selectBest(ContourFeatures features);
+}
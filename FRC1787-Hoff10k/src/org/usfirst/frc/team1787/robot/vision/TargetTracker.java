@@ -0,0 +1,268 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+/**
+ * Smooths out the targets found by the ImageProcessor over many frames.
+ *
+ * Each Target only describes a single frame, so if one frame is bad (a reflection that looks like
+ * the target, motion blur, etc.) the turret would get yanked toward it, and if the target is missed
+ * for even one frame, the distance would read 0. The tracker fixes both of those:
+ *
+ * - Where the target is (its angle and distance) is estimated with a Kalman filter that assumes the
+ *   target moves at a constant velocity (relative to the robot). Each new frame nudges the
+ *   estimate instead of replacing it, and a detection that's way too far from where the target
+ *   should be is thrown out.
+ * - If the target isn't seen, the estimate keeps going along its last velocity ("coasting") for up to
+ *   MAX_MISSES_IN_A_ROW frames before the track is dropped.
+ * - getConfidence() says how much the estimate can be trusted (0 to 1), so shooting can wait for a solid lock.
+ *
+ * The angle is tracked relative to the turret gyro (i.e. gyro angle when the frame was taken + error in the frame),
+ * rather than relative to the camera. Otherwise the turret turning toward the target would look
+ * like the target moving the other way.
+ *
+ * This isn't thread safe, it's meant to be used only by the main robot loop (see Shooter).
+ */
+public class TargetTracker {
+
+  // Angle and distance are tracked separately, since they don't really affect each other.
+  // The numbers are the noise in each measurement (std deviation), and how much the target is expected to
+  // accelerate (relative to the robot). Bigger process noise = follows new measurements faster, but smooths less.
+  private final double ANGLE_MEASUREMENT_NOISE_DEGREES = 0.5;
+  private final double ANGLE_PROCESS_NOISE = 20;          // degrees/s^2
+  private final double DISTANCE_MEASUREMENT_NOISE_METERS = 0.1;
+  private final double DISTANCE_PROCESS_NOISE = 1;        // meters/s^2
+  private ConstantVelocityFilter angleFilter = new ConstantVelocityFilter(ANGLE_MEASUREMENT_NOISE_DEGREES,
+                                                                          ANGLE_PROCESS_NOISE);
+  private ConstantVelocityFilter distanceFilter = new ConstantVelocityFilter(DISTANCE_MEASUREMENT_NOISE_METERS,
+                                                                             DISTANCE_PROCESS_NOISE);
+
+  // A detection further than this many std deviations from where the target should be is thrown out.
+  private final double OUTLIER_THRESHOLD_STD_DEVIATIONS = 3;
+  // how many frames in a row the target can be missed (or thrown out) before giving up on it.
+  private final int MAX_MISSES_IN_A_ROW = 10;
+  // how many detections it takes before the tracker is fully confident.
+  private final int DETECTIONS_FOR_FULL_CONFIDENCE = 5;
+  // if frames are further apart than this, the old track is too old to keep going.
+  private final double MAX_SECONDS_BETWEEN_FRAMES = 1;
+  // how far past the last frame getTargetAngle(timestamp) will guess where the target is.
+  private final double MAX_PREDICTION_SECONDS = 0.2;
+
+  private boolean hasTrack = false;
+  private int detections = 0;
+  private int missesInARow = 0;
+  // timestamp (microseconds) of the last frame used, to tell when a new one shows up, and how long it's been.
+  private long lastFrameTimestamp = 0;
+
+  /**
+   * Gives the tracker the latest Target from the ImageProcessor. This can be called every loop;
+   * the Target is only used if it's from a frame that hasn't been seen yet.
+   *
+   * @param measurement The latest Target from ImageProcessor.getCurrentTarget().
+   * @param turretAngleDegrees The turret gyro's angle when the frame was taken.
+   */
+  public void update(Target measurement, double turretAngleDegrees) {
+    long timestamp = measurement.getTimestamp();
+    if (timestamp == 0 || timestamp == lastFrameTimestamp) {
+      // no new frame
+      return;
+    }
+    double dt = (timestamp - lastFrameTimestamp) / 1e6;
+    lastFrameTimestamp = timestamp;
+
+    if (hasTrack && (dt <= 0 || dt > MAX_SECONDS_BETWEEN_FRAMES)) {
+      reset();
+    }
+
+    boolean targetFound = measurement.getHorizontalDistance() > 0;
+    double angle = turretAngleDegrees + measurement.getErrorInDegreesX();
+    double distance = measurement.getHorizontalDistance();
+
+    if (!hasTrack) {
+      if (targetFound) {
+        angleFilter.reset(angle);
+        distanceFilter.reset(distance);
+        hasTrack = true;
+        detections = 1;
+        missesInARow = 0;
+      }
+      return;
+    }
+
+    angleFilter.predict(dt);
+    distanceFilter.predict(dt);
+
+    boolean outlier = targetFound
+                      && (angleFilter.getStdDeviationsAway(angle) > OUTLIER_THRESHOLD_STD_DEVIATIONS
+                          || distanceFilter.getStdDeviationsAway(distance) > OUTLIER_THRESHOLD_STD_DEVIATIONS);
+    if (targetFound && !outlier) {
+      angleFilter.correct(angle);
+      distanceFilter.correct(distance);
+      detections++;
+      missesInARow = 0;
+    } else {
+      // coast
+      missesInARow++;
+      if (missesInARow > MAX_MISSES_IN_A_ROW) {
+        reset();
+      }
+    }
+  }
+
+  /**
+   * @param timestamp A time in microseconds (FPGA time, like Utility.getFPGATime()).
+   * @return how many seconds before the given time the last frame was taken.
+   */
+  public double getSecondsSinceLastFrame(long timestamp) {
+    return (timestamp - lastFrameTimestamp) / 1e6;
+  }
+
+  /**
+   * Forgets about the current target (if any).
+   */
+  public void reset() {
+    hasTrack = false;
+    detections = 0;
+    missesInARow = 0;
+  }
+
+  /**
+   * @return if there's a target being tracked right now.
+   * If false, none of the other getters mean anything.
+   */
+  public boolean hasTrack() {
+    return hasTrack;
+  }
+
+  /**
+   * @return The gyro angle the turret should be at to point straight at the target
+   * (as of when the last frame was taken).
+   */
+  public double getTargetAngle() {
+    return hasTrack ? angleFilter.getPosition() : 0;
+  }
+
+  /**
+   * @param timestamp A time in microseconds (FPGA time, like Utility.getFPGATime()).
+   * @return Where the target is expected to be at the given time (usually "now"),
+   * based on where it was in the last frame and how fast it was moving.
+   * (this won't guess more than MAX_PREDICTION_SECONDS past the last frame)
+   */
+  public double getTargetAngle(long timestamp) {
+    if (!hasTrack) {
+      return 0;
+    }
+    double secondsSinceLastFrame = (timestamp - lastFrameTimestamp) / 1e6;
+    secondsSinceLastFrame = Math.max(0, Math.min(MAX_PREDICTION_SECONDS, secondsSinceLastFrame));
+    return angleFilter.getPosition() + (angleFilter.getVelocity() * secondsSinceLastFrame);
+  }
+
+  /**
+   * @return How fast the target angle is changing (degrees per second).
+   */
+  public double getTargetAngularVelocity() {
+    return hasTrack ? angleFilter.getVelocity() : 0;
+  }
+
+  /**
+   * @return The (horizontal) distance to the target in meters, or 0 if there's no target.
+   */
+  public double getHorizontalDistance() {
+    return hasTrack ? Math.max(0, distanceFilter.getPosition()) : 0;
+  }
+
+  /**
+   * @return How much the current estimate can be trusted, from 0 (not at all / no target) to 1.
+   * This goes up as the target is seen in more frames, and down for each frame it's missed.
+   */
+  public double getConfidence() {
+    if (!hasTrack) {
+      return 0;
+    }
+    double lockFactor = Math.min(1, (double) detections / DETECTIONS_FOR_FULL_CONFIDENCE);
+    double coastFactor = 1 - ((double) missesInARow / (MAX_MISSES_IN_A_ROW + 1));
+    return lockFactor * coastFactor;
+  }
+
+  /**
+   * A 1D Kalman filter for something moving at a (roughly) constant velocity.
+   * The state is [position, velocity], and only the position is measured.
+   */
+  private static class ConstantVelocityFilter {
+    // measurement noise variance, and process noise (acceleration) spectral density
+    private double r;
+    private double q;
+
+    private double position = 0;
+    private double velocity = 0;
+    // covariance matrix [[p00, p01], [p01, p11]]
+    private double p00;
+    private double p01;
+    private double p11;
+
+    ConstantVelocityFilter(double measurementStdDev, double accelerationStdDev) {
+      r = measurementStdDev * measurementStdDev;
+      q = accelerationStdDev * accelerationStdDev;
+    }
+
+    /**
+     * Starts over at the given position, with no idea how fast it's moving.
+     */
+    void reset(double measuredPosition) {
+      position = measuredPosition;
+      velocity = 0;
+      p00 = r;
+      p01 = 0;
+      // (big, since the velocity is a complete guess)
+      p11 = 100 * q;
+    }
+
+    /**
+     * Moves the estimate forward by dt seconds.
+     */
+    void predict(double dt) {
+      position += velocity * dt;
+
+      // P = F*P*F' + Q, where F = [[1, dt], [0, 1]], and Q is for a random (white noise) acceleration.
+      double dt2 = dt * dt;
+      double newP00 = p00 + (2 * dt * p01) + (dt2 * p11) + (q * dt2 * dt / 3);
+      double newP01 = p01 + (dt * p11) + (q * dt2 / 2);
+      double newP11 = p11 + (q * dt);
+      p00 = newP00;
+      p01 = newP01;
+      p11 = newP11;
+    }
+
+    /**
+     * @return How many std deviations the given measurement is from where it's expected to be.
+     */
+    double getStdDeviationsAway(double measuredPosition) {
+      double innovation = measuredPosition - position;
+      return Math.abs(innovation) / Math.sqrt(p00 + r);
+    }
+
+    void correct(double measuredPosition) {
+      double innovation = measuredPosition - position;
+      double s = p00 + r;
+      double k0 = p00 / s;
+      double k1 = p01 / s;
+
+      position += k0 * innovation;
+      velocity += k1 * innovation;
+
+      // P = (I - K*H)*P
+      double newP00 = (1 - k0) * p00;
+      double newP01 = (1 - k0) * p01;
+      double newP11 = p11 - (k1 * p01);
+      p00 = newP00;
+      p01 = newP01;
+      p11 = newP11;
+    }
+
+    double getPosition() {
+      return position;
+    }
+
+    double getVelocity() {
+      return velocity;
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+/**
+ * Something that processes frames from a camera, one at a time (see VisionThread).
+ */
+public interface VisionPipeline {
+  
+  /**
+   * Grabs the next frame and processes it. This blocks until a frame shows up (or the camera times out).
+   */
+  public void runVisionProcessing();
+}
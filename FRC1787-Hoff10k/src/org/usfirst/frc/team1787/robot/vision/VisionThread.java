@@ -0,0 +1,115 @@
+package org.usfirst.frc.team1787.robot.vision;
+
+import edu.wpi.first.wpilibj.DriverStation;
+
+/**
+ * Runs a vision pipeline on its own thread (normally the ImageProcessor's, see getInstance()).
+ *
+ * Grabbing a frame from the turretCam can take up to CameraController's timeout (3 seconds!)
+ * if the camera hiccups. When that happened inside teleopPeriodic(), driving, the winch, and
+ * the intake would all freeze along with it. Now this thread does all the waiting, and
+ * the main robot loop just reads the latest result from ImageProcessor.getCurrentTarget().
+ *
+ * The thread can be paused for when the main loop needs the ImageProcessor to itself
+ * (for example, the HSV and contour tuning modes in Robot.runTuningCode()).
+ *
+ * Each pipeline gets its own VisionThread, so pipelines for different cameras (like the GearPegProcessor)
+ * run at the same time, on both of the RIO's cores.
+ */
+public class VisionThread implements Runnable {
+
+  private VisionPipeline pipeline;
+  private String name;
+  private Thread thread;
+
+  // paused is only a request: the vision thread checks it between frames, so setPaused() never waits on a frame
+  // (which can take up to 3 seconds, see above). idle is true once the vision thread has actually stopped.
+  // Both are only ever changed while holding pauseLock, which is never held while a frame is being processed.
+  private final Object pauseLock = new Object();
+  private volatile boolean paused = false;
+  private volatile boolean idle = false;
+
+  // Singleton Instance (the one that runs the ImageProcessor for the turretCam)
+  private static final VisionThread instance = new VisionThread("VisionThread", ImageProcessor.getInstance());
+
+  /**
+   * @param name What to call the thread (this shows up in stack traces and profilers).
+   * @param pipeline What to run on the thread.
+   */
+  public VisionThread(String name, VisionPipeline pipeline) {
+    this.name = name;
+    this.pipeline = pipeline;
+  }
+
+  /**
+   * Starts the vision thread. Calling this more than once has no effect.
+   */
+  public synchronized void start() {
+    if (thread == null) {
+      thread = new Thread(this, name);
+      // daemon = this thread won't keep the program alive on its own.
+      thread.setDaemon(true);
+      // the control loop is more important than vision, so give it the edge if they compete for the CPU.
+      thread.setPriority(Thread.NORM_PRIORITY - 1);
+      thread.start();
+    }
+  }
+
+  /**
+   * @param paused true to stop processing frames, false to resume.
+   * This never waits. If a frame is being processed when pausing, it's finished first,
+   * so check isIdle() before using the pipeline from another thread.
+   * (This only pauses this thread's pipeline.)
+   */
+  public void setPaused(boolean paused) {
+    if (this.paused == paused) {
+      // nothing to change, so don't bother with the lock.
+      return;
+    }
+    synchronized (pauseLock) {
+      this.paused = paused;
+      pauseLock.notifyAll();
+    }
+  }
+
+  public boolean isPaused() {
+    return paused;
+  }
+
+  /**
+   * @return true if the vision thread is paused and done with its last frame,
+   * so the pipeline is safe to use from another thread (until setPaused(false) is called).
+   */
+  public boolean isIdle() {
+    return paused && idle;
+  }
+
+  @Override
+  public void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      // (checked between frames, see setPaused())
+      synchronized (pauseLock) {
+        try {
+          while (paused) {
+            idle = true;
+            pauseLock.wait();
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        idle = false;
+      }
+      
+      try {
+        pipeline.runVisionProcessing();
+      } catch (RuntimeException e) {
+        // a bad frame shouldn't kill vision for the rest of the match.
+        DriverStation.reportError("Vision processing failed: " + e, false);
+      }
+    }
+  }
+
+  public static VisionThread getInstance() {
+    return instance;
+  }
+}